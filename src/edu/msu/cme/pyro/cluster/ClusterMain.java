@@ -19,14 +19,21 @@ package edu.msu.cme.pyro.cluster;
 import edu.msu.cme.pyro.derep.Dereplicator;
 import edu.msu.cme.pyro.cluster.dist.DistanceCalculator;
 import edu.msu.cme.pyro.cluster.dist.ThinEdge;
+import edu.msu.cme.pyro.cluster.io.ClusterResultReader;
+import edu.msu.cme.pyro.cluster.io.ClusterResultWriter;
+import edu.msu.cme.pyro.cluster.io.ClusterStream;
 import edu.msu.cme.pyro.cluster.io.ClusterToBiom;
 import edu.msu.cme.pyro.cluster.utils.AlignSeqMatch;
-import edu.msu.cme.pyro.cluster.io.LocalEdgeReader;
+import edu.msu.cme.pyro.cluster.io.EdgeFiles;
+import edu.msu.cme.pyro.cluster.io.EdgeReader;
+import edu.msu.cme.pyro.cluster.io.MatrixIndex;
+import edu.msu.cme.pyro.cluster.io.SeekableEdgeReader;
 import edu.msu.cme.pyro.cluster.io.RDPClustParser;
 import edu.msu.cme.pyro.cluster.io.RFormatter;
 import edu.msu.cme.pyro.cluster.utils.RepresenativeSeqs;
 import edu.msu.cme.pyro.derep.ExplodeMappings;
 import edu.msu.cme.pyro.derep.IdMapping;
+import edu.msu.cme.pyro.derep.IndexMappings;
 import edu.msu.cme.pyro.derep.RefreshMappings;
 import edu.msu.cme.pyro.derep.SampleMapping;
 import edu.msu.cme.rdp.hadoop.HadoopMain;
@@ -38,8 +45,10 @@ import edu.msu.cme.rdp.readseq.readers.Sequence;
 import edu.msu.cme.rdp.readseq.utils.SeqUtils;
 import edu.msu.cme.rdp.readseq.writers.FastaWriter;
 import edu.msu.cme.rdp.taxatree.TreeBuilder;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -138,6 +147,74 @@ public class ClusterMain {
         }
     }
 
+    private static void dumpEdges(String[] newArgs) throws IOException {
+        if (newArgs.length < 1 || newArgs.length > 3) {
+            System.err.println("USAGE: dump-edges <column matrix> [start cutoff] [end cutoff]");
+            return;
+        }
+
+        File matrix = new File(newArgs[0]);
+        int startDist = Integer.MIN_VALUE;
+        int endDist = Integer.MAX_VALUE;
+        if (newArgs.length > 1) {
+            startDist = (int) Math.round(Double.parseDouble(newArgs[1]) * DistanceCalculator.MULTIPLIER);
+        }
+        if (newArgs.length > 2) {
+            endDist = (int) Math.round(Double.parseDouble(newArgs[2]) * DistanceCalculator.MULTIPLIER);
+        }
+
+        SeekableEdgeReader is = EdgeFiles.openReader(matrix);
+        boolean sorted = true;
+        if (newArgs.length > 1) {
+            MatrixIndex index = EdgeFiles.getIndex(matrix);
+            sorted = index.isSorted();
+            if (sorted) {
+                is.seek(index.getOrdinal(startDist));
+            }
+        }
+
+        ThinEdge edge = new ThinEdge();
+        while (is.nextThinEdge(edge) != null) {
+            if (edge.getDist() > endDist && sorted) {
+                break;
+            }
+            if (edge.getDist() < startDist || edge.getDist() > endDist) {
+                continue;
+            }
+            System.out.println(edge.getSeqi() + "\t" + edge.getSeqj() + "\t" + ((float) edge.getDist() / DistanceCalculator.MULTIPLIER));
+        }
+        is.close();
+    }
+
+    private static void indexMatrix(String[] newArgs) throws IOException {
+        if (newArgs.length != 1) {
+            System.err.println("USAGE: index-matrix <column matrix>");
+            return;
+        }
+
+        File matrix = new File(newArgs[0]);
+        MatrixIndex index = MatrixIndex.build(matrix);
+        index.write(matrix);
+
+        System.out.println("Edges: " + index.getEdgeCount());
+        System.out.println("Sequences: " + index.getSeqCount());
+        System.out.println("Maximum distance: " + ((float) index.getMaxDist() / DistanceCalculator.MULTIPLIER));
+        System.out.println("Sorted: " + index.isSorted());
+    }
+
+    private static void convertMatrix(String[] newArgs) throws IOException {
+        if (newArgs.length < 2 || newArgs.length > 3 || (newArgs.length == 3 && !newArgs[2].equals("raw") && !newArgs[2].equals("compact"))) {
+            System.err.println("USAGE: convert-matrix <column matrix> <output matrix> [raw|compact (default)]");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        File in = new File(newArgs[0]);
+        File out = new File(newArgs[1]);
+        EdgeFiles.convert(in, out, newArgs.length == 2 || newArgs[2].equals("compact"));
+        System.err.println("Converted " + in + " (" + in.length() + " bytes) to " + out + " (" + out.length() + " bytes) in " + (System.currentTimeMillis() - startTime) / 1000 + " s");
+    }
+
     private static void toSquareMatrix(String[] newArgs) throws IOException {
 
         if (newArgs.length != 3) {
@@ -145,7 +222,7 @@ public class ClusterMain {
             return;
         }
 
-        LocalEdgeReader is = new LocalEdgeReader(new File(newArgs[0]));
+        EdgeReader is = EdgeFiles.openReader(new File(newArgs[0]));
         IdMapping<Integer> idMapping = IdMapping.fromFile(new File(newArgs[1]));
         if (idMapping.size() > 5000) {
             System.err.println("I refuse to convert a file with more than 5000 sequences");
@@ -161,8 +238,8 @@ public class ClusterMain {
             }
         }
 
-        ThinEdge edge;
-        while ((edge = is.nextThinEdge()) != null) {
+        ThinEdge edge = new ThinEdge();
+        while (is.nextThinEdge(edge) != null) {
             matrix[edge.getSeqj()][edge.getSeqi()] = matrix[edge.getSeqi()][edge.getSeqj()] = edge.getDist() / (double) DistanceCalculator.MULTIPLIER;
         }
         is.close();
@@ -297,11 +374,51 @@ public class ClusterMain {
         File clusterFile = new File(args[0]);
         String cutoff = args[1];
 
+        if (ClusterResultReader.isResultFile(clusterFile)) {
+            ClusterResultReader reader = new ClusterResultReader(clusterFile);
+            int index = reader.findCutoff(Double.parseDouble(cutoff));
+            if (index == -1) {
+                throw new IOException("No cutoffs in " + clusterFile);
+            }
+
+            PrintStream out = new PrintStream(new BufferedOutputStream(System.out));
+            ClusterToBiom.writeSparseCutoff(reader.getSamples(), reader.getOTUCounts(index, reader.readEntrySamples()), out);
+            out.flush();
+            return;
+        }
+
         RDPClustParser parser = new RDPClustParser(clusterFile);
-        ClusterToBiom.writeCutoff(parser.getCutoff(cutoff), System.out);
+        ClusterStream stream = parser.streamCutoff(cutoff);
+        if (stream == null) {
+            throw new IOException("No cutoffs in " + clusterFile);
+        }
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out));
+        ClusterToBiom.writeCutoff(stream, ClusterToBiom.getSampleNames(parser), out);
+        out.flush();
+        stream.close();
         parser.close();
     }
     
+    private static void convertClusterFile(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("USAGE: convert-clust <cluster file or result file> <output file>");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        File in = new File(args[0]);
+        File out = new File(args[1]);
+        if (ClusterResultReader.isResultFile(in)) {
+            PrintStream clustOut = new PrintStream(new BufferedOutputStream(new FileOutputStream(out), 64 * 1024));
+            new ClusterResultReader(in).writeClusterFile(clustOut);
+            clustOut.close();
+        } else {
+            ClusterResultWriter.fromClusterFile(in, out);
+        }
+        System.err.println("Converted " + in + " (" + in.length() + " bytes) to " + out + " (" + out.length() + " bytes) in " + (System.currentTimeMillis() - startTime) / 1000 + " s");
+    }
+
     private static void convertClusterRformat(String[] args) throws IOException {
         if (args.length != 4 && args.length != 5) {
             throw new IllegalArgumentException("Usage: clusterFile outdir startDist endDist [idcountmap]" 
@@ -334,14 +451,18 @@ public class ClusterMain {
         System.err.println("\texplode-mappings - Explode a dereplicated sequence file back to sample replicated files");
         System.err.println("\tdemultiplex      - Demultiplex a tab-delimited result file using an id and sample mapping");
         System.err.println("\trefresh-mappings - Remove mapping entries for sequences externally filtered");
-        System.err.println("\tdump-edges       - Dumps a binary distance file to flat text (stdout)");
+        System.err.println("\tindex-mappings   - Converts text id and sample mappings to the memory mapped binary format");
+        System.err.println("\tdump-edges       - Dumps a binary distance file to flat text (stdout), optionally between two cutoffs");
+        System.err.println("\tindex-matrix     - Writes the distance/offset index for a binary distance file");
         System.err.println("\tsquare-matrix    - Dumps a binary distance file to a square matrix");
+        System.err.println("\tconvert-matrix   - Converts a binary distance file between the raw and compact formats");
         System.err.println("\ttree             - Converts a merges file to a newick tree");
         System.err.println("\treplay-cluster   - Replays a merge file to create a cluster file");
         System.err.println("\tto-fasta         - Convert a sequence file to fasta format");
         System.err.println("\tto-unaligned-fasta         - Convert a sequence file to fasta format");
         System.err.println("\tfilter-seqs      - Remove sequences from a file");
         System.err.println("\tcluster-to-biom  - Convert a cluster file to a biom otu table");
+        System.err.println("\tconvert-clust    - Converts a cluster file to the binary cluster result format or back");
         System.err.println("\tcluster_to_Rformat  - Convert a cluster file to a R compatible community data matrix file");
         if (hadoop) {
             System.err.println("\thadoop - Calculate distances using hadoop distance calculator");
@@ -369,15 +490,16 @@ public class ClusterMain {
             ExplodeMappings.main(newArgs);
         } else if (commandName.equals("refresh-mappings")) {
             RefreshMappings.main(newArgs);
+        } else if (commandName.equals("index-mappings")) {
+            IndexMappings.main(newArgs);
         } else if (commandName.equals("dump-edges")) {
-            LocalEdgeReader is = new LocalEdgeReader(new File(newArgs[0]));
-            ThinEdge edge;
-            while ((edge = is.nextThinEdge()) != null) {
-                System.out.println(edge.getSeqi() + "\t" + edge.getSeqj() + "\t" + ((float) edge.getDist() / DistanceCalculator.MULTIPLIER));
-            }
-            is.close();
+            dumpEdges(newArgs);
+        } else if (commandName.equals("index-matrix")) {
+            indexMatrix(newArgs);
         } else if (commandName.equals("square-matrix")) {
             toSquareMatrix(newArgs);
+        } else if (commandName.equals("convert-matrix")) {
+            convertMatrix(newArgs);
         } else if (hadoop && commandName.equals("hadoop")) {
             HadoopMain.main(newArgs);
         } else if (commandName.equals("tree")) {
@@ -396,6 +518,8 @@ public class ClusterMain {
             removeSeqs(newArgs);
         } else if (commandName.equals("cluster-to-biom")) {
             convertClusterBiom(newArgs);
+        } else if (commandName.equals("convert-clust")) {
+            convertClusterFile(newArgs);
         } else if (commandName.equals("cluster_to_Rformat")) {
             convertClusterRformat(newArgs);
         }else {
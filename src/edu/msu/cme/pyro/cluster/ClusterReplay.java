@@ -18,7 +18,6 @@ package edu.msu.cme.pyro.cluster;
 
 import edu.msu.cme.pyro.cluster.dist.DistanceCalculator;
 import edu.msu.cme.pyro.cluster.io.ClusterFileOutput;
-import edu.msu.cme.pyro.cluster.io.ClusterOutput;
 import edu.msu.cme.pyro.cluster.utils.Cluster;
 import edu.msu.cme.pyro.cluster.utils.ClusterFactory;
 import edu.msu.cme.pyro.derep.IdMapping;
@@ -49,8 +48,9 @@ public class ClusterReplay {
         IdMapping<Integer> idMapping = IdMapping.fromFile(new File(args[0]));
         SampleMapping<String> sampleMapping = SampleMapping.fromFile(new File(args[1]));
 
-        ClusterOutput clustOut = new ClusterFileOutput(idMapping, sampleMapping, new PrintStream(new File(args[3])));
+        ClusterFileOutput clustOut = new ClusterFileOutput(idMapping, sampleMapping, new PrintStream(new File(args[3])));
         ClusterFactory factory = new ClusterFactory();
+        factory.addClusterListener(clustOut.getSampleCounts());
         DataInputStream mergeStream = new DataInputStream(new BufferedInputStream(new FileInputStream(args[2])));
 
         double step = .01f;
@@ -24,9 +24,16 @@ import edu.msu.cme.pyro.cluster.upgma.UPGMAClusterEdges;
 import edu.msu.cme.pyro.cluster.upgma.UPGMAEdgeReader;
 import edu.msu.cme.pyro.cluster.utils.Cluster;
 import edu.msu.cme.pyro.cluster.utils.ClusterFactory;
+import edu.msu.cme.pyro.cluster.utils.UnionFindClusterFactory;
+import edu.msu.cme.pyro.cluster.utils.ClusterUtils;
+import edu.msu.cme.pyro.cluster.io.BiomOutput;
 import edu.msu.cme.pyro.cluster.io.ClusterFileOutput;
 import edu.msu.cme.pyro.cluster.io.ClusterOutput;
-import edu.msu.cme.pyro.cluster.io.LocalEdgeReader;
+import edu.msu.cme.pyro.cluster.io.ClusterResultOutput;
+import edu.msu.cme.pyro.cluster.io.EdgeFiles;
+import edu.msu.cme.pyro.cluster.io.MultiClusterOutput;
+import edu.msu.cme.pyro.cluster.io.RFormatOutput;
+import edu.msu.cme.pyro.cluster.io.SampleCountMatrix;
 import edu.msu.cme.pyro.cluster.upgma.UPGMAClusterFactory;
 import edu.msu.cme.pyro.cluster.io.EdgeReader;
 import edu.msu.cme.pyro.cluster.utils.AbstractClusterFactory;
@@ -60,6 +67,13 @@ public class Clustering {
         options.addOption("o", "outfile", true, "Output file");
         options.addOption("t", "tree-file", true, "Write out merges to file");
         options.addOption("C", "no-clust-out", false, "Don't write out clustering");
+        options.addOption("T", "threads", true, "Number of threads for upgma lookaheads (default = 1)");
+        options.addOption("L", "max-edges", true, "Load at most this many upgma thick edges per round instead of filling the heap");
+        options.addOption("M", "mem-budget", true, "Memory for upgma thick edges, ie 512m or 8g, converted to a max-edges limit");
+        options.addOption("R", "rformat-dir", true, "Also write an R community data matrix for each cutoff to this directory");
+        options.addOption("B", "biom-cutoffs", true, "Also write a sparse biom table for each of these cutoffs, ie 0.03,0.05, to [outfile]_[cutoff].biom");
+        options.addOption("b", "result-file", true, "Also write the clustering to this binary cluster result file");
+        options.addOption("D", "debug", false, "Validate the upgma bound heaps after every round (slow)");
     }
 
     public static void doUPGMA(UPGMAClusterFactory fact, UPGMAEdgeReader reader, int psi, double step, ClusterOutput clustOut) throws IOException {
@@ -75,10 +89,13 @@ public class Clustering {
 
         PrintStream out = new PrintStream(new FileOutputStream("timing.txt", true));
         long startTime = System.currentTimeMillis();
+        int round = 0;
         try {
             while (reader.loadMoreEdges()) {
                 int lambda = reader.getUnknownLambda();
                 edgeHolder.setLambda(lambda);
+                round++;
+                int merges = 0;
 
                 long t = System.currentTimeMillis();
                 System.out.println("lambda=" + lambda);
@@ -86,8 +103,9 @@ public class Clustering {
                     //edgeHolder.lbHeap.rebuild();
                     //edgeHolder.ubHeap.rebuild();
                     //System.out.println("Lowest upperbound=" + ubEdge.getBound(psi));
-                    if (ubEdge.getBound(psi) <= edgeHolder.getLowestLB().getBound(lambda)) {
-                    } else if (edgeHolder.getSecondLowestLB() != null && ubEdge.getBound(psi) <= edgeHolder.getSecondLowestLB().getBound(lambda)) {
+                    int ub = edgeHolder.getUpperBound(ubEdge);
+                    if (ub <= edgeHolder.getLowerBound(edgeHolder.getLowestLB())) {
+                    } else if (edgeHolder.getSecondLowestLB() != null && ub <= edgeHolder.getLowerBound(edgeHolder.getSecondLowestLB())) {
                     } else {
                         ThickEdge lowestLB = edgeHolder.getLowestLB();
                         ThickEdge secondLowestLB = edgeHolder.getSecondLowestLB();
@@ -104,28 +122,33 @@ public class Clustering {
                     break;
                     }*/
 
-                    if (ubEdge.getBound(psi) > cutoff) {
+                    if (ub > cutoff) {
                         clustOut.printClusters(fact, cutoff);
                         lastCutoff = cutoff;
-                        while (ubEdge.getBound(psi) > cutoff) {
+                        while (ub > cutoff) {
                             cutoff += realStep;
                         }
                     }
 
-                    fact.mergeCluster(ubEdge.getCi(), ubEdge.getCj(), ubEdge.getBound(psi));
-
+                    fact.mergeCluster(ubEdge.getCi(), ubEdge.getCj(), ub);
+                    merges++;
                 }
 
+                System.out.println("Round " + round + " lambda=" + lambda + " edges_read=" + reader.getLastEdgesRead() + " edges_loaded=" + reader.getLastEdgesLoaded() + " live_edges=" + fact.getEdgeCount() + " merges=" + merges + " clusters=" + fact.getClustCount() + " time=" + (System.currentTimeMillis() - t));
+                out.println("Round " + round + "\t" + lambda + "\t" + reader.getLastEdgesRead() + "\t" + reader.getLastEdgesLoaded() + "\t" + merges);
+
                 avgTimeMerging = (avgTimeMerging + (System.currentTimeMillis() - t)) / 2;
 
-                t = System.currentTimeMillis();
-                if (!edgeHolder.lbHeap.validate(System.err)) {
-                    throw new IllegalStateException("LBHeap validation failed");
-                }
-                if (!edgeHolder.ubHeap.validate(System.err)) {
-                    throw new IllegalStateException("UBHeap validation failed");
+                if (edgeHolder.isValidating()) {
+                    t = System.currentTimeMillis();
+                    if (!edgeHolder.lbHeap.validate(System.err)) {
+                        throw new IllegalStateException("LBHeap validation failed");
+                    }
+                    if (!edgeHolder.ubHeap.validate(System.err)) {
+                        throw new IllegalStateException("UBHeap validation failed");
+                    }
+                    avgTimeSpentValidating = (avgTimeSpentValidating + (System.currentTimeMillis() - t)) / 2;
                 }
-                avgTimeSpentValidating = (avgTimeSpentValidating + (System.currentTimeMillis() - t)) / 2;
             }
             clustOut.printClusters(fact, cutoff);
         } catch (CannotLoadMoreEdgesException e) {
@@ -145,9 +168,9 @@ public class Clustering {
         int realStep = (int) Math.round(step * DistanceCalculator.MULTIPLIER);
         System.out.println("Doing complete linkage clustering with step " + step + " (realstep=" + realStep + ")");
         int cutoff = 0;
-        ThinEdge edge;
+        ThinEdge edge = new ThinEdge();
 
-        while ((edge = reader.nextThinEdge()) != null) {
+        while (reader.nextThinEdge(edge) != null) {
             if (edge.getDist() > cutoff) {
                 clustOut.printClusters(fact, cutoff);
                 while (edge.getDist() > cutoff) {
@@ -172,7 +195,7 @@ public class Clustering {
                 tkEdge.addEdge(edge.getDist());
             }
 
-            if (ci.getNumberOfSeqs() * cj.getNumberOfSeqs() <= tkEdge.getSeenEdges()) {
+            if ((long) ci.getNumberOfSeqs() * cj.getNumberOfSeqs() <= tkEdge.getSeenEdges()) {
                 fact.mergeCluster(ci, cj, edge.getDist());
             }
         }
@@ -180,12 +203,12 @@ public class Clustering {
         reader.close();
     }
 
-    public static void doSingleLinkage(ClusterFactory fact, EdgeReader reader, double step, ClusterOutput clustOut) throws IOException {
+    public static void doSingleLinkage(UnionFindClusterFactory fact, EdgeReader reader, double step, ClusterOutput clustOut) throws IOException {
         int realStep = (int) Math.round(step * DistanceCalculator.MULTIPLIER);
         int cutoff = 0;
-        ThinEdge edge;
+        ThinEdge edge = new ThinEdge();
 
-        while ((edge = reader.nextThinEdge()) != null) {
+        while (reader.nextThinEdge(edge) != null) {
 
             Cluster ci = fact.getCluster(edge.getSeqi());
             Cluster cj = fact.getCluster(edge.getSeqj());
@@ -223,7 +246,11 @@ public class Clustering {
         double psi = -1;
         int numSeqs = -1;
         File mergesFile = null;
+        boolean debug = false;
+        int threads = 1;
+        long maxEdges = 0;
         ClusterOutput clustOut;
+        SampleCountMatrix sampleCounts = null;
 
         CommandLineParser parser = new PosixParser();
 
@@ -234,6 +261,18 @@ public class Clustering {
                 method = line.getOptionValue("method");
             }
 
+            debug = line.hasOption("debug");
+
+            if (line.hasOption("threads")) {
+                threads = Integer.parseInt(line.getOptionValue("threads"));
+            }
+
+            if (line.hasOption("max-edges")) {
+                maxEdges = Long.parseLong(line.getOptionValue("max-edges"));
+            } else if (line.hasOption("mem-budget")) {
+                maxEdges = UPGMAEdgeReader.getMaxEdgesForBudget(ClusterUtils.parseMemSize(line.getOptionValue("mem-budget")));
+            }
+
             if (line.hasOption("tree-file")) {
                 mergesFile = new File(line.getOptionValue("tree-file"));
             }
@@ -265,11 +304,38 @@ public class Clustering {
                 }
 
                 numSeqs = idMapping.size();
-                clustOut = new ClusterFileOutput(idMapping, sampleMapping, new PrintStream(outFile));
+                ClusterFileOutput fileOut = new ClusterFileOutput(idMapping, sampleMapping, new PrintStream(outFile));
+                sampleCounts = fileOut.getSampleCounts();
+                MultiClusterOutput multiOut = new MultiClusterOutput();
+                multiOut.addOutput(fileOut);
+                clustOut = multiOut;
+
+                if (line.hasOption("rformat-dir")) {
+                    File rformatDir = new File(line.getOptionValue("rformat-dir"));
+                    if (!rformatDir.isDirectory() && !rformatDir.mkdirs()) {
+                        throw new Exception("Couldn't create R format output directory " + rformatDir);
+                    }
+                    multiOut.addOutput(new RFormatOutput(sampleCounts, rformatDir));
+                }
+
+                if (line.hasOption("biom-cutoffs")) {
+                    String prefix = outFile.getPath();
+                    if (outFile.getName().contains(".")) {
+                        prefix = prefix.substring(0, prefix.lastIndexOf("."));
+                    }
+                    multiOut.addOutput(new BiomOutput(sampleCounts, prefix, BiomOutput.parseCutoffs(line.getOptionValue("biom-cutoffs"))));
+                }
+
+                if (line.hasOption("result-file")) {
+                    multiOut.addOutput(new ClusterResultOutput(sampleCounts, new File(line.getOptionValue("result-file"))));
+                }
             } else {
                 if (mergesFile == null) {
                     throw new Exception("Merges output file is required if not outputing clustering");
                 }
+                if (line.hasOption("rformat-dir") || line.hasOption("biom-cutoffs") || line.hasOption("result-file")) {
+                    throw new Exception("R format, biom and result file output can't be written without the clustering");
+                }
 
                 clustOut = new ClusterOutput() {
 
@@ -311,20 +377,26 @@ public class Clustering {
             } else {
                 f = new ClusterFactory();
             }
+            if (sampleCounts != null) {
+                f.addClusterListener(sampleCounts);
+            }
 
-            doCompleteLinkage(f, new LocalEdgeReader(distFile), step, clustOut);
+            doCompleteLinkage(f, EdgeFiles.openReader(distFile), step, clustOut);
             f.finish();
             System.out.println("Clustering complete: " + (System.currentTimeMillis() - startTime));
         } else if (method.equals("single")) {
             long startTime = System.currentTimeMillis();
-            ClusterFactory f = null;
+            UnionFindClusterFactory f = null;
 
             if (mergesFile != null) {
-                f = new ClusterFactory(mergesFile);
+                f = new UnionFindClusterFactory(mergesFile);
             } else {
-                f = new ClusterFactory();
+                f = new UnionFindClusterFactory();
+            }
+            if (sampleCounts != null) {
+                f.addClusterListener(sampleCounts);
             }
-            doSingleLinkage(f, new LocalEdgeReader(distFile), step, clustOut);
+            doSingleLinkage(f, EdgeFiles.openReader(distFile), step, clustOut);
             f.finish();
             System.out.println("Clustering complete: " + (System.currentTimeMillis() - startTime));
         } else if (method.equals("upgma")) {
@@ -344,10 +416,17 @@ public class Clustering {
             } else {
                 factory = new UPGMAClusterFactory(intPsi);
             }
+            if (sampleCounts != null) {
+                factory.addClusterListener(sampleCounts);
+            }
+            factory.getEdgeHolder().setValidating(debug);
             reader = new UPGMAEdgeReader(intPsi, distFile, factory, numSeqs);
+            reader.setThreads(threads);
+            reader.setMaxLoadedEdges(maxEdges);
 
             long startTime = System.currentTimeMillis();
             doUPGMA(factory, reader, intPsi, step, clustOut);
+            reader.close();
             factory.finish();
             System.out.println("Clustering complete: " + ((System.currentTimeMillis() - startTime) - reader.getTimeSpentLookingahead()));
             System.out.println("Lookaheads performed: " + reader.getLookaheads());
@@ -29,18 +29,24 @@ import edu.msu.cme.rdp.readseq.readers.Sequence;
 import edu.msu.cme.rdp.readseq.readers.IndexedSeqReader;
 import edu.msu.cme.rdp.readseq.utils.SeqUtils;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
@@ -54,8 +60,10 @@ import org.apache.commons.cli.PosixParser;
 public class DistanceCalculator {
 
     public static final int MULTIPLIER = 10000;
+    //Sequences per tile side, two blocks of ~1.5kb aligned sequences stay cache resident
+    private static final int TILE_SIZE = 256;
 
-    private static class PartialMatrixResult {
+    static class PartialMatrixResult {
 
         List<File> splitFiles = new ArrayList();
         double psi = Double.MIN_VALUE;
@@ -78,6 +86,10 @@ public class DistanceCalculator {
         options.addOption(new Option("o", "outfile", true, "File to write sorted column matrix to"));
         options.addOption(new Option("i", "id-mapping", true, "Id mapping file"));
         options.addOption(new Option("w", "workdir", true, "Working directory where temp files are stored"));
+        options.addOption(new Option("t", "threads", true, "Number of threads to compute distances with (default = 1)"));
+        options.addOption(new Option("M", "mem-budget", true, "Memory to buffer computed edges in before spilling a partial matrix, ie 512m or 8g (default = half the free heap)"));
+        options.addOption(new Option("z", "compact", false, "Write the matrix in the block compressed format"));
+        options.addOption(new Option("F", "merge-fan-in", true, "Most partial matrices open at once while merging (default = " + MergeDistsJob.DEFAULT_FAN_IN + ")"));
     }
 
     private static SequenceFile readSeqs(File fastaFile, String maskSeq) throws IOException, MaskSequenceNotFoundException {
@@ -118,22 +130,164 @@ public class DistanceCalculator {
     }
 
     /**
-     * Writes edges out to the specified file, sorts the list of edges inplace (aka will reorder the supplied list)
+     * Writes edges out to the specified file, sorts the buffer inplace (aka will reorder the supplied edges)
      * @param edges
      * @param outFile
      * @throws IOException
      */
-    public static void writeEdges(List<ThinEdge> edges, File outFile) throws IOException {
-        Collections.sort(edges);
+    public static void writeEdges(EdgeBuffer edges, File outFile) throws IOException {
+        edges.sort();
 
         EdgeWriter out = new EdgeWriter(outFile);
-        for (ThinEdge edge : edges) {
-            out.writeEdge(edge);
-        }
+        edges.writeTo(out);
         out.close();
     }
 
-    private static PartialMatrixResult computePartialMatrices(Map<String, byte[]> seqs, Map<String, Integer> reverseMapping, File nonoverlapFile, File workingDir, DistanceModel model, int overlapLimit, double cutoff) throws IOException {
+    /**
+     * Hands out square tiles of the upper triangle of the distance matrix,
+     * tiles are walked row by row so neighbouring tiles share row sequences
+     */
+    private static class TileQueue {
+
+        private final int numSeqs;
+        private final int tileSize;
+        private int rowStart = 0;
+        private int colStart = 0;
+
+        TileQueue(int numSeqs, int tileSize) {
+            this.numSeqs = numSeqs;
+            this.tileSize = tileSize;
+        }
+
+        synchronized int[] next() {
+            if (rowStart >= numSeqs) {
+                return null;
+            }
+
+            int[] ret = new int[]{rowStart, colStart};
+
+            colStart += tileSize;
+            if (colStart >= numSeqs) {
+                rowStart += tileSize;
+                colStart = rowStart;
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     * Computes the distances in the tiles it pulls off the queue, buffering
+     * the edges below the cutoff and spilling its own sorted partial matrices
+     * whenever the buffer reaches its share of the memory budget
+     */
+    private static class TileWorker implements Callable<TileWorker> {
+
+        private final byte[][] seqs;
+        private final int[] ids;
+        private final TileQueue tiles;
+        private final DistanceModel model;
+        private final int overlapLimit;
+        private final double cutoff;
+        private final File workingDir;
+        private final AtomicInteger edgeFileCount;
+        private final PartialMatrixResult result;
+        private final DataOutputStream nonOverlapOut;
+        private final ByteArrayOutputStream tileNonOverlapBuf = new ByteArrayOutputStream();
+        private final DataOutputStream tileNonOverlap = new DataOutputStream(tileNonOverlapBuf);
+        private final EdgeBuffer edges;
+        double psi = Double.MIN_VALUE;
+        long edgeCount = 0, edgesWritten = 0, nonOverlapCount = 0;
+
+        TileWorker(byte[][] seqs, int[] ids, TileQueue tiles, DistanceModel model, int overlapLimit, double cutoff, File workingDir, AtomicInteger edgeFileCount, PartialMatrixResult result, DataOutputStream nonOverlapOut, int edgeCapacity) {
+            this.seqs = seqs;
+            this.ids = ids;
+            this.tiles = tiles;
+            this.model = model;
+            this.overlapLimit = overlapLimit;
+            this.cutoff = cutoff;
+            this.workingDir = workingDir;
+            this.edgeFileCount = edgeFileCount;
+            this.result = result;
+            this.nonOverlapOut = nonOverlapOut;
+            this.edges = new EdgeBuffer(Math.min(edgeCapacity, TILE_SIZE * TILE_SIZE), edgeCapacity);
+        }
+
+        public TileWorker call() throws IOException {
+            int[] tile;
+            while ((tile = tiles.next()) != null) {
+                computeTile(tile[0], tile[1]);
+            }
+
+            if (!edges.isEmpty()) {
+                spill(true);
+            }
+
+            return this;
+        }
+
+        private void computeTile(int rowStart, int colStart) throws IOException {
+            int rowEnd = Math.min(rowStart + tiles.tileSize, seqs.length);
+            int colEnd = Math.min(colStart + tiles.tileSize, seqs.length);
+            double dist;
+
+            for (int seq1Index = rowStart; seq1Index < rowEnd; seq1Index++) {
+                byte[] seq1 = seqs[seq1Index];
+                int seq1Id = ids[seq1Index];
+
+                for (int seq2Index = Math.max(colStart, seq1Index + 1); seq2Index < colEnd; seq2Index++) {
+                    edgeCount++;
+                    try {
+                        dist = model.getDistance(seq1, seqs[seq2Index], overlapLimit);
+                    } catch (OverlapCheckFailedException e) {
+                        nonOverlapCount++;
+                        tileNonOverlap.writeInt(seq1Id);
+                        tileNonOverlap.writeInt(ids[seq2Index]);
+                        continue;
+                    }
+                    if (dist > psi) {
+                        psi = dist;
+                    }
+
+                    if (dist < cutoff) {
+                        edges.add(seq1Id, ids[seq2Index], (int) ((dist * MULTIPLIER) + .5));
+                        edgesWritten++;
+
+                        if (edges.isFull()) {
+                            spill(false);
+                        }
+                    }
+                }
+            }
+
+            if (tileNonOverlapBuf.size() > 0) {
+                synchronized (nonOverlapOut) {
+                    tileNonOverlapBuf.writeTo(nonOverlapOut);
+                }
+                tileNonOverlapBuf.reset();
+            }
+        }
+
+        private void spill(boolean last) throws IOException {
+            File tmp = new File(workingDir, "partial_matrix" + edgeFileCount.getAndIncrement());
+            System.err.println("Dumping " + edges.size() + " edges to " + tmp.getName() + (last ? " FINAL EDGES" : "") + " (buffered bytes=" + edges.getAllocatedBytes() + ")");
+            System.err.println("Edges computed=" + edgeCount + " edges written=" + edgesWritten + " nonoverlapping edges=" + nonOverlapCount + " (" + Thread.currentThread().getName() + ")");
+            writeEdges(edges, tmp);
+            //The buffer never outgrows its share of the budget, so keep the array for the next batch
+            edges.clear();
+
+            synchronized (result) {
+                result.splitFiles.add(tmp.getAbsoluteFile());
+            }
+        }
+    }
+
+    /**
+     * Computes the distances between every pair of sequences on threads
+     * workers, returns the sorted partial matrices they spilled to workingDir
+     * for MergeDistsJob
+     */
+    static PartialMatrixResult computePartialMatrices(Map<String, byte[]> seqs, Map<String, Integer> reverseMapping, File nonoverlapFile, File workingDir, DistanceModel model, int overlapLimit, double cutoff, int threads, long memBudget) throws IOException {
         Set<String> notFoundIds = new LinkedHashSet();
         List<String> seqids = new ArrayList(seqs.keySet());
 
@@ -147,67 +301,51 @@ public class DistanceCalculator {
             throw new IOException("Failed to find id mapping for sequence(s): " + notFoundIds);
         }
 
-        PartialMatrixResult result = new PartialMatrixResult();
-
-        List<ThinEdge> edges = new ArrayList();
+        byte[][] seqBytes = new byte[seqids.size()][];
+        int[] ids = new int[seqids.size()];
+        for (int index = 0; index < seqids.size(); index++) {
+            seqBytes[index] = seqs.get(seqids.get(index));
+            ids[index] = reverseMapping.get(seqids.get(index));
+        }
 
-        int edgeFileCount = 0;
-        String seq1Name = null;
-        String seq2Name = null;
-        double dist;
-        Integer seq1Id, seq2Id;
-        File tmp;
-        System.gc();
-        long edgeCount = 0, edgesWritten = 0, nonOverlapCount = 0;
+        PartialMatrixResult result = new PartialMatrixResult();
+        TileQueue tiles = new TileQueue(seqBytes.length, TILE_SIZE);
+        AtomicInteger edgeFileCount = new AtomicInteger();
         DataOutputStream nonOverlapOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(nonoverlapFile)));
+        int edgeCapacity = EdgeBuffer.capacityFor(memBudget / threads);
 
-        for (int seq1Index = 0; seq1Index < seqids.size(); seq1Index++) {
-            seq1Name = seqids.get(seq1Index);
-            seq1Id = reverseMapping.get(seq1Name);
-
-            for (int seq2Index = seq1Index + 1; seq2Index < seqids.size(); seq2Index++) {
-                seq2Name = seqids.get(seq2Index);
-                seq2Id = reverseMapping.get(seq2Name);
-
-                edgeCount++;
-                try {
-                    dist = model.getDistance(seqs.get(seq1Name), seqs.get(seq2Name), overlapLimit);
-                } catch (OverlapCheckFailedException e) {
-                    nonOverlapCount++;
-                    nonOverlapOut.writeInt(seq1Id);
-                    nonOverlapOut.writeInt(seq2Id);
-                    continue;
-                }
-                if (dist > result.psi) {
-                    result.psi = dist;
-                }
-
-                if (dist < cutoff) {
-                    edges.add(new ThinEdge(seq1Id, seq2Id, (int) ((dist * MULTIPLIER) + .5)));
-                    edgesWritten++;
-                }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<TileWorker>> workers = new ArrayList();
+        for (int index = 0; index < threads; index++) {
+            workers.add(executor.submit(new TileWorker(seqBytes, ids, tiles, model, overlapLimit, cutoff, workingDir, edgeFileCount, result, nonOverlapOut, edgeCapacity)));
+        }
+        executor.shutdown();
 
-                if (ClusterUtils.getMemRatio() > .5f) {
-                    System.gc();
-                    tmp = new File(workingDir, "partial_matrix" + (edgeFileCount++));
-                    System.err.println("Dumping " + edges.size() + " edges to " + tmp.getName() + " (memory ratio=" + ClusterUtils.getMemRatio() + ")");
-                    System.err.println("Edges computed=" + edgeCount + " edges written=" + edgesWritten + " nonoverlapping edges=" + nonOverlapCount);
-                    result.splitFiles.add(tmp.getAbsoluteFile());
-                    writeEdges(edges, tmp);
-                    edges.clear();
-                    System.gc();
+        long edgeCount = 0, edgesWritten = 0, nonOverlapCount = 0;
+        try {
+            for (Future<TileWorker> future : workers) {
+                TileWorker worker = future.get();
+                if (worker.psi > result.psi) {
+                    result.psi = worker.psi;
                 }
+                edgeCount += worker.edgeCount;
+                edgesWritten += worker.edgesWritten;
+                nonOverlapCount += worker.nonOverlapCount;
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new IOException("Interrupted while computing distances");
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            nonOverlapOut.close();
         }
 
-        nonOverlapOut.close();
-
-        if (edges.size() > 0) {
-            tmp = new File(workingDir, "partial_matrix" + (edgeFileCount++));
-            System.err.println("Dumping " + edges.size() + " edges to " + tmp.getName() + " FINAL EDGES (memory ratio=" + ClusterUtils.getMemRatio() + ")");
-            result.splitFiles.add(tmp.getAbsoluteFile());
-            writeEdges(edges, tmp);
-        }
+        System.err.println("Edges computed=" + edgeCount + " edges written=" + edgesWritten + " nonoverlapping edges=" + nonOverlapCount);
 
         return result;
     }
@@ -220,6 +358,10 @@ public class DistanceCalculator {
         File seqFile;
         File idMappingFile;
         int overlapLimit = 100;
+        int threads = 1;
+        long memBudget = -1;
+        int fanIn = MergeDistsJob.DEFAULT_FAN_IN;
+        boolean compact = false;
         double cutoff = 1.0f;
         DistanceModel model;
 
@@ -263,6 +405,26 @@ public class DistanceCalculator {
                 }
             }
 
+            if (line.hasOption("threads")) {
+                threads = new Integer(line.getOptionValue("threads"));
+                if (threads <= 0) {
+                    throw new Exception("Threads must be > 0");
+                }
+            }
+
+            if (line.hasOption("mem-budget")) {
+                memBudget = ClusterUtils.parseMemSize(line.getOptionValue("mem-budget"));
+            }
+
+            compact = line.hasOption("compact");
+
+            if (line.hasOption("merge-fan-in")) {
+                fanIn = new Integer(line.getOptionValue("merge-fan-in"));
+                if (fanIn < 2) {
+                    throw new Exception("Merge fan in must be at least 2");
+                }
+            }
+
             if (line.hasOption("in")) {
                 seqFile = new File(line.getOptionValue("in"));
                 if (!seqFile.exists()) {
@@ -301,17 +463,27 @@ public class DistanceCalculator {
 
         Map<String, Integer> reverseMapping = idMapping.getReverseMapping();
         System.err.println("Read mapping for " + reverseMapping.size() + " sequences (memratio=" + ClusterUtils.getMemRatio() + ")");
-        System.err.println("Starting distance computations, predicted max edges=" + ((long) numSeqs * numSeqs) + ", at=" + new Date());
+        if (memBudget == -1) {
+            Runtime rt = Runtime.getRuntime();
+            memBudget = Math.max(rt.maxMemory() / 2 - (rt.totalMemory() - rt.freeMemory()), 1L << 20);
+        }
+
+        System.err.println("Buffering up to " + memBudget + " bytes of edges (" + EdgeBuffer.capacityFor(memBudget / threads) + " edges per thread)");
+        System.err.println("Starting distance computations with " + threads + " thread(s), predicted max edges=" + ((long) numSeqs * numSeqs) + ", at=" + new Date());
 
         long startTime = System.currentTimeMillis();
-        PartialMatrixResult result = computePartialMatrices(seqs.sequenceMap, reverseMapping, new File(workingDir, "nonoverlapping.bin"), workingDir, model, overlapLimit, cutoff);
+        PartialMatrixResult result = computePartialMatrices(seqs.sequenceMap, reverseMapping, new File(workingDir, "nonoverlapping.bin"), workingDir, model, overlapLimit, cutoff, threads, memBudget);
 
         System.out.println("Matrix edges computed: " + (System.currentTimeMillis() - startTime));
         System.out.println("Maximum distance: " + result.psi);
         System.out.println("Splits: " + result.splitFiles.size());
 
         startTime = System.currentTimeMillis();
-        new MergeDistsJob(result.splitFiles, outFile).run();
+        MergeDistsJob mergeJob = new MergeDistsJob(result.splitFiles, outFile, workingDir);
+        mergeJob.setFanIn(fanIn);
+        mergeJob.setThreads(threads);
+        mergeJob.setCompact(compact);
+        mergeJob.run();
         System.out.println("Partition files merged: " + (System.currentTimeMillis() - startTime));
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.dist;
+
+import edu.msu.cme.pyro.cluster.io.EdgeWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Growable buffer of thin edges packed as (seqi, seqj, dist) triples in a
+ * single int array, so buffering an edge doesn't allocate a ThinEdge
+ *
+ * @author fishjord
+ */
+public class EdgeBuffer {
+
+    public static final int BYTES_PER_EDGE = 12;
+    private static final int DEFAULT_CAPACITY = 1024;
+    //Don't counting sort if the distance range would make the bucket array silly
+    private static final int MAX_BUCKETS = 1 << 20;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - 8) / 3;
+    private int[] edges;
+    private int size = 0;
+    private final int maxCapacity;
+
+    public EdgeBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public EdgeBuffer(int initialCapacity) {
+        this(initialCapacity, MAX_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity edges to allocate space for up front
+     * @param maxCapacity the buffer never grows past this many edges, so it
+     * never holds more than maxCapacity * BYTES_PER_EDGE bytes
+     */
+    public EdgeBuffer(int initialCapacity, int maxCapacity) {
+        if (maxCapacity <= 0 || maxCapacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Max capacity must be between 1 and " + MAX_CAPACITY);
+        }
+        this.maxCapacity = maxCapacity;
+        edges = new int[Math.max(Math.min(initialCapacity, maxCapacity), 1) * 3];
+    }
+
+    /**
+     * Computes how many edges fit in the given number of bytes
+     */
+    public static int capacityFor(long bytes) {
+        return (int) Math.max(1, Math.min(bytes / BYTES_PER_EDGE, MAX_CAPACITY));
+    }
+
+    public void add(int seqi, int seqj, int dist) {
+        if (size * 3 == edges.length) {
+            grow();
+        }
+
+        int offset = size * 3;
+        edges[offset] = seqi;
+        edges[offset + 1] = seqj;
+        edges[offset + 2] = dist;
+        size++;
+    }
+
+    private void grow() {
+        if (size >= maxCapacity) {
+            throw new IllegalStateException("Edge buffer can't hold more than " + maxCapacity + " edges");
+        }
+        long newCapacity = Math.min((long) size + (size >> 1) + 1, maxCapacity);
+        edges = Arrays.copyOf(edges, (int) newCapacity * 3);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size >= maxCapacity;
+    }
+
+    /**
+     * Bytes currently allocated to hold edges (not just the ones in use)
+     */
+    public long getAllocatedBytes() {
+        return (long) edges.length * 4;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int getSeqi(int index) {
+        return edges[index * 3];
+    }
+
+    public int getSeqj(int index) {
+        return edges[index * 3 + 1];
+    }
+
+    public int getDist(int index) {
+        return edges[index * 3 + 2];
+    }
+
+    /**
+     * Sorts the buffered edges in place in the same order as
+     * ThinEdge.compareTo, distance first then seqi and seqj.  Distances are
+     * small integers (<= DistanceCalculator.MULTIPLIER) so they're bucketed
+     * with an in place counting sort, each bucket is then sorted on the ids
+     */
+    public void sort() {
+        if (size < 2) {
+            return;
+        }
+
+        int minDist = Integer.MAX_VALUE, maxDist = Integer.MIN_VALUE;
+        for (int index = 0; index < size; index++) {
+            int dist = edges[index * 3 + 2];
+            if (dist < minDist) {
+                minDist = dist;
+            }
+            if (dist > maxDist) {
+                maxDist = dist;
+            }
+        }
+
+        if ((long) maxDist - minDist >= MAX_BUCKETS) {
+            quickSort(0, size - 1, true);
+            return;
+        }
+
+        int buckets = maxDist - minDist + 1;
+        int[] bucketStart = new int[buckets + 1];
+        for (int index = 0; index < size; index++) {
+            bucketStart[edges[index * 3 + 2] - minDist + 1]++;
+        }
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            bucketStart[bucket + 1] += bucketStart[bucket];
+        }
+
+        int[] next = Arrays.copyOf(bucketStart, buckets);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            int bucketEnd = bucketStart[bucket + 1];
+            while (next[bucket] < bucketEnd) {
+                int pos = next[bucket];
+                int target = edges[pos * 3 + 2] - minDist;
+                if (target == bucket) {
+                    next[bucket]++;
+                } else {
+                    swap(pos, next[target]++);
+                }
+            }
+        }
+
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            if (bucketStart[bucket + 1] - bucketStart[bucket] > 1) {
+                quickSort(bucketStart[bucket], bucketStart[bucket + 1] - 1, false);
+            }
+        }
+    }
+
+    public void writeTo(EdgeWriter out) throws IOException {
+        for (int offset = 0; offset < size * 3; offset += 3) {
+            out.writeEdge(edges[offset], edges[offset + 1], edges[offset + 2]);
+        }
+    }
+
+    private int compare(int e1, int e2, boolean withDist) {
+        int o1 = e1 * 3, o2 = e2 * 3;
+        if (withDist && edges[o1 + 2] != edges[o2 + 2]) {
+            return edges[o1 + 2] < edges[o2 + 2] ? -1 : 1;
+        }
+        if (edges[o1] != edges[o2]) {
+            return edges[o1] < edges[o2] ? -1 : 1;
+        }
+        if (edges[o1 + 1] != edges[o2 + 1]) {
+            return edges[o1 + 1] < edges[o2 + 1] ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private void swap(int e1, int e2) {
+        int o1 = e1 * 3, o2 = e2 * 3;
+        for (int index = 0; index < 3; index++) {
+            int tmp = edges[o1 + index];
+            edges[o1 + index] = edges[o2 + index];
+            edges[o2 + index] = tmp;
+        }
+    }
+
+    private void quickSort(int lo, int hi, boolean withDist) {
+        while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, lo, withDist) < 0) {
+                swap(mid, lo);
+            }
+            if (compare(hi, lo, withDist) < 0) {
+                swap(hi, lo);
+            }
+            if (compare(hi, mid, withDist) < 0) {
+                swap(hi, mid);
+            }
+            //median of three is now at mid, park it at hi - 1
+            swap(mid, hi - 1);
+            int pivot = hi - 1;
+            int i = lo, j = hi - 1;
+            while (true) {
+                while (compare(++i, pivot, withDist) < 0);
+                while (compare(--j, pivot, withDist) > 0);
+                if (i >= j) {
+                    break;
+                }
+                swap(i, j);
+            }
+            swap(i, hi - 1);
+
+            //Recurse in to the smaller half to bound the stack depth
+            if (i - lo < hi - i) {
+                quickSort(lo, i - 1, withDist);
+                lo = i + 1;
+            } else {
+                quickSort(i + 1, hi, withDist);
+                hi = i - 1;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && compare(j, j - 1, withDist) < 0; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+}
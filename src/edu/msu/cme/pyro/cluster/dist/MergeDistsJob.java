@@ -16,31 +16,59 @@
  */
 package edu.msu.cme.pyro.cluster.dist;
 
+import edu.msu.cme.pyro.cluster.io.CompactEdgeWriter;
 import edu.msu.cme.pyro.cluster.io.LocalEdgeReader;
 import edu.msu.cme.pyro.cluster.io.EdgeWriter;
+import edu.msu.cme.pyro.cluster.io.IndexingEdgeWriter;
+import edu.msu.cme.pyro.cluster.io.MatrixIndex;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.xml.bind.annotation.XmlRootElement;
 import org.apache.commons.io.FileUtils;
 
 /**
+ * Merges sorted partial matrices in to one sorted matrix.  Up to fanIn files
+ * are merged at once through a heap of edge streams, when there are more
+ * files than that they're merged in levels until fanIn or fewer remain.
+ * Groups in a level are independent and merged in parallel, the groups are
+ * made smaller so no more than fanIn input files are open at once across all
+ * the threads (plus one output file per thread).  The final merge can write
+ * the block compressed matrix format and writes the matrix's index next to it
  *
  * @author fishjord
  */
 @XmlRootElement
 public class MergeDistsJob {
 
+    public static final int DEFAULT_FAN_IN = 64;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
     private List<File> distFiles;
     private File outFile;
+    private File workDir;
+    private int fanIn = DEFAULT_FAN_IN;
+    private int threads = 1;
+    private boolean compact = false;
 
     public MergeDistsJob() {
     }
 
     public MergeDistsJob(List<File> distFiles, File outFile) {
+        this(distFiles, outFile, outFile.getAbsoluteFile().getParentFile());
+    }
+
+    public MergeDistsJob(List<File> distFiles, File outFile, File workDir) {
         this.distFiles = distFiles;
         this.outFile = outFile;
+        this.workDir = workDir;
     }
 
     public List<File> getDistFiles() {
@@ -59,32 +87,190 @@ public class MergeDistsJob {
         this.outFile = outFile;
     }
 
-    private void merge(File f1, File f2, File outFile) throws IOException {
-        LocalEdgeReader reader1 = new LocalEdgeReader(f1);
-        LocalEdgeReader reader2 = new LocalEdgeReader(f2);
-        EdgeWriter out = new EdgeWriter(outFile);
-
-        ThinEdge edge1 = reader1.nextThinEdge();
-        ThinEdge edge2 = reader2.nextThinEdge();
-        while (edge1 != null || edge2 != null) {
-            if (edge1 == null) {
-                out.writeEdge(edge2);
-                edge2 = reader2.nextThinEdge();
-            } else if (edge2 == null) {
-                out.writeEdge(edge1);
-                edge1 = reader1.nextThinEdge();
-            } else if (edge1.compareTo(edge2) < 0) {
-                out.writeEdge(edge1);
-                edge1 = reader1.nextThinEdge();
-            } else {
-                out.writeEdge(edge2);
-                edge2 = reader2.nextThinEdge();
+    public File getWorkDir() {
+        return workDir;
+    }
+
+    public void setWorkDir(File workDir) {
+        this.workDir = workDir;
+    }
+
+    public int getFanIn() {
+        return fanIn;
+    }
+
+    public void setFanIn(int fanIn) {
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("Merge fan in must be at least 2");
+        }
+        this.fanIn = fanIn;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be > 0");
+        }
+        this.threads = threads;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Merges the sorted input files in to out in a single pass, the input
+     * files are deleted once they've been merged
+     */
+    private static void merge(List<File> inFiles, EdgeWriter out) throws IOException {
+        int k = inFiles.size();
+        LocalEdgeReader[] readers = new LocalEdgeReader[k];
+        ThinEdge[] heads = new ThinEdge[k];
+        //Min heap of reader indexes ordered by their head edge
+        int[] heap = new int[k];
+        int heapSize = 0;
+
+        try {
+            for (int index = 0; index < k; index++) {
+                readers[index] = new LocalEdgeReader(inFiles.get(index), IO_BUFFER_SIZE);
+                heads[index] = readers[index].nextThinEdge();
+                if (heads[index] != null) {
+                    heap[heapSize++] = index;
+                }
+            }
+
+            for (int index = heapSize / 2 - 1; index >= 0; index--) {
+                siftDown(heap, heapSize, heads, index);
+            }
+
+            while (heapSize > 0) {
+                int top = heap[0];
+                out.writeEdge(heads[top]);
+
+                if (readers[top].nextThinEdge(heads[top]) == null) {
+                    heap[0] = heap[--heapSize];
+                }
+                siftDown(heap, heapSize, heads, 0);
+            }
+        } finally {
+            out.close();
+            for (LocalEdgeReader reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
             }
         }
 
-        out.close();
-        reader2.close();
-        reader1.close();
+        for (File f : inFiles) {
+            f.delete();
+        }
+    }
+
+    private static EdgeWriter openWriter(File f, boolean compact) throws IOException {
+        if (compact) {
+            return new CompactEdgeWriter(f);
+        }
+        return new EdgeWriter(new BufferedOutputStream(new FileOutputStream(f), IO_BUFFER_SIZE));
+    }
+
+    private static void siftDown(int[] heap, int heapSize, ThinEdge[] heads, int index) {
+        int reader = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heads[heap[child + 1]].compareTo(heads[heap[child]]) < 0) {
+                child++;
+            }
+            if (heads[heap[child]].compareTo(heads[reader]) >= 0) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = reader;
+    }
+
+    /**
+     * Number of merges to run at once in a level, each merging
+     * fanIn / getParallelMerges() files
+     */
+    private int getParallelMerges() {
+        return Math.max(1, Math.min(threads, fanIn / 2));
+    }
+
+    /**
+     * Merges the files down a level, each group of groupSize files becomes
+     * one temp file in the work directory.  If a merge fails the temp files
+     * written in this level are deleted
+     */
+    private List<File> mergeLevel(List<File> files, int groupSize, ExecutorService executor) throws IOException {
+        List<File> ret = new ArrayList();
+        List<File> tmps = new ArrayList();
+        List<Future<File>> merges = new ArrayList();
+        Throwable error = null;
+
+        try {
+            for (int start = 0; start < files.size(); start += groupSize) {
+                final List<File> group = new ArrayList(files.subList(start, Math.min(start + groupSize, files.size())));
+
+                if (group.size() == 1) {
+                    ret.add(group.get(0));
+                    continue;
+                }
+
+                final File tmp = File.createTempFile("merge_dist", "", workDir);
+                tmps.add(tmp);
+                merges.add(executor.submit(new Callable<File>() {
+
+                    public File call() throws IOException {
+                        merge(group, openWriter(tmp, false));
+                        return tmp;
+                    }
+                }));
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        //Wait for every merge, even after one fails, so none are still
+        //writing when the temp files are deleted
+        for (Future<File> merge : merges) {
+            try {
+                File merged = merge.get();
+                if (error == null) {
+                    ret.add(merged);
+                }
+            } catch (InterruptedException e) {
+                if (error == null) {
+                    error = new IOException("Interrupted while merging distance files");
+                }
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause();
+                }
+            }
+        }
+
+        if (error != null) {
+            for (File tmp : tmps) {
+                tmp.delete();
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            throw new RuntimeException(error);
+        }
+
+        return ret;
     }
 
     public void run() throws Exception {
@@ -98,34 +284,44 @@ public class MergeDistsJob {
             }
         }
 
-        List<File> mergeFiles = new ArrayList(distFiles);
-
-        while (mergeFiles.size() > 1) {
-            List<File> nextMerge = new ArrayList();
+        if (workDir == null) {
+            workDir = outFile.getAbsoluteFile().getParentFile();
+        }
 
-            while (mergeFiles.size() > 1) {
-                final File tmp = File.createTempFile("merge_dist", "", new File("."));
-                nextMerge.add(tmp);
+        List<File> mergeFiles = new ArrayList(distFiles);
 
-                final File f1 = mergeFiles.remove(0);
-                final File f2 = mergeFiles.remove(0);
+        if (mergeFiles.size() == 1 && !compact) {
+            FileUtils.moveFile(mergeFiles.get(0), outFile);
+            MatrixIndex.build(outFile).write(outFile);
+            return;
+        }
 
+        try {
+            if (mergeFiles.size() > fanIn) {
+                int parallel = getParallelMerges();
+                int groupSize = fanIn / parallel;
+                ExecutorService executor = Executors.newFixedThreadPool(parallel);
                 try {
-                    merge(f1, f2, tmp);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    int level = 1;
+                    while (mergeFiles.size() > fanIn) {
+                        System.err.println("Merge level " + level++ + ", merging " + mergeFiles.size() + " files " + groupSize + " at a time");
+                        mergeFiles = mergeLevel(mergeFiles, groupSize, executor);
+                    }
+                } finally {
+                    executor.shutdownNow();
                 }
-
-                f1.delete();
-                f2.delete();
             }
 
-            nextMerge.addAll(mergeFiles);
-
-            mergeFiles = nextMerge;
+            merge(mergeFiles, new IndexingEdgeWriter(openWriter(outFile, compact), outFile));
+        } finally {
+            //Merged files are deleted as they're merged, so this only finds
+            //the temp files from earlier levels when a merge failed
+            for (File f : mergeFiles) {
+                if (!distFiles.contains(f)) {
+                    f.delete();
+                }
+            }
         }
-
-        FileUtils.moveFile(mergeFiles.get(0), outFile);
     }
 
     public static void main(String [] args) throws Exception {
@@ -107,7 +107,7 @@ public class PairwiseDistance {
             return;
         }
 
-        List<ThinEdge> thinEdges = new ArrayList();
+        EdgeBuffer thinEdges = new EdgeBuffer();
 
         long startTime = System.currentTimeMillis();
         long time = System.currentTimeMillis();
@@ -125,7 +125,7 @@ public class PairwiseDistance {
                 PairwiseAlignment result = PairwiseAligner.align(seq1Str, seq2Str, scoringMatrix, AlignmentMode.global);
                 double distance = model.getDistance(result.getAlignedSeqi().getBytes(), result.getAlignedSeqj().getBytes(), minOverlap);
 
-                thinEdges.add(new ThinEdge(reverseMapping.get(seq1.getSeqName()), reverseMapping.get(seq2.getSeqName()), (int) (distance * DistanceCalculator.MULTIPLIER)));
+                thinEdges.add(reverseMapping.get(seq1.getSeqName()), reverseMapping.get(seq2.getSeqName()), (int) (distance * DistanceCalculator.MULTIPLIER));
 
                 if (thinEdges.size() % interval == 0) {
                     System.err.println("Computed " + interval + " thin edges in " + (System.currentTimeMillis() - time) + " ms (" + thinEdges.size() + " edges total in " + (System.currentTimeMillis() - startTime + " ms)"));
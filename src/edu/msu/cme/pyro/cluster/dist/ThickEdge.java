@@ -28,6 +28,7 @@ public class ThickEdge {
     private long seenEdges;
     private Cluster ci;
     private Cluster cj;
+    private int slot = -1;
     /*private int lowerBound;
     private int upperBound;*/
 
@@ -49,13 +50,19 @@ public class ThickEdge {
     public void addEdge(int dist) {
         seenEdges++;
         seenDistances += dist;
-        //recalcDist();
+    }
+
+    /**
+     * Adds count edges whose distances sum to dist
+     */
+    public void addEdges(long dist, long count) {
+        seenEdges += count;
+        seenDistances += dist;
     }
 
     public void mergeEdge(ThickEdge edge) {
         seenDistances += edge.getSeenDistances();
         seenEdges += edge.getSeenEdges();
-        //recalcDist();
     }
 
     public long getSeenDistances() {
@@ -74,8 +81,25 @@ public class ThickEdge {
         return cj;
     }
 
+    /**
+     * Index of this edge in the UPGMA bound heaps, -1 if it isn't in them
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    /**
+     * Average distance between ci and cj assuming every edge not seen yet has
+     * distance psiOrLambda.  Not cached, the upgma heaps keep the bounds they
+     * order by (see IndexedEdgeHeap.getKey)
+     */
     public int getBound(int psiOrLambda) {
-        return (int)(seenDistances + psiOrLambda * (ci.getNumberOfSeqs() * cj.getNumberOfSeqs() - seenEdges)) / (ci.getNumberOfSeqs() * cj.getNumberOfSeqs());
+        long pairs = (long) ci.getNumberOfSeqs() * cj.getNumberOfSeqs();
+        return (int) ((seenDistances + psiOrLambda * (pairs - seenEdges)) / pairs);
     }
 
     /*public String toString() {
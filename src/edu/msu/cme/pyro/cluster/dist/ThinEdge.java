@@ -59,8 +59,21 @@ public class ThinEdge implements Comparable<ThinEdge> {
         this.dist = dist;
     }
 
+    /**
+     * Orders by distance, ties are broken on seqi then seqj so that the sorted
+     * matrix doesn't depend on how the edges were partitioned when computed
+     */
     public int compareTo(ThinEdge o) {
-        return dist - o.getDist();
+        if (dist != o.dist) {
+            return dist < o.dist ? -1 : 1;
+        }
+        if (seqi != o.seqi) {
+            return seqi < o.seqi ? -1 : 1;
+        }
+        if (seqj != o.seqj) {
+            return seqj < o.seqj ? -1 : 1;
+        }
+        return 0;
     }
 
     @Override
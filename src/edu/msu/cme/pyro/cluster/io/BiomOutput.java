@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.DistanceCalculator;
+import edu.msu.cme.pyro.cluster.utils.AbstractClusterFactory;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a sparse biom table for each requested cutoff straight from the
+ * sample counts kept during clustering, to [prefix]_[cutoff].biom.
+ *
+ * Cutoffs with no edges aren't printed, and the clusters at a cutoff are the
+ * ones at the highest printed cutoff not above it (the same cutoff
+ * RDPClustParser.getCutoff picks), so the previous snapshot is held until
+ * the next printed cutoff shows whether it's the one to write.  Snapshots are
+ * only lists of the count matrix's arrays, which are replaced rather than
+ * changed when clusters merge
+ *
+ * @author fishjord
+ */
+public class BiomOutput implements ClusterOutput {
+
+    private final SampleCountMatrix counts;
+    private final String prefix;
+    //Requested cutoffs sorted, in distance units
+    private final int[] cutoffs;
+    private final DecimalFormat format = new DecimalFormat("0.0###");
+    private int nextCutoff = 0;
+    private List<int[]> lastSnapshot = null;
+
+    public BiomOutput(SampleCountMatrix counts, String prefix, double[] cutoffs) {
+        this.counts = counts;
+        this.prefix = prefix;
+        this.cutoffs = new int[cutoffs.length];
+        for (int index = 0; index < cutoffs.length; index++) {
+            this.cutoffs[index] = (int) Math.round(cutoffs[index] * DistanceCalculator.MULTIPLIER);
+        }
+        Arrays.sort(this.cutoffs);
+    }
+
+    /**
+     * Parses a comma separated list of cutoffs, ie 0.03,0.05
+     */
+    public static double[] parseCutoffs(String s) {
+        String[] lexemes = s.split(",");
+        double[] ret = new double[lexemes.length];
+        for (int index = 0; index < lexemes.length; index++) {
+            ret[index] = Double.parseDouble(lexemes[index].trim());
+            if (ret[index] < 0) {
+                throw new IllegalArgumentException("Biom cutoff " + lexemes[index] + " is negative");
+            }
+        }
+        return ret;
+    }
+
+    private void write(int cutoff, List<int[]> snapshot) {
+        File outFile = new File(prefix + "_" + format.format(cutoff / (double) DistanceCalculator.MULTIPLIER) + ".biom");
+        try {
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outFile), 64 * 1024));
+            ClusterToBiom.writeSparseCutoff(counts.getSamples(), snapshot, out);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + outFile, e);
+        }
+    }
+
+    public void printClusters(AbstractClusterFactory factory, int step) {
+        while (nextCutoff < cutoffs.length && cutoffs[nextCutoff] < step) {
+            if (lastSnapshot != null) {
+                write(cutoffs[nextCutoff], lastSnapshot);
+            } else {
+                System.err.println("Warning: no clusters at or below biom cutoff " + format.format(cutoffs[nextCutoff] / (double) DistanceCalculator.MULTIPLIER));
+            }
+            nextCutoff++;
+        }
+
+        if (nextCutoff == cutoffs.length) {
+            lastSnapshot = null;
+            return;
+        }
+
+        lastSnapshot = counts.getOTUCounts(factory);
+        while (nextCutoff < cutoffs.length && cutoffs[nextCutoff] == step) {
+            write(cutoffs[nextCutoff++], lastSnapshot);
+        }
+    }
+
+    /**
+     * Cutoffs past the last printed one get the final clusters
+     */
+    public void close() {
+        while (nextCutoff < cutoffs.length && lastSnapshot != null) {
+            write(cutoffs[nextCutoff++], lastSnapshot);
+        }
+        lastSnapshot = null;
+    }
+}
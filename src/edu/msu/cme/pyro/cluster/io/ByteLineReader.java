@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads a text file a line at a time in to a reused byte array, keeping
+ * track of where each line starts.  Lines are only turned in to Strings when
+ * asked for, so scanning a large cluster file doesn't allocate per line
+ *
+ * @author fishjord
+ */
+class ByteLineReader {
+
+    private final InputStream in;
+    private final byte[] buf = new byte[256 * 1024];
+    private int bufPos = 0;
+    private int bufLen = 0;
+    private long bufStart;
+    private byte[] line = new byte[1024];
+    private int lineLength = 0;
+    private long lineStart = -1;
+
+    public ByteLineReader(File f, long offset) throws IOException {
+        FileInputStream fin = new FileInputStream(f);
+        fin.getChannel().position(offset);
+        in = fin;
+        bufStart = offset;
+    }
+
+    /**
+     * Reads the next line (without the line terminator), false at the end of
+     * the file
+     */
+    public boolean readLine() throws IOException {
+        lineLength = 0;
+        lineStart = bufStart + bufPos;
+        boolean read = false;
+
+        while (true) {
+            if (bufPos == bufLen) {
+                bufStart += bufLen;
+                bufPos = 0;
+                bufLen = in.read(buf);
+                if (bufLen <= 0) {
+                    bufLen = 0;
+                    return read;
+                }
+            }
+            read = true;
+
+            int end = bufPos;
+            while (end < bufLen && buf[end] != '\n') {
+                end++;
+            }
+
+            int n = end - bufPos;
+            if (lineLength + n > line.length) {
+                line = Arrays.copyOf(line, Math.max(lineLength + n, line.length * 2));
+            }
+            System.arraycopy(buf, bufPos, line, lineLength, n);
+            lineLength += n;
+            bufPos = end;
+
+            if (end < bufLen) {
+                bufPos++;
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+        }
+    }
+
+    public byte[] getLine() {
+        return line;
+    }
+
+    public int getLength() {
+        return lineLength;
+    }
+
+    /**
+     * File offset of the first byte of the current line
+     */
+    public long getLineStart() {
+        return lineStart;
+    }
+
+    public boolean startsWith(String prefix) {
+        if (prefix.length() > lineLength) {
+            return false;
+        }
+        for (int index = 0; index < prefix.length(); index++) {
+            if (line[index] != prefix.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isBlank() {
+        for (int index = 0; index < lineLength; index++) {
+            if (!Character.isWhitespace(line[index])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getString(int from, int to) {
+        return new String(line, from, to - from);
+    }
+
+    public String getString() {
+        return getString(0, lineLength);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where each cutoff starts in a cluster file, stored next to it in
+ * clust_file.idx so a cutoff can be read with one seek instead of scanning
+ * the file.  For each cutoff the index has the cutoff as written, the offset
+ * of its "distance cutoff" line and the number of clusters in it.  The index
+ * is only used if the cluster file's length and modification time match
+ *
+ * @author fishjord
+ */
+public class ClusterFileIndex {
+
+    private static final int MAGIC = 0x89434958;
+    private static final int VERSION = 1;
+    private final long clustLength;
+    private final long clustModified;
+    private final String[] cutoffs;
+    private final long[] offsets;
+    private final int[] numClusters;
+
+    private ClusterFileIndex(long clustLength, long clustModified, String[] cutoffs, long[] offsets, int[] numClusters) {
+        this.clustLength = clustLength;
+        this.clustModified = clustModified;
+        this.cutoffs = cutoffs;
+        this.offsets = offsets;
+        this.numClusters = numClusters;
+    }
+
+    public static File getIndexFile(File clustFile) {
+        return new File(clustFile.getPath() + ".idx");
+    }
+
+    /**
+     * Scans a cluster file and builds its index (without writing it)
+     */
+    public static ClusterFileIndex build(File clustFile) throws IOException {
+        List<String> cutoffs = new ArrayList();
+        List<Long> offsets = new ArrayList();
+        List<Integer> numClusters = new ArrayList();
+        long modified = clustFile.lastModified();
+
+        ByteLineReader reader = new ByteLineReader(clustFile, 0);
+        try {
+            boolean wantTotal = false;
+            while (reader.readLine()) {
+                if (reader.startsWith("distance")) {
+                    String[] lexemes = reader.getString().trim().split("\\s+");
+                    if (lexemes.length != 3) {
+                        throw new IOException("Malformed distance line: " + reader.getString());
+                    }
+                    cutoffs.add(lexemes[2]);
+                    offsets.add(reader.getLineStart());
+                    numClusters.add(-1);
+                    wantTotal = true;
+                } else if (wantTotal) {
+                    wantTotal = false;
+                    if (reader.startsWith("Total")) {
+                        String[] lexemes = reader.getString().trim().split("\\s+");
+                        try {
+                            numClusters.set(numClusters.size() - 1, Integer.valueOf(lexemes[lexemes.length - 1]));
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Malformed number of clusters for cutoff " + cutoffs.get(cutoffs.size() - 1));
+                        }
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        long[] offsetArray = new long[offsets.size()];
+        int[] numClustersArray = new int[offsets.size()];
+        for (int index = 0; index < offsetArray.length; index++) {
+            offsetArray[index] = offsets.get(index);
+            numClustersArray[index] = numClusters.get(index);
+        }
+
+        return new ClusterFileIndex(clustFile.length(), modified, cutoffs.toArray(new String[0]), offsetArray, numClustersArray);
+    }
+
+    /**
+     * Loads the index for the cluster file, returns null if there isn't one,
+     * it was written for a different version of the file or it's truncated
+     */
+    public static ClusterFileIndex load(File clustFile) throws IOException {
+        File idxFile = getIndexFile(clustFile);
+        if (!idxFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idxFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            long clustLength = in.readLong();
+            long clustModified = in.readLong();
+            if (clustLength != clustFile.length() || clustModified != clustFile.lastModified()) {
+                return null;
+            }
+
+            int n = in.readInt();
+            //Each cutoff takes at least 14 bytes
+            if (n < 0 || n > idxFile.length() / 14) {
+                return null;
+            }
+            String[] cutoffs = new String[n];
+            long[] offsets = new long[n];
+            int[] numClusters = new int[n];
+            for (int index = 0; index < n; index++) {
+                cutoffs[index] = in.readUTF();
+                offsets[index] = in.readLong();
+                numClusters[index] = in.readInt();
+            }
+
+            return new ClusterFileIndex(clustLength, clustModified, cutoffs, offsets, numClusters);
+        } catch (EOFException e) {
+            return null;
+        } catch (UTFDataFormatException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the cluster file's index, building and saving it if it's missing
+     * or stale.  If the index can't be saved (ie a read only directory) it's
+     * still returned
+     */
+    public static ClusterFileIndex open(File clustFile) throws IOException {
+        ClusterFileIndex ret = load(clustFile);
+        if (ret == null) {
+            ret = build(clustFile);
+            try {
+                ret.write(clustFile);
+            } catch (IOException e) {
+                //Still usable, it's just built again next time
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Writes the index to a temp file next to the cluster file and renames it
+     * in to place, so a reader (maybe in another process) never sees a partly
+     * written index
+     */
+    public void write(File clustFile) throws IOException {
+        File idxFile = getIndexFile(clustFile);
+        File tmp = File.createTempFile(idxFile.getName(), ".tmp", idxFile.getAbsoluteFile().getParentFile());
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(clustLength);
+                out.writeLong(clustModified);
+                out.writeInt(cutoffs.length);
+                for (int index = 0; index < cutoffs.length; index++) {
+                    out.writeUTF(cutoffs[index]);
+                    out.writeLong(offsets[index]);
+                    out.writeInt(numClusters[index]);
+                }
+            } finally {
+                out.close();
+            }
+
+            //renameTo won't replace an existing file on some platforms
+            if (!tmp.renameTo(idxFile) && !(idxFile.delete() && tmp.renameTo(idxFile))) {
+                throw new IOException("Failed to rename " + tmp + " to " + idxFile);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmp.delete();
+            }
+        }
+    }
+
+    public int size() {
+        return cutoffs.length;
+    }
+
+    public String getCutoff(int index) {
+        return cutoffs[index];
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Number of clusters in the cutoff, -1 if the cutoff didn't say
+     */
+    public int getNumClusters(int index) {
+        return numClusters[index];
+    }
+}
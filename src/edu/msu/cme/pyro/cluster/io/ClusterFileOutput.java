@@ -23,14 +23,18 @@ import edu.msu.cme.pyro.derep.SampleMapping;
 import edu.msu.cme.pyro.derep.IdMapping;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
+ * Writes the clusters at each cutoff, for each cluster the ids in each sample
+ * in sample order.  The number of ids per sample in each cluster comes from a
+ * SampleCountMatrix, which when registered as the factory's ClusterListener is
+ * kept up to date as clusters merge so a snapshot is a single pass over the
+ * members of each cluster
  *
  * @author fishjord
  */
@@ -42,6 +46,14 @@ public class ClusterFileOutput implements ClusterOutput {
 
     final DecimalFormat format = new DecimalFormat("0.0###");
 
+    private final SampleCountMatrix counts;
+    private final String[] samples;
+    private final int[] scratch;
+    private String[] idBuf = new String[16];
+    private final List<Cluster> clusters = new ArrayList();
+    private final List<Integer> unseenIds = new ArrayList();
+    private final StringBuilder buf = new StringBuilder();
+
     public ClusterFileOutput(IdMapping<Integer> idMapping, SampleMapping<String> sampleMapping, PrintStream out) {
         this.intToIdMap = idMapping;
         this.idToSampleMap = sampleMapping;
@@ -69,70 +81,77 @@ public class ClusterFileOutput implements ClusterOutput {
         }
         out.println();
         out.println();
+
+        counts = new SampleCountMatrix(idMapping, sampleMapping, true);
+        samples = counts.getSamples().toArray(new String[0]);
+        scratch = new int[samples.length];
     }
 
-    public void printClusters(AbstractClusterFactory factory, int step) {
-        List<Integer> unseenIds = new LinkedList<Integer>();
-        Set<Cluster> clusters = new LinkedHashSet();
-
-        for (Integer seqid : intToIdMap.getAll()) {
-            Cluster c = factory.getCluster(seqid);
-            if (c == null) {
-                unseenIds.add(seqid);
-            } else {
-                clusters.add(c);
+    /**
+     * The sample counts written with each cluster, register this with the
+     * factory so they're maintained as clusters merge instead of counted at
+     * each cutoff
+     */
+    public SampleCountMatrix getSampleCounts() {
+        return counts;
+    }
+
+    /**
+     * Writes one cluster, ids are bucketed by sample using the counts then
+     * each sample with any ids is written as a line
+     */
+    private void writeCluster(int clusterCount, int[] clusterCounts, Iterable<Integer> seqs) {
+        int total = 0;
+        for (int index = 0; index < clusterCounts.length; index += 2) {
+            scratch[clusterCounts[index]] = total;
+            total += clusterCounts[index + 1];
+        }
+        if (total > idBuf.length) {
+            idBuf = new String[Math.max(total, idBuf.length * 2)];
+        }
+
+        for (int seq : seqs) {
+            if (!counts.hasEntries(seq)) {
+                continue;
+            }
+            for (int entry = counts.entryStart[seq]; entry < counts.entryStart[seq + 1]; entry++) {
+                idBuf[scratch[counts.entrySamples[entry]]++] = counts.getEntryId(entry);
             }
         }
 
+        for (int index = 0; index < clusterCounts.length; index += 2) {
+            int sample = clusterCounts[index];
+            int end = scratch[sample];
+            scratch[sample] = 0;
+
+            buf.setLength(0);
+            buf.append(clusterCount).append("\t");
+            buf.append(samples[sample]).append("\t");
+            buf.append(clusterCounts[index + 1]).append("\t");
+            for (int pos = end - clusterCounts[index + 1]; pos < end; pos++) {
+                buf.append(idBuf[pos]).append(" ");
+            }
+            out.println(buf.toString());
+        }
+    }
+
+    public void printClusters(AbstractClusterFactory factory, int step) {
+        clusters.clear();
+        unseenIds.clear();
+        counts.orderClusters(factory, clusters, unseenIds);
+
         double actualStep = step / (double)DistanceCalculator.MULTIPLIER;
         out.println("distance cutoff:\t" + format.format(actualStep));
         out.println("Total Clusters:\t" + (clusters.size() + unseenIds.size()));
         int clusterCount = 1;
         for (Cluster c : clusters) {
-            Set<Integer> sids = factory.getSeqsInCluster(c);
-            Set<String> ids = new LinkedHashSet();
-            for (int sid : sids) {
-                ids.addAll(intToIdMap.getIds(sid));
-            }
-
-            for (String sample : idToSampleMap.getSampleList()) {
-
-                Set<String> fileIds = new LinkedHashSet<String>(ids);
-                fileIds.retainAll(idToSampleMap.getIdsBySample(sample));
-
-                if (fileIds.size() > 0) {
-                    StringBuilder buf = new StringBuilder();
-                    buf.append(clusterCount).append("\t");
-                    buf.append(sample).append("\t");
-                    buf.append(fileIds.size()).append("\t");
-                    for (String id : fileIds) {
-                        buf.append(id).append(" ");
-                    }
-                    out.println(buf.toString());
-                }
-            }
+            writeCluster(clusterCount, counts.getCounts(factory, c), factory.getSeqsInCluster(c));
             clusterCount++;
         }
 
         for (int sid : unseenIds) {
-            Set<String> ids = new LinkedHashSet(intToIdMap.getIds(sid));
-
-            for (String sample : idToSampleMap.getSampleList()) {
-
-                Set<String> fileIds = new LinkedHashSet<String>(ids);
-                fileIds.retainAll(idToSampleMap.getIdsBySample(sample));
-
-                if (fileIds.size() > 0) {
-                    StringBuilder buf = new StringBuilder();
-                    buf.append(clusterCount).append("\t");
-                    buf.append(sample).append("\t");
-                    buf.append(fileIds.size()).append("\t");
-                    for (String id : fileIds) {
-                        buf.append(id).append(" ");
-                    }
-                    out.println(buf.toString());
-                }
-            }
+            Iterable<Integer> sids = Collections.singleton(sid);
+            writeCluster(clusterCount, counts.countSeqs(sids), sids);
             clusterCount++;
         }
         out.println();
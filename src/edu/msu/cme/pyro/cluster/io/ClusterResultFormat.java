@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+/**
+ * Layout of the binary cluster result file, the same clusters as a cluster
+ * file but each sequence id is only stored once.  An entry is a sequence id
+ * in a sample (an id in two samples is two entries), and each cutoff is a
+ * column with the number (from 1) of the cluster each entry is in
+ *
+ * <pre>
+ * header:  int magic, int version
+ * ids:     deflated, per entry varint(utf8 length) and the utf8 bytes
+ * samples: int column, each entry's index in the sample list
+ * cutoffs: per cutoff an int column of each entry's cluster number
+ * toc:     int sample count, per sample utf name, int sequence count
+ *          int entry count, long ids offset, long samples offset
+ *          int cutoff count, per cutoff utf cutoff, int clusters, long offset
+ * footer:  long toc offset, int magic
+ * </pre>
+ *
+ * An int column is deflated varint(zigzag(value - previous value)), so
+ * reading a cutoff is one seek and inflating its column
+ *
+ * @author fishjord
+ */
+final class ClusterResultFormat {
+
+    static final int MAGIC = 0x89434C52;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int FOOTER_SIZE = 12;
+
+    private ClusterResultFormat() {
+    }
+}
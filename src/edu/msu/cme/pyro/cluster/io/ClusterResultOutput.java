@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.DistanceCalculator;
+import edu.msu.cme.pyro.cluster.utils.AbstractClusterFactory;
+import edu.msu.cme.pyro.cluster.utils.Cluster;
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes the clustering to a binary cluster result file, the entries are the
+ * count matrix's (which must have been created with ids, ie the one from
+ * ClusterFileOutput) and clusters are numbered the same as in the cluster file
+ *
+ * @author fishjord
+ */
+public class ClusterResultOutput implements ClusterOutput {
+
+    private final SampleCountMatrix counts;
+    private final ClusterResultWriter writer;
+    private final File outFile;
+    private final DecimalFormat format = new DecimalFormat("0.0###");
+    private final int[] clusterNums;
+    private final List<Cluster> clusters = new ArrayList();
+    private final List<Integer> unseenSeqs = new ArrayList();
+
+    public ClusterResultOutput(SampleCountMatrix counts, File outFile) throws IOException {
+        if (!counts.hasEntryIds()) {
+            throw new IllegalArgumentException("Sample count matrix doesn't have sequence ids");
+        }
+        this.counts = counts;
+        this.outFile = outFile;
+
+        //Counted like the cluster file header, an id in several samples only
+        //counts for the last of them (its entries are together, in sample order)
+        int[] sampleSeqs = new int[counts.getSamples().size()];
+        int numEntries = counts.entrySamples.length;
+        for (int entry = 0; entry < numEntries; entry++) {
+            if (entry + 1 == numEntries || !counts.getEntryId(entry).equals(counts.getEntryId(entry + 1))) {
+                sampleSeqs[counts.entrySamples[entry]]++;
+            }
+        }
+
+        writer = new ClusterResultWriter(outFile, counts.getSamples(), sampleSeqs, counts.getEntryIds(), counts.entrySamples);
+        clusterNums = new int[counts.entrySamples.length];
+    }
+
+    private void number(Iterable<Integer> seqs, int clusterNum) {
+        for (int seq : seqs) {
+            if (!counts.hasEntries(seq)) {
+                continue;
+            }
+            for (int entry = counts.entryStart[seq]; entry < counts.entryStart[seq + 1]; entry++) {
+                clusterNums[entry] = clusterNum;
+            }
+        }
+    }
+
+    public void printClusters(AbstractClusterFactory factory, int step) {
+        clusters.clear();
+        unseenSeqs.clear();
+        counts.orderClusters(factory, clusters, unseenSeqs);
+
+        int clusterNum = 1;
+        for (Cluster c : clusters) {
+            number(factory.getSeqsInCluster(c), clusterNum++);
+        }
+        for (int seq : unseenSeqs) {
+            number(Collections.singleton(seq), clusterNum++);
+        }
+
+        try {
+            writer.writeCutoff(format.format(step / (double) DistanceCalculator.MULTIPLIER), clusters.size() + unseenSeqs.size(), clusterNums);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + outFile, e);
+        }
+    }
+
+    public void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + outFile, e);
+        }
+    }
+}
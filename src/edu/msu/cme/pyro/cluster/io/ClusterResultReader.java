@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.DistanceCalculator;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a binary cluster result file (see ClusterResultFormat).  Opening the
+ * file only reads the table of contents, each column is read when asked for
+ * with a seek to its start
+ *
+ * @author fishjord
+ */
+public class ClusterResultReader {
+
+    private final File resultFile;
+    private final List<String> samples = new ArrayList();
+    private final int[] sampleSeqs;
+    private final int numEntries;
+    private final long idsOffset;
+    private final long samplesOffset;
+    private final String[] cutoffs;
+    private final int[] numClusters;
+    private final long[] cutoffOffsets;
+
+    public ClusterResultReader(File resultFile) throws IOException {
+        this.resultFile = resultFile;
+
+        RandomAccessFile raf = new RandomAccessFile(resultFile, "r");
+        try {
+            if (raf.length() < ClusterResultFormat.HEADER_SIZE + ClusterResultFormat.FOOTER_SIZE) {
+                throw new IOException(resultFile + " is too short to be a cluster result file");
+            }
+            if (raf.readInt() != ClusterResultFormat.MAGIC) {
+                throw new IOException(resultFile + " isn't a cluster result file");
+            }
+            int version = raf.readInt();
+            if (version != ClusterResultFormat.VERSION) {
+                throw new IOException("Unsupported cluster result file version " + version);
+            }
+
+            raf.seek(raf.length() - ClusterResultFormat.FOOTER_SIZE);
+            long tocOffset = raf.readLong();
+            if (raf.readInt() != ClusterResultFormat.MAGIC) {
+                throw new IOException(resultFile + " is truncated, no table of contents");
+            }
+
+            raf.seek(tocOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            sampleSeqs = new int[in.readInt()];
+            for (int index = 0; index < sampleSeqs.length; index++) {
+                samples.add(in.readUTF());
+                sampleSeqs[index] = in.readInt();
+            }
+
+            numEntries = in.readInt();
+            idsOffset = in.readLong();
+            samplesOffset = in.readLong();
+
+            int n = in.readInt();
+            cutoffs = new String[n];
+            numClusters = new int[n];
+            cutoffOffsets = new long[n];
+            for (int index = 0; index < n; index++) {
+                cutoffs[index] = in.readUTF();
+                numClusters[index] = in.readInt();
+                cutoffOffsets[index] = in.readLong();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * True if the file starts with the result file magic, a cluster file
+     * starts with text
+     */
+    public static boolean isResultFile(File f) throws IOException {
+        if (f.length() < ClusterResultFormat.HEADER_SIZE + ClusterResultFormat.FOOTER_SIZE) {
+            return false;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            return in.readInt() == ClusterResultFormat.MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    public List<String> getSamples() {
+        return Collections.unmodifiableList(samples);
+    }
+
+    /**
+     * The number of sequences in the sample, as written in the cluster file
+     * header
+     */
+    public int getSampleSeqs(int sample) {
+        return sampleSeqs[sample];
+    }
+
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    public int size() {
+        return cutoffs.length;
+    }
+
+    public String getCutoff(int cutoff) {
+        return cutoffs[cutoff];
+    }
+
+    public int getNumClusters(int cutoff) {
+        return numClusters[cutoff];
+    }
+
+    /**
+     * Index of the highest cutoff not above toFind, or the first cutoff if
+     * they're all above it (the cutoff RDPClustParser.getCutoff picks), -1 if
+     * there are no cutoffs
+     */
+    public int findCutoff(double toFind) {
+        if (cutoffs.length == 0) {
+            return -1;
+        }
+
+        int target = (int) Math.round(toFind * 1000) * DistanceCalculator.MULTIPLIER;
+        int best = 0;
+        int bestDist = Integer.MIN_VALUE;
+        for (int index = 0; index < cutoffs.length; index++) {
+            int dist;
+            try {
+                dist = (int) Math.round(Double.parseDouble(cutoffs[index]) * 1000) * DistanceCalculator.MULTIPLIER;
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (dist <= target && dist >= bestDist) {
+                best = index;
+                bestDist = dist;
+            }
+        }
+
+        return best;
+    }
+
+    private InputStream openBlock(long offset) throws IOException {
+        FileInputStream fin = new FileInputStream(resultFile);
+        fin.getChannel().position(offset);
+        return new BufferedInputStream(new InflaterInputStream(new BufferedInputStream(fin, 64 * 1024)), 64 * 1024);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int ret = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of column");
+            }
+            ret |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int[] readColumn(long offset) throws IOException {
+        int[] ret = new int[numEntries];
+        InputStream in = openBlock(offset);
+        try {
+            int prev = 0;
+            for (int index = 0; index < numEntries; index++) {
+                prev += CompactEdgeFormat.unzigzag(readVarint(in));
+                ret[index] = prev;
+            }
+        } finally {
+            in.close();
+        }
+
+        return ret;
+    }
+
+    public String[] readEntryIds() throws IOException {
+        String[] ret = new String[numEntries];
+        InputStream in = openBlock(idsOffset);
+        byte[] buf = new byte[256];
+        try {
+            for (int index = 0; index < numEntries; index++) {
+                int len = readVarint(in);
+                if (len > buf.length) {
+                    buf = new byte[Math.max(len, buf.length * 2)];
+                }
+                int read = 0;
+                while (read < len) {
+                    int n = in.read(buf, read, len - read);
+                    if (n < 0) {
+                        throw new EOFException("Unexpected end of ids");
+                    }
+                    read += n;
+                }
+                ret[index] = new String(buf, 0, len, "UTF-8");
+            }
+        } finally {
+            in.close();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Each entry's index in the sample list
+     */
+    public int[] readEntrySamples() throws IOException {
+        int[] ret = readColumn(samplesOffset);
+        for (int sample : ret) {
+            if (sample < 0 || sample >= samples.size()) {
+                throw new IOException("Invalid sample index " + sample);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The cluster number (from 1) of each entry at the cutoff
+     */
+    public int[] readCutoff(int cutoff) throws IOException {
+        int[] ret = readColumn(cutoffOffsets[cutoff]);
+        for (int cluster : ret) {
+            if (cluster < 1 || cluster > numClusters[cutoff]) {
+                throw new IOException("Invalid cluster number " + cluster + " in cutoff " + cutoffs[cutoff]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Entries sorted by cluster then sample, entries in the same cluster and
+     * sample stay in entry order
+     */
+    private int[] sortEntries(int cutoff, int[] clusters, int[] entrySamples) {
+        int[] bySample = countingSort(identity(numEntries), entrySamples, samples.size());
+        return countingSort(bySample, clusters, numClusters[cutoff] + 1);
+    }
+
+    private static int[] identity(int n) {
+        int[] ret = new int[n];
+        for (int index = 0; index < n; index++) {
+            ret[index] = index;
+        }
+        return ret;
+    }
+
+    private static int[] countingSort(int[] entries, int[] keys, int numKeys) {
+        int[] starts = new int[numKeys + 1];
+        for (int entry : entries) {
+            starts[keys[entry] + 1]++;
+        }
+        for (int key = 0; key < numKeys; key++) {
+            starts[key + 1] += starts[key];
+        }
+
+        int[] ret = new int[entries.length];
+        for (int entry : entries) {
+            ret[starts[keys[entry]]++] = entry;
+        }
+        return ret;
+    }
+
+    /**
+     * The (sample, count) pairs sorted by sample of each cluster at the
+     * cutoff, in cluster number order (the same as
+     * SampleCountMatrix.getOTUCounts)
+     */
+    public List<int[]> getOTUCounts(int cutoff, int[] entrySamples) throws IOException {
+        int[] clusters = readCutoff(cutoff);
+        int[] sorted = sortEntries(cutoff, clusters, entrySamples);
+
+        List<int[]> ret = new ArrayList(numClusters[cutoff]);
+        int[] pairs = new int[samples.size() * 2];
+        int pos = 0;
+        while (pos < sorted.length) {
+            int cluster = clusters[sorted[pos]];
+            while (ret.size() < cluster - 1) {
+                ret.add(new int[0]);
+            }
+
+            int len = 0;
+            while (pos < sorted.length && clusters[sorted[pos]] == cluster) {
+                int sample = entrySamples[sorted[pos]];
+                int end = pos;
+                while (end < sorted.length && clusters[sorted[end]] == cluster && entrySamples[sorted[end]] == sample) {
+                    end++;
+                }
+                pairs[len++] = sample;
+                pairs[len++] = end - pos;
+                pos = end;
+            }
+            ret.add(Arrays.copyOf(pairs, len));
+        }
+        while (ret.size() < numClusters[cutoff]) {
+            ret.add(new int[0]);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Writes a cutoff the way it's written in a cluster file, ids in a
+     * cluster and sample are in entry order
+     */
+    public void writeCutoff(int cutoff, String[] entryIds, int[] entrySamples, PrintStream out) throws IOException {
+        int[] clusters = readCutoff(cutoff);
+        int[] sorted = sortEntries(cutoff, clusters, entrySamples);
+        StringBuilder buf = new StringBuilder();
+
+        out.println("distance cutoff:\t" + cutoffs[cutoff]);
+        out.println("Total Clusters:\t" + numClusters[cutoff]);
+        int pos = 0;
+        while (pos < sorted.length) {
+            int cluster = clusters[sorted[pos]];
+            int sample = entrySamples[sorted[pos]];
+            int end = pos;
+            while (end < sorted.length && clusters[sorted[end]] == cluster && entrySamples[sorted[end]] == sample) {
+                end++;
+            }
+
+            buf.setLength(0);
+            buf.append(cluster).append("\t");
+            buf.append(samples.get(sample)).append("\t");
+            buf.append(end - pos).append("\t");
+            for (; pos < end; pos++) {
+                buf.append(entryIds[sorted[pos]]).append(" ");
+            }
+            out.println(buf.toString());
+        }
+        out.println();
+    }
+
+    /**
+     * Writes every cutoff as a cluster file
+     */
+    public void writeClusterFile(PrintStream out) throws IOException {
+        String[] entryIds = readEntryIds();
+        int[] entrySamples = readEntrySamples();
+
+        out.print("File(s):\t");
+        for (String sample : samples) {
+            out.print(sample + " ");
+        }
+        out.println();
+        out.print("Sequences:\t");
+        for (int seqs : sampleSeqs) {
+            out.print(seqs + " ");
+        }
+        out.println();
+        out.println();
+
+        for (int cutoff = 0; cutoff < cutoffs.length; cutoff++) {
+            writeCutoff(cutoff, entryIds, entrySamples, out);
+        }
+        out.flush();
+    }
+}
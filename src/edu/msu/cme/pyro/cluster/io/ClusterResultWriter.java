@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.derep.StringTable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a binary cluster result file (see ClusterResultFormat).  The ids and
+ * their samples are written up front, then each cutoff as it's added
+ *
+ * @author fishjord
+ */
+public class ClusterResultWriter {
+
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] deflated = new byte[64 * 1024];
+    private byte[] encoded = new byte[64 * 1024];
+    private final List<String> samples;
+    private final int[] sampleSeqs;
+    private final int numEntries;
+    private final long idsOffset;
+    private final long samplesOffset;
+    private final List<String> cutoffs = new ArrayList();
+    private final List<Integer> numClusters = new ArrayList();
+    private final List<Long> cutoffOffsets = new ArrayList();
+    private long offset = 0;
+
+    /**
+     * @param entryIds the id of each entry
+     * @param entrySamples the index in samples of each entry
+     */
+    public ClusterResultWriter(File f, List<String> samples, int[] sampleSeqs, List<String> entryIds, int[] entrySamples) throws IOException {
+        if (samples.size() != sampleSeqs.length) {
+            throw new IllegalArgumentException("Different number of samples and sequence counts");
+        }
+        if (entryIds.size() != entrySamples.length) {
+            throw new IllegalArgumentException("Different number of entry ids and samples");
+        }
+
+        this.samples = new ArrayList(samples);
+        this.sampleSeqs = sampleSeqs.clone();
+        numEntries = entryIds.size();
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+        boolean started = false;
+        try {
+            out.writeInt(ClusterResultFormat.MAGIC);
+            out.writeInt(ClusterResultFormat.VERSION);
+            offset = ClusterResultFormat.HEADER_SIZE;
+
+            idsOffset = offset;
+            int len = 0;
+            for (String id : entryIds) {
+                byte[] utf = id.getBytes("UTF-8");
+                if (len + utf.length + 5 > encoded.length) {
+                    deflate(len);
+                    len = 0;
+                    if (utf.length + 5 > encoded.length) {
+                        encoded = new byte[utf.length + 5];
+                    }
+                }
+                len = putVarint(utf.length, len);
+                System.arraycopy(utf, 0, encoded, len, utf.length);
+                len += utf.length;
+            }
+            deflate(len);
+            finishBlock();
+
+            samplesOffset = offset;
+            writeColumn(entrySamples);
+            started = true;
+        } finally {
+            if (!started) {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Adds a cutoff, clusters has the cluster number (1 to numClusters) of
+     * each entry
+     */
+    public void writeCutoff(String cutoff, int numClusters, int[] clusters) throws IOException {
+        if (clusters.length != numEntries) {
+            throw new IllegalArgumentException("Expected " + numEntries + " cluster numbers but got " + clusters.length);
+        }
+
+        cutoffs.add(cutoff);
+        this.numClusters.add(numClusters);
+        cutoffOffsets.add(offset);
+        writeColumn(clusters);
+    }
+
+    private void writeColumn(int[] values) throws IOException {
+        int len = 0;
+        int prev = 0;
+        for (int value : values) {
+            if (len + 5 > encoded.length) {
+                deflate(len);
+                len = 0;
+            }
+            len = putVarint(CompactEdgeFormat.zigzag(value - prev), len);
+            prev = value;
+        }
+        deflate(len);
+        finishBlock();
+    }
+
+    private int putVarint(int value, int pos) {
+        while ((value & ~0x7f) != 0) {
+            encoded[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        encoded[pos++] = (byte) value;
+        return pos;
+    }
+
+    private void deflate(int len) throws IOException {
+        deflater.setInput(encoded, 0, len);
+        while (!deflater.needsInput()) {
+            writeDeflated(deflater.deflate(deflated));
+        }
+    }
+
+    private void finishBlock() throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            writeDeflated(deflater.deflate(deflated));
+        }
+        deflater.reset();
+    }
+
+    private void writeDeflated(int len) throws IOException {
+        out.write(deflated, 0, len);
+        offset += len;
+    }
+
+    public void close() throws IOException {
+        long tocOffset = offset;
+        out.writeInt(samples.size());
+        for (int index = 0; index < samples.size(); index++) {
+            out.writeUTF(samples.get(index));
+            out.writeInt(sampleSeqs[index]);
+        }
+
+        out.writeInt(numEntries);
+        out.writeLong(idsOffset);
+        out.writeLong(samplesOffset);
+
+        out.writeInt(cutoffs.size());
+        for (int index = 0; index < cutoffs.size(); index++) {
+            out.writeUTF(cutoffs.get(index));
+            out.writeInt(numClusters.get(index));
+            out.writeLong(cutoffOffsets.get(index));
+        }
+
+        out.writeLong(tocOffset);
+        out.writeInt(ClusterResultFormat.MAGIC);
+        out.close();
+        deflater.end();
+    }
+
+    /**
+     * Closes the file without finishing it, for when writing fails part way.
+     * The caller should delete the file
+     */
+    public void abort() {
+        try {
+            out.close();
+        } catch (IOException ignore) {
+        }
+        deflater.end();
+    }
+
+    /**
+     * Converts a cluster file to a result file.  The entries are numbered in
+     * the order they're first seen in the first cutoff, every cutoff must have
+     * the same ids.  The ids go in to a temp StringTable next to the result
+     * file and are looked up there, so only the sample and the cluster number
+     * of each entry (4 bytes each) are held, plus about 16 bytes per entry
+     * while the id table is built (see StringTable.Writer)
+     */
+    public static void fromClusterFile(File clustFile, File resultFile) throws IOException {
+        RDPClustParser parser = new RDPClustParser(clustFile);
+        List<String> samples;
+        int[] sampleSeqs;
+        try {
+            samples = ClusterToBiom.getSampleNames(parser);
+            sampleSeqs = new int[samples.size()];
+            for (int index = 0; index < sampleSeqs.length; index++) {
+                sampleSeqs[index] = parser.getClusterSamples().get(index).getSeqs();
+            }
+        } finally {
+            parser.close();
+        }
+
+        ClusterFileIndex index = ClusterFileIndex.open(clustFile);
+        File workDir = resultFile.getAbsoluteFile().getParentFile();
+        StringTable.Writer idWriter = new StringTable.Writer(workDir);
+        File idFile = File.createTempFile("entry_ids", ".tmp", workDir);
+        ClusterResultWriter writer = null;
+        boolean opened = false;
+        boolean written = false;
+
+        try {
+            int[] entrySamples = new int[1024];
+            if (index.size() > 0) {
+                ClusterStream stream = new ClusterStream(clustFile, index.getOffset(0), samples);
+                try {
+                    while (stream.next()) {
+                        for (String id : stream.getSeqIds()) {
+                            if (idWriter.size() == entrySamples.length) {
+                                entrySamples = Arrays.copyOf(entrySamples, entrySamples.length * 2);
+                            }
+                            entrySamples[idWriter.add(id)] = stream.getSampleIndex();
+                        }
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+            entrySamples = Arrays.copyOf(entrySamples, idWriter.size());
+
+            //Copies of an id are next to each other once sorted, they have to be in different samples
+            int[] sorted = idWriter.sort();
+            int runStart = 0;
+            for (int pos = 1; pos <= sorted.length; pos++) {
+                if (pos < sorted.length && idWriter.same(sorted[runStart], sorted[pos])) {
+                    for (int copy = runStart; copy < pos; copy++) {
+                        if (entrySamples[sorted[copy]] == entrySamples[sorted[pos]]) {
+                            throw new IOException("Sequence " + idWriter.get(sorted[pos]) + " is in sample " + samples.get(entrySamples[sorted[pos]]) + " more than once in cutoff " + index.getCutoff(0));
+                        }
+                    }
+                } else {
+                    runStart = pos;
+                }
+            }
+
+            DataOutputStream idOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(idFile), 1 << 16));
+            try {
+                idWriter.write(idOut, null, sorted);
+            } finally {
+                idOut.close();
+            }
+            idWriter.close();
+
+            final StringTable entryIds = StringTable.load(idFile);
+            List<String> entryIdList = new AbstractList<String>() {
+
+                @Override
+                public String get(int entry) {
+                    return entryIds.get(entry);
+                }
+
+                @Override
+                public int size() {
+                    return entryIds.size();
+                }
+            };
+
+            opened = true;
+            writer = new ClusterResultWriter(resultFile, samples, sampleSeqs, entryIdList, entrySamples);
+            for (int cutoff = 0; cutoff < index.size(); cutoff++) {
+                ClusterStream stream = new ClusterStream(clustFile, index.getOffset(cutoff), samples);
+                try {
+                    int[] clusters = new int[entrySamples.length];
+                    int maxCluster = 0;
+                    while (stream.next()) {
+                        int sample = stream.getSampleIndex();
+                        int clusterId = stream.getClusterId();
+                        if (clusterId < 1) {
+                            throw new IOException("Invalid cluster id " + clusterId + " in cutoff " + stream.getCutoff());
+                        }
+                        maxCluster = Math.max(maxCluster, clusterId);
+
+                        for (String id : stream.getSeqIds()) {
+                            //An id can be in more than one sample, but only once in each
+                            int entry = -1;
+                            for (int candidate : entryIds.indexesOf(id)) {
+                                if (entrySamples[candidate] == sample) {
+                                    entry = candidate;
+                                    break;
+                                }
+                            }
+                            if (entry == -1) {
+                                throw new IOException("Sequence " + id + " in sample " + stream.getSample() + " at cutoff " + stream.getCutoff() + " isn't in the first cutoff");
+                            }
+                            if (clusters[entry] != 0) {
+                                throw new IOException("Sequence " + id + " is in sample " + stream.getSample() + " more than once in cutoff " + stream.getCutoff());
+                            }
+                            clusters[entry] = clusterId;
+                        }
+                    }
+
+                    for (int entry = 0; entry < clusters.length; entry++) {
+                        if (clusters[entry] == 0) {
+                            throw new IOException("Sequence " + entryIds.get(entry) + " in sample " + samples.get(entrySamples[entry]) + " is missing from cutoff " + stream.getCutoff());
+                        }
+                    }
+
+                    int numClusters = stream.getNumClusters();
+                    if (maxCluster > numClusters) {
+                        throw new IOException("Cluster " + maxCluster + " in cutoff " + stream.getCutoff() + " but there are only " + numClusters + " clusters");
+                    }
+                    writer.writeCutoff(stream.getCutoff(), numClusters, clusters);
+                } finally {
+                    stream.close();
+                }
+            }
+
+            writer.close();
+            written = true;
+        } finally {
+            idWriter.close();
+            idFile.delete();
+            //Don't leave a partial result file behind
+            if (opened && !written) {
+                if (writer != null) {
+                    writer.abort();
+                }
+                resultFile.delete();
+            }
+        }
+    }
+}
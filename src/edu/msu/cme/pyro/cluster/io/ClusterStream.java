@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads one cutoff of a cluster file a line at a time, each line being the
+ * sequences of one sample in one cluster.  The lines of a cluster are
+ * together, so callers can work on one cluster at a time without holding
+ * the cutoff in memory, and the sequence ids are only split out of the line
+ * if getSeqIds is called.  Opened with RDPClustParser.streamCutoff
+ *
+ * @author fishjord
+ */
+public class ClusterStream {
+
+    private final ByteLineReader reader;
+    private final Map<String, Integer> sampleIndex = new HashMap();
+    private final String cutoff;
+    private final int numClusters;
+    private boolean done = false;
+    private int clusterId;
+    private int sample;
+    private String sampleName;
+    private int count;
+    private int idsStart;
+    private List<String> seqIds;
+
+    ClusterStream(File clustFile, long offset, List<String> samples) throws IOException {
+        for (int index = 0; index < samples.size(); index++) {
+            sampleIndex.put(samples.get(index), index);
+        }
+
+        reader = new ByteLineReader(clustFile, offset);
+        do {
+            if (!reader.readLine()) {
+                throw new IOException("Unexpected end of cluster file");
+            }
+        } while (reader.isBlank());
+
+        String[] lexemes = reader.getString().trim().split("\\s+");
+        if (lexemes.length != 3 || !lexemes[0].equals("distance") || !lexemes[1].equals("cutoff:")) {
+            throw new IOException("Malformed cluster file \"" + reader.getString() + "\"");
+        }
+        cutoff = lexemes[2];
+
+        if (!reader.readLine()) {
+            throw new IOException("Malformed cluster file");
+        }
+        lexemes = reader.getString().trim().split("\\s+");
+        if (lexemes.length != 3 || !lexemes[0].equals("Total") || !lexemes[1].equals("Clusters:")) {
+            throw new IOException("Malformed cluster file");
+        }
+        try {
+            numClusters = Integer.valueOf(lexemes[2]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number of clusters for cutoff " + cutoff);
+        }
+    }
+
+    public String getCutoff() {
+        return cutoff;
+    }
+
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    private int skipSpace(byte[] line, int pos, int len) {
+        while (pos < len && Character.isWhitespace(line[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int skipToken(byte[] line, int pos, int len) {
+        while (pos < len && !Character.isWhitespace(line[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int parseInt(byte[] line, int from, int to) throws IOException {
+        if (from == to) {
+            throw new IOException("Malformed cluster line in cutoff " + cutoff + ": \"" + reader.getString() + "\"");
+        }
+        int ret = 0;
+        for (int pos = from; pos < to; pos++) {
+            int digit = line[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Invalid number " + reader.getString(from, to) + " in cutoff " + cutoff);
+            }
+            ret = ret * 10 + digit;
+        }
+        return ret;
+    }
+
+    /**
+     * Moves to the next (cluster, sample) line of the cutoff, false once the
+     * cutoff has been read
+     */
+    public boolean next() throws IOException {
+        while (!done) {
+            if (!reader.readLine() || reader.isBlank() || reader.startsWith("distance")) {
+                done = true;
+                break;
+            }
+
+            byte[] line = reader.getLine();
+            int len = reader.getLength();
+
+            int start = skipSpace(line, 0, len);
+            int end = skipToken(line, start, len);
+            clusterId = parseInt(line, start, end);
+
+            start = skipSpace(line, end, len);
+            end = skipToken(line, start, len);
+            if (start == end) {
+                throw new IOException("Malformed cluster line in cutoff " + cutoff + ": \"" + reader.getString() + "\"");
+            }
+            String name = reader.getString(start, end);
+            if (!name.equals(sampleName)) {
+                Integer index = sampleIndex.get(name);
+                if (index == null) {
+                    throw new IOException("Invalid sample name " + name + " cluster id " + clusterId + " cutoff " + cutoff);
+                }
+                sampleName = name;
+                sample = index;
+            }
+
+            start = skipSpace(line, end, len);
+            end = skipToken(line, start, len);
+            count = parseInt(line, start, end);
+            idsStart = end;
+            seqIds = null;
+
+            if (count != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The cluster's number in the cutoff, from 1
+     */
+    public int getClusterId() {
+        return clusterId;
+    }
+
+    public String getSample() {
+        return sampleName;
+    }
+
+    /**
+     * Index of the sample in the cluster file's sample list
+     */
+    public int getSampleIndex() {
+        return sample;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The sequence ids on the current line, split out the first time they're
+     * asked for
+     */
+    public List<String> getSeqIds() throws IOException {
+        if (seqIds == null) {
+            byte[] line = reader.getLine();
+            int len = reader.getLength();
+            seqIds = new ArrayList(count);
+            int pos = skipSpace(line, idsStart, len);
+            while (pos < len) {
+                int end = skipToken(line, pos, len);
+                seqIds.add(reader.getString(pos, end));
+                pos = skipSpace(line, end, len);
+            }
+
+            if (seqIds.size() != count) {
+                throw new IOException("Expected " + count + " seqids for cluster " + clusterId + " sample " + sampleName + " but read " + seqIds.size() + " in cutoff " + cutoff);
+            }
+        }
+
+        return seqIds;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -6,7 +6,9 @@ package edu.msu.cme.pyro.cluster.io;
 
 import edu.msu.cme.pyro.cluster.io.RDPClustParser.Cutoff;
 import edu.msu.cme.pyro.cluster.utils.Cluster;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DateFormat;
@@ -104,14 +106,181 @@ public class ClusterToBiom {
         out.println("}");
     }
 
+    /**
+     * Writes the same dense table as writeCutoff, but reads the cutoff a
+     * cluster at a time so only the current row is held in memory
+     */
+    public static void writeCutoff(ClusterStream stream, List<String> samples, PrintStream out) throws IOException {
+        List<String> sampleNames = new ArrayList(samples);
+        Collections.sort(sampleNames);
+        int[] column = new int[samples.size()];
+        for (int sample = 0; sample < samples.size(); sample++) {
+            column[sample] = sampleNames.indexOf(samples.get(sample));
+        }
+        int numClusters = stream.getNumClusters();
+
+        out.println("{");
+        writeHeader(out);
+
+        out.println("\"rows\" : [");
+        for (int row = 0; row < numClusters; row++) {
+            out.print("\t {\"id\" : \"cluster_" + (row + 1) + "\", \"metadata\" : null }");
+            if (row + 1 != numClusters) {
+                out.print(",");
+            }
+            out.println();
+        }
+        out.println("],");
+        writeColsHeader(sampleNames, out);
+
+        out.println("\"matrix_type\": \"dense\",");
+        out.println("\"matrix_element_type\": \"int\",");
+        out.println("\"shape\": [" + numClusters + ", " + sampleNames.size() + "],");
+        out.println("\"data\": [");
+
+        int[] rowCounts = new int[sampleNames.size()];
+        byte[] buf = new byte[64];
+        int row = 0;
+        boolean more = stream.next();
+        while (row < numClusters) {
+            //Cluster ids start at 1
+            while (more && stream.getClusterId() == row + 1) {
+                rowCounts[column[stream.getSampleIndex()]] += stream.getCount();
+                more = stream.next();
+            }
+
+            out.print("\t[");
+            for (int col = 0; col < rowCounts.length; col++) {
+                int len = append(buf, 0, rowCounts[col]);
+                if (col + 1 != rowCounts.length) {
+                    buf[len++] = ',';
+                }
+                out.write(buf, 0, len);
+                rowCounts[col] = 0;
+            }
+            out.print("]");
+            if (row + 1 != numClusters) {
+                out.print(",");
+            }
+            out.println();
+            row++;
+        }
+        if (more) {
+            throw new IOException("Cluster " + stream.getClusterId() + " is out of order or past the " + numClusters + " clusters in cutoff " + stream.getCutoff());
+        }
+
+        out.println("]");
+        out.println("}");
+    }
+
+    /**
+     * Writes a sparse biom table from each OTU's (sample, count) pairs, as
+     * SampleCountMatrix.getOTUCounts returns them.  Rows are named like
+     * writeCutoff's (cluster_1 on, in the order given) and the columns are
+     * the sorted sample names.  Only the non-zero cells are written, and they
+     * are formatted in to a reused byte buffer so a cell doesn't allocate
+     */
+    public static void writeSparseCutoff(List<String> samples, List<int[]> otuCounts, PrintStream out) {
+        List<String> sampleNames = new ArrayList(samples);
+        Collections.sort(sampleNames);
+        int[] column = new int[samples.size()];
+        for (int sample = 0; sample < samples.size(); sample++) {
+            column[sample] = sampleNames.indexOf(samples.get(sample));
+        }
+
+        out.println("{");
+        writeHeader(out);
+
+        out.println("\"rows\" : [");
+        byte[] buf = new byte[64];
+        for (int row = 0; row < otuCounts.size(); row++) {
+            int len = append(buf, 0, "\t {\"id\" : \"cluster_");
+            len = append(buf, len, row + 1);
+            len = append(buf, len, "\", \"metadata\" : null }");
+            if (row + 1 != otuCounts.size()) {
+                buf[len++] = ',';
+            }
+            buf[len++] = '\n';
+            out.write(buf, 0, len);
+        }
+        out.println("],");
+
+        writeColsHeader(sampleNames, out);
+
+        out.println("\"matrix_type\": \"sparse\",");
+        out.println("\"matrix_element_type\": \"int\",");
+        out.println("\"shape\": [" + otuCounts.size() + ", " + sampleNames.size() + "],");
+        out.print("\"data\": [");
+        boolean first = true;
+        for (int row = 0; row < otuCounts.size(); row++) {
+            int[] counts = otuCounts.get(row);
+            for (int index = 0; index < counts.length; index += 2) {
+                int len = 0;
+                if (!first) {
+                    buf[len++] = ',';
+                }
+                first = false;
+                len = append(buf, len, "\n\t[");
+                len = append(buf, len, row);
+                buf[len++] = ',';
+                len = append(buf, len, column[counts[index]]);
+                buf[len++] = ',';
+                len = append(buf, len, counts[index + 1]);
+                buf[len++] = ']';
+                out.write(buf, 0, len);
+            }
+        }
+        out.println();
+        out.println("]");
+        out.println("}");
+    }
+
+    public static List<String> getSampleNames(RDPClustParser parser) {
+        List<String> ret = new ArrayList();
+        for (RDPClustParser.ClusterSample sample : parser.getClusterSamples()) {
+            ret.add(sample.getName());
+        }
+        return ret;
+    }
+
+    private static int append(byte[] buf, int pos, String s) {
+        for (int index = 0; index < s.length(); index++) {
+            buf[pos++] = (byte) s.charAt(index);
+        }
+        return pos;
+    }
+
+    private static int append(byte[] buf, int pos, int value) {
+        if (value == 0) {
+            buf[pos++] = '0';
+            return pos;
+        }
+
+        int digits = 0;
+        for (int v = value; v != 0; v /= 10) {
+            digits++;
+        }
+        for (int index = pos + digits - 1; index >= pos; index--) {
+            buf[index] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
     public static void main(String[] args) throws IOException {
         if( args.length != 3){
             throw new IllegalArgumentException("Usage: clusterfile out.biom distance");
         }
         RDPClustParser parser = new RDPClustParser(new File(args[0]), false);
+        ClusterStream stream = parser.streamCutoff(args[2]);
+        if (stream == null) {
+            throw new IOException("No cutoffs in " + args[0]);
+        }
 
-        PrintStream out = new PrintStream(args[1]);
-        writeCutoff(parser.getCutoff(args[2]), out);
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(args[1])));
+        writeCutoff(stream, getSampleNames(parser), out);
         out.close();
+        stream.close();
+        parser.close();
     }
 }
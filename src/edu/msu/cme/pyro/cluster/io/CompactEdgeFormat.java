@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+/**
+ * Layout of the block compressed column matrix
+ *
+ * <pre>
+ * header:  int magic, int version, int edges per block
+ * blocks:  runs of edges with the same distance, each run is
+ *          varint(zigzag(dist - previous run dist)), varint(run length)
+ *          followed by run length pairs of
+ *          varint(zigzag(seqi - previous seqi)), varint(zigzag(seqj - seqi))
+ *          (previous dist restarts at 0 in each block, previous seqi in each run)
+ * index:   per block long offset, int first dist, int edge count
+ * footer:  long index offset, long edge count, int block count, int magic
+ * </pre>
+ *
+ * The first byte of the magic has the high bit set so it can't be the start
+ * of a raw matrix, where the first int is a (non-negative) sequence id
+ *
+ * @author fishjord
+ */
+final class CompactEdgeFormat {
+
+    static final int MAGIC = 0x89434D58;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int FOOTER_SIZE = 24;
+    static final int DEFAULT_BLOCK_EDGES = 4096;
+
+    private CompactEdgeFormat() {
+    }
+
+    static int zigzag(int i) {
+        return (i << 1) ^ (i >> 31);
+    }
+
+    static int unzigzag(int i) {
+        return (i >>> 1) ^ -(i & 1);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.ThinEdge;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a block compressed column matrix (see CompactEdgeFormat), a block at
+ * a time in to an int array
+ *
+ * @author fishjord
+ */
+public class CompactEdgeReader implements SeekableEdgeReader {
+
+    private final FileChannel channel;
+    private final int blockEdges;
+    private final long edgeCount;
+    private final long indexOffset;
+    private final long[] blockOffsets;
+    private final int[] blockFirstDists;
+    private final int[] blockCounts;
+    private ByteBuffer encoded = ByteBuffer.allocate(1 << 16);
+    private final int[] block;
+    //Block currently decoded in to the block array, -1 if none
+    private int currBlock = -1;
+    private int blockPos = 0;
+    private int blockLen = 0;
+
+    public CompactEdgeReader(File f) throws IOException {
+        channel = new FileInputStream(f).getChannel();
+
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(CompactEdgeFormat.FOOTER_SIZE);
+            readFully(buf, 0, CompactEdgeFormat.HEADER_SIZE);
+            if (buf.getInt() != CompactEdgeFormat.MAGIC) {
+                throw new IOException(f + " isn't a compact column matrix");
+            }
+            int version = buf.getInt();
+            if (version != CompactEdgeFormat.VERSION) {
+                throw new IOException("Unsupported compact matrix version " + version + " in " + f);
+            }
+            blockEdges = buf.getInt();
+
+            long size = channel.size();
+            readFully(buf, size - CompactEdgeFormat.FOOTER_SIZE, CompactEdgeFormat.FOOTER_SIZE);
+            indexOffset = buf.getLong();
+            edgeCount = buf.getLong();
+            int blockCount = buf.getInt();
+            if (buf.getInt() != CompactEdgeFormat.MAGIC) {
+                throw new IOException(f + " is truncated, no compact matrix footer found");
+            }
+
+            blockOffsets = new long[blockCount];
+            blockFirstDists = new int[blockCount];
+            blockCounts = new int[blockCount];
+            DataInputStream indexStream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                long toSkip = indexOffset;
+                while (toSkip > 0) {
+                    toSkip -= indexStream.skip(toSkip);
+                }
+                for (int index = 0; index < blockCount; index++) {
+                    blockOffsets[index] = indexStream.readLong();
+                    blockFirstDists[index] = indexStream.readInt();
+                    blockCounts[index] = indexStream.readInt();
+                }
+            } finally {
+                indexStream.close();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        block = new int[blockEdges * 3];
+    }
+
+    private void readFully(ByteBuffer buf, long pos, int len) throws IOException {
+        buf.clear();
+        buf.limit(len);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("Unexpected end of compact matrix");
+            }
+        }
+        buf.flip();
+    }
+
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    public int getBlockCount() {
+        return blockCounts.length;
+    }
+
+    /**
+     * Distance of the first edge in the given block
+     */
+    public int getBlockFirstDist(int block) {
+        return blockFirstDists[block];
+    }
+
+    public long position() {
+        if (currBlock == -1) {
+            return 0;
+        }
+        return (long) currBlock * blockEdges + blockPos / 3;
+    }
+
+    public void seek(long ordinal) throws IOException {
+        if (ordinal < 0 || ordinal > edgeCount) {
+            throw new IllegalArgumentException("Edge " + ordinal + " is outside of the file (" + edgeCount + " edges)");
+        }
+
+        int target = (int) (ordinal / blockEdges);
+        if (target >= blockCounts.length) {
+            //Seeking to the end, leave the reader at the end of the last block
+            if (blockCounts.length > 0 && currBlock != blockCounts.length - 1) {
+                decodeBlock(blockCounts.length - 1);
+            }
+            blockPos = blockLen;
+            return;
+        }
+
+        if (target != currBlock) {
+            decodeBlock(target);
+        }
+        blockPos = (int) (ordinal - (long) target * blockEdges) * 3;
+    }
+
+    private void decodeBlock(int blockIndex) throws IOException {
+        long start = blockOffsets[blockIndex];
+        long end = (blockIndex + 1 < blockOffsets.length) ? blockOffsets[blockIndex + 1] : indexOffset;
+        int len = (int) (end - start);
+
+        if (len > encoded.capacity()) {
+            encoded = ByteBuffer.allocate(len);
+        }
+        readFully(encoded, start, len);
+
+        byte[] bytes = encoded.array();
+        int pos = 0;
+        int count = blockCounts[blockIndex];
+        int out = 0;
+        int dist = 0;
+
+        while (out < count * 3) {
+            int value = 0, shift = 0;
+            byte b;
+            do {
+                b = bytes[pos++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            dist += CompactEdgeFormat.unzigzag(value);
+
+            int runLength = 0;
+            shift = 0;
+            do {
+                b = bytes[pos++];
+                runLength |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            int seqi = 0;
+            for (int index = 0; index < runLength; index++) {
+                value = 0;
+                shift = 0;
+                do {
+                    b = bytes[pos++];
+                    value |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                seqi += CompactEdgeFormat.unzigzag(value);
+
+                value = 0;
+                shift = 0;
+                do {
+                    b = bytes[pos++];
+                    value |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+
+                block[out++] = seqi;
+                block[out++] = seqi + CompactEdgeFormat.unzigzag(value);
+                block[out++] = dist;
+            }
+        }
+
+        if (pos != len) {
+            throw new IOException("Corrupt compact matrix block " + blockIndex);
+        }
+
+        currBlock = blockIndex;
+        blockPos = 0;
+        blockLen = out;
+    }
+
+    public ThinEdge nextThinEdge() throws IOException {
+        return nextThinEdge(new ThinEdge());
+    }
+
+    public ThinEdge nextThinEdge(ThinEdge edge) throws IOException {
+        if (blockPos == blockLen) {
+            if (currBlock + 1 >= blockCounts.length) {
+                return null;
+            }
+            decodeBlock(currBlock + 1);
+        }
+
+        int seqi = block[blockPos];
+        int seqj = block[blockPos + 1];
+        if (seqi == seqj) {
+            throw new IOException("Identity edges can't be present in the column matrix");
+        }
+
+        edge.setSeqi(seqi);
+        edge.setSeqj(seqj);
+        edge.setDist(block[blockPos + 2]);
+        blockPos += 3;
+
+        return edge;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
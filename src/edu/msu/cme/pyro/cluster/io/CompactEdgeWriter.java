@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes a column matrix in the block compressed format (see
+ * CompactEdgeFormat), edges should be written in sorted order so distances
+ * come in long runs but any order can be encoded
+ *
+ * @author fishjord
+ */
+public class CompactEdgeWriter extends EdgeWriter {
+
+    private final DataOutputStream out;
+    private final int blockEdges;
+    private final int[] seqis;
+    private final int[] seqjs;
+    private final int[] dists;
+    private int blockSize = 0;
+    private byte[] encoded = new byte[1024];
+    private long offset = 0;
+    private long edgeCount = 0;
+    private int blockCount = 0;
+    private long[] blockOffsets = new long[64];
+    private int[] blockFirstDists = new int[64];
+    private int[] blockCounts = new int[64];
+
+    public CompactEdgeWriter(File f) throws IOException {
+        this(f, CompactEdgeFormat.DEFAULT_BLOCK_EDGES);
+    }
+
+    public CompactEdgeWriter(File f, int blockEdges) throws IOException {
+        if (blockEdges <= 0) {
+            throw new IllegalArgumentException("Edges per block must be > 0");
+        }
+        this.blockEdges = blockEdges;
+        seqis = new int[blockEdges];
+        seqjs = new int[blockEdges];
+        dists = new int[blockEdges];
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+        out.writeInt(CompactEdgeFormat.MAGIC);
+        out.writeInt(CompactEdgeFormat.VERSION);
+        out.writeInt(blockEdges);
+        offset = CompactEdgeFormat.HEADER_SIZE;
+    }
+
+    @Override
+    public void writeEdge(int seqi, int seqj, int dist) throws IOException {
+        if (seqi == seqj) {
+            throw new IOException("I refuse to write an identity edge");
+        }
+
+        seqis[blockSize] = seqi;
+        seqjs[blockSize] = seqj;
+        dists[blockSize] = dist;
+        blockSize++;
+        edgeCount++;
+
+        if (blockSize == blockEdges) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        int len = 0;
+        int prevDist = 0;
+        int runStart = 0;
+
+        while (runStart < blockSize) {
+            int dist = dists[runStart];
+            int runEnd = runStart + 1;
+            while (runEnd < blockSize && dists[runEnd] == dist) {
+                runEnd++;
+            }
+
+            //Worst case 5 bytes per varint, two for the run header and two per edge
+            int maxLen = len + 10 + (runEnd - runStart) * 10;
+            if (maxLen > encoded.length) {
+                encoded = Arrays.copyOf(encoded, Math.max(maxLen, encoded.length * 2));
+            }
+
+            len = putVarint(CompactEdgeFormat.zigzag(dist - prevDist), len);
+            len = putVarint(runEnd - runStart, len);
+
+            int prevSeqi = 0;
+            for (int index = runStart; index < runEnd; index++) {
+                len = putVarint(CompactEdgeFormat.zigzag(seqis[index] - prevSeqi), len);
+                len = putVarint(CompactEdgeFormat.zigzag(seqjs[index] - seqis[index]), len);
+                prevSeqi = seqis[index];
+            }
+
+            prevDist = dist;
+            runStart = runEnd;
+        }
+
+        if (blockCount == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+            blockFirstDists = Arrays.copyOf(blockFirstDists, blockCount * 2);
+            blockCounts = Arrays.copyOf(blockCounts, blockCount * 2);
+        }
+        blockOffsets[blockCount] = offset;
+        blockFirstDists[blockCount] = dists[0];
+        blockCounts[blockCount] = blockSize;
+        blockCount++;
+
+        out.write(encoded, 0, len);
+        offset += len;
+        blockSize = 0;
+    }
+
+    private int putVarint(int value, int pos) {
+        while ((value & ~0x7f) != 0) {
+            encoded[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        encoded[pos++] = (byte) value;
+        return pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (blockSize > 0) {
+            writeBlock();
+        }
+
+        long indexOffset = offset;
+        for (int block = 0; block < blockCount; block++) {
+            out.writeLong(blockOffsets[block]);
+            out.writeInt(blockFirstDists[block]);
+            out.writeInt(blockCounts[block]);
+        }
+
+        out.writeLong(indexOffset);
+        out.writeLong(edgeCount);
+        out.writeInt(blockCount);
+        out.writeInt(CompactEdgeFormat.MAGIC);
+        out.close();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.ThinEdge;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Opens column matrices in either the raw (12 bytes per edge) or the block
+ * compressed format, picking the format from the file's header
+ *
+ * @author fishjord
+ */
+public class EdgeFiles {
+
+    public static boolean isCompact(File f) throws IOException {
+        if (f.length() < CompactEdgeFormat.HEADER_SIZE + CompactEdgeFormat.FOOTER_SIZE) {
+            return false;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            return in.readInt() == CompactEdgeFormat.MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static SeekableEdgeReader openReader(File f) throws IOException {
+        if (isCompact(f)) {
+            return new CompactEdgeReader(f);
+        }
+        return new MappedEdgeReader(f);
+    }
+
+    /**
+     * Opens a writer for a finished matrix, the matrix's index is written
+     * when the writer is closed
+     */
+    public static EdgeWriter openWriter(File f, boolean compact) throws IOException {
+        if (compact) {
+            return new IndexingEdgeWriter(new CompactEdgeWriter(f), f);
+        }
+        return new IndexingEdgeWriter(new EdgeWriter(f), f);
+    }
+
+    /**
+     * Returns the matrix's index, building and saving it if it's missing or
+     * out of date
+     */
+    public static MatrixIndex getIndex(File f) throws IOException {
+        MatrixIndex ret = MatrixIndex.load(f);
+        if (ret == null) {
+            ret = MatrixIndex.build(f);
+            try {
+                ret.write(f);
+            } catch (IOException e) {
+                System.err.println("Failed to save index for " + f + ": " + e.getMessage());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Copies a matrix of either format in to the requested format
+     */
+    public static void convert(File in, File out, boolean compact) throws IOException {
+        EdgeReader reader = openReader(in);
+        EdgeWriter writer = openWriter(out, compact);
+        ThinEdge edge = new ThinEdge();
+
+        while (reader.nextThinEdge(edge) != null) {
+            writer.writeEdge(edge);
+        }
+
+        writer.close();
+        reader.close();
+    }
+}
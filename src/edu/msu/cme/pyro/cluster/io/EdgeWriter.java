@@ -33,6 +33,12 @@ public class EdgeWriter {
 
     private DataOutputStream edgeWriter;
 
+    /**
+     * For writers of other matrix formats that override writeEdge and close
+     */
+    protected EdgeWriter() {
+    }
+
     public EdgeWriter(File f) throws IOException {
         this(new BufferedOutputStream(new FileOutputStream(f)));
     }
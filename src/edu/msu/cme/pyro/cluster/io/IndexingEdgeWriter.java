@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the MatrixIndex for a matrix as it's written by another writer
+ *
+ * @author fishjord
+ */
+public class IndexingEdgeWriter extends EdgeWriter {
+
+    private final EdgeWriter writer;
+    private final File matrix;
+    private final MatrixIndex.Builder builder = new MatrixIndex.Builder();
+
+    public IndexingEdgeWriter(EdgeWriter writer, File matrix) {
+        this.writer = writer;
+        this.matrix = matrix;
+    }
+
+    @Override
+    public void writeEdge(int seqi, int seqj, int dist) throws IOException {
+        writer.writeEdge(seqi, seqj, dist);
+        builder.add(seqi, seqj, dist);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        builder.build(matrix).write(matrix);
+    }
+}
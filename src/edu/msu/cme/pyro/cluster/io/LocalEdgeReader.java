@@ -37,6 +37,10 @@ public class LocalEdgeReader implements EdgeReader {
         edgeStream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
     }
 
+    public LocalEdgeReader(File f, int bufferSize) throws IOException {
+        edgeStream = new DataInputStream(new BufferedInputStream(new FileInputStream(f), bufferSize));
+    }
+
     public ThinEdge nextThinEdge() throws IOException {
         return nextThinEdge(new ThinEdge());
     }
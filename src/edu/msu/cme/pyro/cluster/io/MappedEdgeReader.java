@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.ThinEdge;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a column matrix by memory mapping it a window at a time, edges are
+ * copied out of the mapped window in blocks and decoded from an int array.
+ * Windows are a whole number of edges so files over 2GB are read by rolling
+ * the window along the file.
+ *
+ * @author fishjord
+ */
+public class MappedEdgeReader implements SeekableEdgeReader {
+
+    private static final int BYTES_PER_EDGE = 12;
+    //4M edges, 48MB of the file mapped at a time
+    private static final long DEFAULT_WINDOW_EDGES = 1 << 22;
+    private static final int BLOCK_EDGES = 4096;
+    private final FileChannel channel;
+    private final long numEdges;
+    private final long windowEdges;
+    private IntBuffer window;
+    //Ordinal of the first edge in the mapped window
+    private long windowStart = 0;
+    private final int[] block = new int[BLOCK_EDGES * 3];
+    private int blockPos = 0;
+    private int blockLen = 0;
+    //Ordinal of the first edge in the current block
+    private long blockStart = 0;
+
+    public MappedEdgeReader(File f) throws IOException {
+        this(f, DEFAULT_WINDOW_EDGES);
+    }
+
+    public MappedEdgeReader(File f, long windowEdges) throws IOException {
+        if (windowEdges <= 0 || windowEdges * BYTES_PER_EDGE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Window must be between 1 and " + (Integer.MAX_VALUE / BYTES_PER_EDGE) + " edges");
+        }
+
+        channel = new FileInputStream(f).getChannel();
+        long size = channel.size();
+        if (size % BYTES_PER_EDGE != 0) {
+            channel.close();
+            throw new IOException(f + " isn't a column matrix, size " + size + " isn't a multiple of " + BYTES_PER_EDGE);
+        }
+
+        this.numEdges = size / BYTES_PER_EDGE;
+        this.windowEdges = windowEdges;
+    }
+
+    /**
+     * Total number of edges in the file
+     */
+    public long getEdgeCount() {
+        return numEdges;
+    }
+
+    /**
+     * Ordinal of the edge the next call to nextThinEdge will return
+     */
+    public long position() {
+        return blockStart + blockPos / 3;
+    }
+
+    /**
+     * Positions the reader so the next edge read is the edge at ordinal
+     */
+    public void seek(long ordinal) throws IOException {
+        if (ordinal < 0 || ordinal > numEdges) {
+            throw new IllegalArgumentException("Edge " + ordinal + " is outside of the file (" + numEdges + " edges)");
+        }
+
+        if (ordinal >= blockStart && ordinal <= blockStart + blockLen / 3) {
+            blockPos = (int) (ordinal - blockStart) * 3;
+            return;
+        }
+
+        if (window != null && ordinal >= windowStart && ordinal < windowStart + window.limit() / 3) {
+            window.position((int) (ordinal - windowStart) * 3);
+        } else {
+            map(ordinal);
+        }
+        blockStart = ordinal;
+        blockPos = blockLen = 0;
+    }
+
+    private void map(long ordinal) throws IOException {
+        long edges = Math.min(windowEdges, numEdges - ordinal);
+        windowStart = ordinal;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, ordinal * BYTES_PER_EDGE, edges * BYTES_PER_EDGE).asIntBuffer();
+    }
+
+    private boolean fillBlock() throws IOException {
+        blockStart += blockLen / 3;
+        blockPos = blockLen = 0;
+
+        if (blockStart >= numEdges) {
+            return false;
+        }
+
+        if (window == null || !window.hasRemaining()) {
+            map(blockStart);
+        }
+
+        blockLen = Math.min(window.remaining(), block.length);
+        window.get(block, 0, blockLen);
+
+        return true;
+    }
+
+    public ThinEdge nextThinEdge() throws IOException {
+        return nextThinEdge(new ThinEdge());
+    }
+
+    public ThinEdge nextThinEdge(ThinEdge edge) throws IOException {
+        if (blockPos == blockLen && !fillBlock()) {
+            return null;
+        }
+
+        int seqi = block[blockPos];
+        int seqj = block[blockPos + 1];
+        if (seqi == seqj) {
+            throw new IOException("Identity edges can't be present in the column matrix");
+        }
+
+        edge.setSeqi(seqi);
+        edge.setSeqj(seqj);
+        edge.setDist(block[blockPos + 2]);
+        blockPos += 3;
+
+        return edge;
+    }
+
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.ThinEdge;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Summary of a column matrix stored next to it in matrix.idx: the number of
+ * edges, the largest distance, the number of distinct sequences and, for
+ * matrices sorted by distance, the ordinal of the first edge with each
+ * distance.  Ordinals rather than byte offsets are stored so the same index
+ * works for both matrix formats (see SeekableEdgeReader.seek).  The index is
+ * only used if the matrix's length, modification time and a checksum of its
+ * first and last blocks match
+ *
+ * @author fishjord
+ */
+public class MatrixIndex {
+
+    private static final int MAGIC = 0x89494458;
+    private static final int VERSION = 2;
+    private static final int CHECKSUM_BLOCK = 4096;
+    private final long matrixLength;
+    private final long matrixModified;
+    private final long matrixChecksum;
+    private final long edgeCount;
+    private final int maxDist;
+    private final int seqCount;
+    private final boolean sorted;
+    private final int[] dists;
+    private final long[] firstOrdinals;
+
+    /**
+     * Collects the index while a matrix is written
+     */
+    public static class Builder {
+
+        private long edgeCount = 0;
+        private int maxDist = Integer.MIN_VALUE;
+        private int lastDist = Integer.MIN_VALUE;
+        private boolean sorted = true;
+        private final BitSet seqs = new BitSet();
+        private int numDists = 0;
+        private int[] dists = new int[256];
+        private long[] firstOrdinals = new long[256];
+
+        public void add(int seqi, int seqj, int dist) {
+            if (dist != lastDist) {
+                if (dist < lastDist) {
+                    sorted = false;
+                }
+                if (sorted) {
+                    if (numDists == dists.length) {
+                        dists = Arrays.copyOf(dists, numDists * 2);
+                        firstOrdinals = Arrays.copyOf(firstOrdinals, numDists * 2);
+                    }
+                    dists[numDists] = dist;
+                    firstOrdinals[numDists] = edgeCount;
+                    numDists++;
+                }
+                lastDist = dist;
+            }
+
+            if (dist > maxDist) {
+                maxDist = dist;
+            }
+            seqs.set(seqi);
+            seqs.set(seqj);
+            edgeCount++;
+        }
+
+        /**
+         * Builds the index for the matrix, which must have been closed
+         */
+        public MatrixIndex build(File matrix) throws IOException {
+            if (!sorted) {
+                numDists = 0;
+            }
+            return new MatrixIndex(matrix.length(), matrix.lastModified(), checksum(matrix), edgeCount, edgeCount == 0 ? 0 : maxDist, seqs.cardinality(), sorted, Arrays.copyOf(dists, numDists), Arrays.copyOf(firstOrdinals, numDists));
+        }
+    }
+
+    private MatrixIndex(long matrixLength, long matrixModified, long matrixChecksum, long edgeCount, int maxDist, int seqCount, boolean sorted, int[] dists, long[] firstOrdinals) {
+        this.matrixLength = matrixLength;
+        this.matrixModified = matrixModified;
+        this.matrixChecksum = matrixChecksum;
+        this.edgeCount = edgeCount;
+        this.maxDist = maxDist;
+        this.seqCount = seqCount;
+        this.sorted = sorted;
+        this.dists = dists;
+        this.firstOrdinals = firstOrdinals;
+    }
+
+    public static File getIndexFile(File matrix) {
+        return new File(matrix.getPath() + ".idx");
+    }
+
+    /**
+     * CRC of the matrix's first and last blocks, catches a matrix rewritten
+     * with the same length within the file system's time resolution
+     */
+    private static long checksum(File matrix) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[CHECKSUM_BLOCK];
+        RandomAccessFile in = new RandomAccessFile(matrix, "r");
+        try {
+            long length = in.length();
+            int first = (int) Math.min(length, CHECKSUM_BLOCK);
+            in.readFully(buf, 0, first);
+            crc.update(buf, 0, first);
+
+            int last = (int) Math.min(length - first, CHECKSUM_BLOCK);
+            in.seek(length - last);
+            in.readFully(buf, 0, last);
+            crc.update(buf, 0, last);
+        } finally {
+            in.close();
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Scans a matrix and builds its index (without writing it)
+     */
+    public static MatrixIndex build(File matrix) throws IOException {
+        Builder builder = new Builder();
+        EdgeReader reader = EdgeFiles.openReader(matrix);
+        ThinEdge edge = new ThinEdge();
+
+        while (reader.nextThinEdge(edge) != null) {
+            builder.add(edge.getSeqi(), edge.getSeqj(), edge.getDist());
+        }
+        reader.close();
+
+        return builder.build(matrix);
+    }
+
+    /**
+     * Loads the index for the matrix, returns null if there isn't one, it
+     * was written for a different version of the matrix or it's truncated
+     */
+    public static MatrixIndex load(File matrix) throws IOException {
+        File idxFile = getIndexFile(matrix);
+        if (!idxFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idxFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            long matrixLength = in.readLong();
+            long matrixModified = in.readLong();
+            long matrixChecksum = in.readLong();
+            if (matrixLength != matrix.length() || matrixModified != matrix.lastModified() || matrixChecksum != checksum(matrix)) {
+                return null;
+            }
+
+            long edgeCount = in.readLong();
+            int maxDist = in.readInt();
+            int seqCount = in.readInt();
+            boolean sorted = in.readBoolean();
+            int numDists = in.readInt();
+            if (numDists < 0 || numDists > idxFile.length() / 12) {
+                return null;
+            }
+            int[] dists = new int[numDists];
+            long[] firstOrdinals = new long[numDists];
+            for (int index = 0; index < numDists; index++) {
+                dists[index] = in.readInt();
+                firstOrdinals[index] = in.readLong();
+            }
+
+            return new MatrixIndex(matrixLength, matrixModified, matrixChecksum, edgeCount, maxDist, seqCount, sorted, dists, firstOrdinals);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the index to a temp file next to the matrix and renames it in to
+     * place, so a reader never sees a partly written index
+     */
+    public void write(File matrix) throws IOException {
+        File idxFile = getIndexFile(matrix);
+        File tmp = File.createTempFile(idxFile.getName(), ".tmp", idxFile.getAbsoluteFile().getParentFile());
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(matrixLength);
+                out.writeLong(matrixModified);
+                out.writeLong(matrixChecksum);
+                out.writeLong(edgeCount);
+                out.writeInt(maxDist);
+                out.writeInt(seqCount);
+                out.writeBoolean(sorted);
+                out.writeInt(dists.length);
+                for (int index = 0; index < dists.length; index++) {
+                    out.writeInt(dists[index]);
+                    out.writeLong(firstOrdinals[index]);
+                }
+            } finally {
+                out.close();
+            }
+
+            //renameTo won't replace an existing file on some platforms
+            if (!tmp.renameTo(idxFile) && !(idxFile.delete() && tmp.renameTo(idxFile))) {
+                throw new IOException("Failed to rename " + tmp + " to " + idxFile);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmp.delete();
+            }
+        }
+    }
+
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    public int getMaxDist() {
+        return maxDist;
+    }
+
+    public int getSeqCount() {
+        return seqCount;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * Ordinal of the first edge with a distance >= dist, or the edge count if
+     * there are none
+     */
+    public long getOrdinal(int dist) {
+        if (!sorted) {
+            throw new IllegalStateException("Matrix isn't sorted by distance");
+        }
+
+        int index = Arrays.binarySearch(dists, dist);
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        return index < dists.length ? firstOrdinals[index] : edgeCount;
+    }
+
+    /**
+     * Splits the matrix in to at most parts ranges of roughly the same number
+     * of edges, boundaries fall between distances so edges with the same
+     * distance are always in the same range.  Range i is the ordinals from
+     * ret[i] (inclusive) to ret[i + 1] (exclusive)
+     */
+    public long[] splitRanges(int parts) {
+        if (!sorted) {
+            throw new IllegalStateException("Matrix isn't sorted by distance");
+        }
+        if (parts < 1) {
+            throw new IllegalArgumentException("Parts must be > 0");
+        }
+
+        long[] ret = new long[parts + 1];
+        int numRanges = 0;
+        ret[0] = 0;
+
+        for (int part = 1; part < parts; part++) {
+            long target = edgeCount * part / parts;
+            int index = Arrays.binarySearch(firstOrdinals, target);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            long boundary = index < firstOrdinals.length ? firstOrdinals[index] : edgeCount;
+
+            if (boundary > ret[numRanges] && boundary < edgeCount) {
+                ret[++numRanges] = boundary;
+            }
+        }
+        ret[++numRanges] = edgeCount;
+
+        return Arrays.copyOf(ret, numRanges + 1);
+    }
+}
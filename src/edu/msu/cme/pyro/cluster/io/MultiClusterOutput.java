@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.utils.AbstractClusterFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes each cutoff on to several outputs, in the order they were added
+ *
+ * @author fishjord
+ */
+public class MultiClusterOutput implements ClusterOutput {
+
+    private final List<ClusterOutput> outputs = new ArrayList();
+
+    public void addOutput(ClusterOutput output) {
+        outputs.add(output);
+    }
+
+    public void printClusters(AbstractClusterFactory factory, int step) {
+        for (ClusterOutput output : outputs) {
+            output.printClusters(factory, step);
+        }
+    }
+
+    public void close() {
+        for (ClusterOutput output : outputs) {
+            output.close();
+        }
+    }
+}
@@ -93,6 +93,7 @@ public final class RDPClustParser {
     private List<Integer> cutoffs = new ArrayList();
     private Map<String, Integer> cutoffStrings = new LinkedHashMap();
     private RandomAccessFile clusterFile;
+    private final File clustFile;
     private final boolean parseSeqids;
 
     public RDPClustParser(File clustFile) throws IOException {
@@ -100,7 +101,8 @@ public final class RDPClustParser {
     }
 
     public RDPClustParser(File clustFile, boolean keepSeqs) throws IOException {
-        clusterFile = new BufferedRandomAccessFile(clustFile, "r", 1024);
+        clusterFile = new BufferedRandomAccessFile(clustFile, "r", 64 * 1024);
+        this.clustFile = clustFile;
         this.parseSeqids = keepSeqs;
 
         parseClusterHeader();
@@ -145,39 +147,24 @@ public final class RDPClustParser {
             clusterSamples.add(new ClusterSample(samples[index], seqs));
         }
 
-        String line;
-        long lastPos = clusterFile.getFilePointer();
-        long returnTo = -1;
-
-        while ((line = clusterFile.readLine()) != null) {
-            if (line.startsWith("distance")) {
-                String[] lexemes = line.split("\\s+");
-                if (lexemes.length != 3) {
-                    throw new IOException("Malformed distance line: " + line);
-                }
-
-                try {
-                    double distance = Double.parseDouble(lexemes[2]);
-                    int dist = cutoffDoubleToInt(distance);
-
-                    cutoffPosMap.put(dist, lastPos);
-                    cutoffs.add(dist);
-                    cutoffStrings.put(lexemes[2], dist);
-                } catch (NumberFormatException e) {
-                    throw new IOException("Malformed distance line: " + line);
-                }
+        //Cutoff offsets come from the cluster file's index (built the first time the file is read)
+        ClusterFileIndex index = ClusterFileIndex.open(clustFile);
+        for (int cutoff = 0; cutoff < index.size(); cutoff++) {
+            String lexeme = index.getCutoff(cutoff);
+            try {
+                int dist = cutoffDoubleToInt(Double.parseDouble(lexeme));
 
-                if (returnTo == -1) {
-                    returnTo = lastPos;
-                }
+                cutoffPosMap.put(dist, index.getOffset(cutoff));
+                cutoffs.add(dist);
+                cutoffStrings.put(lexeme, dist);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed distance line: distance cutoff: " + lexeme);
             }
-            lastPos = clusterFile.getFilePointer();
         }
 
-        if (returnTo != -1) {
-            clusterFile.seek(returnTo);
+        if (index.size() > 0) {
+            clusterFile.seek(index.getOffset(0));
         }
-
     }
 
     public void close() throws IOException {
@@ -260,6 +247,39 @@ public final class RDPClustParser {
         return readCutoff(bestMatch);
     }
 
+    /**
+     * Opens the cutoff getCutoff would return as a ClusterStream, so it can
+     * be read a cluster at a time.  Returns null if there are no cutoffs
+     */
+    public ClusterStream streamCutoff(String toFind) throws IOException {
+        try {
+            return streamCutoff(Double.valueOf(toFind));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public ClusterStream streamCutoff(double dToFind) throws IOException {
+        if (cutoffs.isEmpty()) {
+            return null;
+        }
+
+        int toFind = cutoffDoubleToInt(dToFind);
+        int bestMatch = cutoffs.get(0);
+        for (Integer cutoff : cutoffs) {
+            if (cutoff <= toFind) {
+                bestMatch = cutoff;
+            }
+        }
+
+        List<String> samples = new ArrayList();
+        for (ClusterSample sample : clusterSamples) {
+            samples.add(sample.getName());
+        }
+
+        return new ClusterStream(clustFile, cutoffPosMap.get(bestMatch), samples);
+    }
+
     public boolean containsAtLeastOne(double dFrom, double dTo) {
         int from = cutoffDoubleToInt(dFrom);
         int to = cutoffDoubleToInt(dTo);
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.DistanceCalculator;
+import edu.msu.cme.pyro.cluster.utils.AbstractClusterFactory;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+
+/**
+ * Writes an R community data matrix (see RFormatter) for each cutoff straight
+ * from the sample counts kept during clustering, one rformat_dist_[cutoff].txt
+ * per cutoff in the output directory
+ *
+ * @author fishjord
+ */
+public class RFormatOutput implements ClusterOutput {
+
+    private final SampleCountMatrix counts;
+    private final File outDir;
+    private final DecimalFormat format = new DecimalFormat("0.0###");
+
+    public RFormatOutput(SampleCountMatrix counts, File outDir) {
+        this.counts = counts;
+        this.outDir = outDir;
+    }
+
+    public void printClusters(AbstractClusterFactory factory, int step) {
+        File outFile = new File(outDir, "rformat_dist_" + format.format(step / (double) DistanceCalculator.MULTIPLIER) + ".txt");
+        try {
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outFile)));
+            RFormatter.writeTabulatedFormat(counts.getSamples(), counts.getOTUCounts(factory), out);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + outFile, e);
+        }
+    }
+
+    public void close() {
+    }
+}
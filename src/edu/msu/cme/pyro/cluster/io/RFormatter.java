@@ -159,7 +159,126 @@ public class RFormatter {
         return true;
     }
 
-    
+    /**
+     * Writes the same table as createTabulatedFormat from a cutoff's
+     * (sample, count) pairs per OTU, as SampleCountMatrix.getOTUCounts
+     * returns them, so the cluster file doesn't have to be parsed.  OTUs are
+     * numbered from 1 in the order given.  Every sample gets a row, even one
+     * with no sequences at this cutoff (the parser gives those samples empty
+     * clusters, so createTabulatedFormat writes them too), and the rows are
+     * in the HashMap order createTabulatedFormat writes them in.  There are
+     * no rows if there are no OTUs.  The counts are bucketed by sample first
+     * so each row is written from only the OTUs the sample has sequences in
+     */
+    public static void writeTabulatedFormat(List<String> samples, List<int[]> otuCounts, PrintStream stream) {
+        int[] rowStart = new int[samples.size() + 1];
+        for (int[] counts : otuCounts) {
+            for (int index = 0; index < counts.length; index += 2) {
+                rowStart[counts[index] + 1]++;
+            }
+        }
+        for (int sample = 0; sample < samples.size(); sample++) {
+            rowStart[sample + 1] += rowStart[sample];
+        }
+
+        int[] next = Arrays.copyOf(rowStart, samples.size());
+        int[] rowOtus = new int[rowStart[samples.size()]];
+        int[] rowCounts = new int[rowOtus.length];
+        int otu = 0;
+        for (int[] counts : otuCounts) {
+            for (int index = 0; index < counts.length; index += 2) {
+                int pos = next[counts[index]]++;
+                rowOtus[pos] = otu;
+                rowCounts[pos] = counts[index + 1];
+            }
+            otu++;
+        }
+
+        StringBuilder buf = new StringBuilder();
+        String otuFormat = "\tOTU_%0" + Integer.toString(otuCounts.size()).length() + "d";
+        for (otu = 1; otu <= otuCounts.size(); otu++) {
+            buf.append(String.format(otuFormat, otu));
+        }
+        stream.print(buf);
+        stream.println(" ");
+
+        //createTabulatedFormat's rows come from a HashMap keyed by sample, filled in sample order
+        Map<String, Integer> rowOrder = new HashMap<String, Integer>();
+        if (!otuCounts.isEmpty()) {
+            for (int sample = 0; sample < samples.size(); sample++) {
+                rowOrder.put(samples.get(sample), sample);
+            }
+        }
+
+        for (int sample : rowOrder.values()) {
+            buf.setLength(0);
+            // remove "aligned_" or "_trimmed" if present in sample name
+            buf.append(samples.get(sample).replace("aligned_", "").replace("_trimmed", ""));
+            int pos = rowStart[sample];
+            for (otu = 0; otu < otuCounts.size(); otu++) {
+                buf.append('\t');
+                if (pos < rowStart[sample + 1] && rowOtus[pos] == otu) {
+                    buf.append(rowCounts[pos++]);
+                } else {
+                    buf.append('0');
+                }
+            }
+            stream.println(buf);
+        }
+    }
+
+    /**
+     * Reads a cutoff a cluster at a time in to (sample, count) pairs for each
+     * OTU, for writeTabulatedFormat.  If idcountmap isn't null each count is
+     * the sum of the sequences' counts from the map instead
+     */
+    public static List<int[]> readOTUCounts(ClusterStream cutoff, HashMap<String, Double> idcountmap) throws IOException {
+        List<int[]> ret = new ArrayList<int[]>(Math.max(cutoff.getNumClusters(), 0));
+        int[] pairs = new int[16];
+        int numPairs = 0;
+        int clusterId = 1;
+
+        boolean more = cutoff.next();
+        while (more || numPairs > 0) {
+            if (more && cutoff.getClusterId() < clusterId) {
+                throw new IOException("Cluster " + cutoff.getClusterId() + " is out of order in cutoff " + cutoff.getCutoff());
+            }
+            if (!more || cutoff.getClusterId() != clusterId) {
+                ret.add(Arrays.copyOf(pairs, numPairs * 2));
+                numPairs = 0;
+                clusterId++;
+                continue;
+            }
+
+            int count = cutoff.getCount();
+            if (idcountmap != null) {
+                double mappingCount = 0;
+                for (String s : cutoff.getSeqIds()) {
+                    if (idcountmap.get(s) == null) {
+                        throw new IllegalArgumentException("Can not find ID count in idcountmap for sequence " + s);
+                    }
+                    mappingCount += idcountmap.get(s);
+                }
+                count = (int) mappingCount;
+            }
+
+            if (numPairs * 2 == pairs.length) {
+                pairs = Arrays.copyOf(pairs, pairs.length * 2);
+            }
+            pairs[numPairs * 2] = cutoff.getSampleIndex();
+            pairs[numPairs * 2 + 1] = count;
+            numPairs++;
+            more = cutoff.next();
+        }
+
+        //Clusters with no sequences at the end of the cutoff
+        while (ret.size() < cutoff.getNumClusters()) {
+            ret.add(new int[0]);
+        }
+
+        return ret;
+    }
+
     public static boolean createTabulatedFormatForRange(File clusterFile, double distCutoffStart, double distCutoffEnd, File userTempDir, File idcountmapFile) throws IOException {
         boolean distanceFound = false;
         if (distCutoffStart < 0.0 || distCutoffStart > 0.5 || distCutoffStart > distCutoffEnd) {
@@ -170,33 +289,30 @@ public class RFormatter {
             throw new IllegalArgumentException("R Format Error: invalid distance cutoff end value");
         }
 
-        RDPClustParser parser = null;
+        RDPClustParser parser = new RDPClustParser(clusterFile);
         HashMap<String, Double> idcountmap = null;
         if ( idcountmapFile != null){
             idcountmap = readIDCountFile(idcountmapFile);
-            parser = new RDPClustParser(clusterFile, true);
-        }else {
-            parser = new RDPClustParser(clusterFile);
         }
+        List<String> samples = ClusterToBiom.getSampleNames(parser);
 
 
         double curDistCutoff = distCutoffStart;
         ArrayList<Double> nonAvailDist = new ArrayList<Double>();
         while (curDistCutoff <= distCutoffEnd) {
             File distfile = new File(userTempDir, "rformat_dist_" + curDistCutoff + ".txt");
-            PrintStream writer = new PrintStream(distfile);
+            PrintStream writer = new PrintStream(new BufferedOutputStream(new FileOutputStream(distfile)));
 
-            RDPClustParser.Cutoff cutoff = parser.getCutoff(Double.toString(curDistCutoff));
+            ClusterStream cutoff = parser.streamCutoff(Double.toString(curDistCutoff));
             // you want to update the distanceFound variable to true if there is any distance found, so that the caller of this method would kwow at least a distance was found in the given cutoff range.
 
             if (cutoff != null) {
                 distanceFound = true;
-                if ( idcountmap == null){
-                    RFormatter.createTabulatedFormat(cutoff, writer);
-                } else {
-                    RFormatter.createTabulatedFormat(cutoff, writer, idcountmap);
-                }
+                writeTabulatedFormat(samples, readOTUCounts(cutoff, idcountmap), writer);
+                cutoff.close();
+                writer.close();
             } else {
+                writer.close();
                 // if there is no distance found for the current distance then delete the current distance file (since it's empty now) that was created before the call SpadeInputFormatter.createSimpleFormat(clusterFile, distCutoff, writer).
                 distfile.delete();
                 // store the distance that was not found in the cluster input file, for writing that to a file after the while loop
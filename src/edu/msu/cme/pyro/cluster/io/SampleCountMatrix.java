@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.utils.AbstractClusterFactory;
+import edu.msu.cme.pyro.cluster.utils.Cluster;
+import edu.msu.cme.pyro.cluster.utils.ClusterListener;
+import edu.msu.cme.pyro.derep.IdMapping;
+import edu.msu.cme.pyro.derep.MappedIdMapping;
+import edu.msu.cme.pyro.derep.MappedSampleMapping;
+import edu.msu.cme.pyro.derep.SampleMapping;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sparse cluster x sample count matrix, kept up to date as a factory creates
+ * and merges clusters when registered as its ClusterListener.  Each cluster's
+ * counts are (sample, count) pairs sorted by sample in an int array, so a
+ * merge costs the number of samples in the two clusters rather than the
+ * number of sequences, and every output reads the same counts at each cutoff
+ * instead of counting the sequences again
+ *
+ * An entry is a sequence id in a sample.  Ids aren't de-duplicated across
+ * sequences, IdMapping (text and binary) refuses to load or add an id under
+ * more than one sequence so a cluster's ids are already distinct
+ *
+ * @author fishjord
+ */
+public class SampleCountMatrix implements ClusterListener {
+
+    private final String[] samples;
+    //Sequence ids in the order clusters are written
+    final int[] seqOrder;
+    //Indexed by sequence id, the sequence's entries are entryStart[seq] to entryStart[seq + 1]
+    final int[] entryStart;
+    final int[] entrySamples;
+    //Only kept if asked for, ClusterFileOutput writes them.  With a binary id
+    //mapping an entry's id is its position in the mapping's id table
+    private final String[] entryIds;
+    private final int[] entryIdIndexes;
+    private final MappedIdMapping mappedIds;
+    //Indexed by cluster id, (sample, count) pairs sorted by sample
+    private int[][] sampleCounts = new int[16][];
+    private Cluster[] countsOwner = new Cluster[16];
+    private int[] listedAt = new int[16];
+    private int snapshot = 0;
+    private final int[] scratch;
+    private final int[] touched;
+    //Text sample mappings only, a binary mapping is searched for each id
+    private final MappedSampleMapping mappedSamples;
+    private final Map<String, Integer> firstSample;
+    private final Map<String, List<Integer>> otherSamples;
+
+    public SampleCountMatrix(IdMapping<Integer> idMapping, SampleMapping<String> sampleMapping) {
+        this(idMapping, sampleMapping, false);
+    }
+
+    SampleCountMatrix(IdMapping<Integer> idMapping, SampleMapping<String> sampleMapping, boolean keepIds) {
+        samples = sampleMapping.getSampleList().toArray(new String[0]);
+        scratch = new int[samples.length];
+        touched = new int[samples.length];
+
+        //An id can be listed under more than one sample, it's counted once for each
+        if (sampleMapping instanceof MappedSampleMapping) {
+            mappedSamples = (MappedSampleMapping) sampleMapping;
+            firstSample = null;
+            otherSamples = null;
+        } else {
+            mappedSamples = null;
+            firstSample = new HashMap();
+            otherSamples = new HashMap();
+            for (int sample = 0; sample < samples.length; sample++) {
+                for (String id : sampleMapping.getIdsBySample(samples[sample])) {
+                    if (!firstSample.containsKey(id)) {
+                        firstSample.put(id, sample);
+                    } else {
+                        List<Integer> others = otherSamples.get(id);
+                        if (others == null) {
+                            others = new ArrayList();
+                            otherSamples.put(id, others);
+                        }
+                        others.add(sample);
+                    }
+                }
+            }
+        }
+
+        seqOrder = new int[idMapping.size()];
+        int maxSeq = -1, numEntries = 0, index = 0;
+        int[] idSamples = new int[samples.length];
+        for (Integer seq : idMapping.getAll()) {
+            seqOrder[index++] = seq;
+            maxSeq = Math.max(maxSeq, seq);
+            for (String id : idMapping.getIds(seq)) {
+                numEntries += samplesOf(id, idSamples);
+            }
+        }
+
+        entryStart = new int[maxSeq + 2];
+        mappedIds = (keepIds && idMapping instanceof MappedIdMapping) ? (MappedIdMapping) idMapping : null;
+        entryIds = (keepIds && mappedIds == null) ? new String[numEntries] : null;
+        entryIdIndexes = (mappedIds != null) ? new int[numEntries] : null;
+        entrySamples = new int[numEntries];
+        int[] seqs = seqOrder.clone();
+        Arrays.sort(seqs);
+        int entry = 0;
+        index = 0;
+        for (int seq = 0; seq <= maxSeq; seq++) {
+            entryStart[seq] = entry;
+            if (index < seqs.length && seqs[index] == seq) {
+                index++;
+                int idIndex = (mappedIds != null) ? mappedIds.getIdsStart(seq) : 0;
+                for (String id : idMapping.getIds(seq)) {
+                    int numSamples = samplesOf(id, idSamples);
+                    for (int sample = 0; sample < numSamples; sample++) {
+                        if (entryIds != null) {
+                            entryIds[entry] = id;
+                        } else if (entryIdIndexes != null) {
+                            entryIdIndexes[entry] = idIndex;
+                        }
+                        entrySamples[entry++] = idSamples[sample];
+                    }
+                    idIndex++;
+                }
+            }
+        }
+        entryStart[maxSeq + 1] = entry;
+    }
+
+    /**
+     * Puts the indexes of the samples the id is in in to idSamples, first in
+     * sample order, returns how many there are
+     */
+    private int samplesOf(String id, int[] idSamples) {
+        if (mappedSamples != null) {
+            int[] ret = mappedSamples.getSampleIndexes(id);
+            System.arraycopy(ret, 0, idSamples, 0, ret.length);
+            return ret.length;
+        }
+
+        Integer first = firstSample.get(id);
+        if (first == null) {
+            return 0;
+        }
+        idSamples[0] = first;
+        List<Integer> others = otherSamples.get(id);
+        if (others == null) {
+            return 1;
+        }
+        for (int index = 0; index < others.size(); index++) {
+            idSamples[index + 1] = others.get(index);
+        }
+        return others.size() + 1;
+    }
+
+    /**
+     * True if the matrix was created with the entries' ids
+     */
+    boolean hasEntryIds() {
+        return entryIds != null || entryIdIndexes != null;
+    }
+
+    String getEntryId(int entry) {
+        return (entryIds != null) ? entryIds[entry] : mappedIds.getIdAt(entryIdIndexes[entry]);
+    }
+
+    /**
+     * View of every entry's id
+     */
+    List<String> getEntryIds() {
+        return new AbstractList<String>() {
+
+            @Override
+            public String get(int entry) {
+                return getEntryId(entry);
+            }
+
+            @Override
+            public int size() {
+                return entrySamples.length;
+            }
+        };
+    }
+
+    public List<String> getSamples() {
+        return Collections.unmodifiableList(Arrays.asList(samples));
+    }
+
+    boolean hasEntries(int seq) {
+        return seq >= 0 && seq < entryStart.length - 1;
+    }
+
+    /**
+     * Counts the samples of a set of sequences, as (sample, count) pairs
+     * sorted by sample
+     */
+    public int[] countSeqs(Iterable<Integer> seqs) {
+        int numTouched = 0;
+        for (int seq : seqs) {
+            if (!hasEntries(seq)) {
+                continue;
+            }
+            for (int entry = entryStart[seq]; entry < entryStart[seq + 1]; entry++) {
+                if (scratch[entrySamples[entry]]++ == 0) {
+                    touched[numTouched++] = entrySamples[entry];
+                }
+            }
+        }
+
+        Arrays.sort(touched, 0, numTouched);
+        int[] ret = new int[numTouched * 2];
+        for (int index = 0; index < numTouched; index++) {
+            ret[index * 2] = touched[index];
+            ret[index * 2 + 1] = scratch[touched[index]];
+            scratch[touched[index]] = 0;
+        }
+
+        return ret;
+    }
+
+    private static int[] mergeCounts(int[] a, int[] b) {
+        int[] ret = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                ret[k++] = a[i++];
+                ret[k++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                ret[k++] = b[j++];
+                ret[k++] = b[j++];
+            } else {
+                ret[k++] = a[i];
+                ret[k++] = a[i + 1] + b[j + 1];
+                i += 2;
+                j += 2;
+            }
+        }
+
+        return k == ret.length ? ret : Arrays.copyOf(ret, k);
+    }
+
+    private void setCounts(Cluster c, int[] counts) {
+        int id = c.getId();
+        if (id >= sampleCounts.length) {
+            int newLength = Math.max(id + 1, sampleCounts.length * 2);
+            sampleCounts = Arrays.copyOf(sampleCounts, newLength);
+            countsOwner = Arrays.copyOf(countsOwner, newLength);
+        }
+        sampleCounts[id] = counts;
+        countsOwner[id] = c;
+    }
+
+    private int[] takeCounts(Cluster c) {
+        int id = c.getId();
+        if (id >= sampleCounts.length || countsOwner[id] != c) {
+            return null;
+        }
+        int[] ret = sampleCounts[id];
+        sampleCounts[id] = null;
+        countsOwner[id] = null;
+        return ret;
+    }
+
+    public void singletonCreated(Cluster c, int seq) {
+        setCounts(c, countSeqs(Collections.singleton(seq)));
+    }
+
+    public void clustersMerged(Cluster ci, Cluster cj, Cluster ck) {
+        int[] ciCounts = takeCounts(ci);
+        int[] cjCounts = takeCounts(cj);
+
+        if (ciCounts != null && cjCounts != null) {
+            setCounts(ck, mergeCounts(ciCounts, cjCounts));
+        }
+    }
+
+    /**
+     * A cluster's (sample, count) pairs, if this matrix isn't listening to
+     * the factory they're counted now.  The returned array must not be changed
+     */
+    public int[] getCounts(AbstractClusterFactory factory, Cluster c) {
+        int id = c.getId();
+        if (id < sampleCounts.length && countsOwner[id] == c) {
+            return sampleCounts[id];
+        }
+        return countSeqs(factory.getSeqsInCluster(c));
+    }
+
+    /**
+     * Puts the factory's clusters in the order they're written, by the first
+     * of their sequences in the id mapping, and any sequences the factory
+     * hasn't seen (which are written as singletons after the clusters) in
+     * unseenSeqs
+     */
+    public void orderClusters(AbstractClusterFactory factory, List<Cluster> clusters, List<Integer> unseenSeqs) {
+        snapshot++;
+
+        for (int seqid : seqOrder) {
+            Cluster c = factory.getCluster(seqid);
+            if (c == null) {
+                unseenSeqs.add(seqid);
+            } else {
+                int id = c.getId();
+                if (id >= listedAt.length) {
+                    listedAt = Arrays.copyOf(listedAt, Math.max(id + 1, listedAt.length * 2));
+                }
+                if (listedAt[id] != snapshot) {
+                    listedAt[id] = snapshot;
+                    clusters.add(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * The (sample, count) pairs of every OTU at the factory's current state,
+     * in the order the OTUs are written in cluster files
+     */
+    public List<int[]> getOTUCounts(AbstractClusterFactory factory) {
+        List<Cluster> clusters = new ArrayList();
+        List<Integer> unseenSeqs = new ArrayList();
+        orderClusters(factory, clusters, unseenSeqs);
+
+        List<int[]> ret = new ArrayList(clusters.size() + unseenSeqs.size());
+        for (Cluster c : clusters) {
+            ret.add(getCounts(factory, c));
+        }
+        for (int seq : unseenSeqs) {
+            ret.add(countSeqs(Collections.singleton(seq)));
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.upgma;
+
+import java.util.Arrays;
+
+/**
+ * Bitmap of matrix edges (by ordinal) that a lookahead has already added to
+ * a thick edge and that have to be skipped when they're read again.  The
+ * bitmap is split in to pages that are only allocated once an edge in them
+ * is consumed, and pages behind the reader can be released
+ *
+ * @author fishjord
+ */
+public class ConsumedEdges {
+
+    private static final int PAGE_SHIFT = 20;
+    private static final long PAGE_MASK = (1L << PAGE_SHIFT) - 1;
+    private long[][] pages = new long[0][];
+    private long count = 0;
+    private int allocatedPages = 0;
+    //Pages before this one have been released
+    private int firstPage = 0;
+
+    public void add(long ordinal) {
+        int page = (int) (ordinal >>> PAGE_SHIFT);
+        if (page >= pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(page + 1, pages.length * 2));
+        }
+        if (pages[page] == null) {
+            pages[page] = new long[1 << (PAGE_SHIFT - 6)];
+            allocatedPages++;
+        }
+
+        int bit = (int) (ordinal & PAGE_MASK);
+        long mask = 1L << bit;
+        if ((pages[page][bit >>> 6] & mask) == 0) {
+            pages[page][bit >>> 6] |= mask;
+            count++;
+        }
+    }
+
+    public boolean contains(long ordinal) {
+        int page = (int) (ordinal >>> PAGE_SHIFT);
+        if (page >= pages.length || pages[page] == null) {
+            return false;
+        }
+
+        int bit = (int) (ordinal & PAGE_MASK);
+        return (pages[page][bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Frees the pages that only hold ordinals before the given one
+     */
+    public void releaseBefore(long ordinal) {
+        int lastPage = (int) Math.min(ordinal >>> PAGE_SHIFT, pages.length);
+        for (int page = firstPage; page < lastPage; page++) {
+            if (pages[page] != null) {
+                for (long word : pages[page]) {
+                    count -= Long.bitCount(word);
+                }
+                pages[page] = null;
+                allocatedPages--;
+            }
+        }
+        firstPage = Math.max(firstPage, lastPage);
+    }
+
+    /**
+     * Number of consumed edges that haven't been released
+     */
+    public long size() {
+        return count;
+    }
+
+    public long getAllocatedBytes() {
+        return (long) allocatedPages << (PAGE_SHIFT - 3);
+    }
+}
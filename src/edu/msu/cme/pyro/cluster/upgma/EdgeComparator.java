@@ -43,7 +43,7 @@ public class EdgeComparator implements Comparator<ThickEdge> {
         int v1 = o1.getBound(psiOrLambda);
         int v2 = o2.getBound(psiOrLambda);
 
-        return v1 - v2;
+        return (v1 < v2) ? -1 : ((v1 == v2) ? 0 : 1);
     }
 
 
@@ -41,17 +41,18 @@ public class Heap<E> {
     }
 
     public boolean contains(E elem) {
-        return nodes.contains(elem);
+        return heapMap.containsKey(elem);
     }
 
     public void rebuild() {
+        long startTime = System.currentTimeMillis();
         for(int index = parent(nodes.size());index >= 0;index--) {
             rebuild(index);
         }
+        timeSpentRebuilding += (System.currentTimeMillis() - startTime);
     }
 
     private void rebuild(int index) {
-        long startTime = System.currentTimeMillis();
         int left = left(index);
         int right = right(index);
 
@@ -67,8 +68,6 @@ public class Heap<E> {
             swap(index, largest);
             rebuild(largest);
         }
-
-        timeSpentRebuilding += (System.currentTimeMillis() - startTime);
     }
 
     public void insert(E elem) {
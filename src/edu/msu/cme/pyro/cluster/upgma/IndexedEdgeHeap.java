@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.upgma;
+
+import edu.msu.cme.pyro.cluster.dist.ThickEdge;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * 4-ary min heap of thick edges ordered by getBound(bound).  The heap holds
+ * edge slot ids (see ThickEdge.getSlot), each slot's position in the heap and
+ * bound are kept in arrays indexed by slot so membership tests, deletes and
+ * key changes don't touch a hash map.  Bounds are cached, call changed() or
+ * rebuild() after an edge's values change.  Edges with the same bound are
+ * ordered by slot.
+ *
+ * An edge's bound only goes up as psi/lambda goes up, so raising the bound
+ * doesn't rebuild the heap.  The cached bounds are left as they are (they're
+ * still lower bounds of the real ones) and are recomputed when an edge
+ * reaches the top of the heap or is one of the top's children
+ *
+ * @author fishjord
+ */
+public class IndexedEdgeHeap {
+
+    private static final int ARITY = 4;
+    private int bound;
+    private int size = 0;
+    private int[] heap = new int[16];
+    //Indexed by slot
+    private int[] pos = new int[16];
+    private int[] keys = new int[16];
+    private ThickEdge[] edges = new ThickEdge[16];
+    //Generation of the bound each cached key was computed with
+    private int[] gens = new int[16];
+    private int generation = 0;
+    public long timeSpentRebuilding = 0;
+
+    public IndexedEdgeHeap(int bound) {
+        this.bound = bound;
+        Arrays.fill(pos, -1);
+    }
+
+    public int getBound() {
+        return bound;
+    }
+
+    /**
+     * Changes the psi/lambda value the heap is ordered by.  Raising it marks
+     * every cached bound stale, lowering it rebuilds the heap
+     */
+    public void setBound(int bound) {
+        if (bound < this.bound) {
+            this.bound = bound;
+            rebuild();
+        } else if (bound > this.bound) {
+            this.bound = bound;
+            generation++;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensureSlotCapacity(int slot) {
+        if (slot < pos.length) {
+            return;
+        }
+
+        int oldLength = pos.length;
+        int newLength = Math.max(slot + 1, oldLength * 2);
+        pos = Arrays.copyOf(pos, newLength);
+        Arrays.fill(pos, oldLength, newLength, -1);
+        keys = Arrays.copyOf(keys, newLength);
+        edges = Arrays.copyOf(edges, newLength);
+        gens = Arrays.copyOf(gens, newLength);
+    }
+
+    public boolean contains(ThickEdge edge) {
+        int slot = edge.getSlot();
+        return slot >= 0 && slot < pos.length && pos[slot] != -1 && edges[slot] == edge;
+    }
+
+    public void insert(ThickEdge edge) {
+        int slot = edge.getSlot();
+        if (slot < 0) {
+            throw new IllegalArgumentException("Edge hasn't been given a slot");
+        }
+        ensureSlotCapacity(slot);
+        if (pos[slot] != -1) {
+            throw new IllegalArgumentException("Slot " + slot + " is already in the heap");
+        }
+
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+
+        edges[slot] = edge;
+        keys[slot] = edge.getBound(bound);
+        gens[slot] = generation;
+        heap[size] = slot;
+        pos[slot] = size;
+        siftUp(size++);
+    }
+
+    public boolean delete(ThickEdge edge) {
+        if (!contains(edge)) {
+            return false;
+        }
+
+        int slot = edge.getSlot();
+        int index = pos[slot];
+        pos[slot] = -1;
+        edges[slot] = null;
+
+        size--;
+        if (index != size) {
+            heap[index] = heap[size];
+            pos[heap[index]] = index;
+            fix(index);
+        }
+
+        return true;
+    }
+
+    /**
+     * Recomputes the edge's bound and moves it to its new place in the heap
+     */
+    public boolean changed(ThickEdge edge) {
+        if (!contains(edge)) {
+            return false;
+        }
+
+        changed(edge.getSlot());
+        return true;
+    }
+
+    void changed(int slot) {
+        if (slot < pos.length && pos[slot] != -1) {
+            refresh(slot);
+            fix(pos[slot]);
+        }
+    }
+
+    /**
+     * The edge's bound as the heap has it, so callers don't compute it again.
+     * A stale bound is recomputed (moving the edge), edges not in the heap
+     * have their bound computed
+     */
+    public int getKey(ThickEdge edge) {
+        if (!contains(edge)) {
+            return edge.getBound(bound);
+        }
+
+        int slot = edge.getSlot();
+        if (gens[slot] != generation) {
+            changed(slot);
+        }
+        return keys[slot];
+    }
+
+    private void refresh(int slot) {
+        keys[slot] = edges[slot].getBound(bound);
+        gens[slot] = generation;
+    }
+
+    /**
+     * Recomputes every edge's bound and reheapifies
+     */
+    public void rebuild() {
+        long startTime = System.currentTimeMillis();
+        for (int index = 0; index < size; index++) {
+            refresh(heap[index]);
+        }
+
+        if (size > 1) {
+            for (int index = parent(size - 1); index >= 0; index--) {
+                siftDown(index);
+            }
+        }
+        timeSpentRebuilding += (System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Recomputes stale bounds at the top of the heap until the top's is
+     * current, since every other cached bound is <= its real bound the top
+     * is then the real minimum
+     */
+    private void refreshTop() {
+        while (size > 0 && gens[heap[0]] != generation) {
+            refresh(heap[0]);
+            siftDown(0);
+        }
+    }
+
+    public ThickEdge top() {
+        refreshTop();
+        if (size == 0) {
+            return null;
+        }
+
+        return edges[heap[0]];
+    }
+
+    /**
+     * The edge that would be the top if the top was removed
+     */
+    public ThickEdge secondTop() {
+        refreshTop();
+        if (size <= 1) {
+            return null;
+        }
+
+        while (true) {
+            int best = 1;
+            for (int child = 2; child <= ARITY && child < size; child++) {
+                if (less(heap[child], heap[best])) {
+                    best = child;
+                }
+            }
+
+            if (gens[heap[best]] == generation) {
+                return edges[heap[best]];
+            }
+            refresh(heap[best]);
+            siftDown(best);
+        }
+    }
+
+    private boolean less(int slot1, int slot2) {
+        return keys[slot1] < keys[slot2] || (keys[slot1] == keys[slot2] && slot1 < slot2);
+    }
+
+    private void fix(int index) {
+        if (index > 0 && less(heap[index], heap[parent(index)])) {
+            siftUp(index);
+        } else {
+            siftDown(index);
+        }
+    }
+
+    private void siftUp(int index) {
+        int slot = heap[index];
+        while (index > 0) {
+            int parent = parent(index);
+            if (!less(slot, heap[parent])) {
+                break;
+            }
+            heap[index] = heap[parent];
+            pos[heap[index]] = index;
+            index = parent;
+        }
+
+        heap[index] = slot;
+        pos[slot] = index;
+    }
+
+    private void siftDown(int index) {
+        int slot = heap[index];
+        while (true) {
+            int first = index * ARITY + 1;
+            if (first >= size) {
+                break;
+            }
+
+            int best = first;
+            int last = Math.min(first + ARITY, size);
+            for (int child = first + 1; child < last; child++) {
+                if (less(heap[child], heap[best])) {
+                    best = child;
+                }
+            }
+
+            if (!less(heap[best], slot)) {
+                break;
+            }
+            heap[index] = heap[best];
+            pos[heap[index]] = index;
+            index = best;
+        }
+
+        heap[index] = slot;
+        pos[slot] = index;
+    }
+
+    public boolean validate() {
+        return validate(System.err);
+    }
+
+    public boolean validate(PrintStream err) {
+        for (int index = 0; index < size; index++) {
+            int slot = heap[index];
+            if (pos[slot] != index || edges[slot] == null || edges[slot].getSlot() != slot) {
+                err.println("Slot " + slot + " at heap[" + index + "] is indexed at " + pos[slot]);
+                return false;
+            }
+
+            if (index > 0 && less(slot, heap[parent(index)])) {
+                err.println("heap[" + parent(index) + "]=" + keys[heap[parent(index)]] + " > heap[" + index + "]=" + keys[slot]);
+                return false;
+            }
+
+            int current = edges[slot].getBound(bound);
+            if (gens[slot] == generation ? keys[slot] != current : keys[slot] > current) {
+                err.println("Cached bound " + keys[slot] + " for slot " + slot + " doesn't match its bound " + current);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public void print(PrintStream out) {
+        print(out, 0, "");
+    }
+
+    private void print(PrintStream out, int index, String indent) {
+        if (index >= size) {
+            return;
+        }
+
+        ThickEdge edge = edges[heap[index]];
+        out.println(indent + "heap[" + index + "]=" + edge.getCi().getId() + " <=> " + edge.getCj().getId() + " = " + keys[heap[index]]);
+        for (int child = index * ARITY + 1; child <= index * ARITY + ARITY; child++) {
+            print(out, child, indent + "  ");
+        }
+    }
+
+    private static int parent(int index) {
+        return (index - 1) / ARITY;
+    }
+}
@@ -7,9 +7,9 @@ package edu.msu.cme.pyro.cluster.upgma;
 import edu.msu.cme.pyro.cluster.dist.ThickEdge;
 import edu.msu.cme.pyro.cluster.utils.Cluster;
 import edu.msu.cme.pyro.cluster.utils.ClusterEdges;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 
 /**
  *
@@ -17,19 +17,26 @@ import java.util.Set;
  */
 public class UPGMAClusterEdges extends ClusterEdges {
 
-    public Heap<ThickEdge> ubHeap;
-    public Heap<ThickEdge> lbHeap;
-    private EdgeComparator lambda = new EdgeComparator(0);
+    public IndexedEdgeHeap ubHeap;
+    public IndexedEdgeHeap lbHeap;
     private boolean hyperValidating = false;
+    private boolean validating = false;
+    //Slots of edges that have had thin edges added since the last setLambda
+    private BitSet dirtySlots = new BitSet();
+    //Slots of removed edges, reused before new ones are handed out
+    private int[] freeSlots = new int[16];
+    private int numFree = 0;
+    private int nextSlot = 0;
 
     public UPGMAClusterEdges(Integer psi) {
-        ubHeap = new Heap<ThickEdge>(new EdgeComparator(psi));
-        lbHeap = new Heap<ThickEdge>(lambda);
+        ubHeap = new IndexedEdgeHeap(psi);
+        lbHeap = new IndexedEdgeHeap(0);
     }
 
     @Override
     public void put(Cluster ci, Cluster cj, ThickEdge tk) {
         super.put(ci, cj, tk);
+        tk.setSlot(numFree > 0 ? freeSlots[--numFree] : nextSlot++);
 
         ubHeap.insert(tk);
         lbHeap.insert(tk);
@@ -59,6 +66,24 @@ public class UPGMAClusterEdges extends ClusterEdges {
         deleteEdge(tk);
     }
 
+    /**
+     * Adds a thin edge to a thick edge that's already in the heaps, the heaps
+     * are updated at the next setLambda
+     */
+    public void addEdge(ThickEdge tk, int dist) {
+        tk.addEdge(dist);
+        if (tk.getSlot() != -1) {
+            dirtySlots.set(tk.getSlot());
+        }
+    }
+
+    public void addEdges(ThickEdge tk, long dist, long count) {
+        tk.addEdges(dist, count);
+        if (tk.getSlot() != -1) {
+            dirtySlots.set(tk.getSlot());
+        }
+    }
+
     private void deleteEdge(ThickEdge tk) {
 
         if (!ubHeap.delete(tk)) {
@@ -79,23 +104,65 @@ public class UPGMAClusterEdges extends ClusterEdges {
                 throw new IllegalStateException("Lowerbound heap validation failed after deleting tk " + tk.getCi().getId() + " <=> " + tk.getCj().getId() + " = " + tk);
             }
         }
+
+        if (numFree == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, numFree * 2);
+        }
+        dirtySlots.clear(tk.getSlot());
+        freeSlots[numFree++] = tk.getSlot();
+        tk.setSlot(-1);
     }
 
+    /**
+     * Moves the lower bound heap to the new lambda and updates the edges
+     * that changed since the last call, the rest of the lower bounds are
+     * recomputed lazily and the upper bounds only change with the edges
+     */
     public void setLambda(Integer lambda) {
-        this.lambda.setPsiOrLambda(lambda);
-
-        ubHeap.rebuild();
-        lbHeap.rebuild();
+        lbHeap.setBound(lambda);
 
-        if (!ubHeap.validate()) {
-            throw new IllegalStateException("Upper bound heap failed validation");
+        for (int slot = dirtySlots.nextSetBit(0); slot >= 0; slot = dirtySlots.nextSetBit(slot + 1)) {
+            ubHeap.changed(slot);
+            lbHeap.changed(slot);
         }
+        dirtySlots.clear();
+
+        if (validating) {
+            if (!ubHeap.validate()) {
+                throw new IllegalStateException("Upper bound heap failed validation");
+            }
 
-        if (!lbHeap.validate()) {
-            throw new IllegalStateException("Lower bound heap failed validation");
+            if (!lbHeap.validate()) {
+                throw new IllegalStateException("Lower bound heap failed validation");
+            }
         }
     }
 
+    public boolean isValidating() {
+        return validating;
+    }
+
+    /**
+     * Check both heaps in full after every change of lambda, for debugging
+     */
+    public void setValidating(boolean validating) {
+        this.validating = validating;
+    }
+
+    /**
+     * The edge's bound at psi, read from the upper bound heap
+     */
+    public int getUpperBound(ThickEdge tk) {
+        return ubHeap.getKey(tk);
+    }
+
+    /**
+     * The edge's bound at the current lambda, read from the lower bound heap
+     */
+    public int getLowerBound(ThickEdge tk) {
+        return lbHeap.getKey(tk);
+    }
+
     public ThickEdge getLowestUB() {
         return ubHeap.top();
     }
@@ -108,12 +175,7 @@ public class UPGMAClusterEdges extends ClusterEdges {
         return lbHeap.secondTop();
     }
 
-    public Set<ThickEdge> getAllEdges() {
-        Set<ThickEdge> ret = new HashSet();
-        for(Map<Cluster, ThickEdge> edgeMap : edges.values()) {
-            ret.addAll(edgeMap.values());
-        }
-
-        return ret;
+    public Collection<ThickEdge> getAllEdges() {
+        return values();
     }
 }
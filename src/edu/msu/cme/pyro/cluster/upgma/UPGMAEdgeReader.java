@@ -23,9 +23,21 @@ import edu.msu.cme.pyro.cluster.utils.ClusterFactory;
 import edu.msu.cme.pyro.cluster.dist.ThickEdge;
 import edu.msu.cme.pyro.cluster.dist.ThinEdge;
 import edu.msu.cme.pyro.cluster.utils.ClusterUtils;
-import edu.msu.cme.pyro.cluster.io.LocalEdgeReader;
+import edu.msu.cme.pyro.cluster.io.EdgeFiles;
+import edu.msu.cme.pyro.cluster.io.SeekableEdgeReader;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *
@@ -33,21 +45,33 @@ import java.io.IOException;
  */
 public class UPGMAEdgeReader {
 
-    private static final ThinEdge maxThinEdge = new ThinEdge(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
-
     /*private LocalEdgeReader[] readers = new LocalEdgeReader[3];
     private File[] tmpEdgeFiles = new File[2];
     private int readFrom = 0;*/
-//    private final long maxLoadedEdges;
+    //Rough size of a live thick edge including its share of the edge table and both heaps
+    public static final int BYTES_PER_THICK_EDGE = 168;
+    //Stop loading once this many thick edges are live, <= 0 to load until the heap is MAX_MEM_RATIO full
+    private long maxLoadedEdges = 0;
+    private long lastEdgesRead = 0;
+    private int lastEdgesLoaded = 0;
     private final ClusterFactory clustFactory;
+    private final UPGMAClusterEdges edgeHolder;
     private int psi = Integer.MIN_VALUE;
     private int unknownLambda = 0;
     private long timeSpentLookingahead = 0;
     private int lookaheads = 0;
-    private RandomAccessEdgeFile edgeFile;
+    //The matrix is only ever read, edges a lookahead adds to thick edges are recorded in consumed
+    private SeekableEdgeReader edgeFile;
+    private final File matrix;
+    private int threads = 1;
+    private ExecutorService executor = null;
+    private final ConsumedEdges consumed = new ConsumedEdges();
+    private final ThinEdge edge = new ThinEdge();
     private long edgeCount = 0;
     //Allow for memory usage during merging and don't want to use -ALL- mem, drives the GC crazy
     private static final float MAX_MEM_RATIO = .85f;
+    //Don't bother splitting lookaheads over fewer edges than this per thread
+    private long minEdgesPerThread = 1 << 16;
     public long timeSpendReadingDists = 0;
     //private RandomAccessEdgeFile tmpEdgeFile;
     //private ThinEdge nextIgnore = maxThinEdge;
@@ -59,7 +83,71 @@ public class UPGMAEdgeReader {
     public UPGMAEdgeReader(int psi, File f, ClusterFactory clustFactory, int numSeqs, File workDir) throws IOException {
         this.psi = psi;
         this.clustFactory = clustFactory;
-        this.edgeFile = new RandomAccessEdgeFile(f);
+        this.edgeHolder = (clustFactory instanceof UPGMAClusterFactory) ? ((UPGMAClusterFactory) clustFactory).getEdgeHolder() : null;
+        this.edgeFile = EdgeFiles.openReader(f);
+        this.matrix = f;
+    }
+
+    public long getMaxLoadedEdges() {
+        return maxLoadedEdges;
+    }
+
+    /**
+     * Loads edges until there are this many live thick edges instead of until
+     * the heap is nearly full, so rounds don't depend on when the collector
+     * runs.  Zero goes back to the memory ratio
+     */
+    public void setMaxLoadedEdges(long maxLoadedEdges) {
+        this.maxLoadedEdges = maxLoadedEdges;
+    }
+
+    /**
+     * Number of thick edges that fit in a memory budget of the given size
+     */
+    public static long getMaxEdgesForBudget(long bytes) {
+        return Math.max(1, bytes / BYTES_PER_THICK_EDGE);
+    }
+
+    /**
+     * Thin edges read from the matrix by the last loadMoreEdges
+     */
+    public long getLastEdgesRead() {
+        return lastEdgesRead;
+    }
+
+    /**
+     * New thick edges created by the last loadMoreEdges
+     */
+    public int getLastEdgesLoaded() {
+        return lastEdgesLoaded;
+    }
+
+    private boolean canLoadMore(long liveEdges) {
+        if (maxLoadedEdges > 0) {
+            return liveEdges < maxLoadedEdges;
+        }
+        return ClusterUtils.getMemRatio() < MAX_MEM_RATIO;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Number of threads to split each lookahead's scan of the matrix between
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be > 0");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Lets tests split lookaheads over small matrices
+     */
+    void setMinEdgesPerThread(long minEdgesPerThread) {
+        this.minEdgesPerThread = minEdgesPerThread;
     }
 
     public int getUnknownLambda() {
@@ -67,14 +155,122 @@ public class UPGMAEdgeReader {
     }
 
     public static int getPsiFromFile(File f) throws IOException {
-        int ret = 0;
+        return EdgeFiles.getIndex(f).getMaxDist();
+    }
+
+    private void addEdge(ThickEdge tk, int dist) {
+        if (edgeHolder != null) {
+            edgeHolder.addEdge(tk, dist);
+        } else {
+            tk.addEdge(dist);
+        }
+    }
 
-        ThinEdge edge;
-        LocalEdgeReader reader = new LocalEdgeReader(f);
+    private void addEdges(ThickEdge tk, long dist, long count) {
+        if (edgeHolder != null) {
+            edgeHolder.addEdges(tk, dist, count);
+        } else {
+            tk.addEdges(dist, count);
+        }
+    }
+
+    /**
+     * What one lookahead range found, the summed distances and counts of the
+     * edges for each thick edge and the ordinals of those edges
+     */
+    private static class LookaheadRange {
+
+        final Map<ThickEdge, long[]> deltas = new IdentityHashMap();
+        long[] ordinals = new long[64];
+        int numOrdinals = 0;
+
+        void add(ThickEdge tk, int dist, long ordinal) {
+            long[] delta = deltas.get(tk);
+            if (delta == null) {
+                delta = new long[2];
+                deltas.put(tk, delta);
+            }
+            delta[0] += dist;
+            delta[1]++;
 
-        while((edge = reader.nextThinEdge()) != null) {
-            if(edge.getDist() > ret)
-                ret = edge.getDist();
+            if (numOrdinals == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, numOrdinals * 2);
+            }
+            ordinals[numOrdinals++] = ordinal;
+        }
+    }
+
+    /**
+     * Scans the edges from start to end.  Clusters are found with
+     * lookupCluster, which doesn't compress paths, and the thick edge table
+     * and consumed are only read, so ranges can be scanned concurrently.
+     * Nothing merges during a lookahead and the deltas go in the range's own
+     * map
+     */
+    private LookaheadRange scanRange(SeekableEdgeReader reader, long start, long end) throws IOException {
+        LookaheadRange ret = new LookaheadRange();
+        ThinEdge edge = new ThinEdge();
+        reader.seek(start);
+
+        for(long ordinal = start;ordinal < end && reader.nextThinEdge(edge) != null;ordinal++) {
+            if(consumed.contains(ordinal)) continue;
+
+            Cluster ci = clustFactory.lookupCluster(edge.getSeqi());
+            Cluster cj = clustFactory.lookupCluster(edge.getSeqj());
+
+            if(ci == null || cj == null || ci == cj) continue;
+
+            ThickEdge tk = clustFactory.getThickEdge(ci, cj);
+            if(tk != null) {
+                ret.add(tk, edge.getDist(), ordinal);
+            }
+        }
+
+        return ret;
+    }
+
+    private List<LookaheadRange> scanParallel(long start, long end) throws IOException {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "upgma-lookahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        List<Future<LookaheadRange>> scans = new ArrayList();
+        for (int part = 0; part < threads; part++) {
+            final long rangeStart = start + (end - start) * part / threads;
+            final long rangeEnd = start + (end - start) * (part + 1) / threads;
+
+            scans.add(executor.submit(new Callable<LookaheadRange>() {
+
+                public LookaheadRange call() throws IOException {
+                    SeekableEdgeReader reader = EdgeFiles.openReader(matrix);
+                    try {
+                        return scanRange(reader, rangeStart, rangeEnd);
+                    } finally {
+                        reader.close();
+                    }
+                }
+            }));
+        }
+
+        List<LookaheadRange> ret = new ArrayList();
+        try {
+            for (Future<LookaheadRange> scan : scans) {
+                ret.add(scan.get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while looking ahead");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
 
         return ret;
@@ -87,33 +283,30 @@ public class UPGMAEdgeReader {
         lookaheads++;
         long startTime = System.currentTimeMillis();
 
-        edgeFile.mark();
-        
-        ThinEdge edge = null;
-        Cluster ci = null;
-        Cluster cj = null;
-        ThickEdge tk = null;
-        while((edge = edgeFile.nextThinEdge()) != null) {
-            if(edge.equals(maxThinEdge)) continue;
-
-            ci = clustFactory.getCluster(edge.getSeqi());
-            cj = clustFactory.getCluster(edge.getSeqj());
+        long mark = edgeFile.position();
+        long end = edgeFile.getEdgeCount();
+        consumed.releaseBefore(mark);
 
-            if(ci == null || cj == null || ci == cj) continue;
+        List<LookaheadRange> ranges;
+        if (threads > 1 && end - mark >= threads * minEdgesPerThread) {
+            ranges = scanParallel(mark, end);
+        } else {
+            ranges = Arrays.asList(scanRange(edgeFile, mark, end));
+        }
 
-            tk = clustFactory.getThickEdge(ci, cj);
-            if(tk != null) {
+        //Apply the deltas only once every range is done, the scans read the thick edges
+        for (LookaheadRange range : ranges) {
+            for (Map.Entry<ThickEdge, long[]> delta : range.deltas.entrySet()) {
+                addEdges(delta.getKey(), delta.getValue()[0], delta.getValue()[1]);
                 ret = true;
-                tk.addEdge(edge.getDist());
-                edgeFile.overwriteEdge(maxThinEdge);
-                //newTempFile.writeEdge(edge);
+            }
+            for (int index = 0; index < range.numOrdinals; index++) {
+                consumed.add(range.ordinals[index]);
             }
         }
 
-        UPGMAClusterEdges edges = ((UPGMAClusterFactory)clustFactory).getEdgeHolder();
-
-        edgeFile.reset();
-        System.out.println("Lookahead completed in " + (System.currentTimeMillis() - startTime));
+        edgeFile.seek(mark);
+        System.out.println("Lookahead completed in " + (System.currentTimeMillis() - startTime) + ", " + consumed.size() + " edges consumed ahead of the reader");
         timeSpentLookingahead += (System.currentTimeMillis() - startTime);
 
         return ret;
@@ -121,14 +314,22 @@ public class UPGMAEdgeReader {
 
     public boolean loadMoreEdges() throws IOException, CannotLoadMoreEdgesException {
 
-        System.gc();
         ThinEdge edge = null;
+        long ordinal;
         int edgesLoaded = 0;
+        long edgesRead = 0;
         int currEdgesLoaded = clustFactory.getEdgeCount();
 
         long startTime = System.currentTimeMillis();
+        lastEdgesRead = 0;
+        lastEdgesLoaded = 0;
+
+        if(maxLoadedEdges <= 0 && ClusterUtils.getMemRatio() > MAX_MEM_RATIO) {
+            //Only collect when we're about to give up, the ratio may just be uncollected garbage
+            System.gc();
+        }
 
-        if(ClusterUtils.getMemRatio() > MAX_MEM_RATIO) {
+        if(!canLoadMore(currEdgesLoaded)) {
             if(lookAhead())
                 return true;
             throw new CannotLoadMoreEdgesException();
@@ -138,14 +339,16 @@ public class UPGMAEdgeReader {
         Cluster ci = null;
         Cluster cj = null;
         ThickEdge tk = null;
-        while(ClusterUtils.getMemRatio() < MAX_MEM_RATIO) {
+        while(canLoadMore(currEdgesLoaded + edgesLoaded)) {
             //long startTime = System.nanoTime();
             do {
-                edge = edgeFile.nextThinEdge();
-            } while(edge != null && edge.equals(maxThinEdge));
+                ordinal = edgeFile.position();
+                edge = edgeFile.nextThinEdge(this.edge);
+            } while(edge != null && consumed.contains(ordinal));
             //long timeToRead = System.nanoTime() - startTime;
 
             if(edge == null) break;
+            edgesRead++;
             if(edge.getDist() > psi)
                 throw new IllegalArgumentException("Edge " + edge.getSeqi() + " x " + edge.getSeqj() + " = " + edge.getDist() + " is more distant than supplied psi value " + psi);
 
@@ -165,20 +368,21 @@ public class UPGMAEdgeReader {
                 tk = clustFactory.createThickEdge(ci, cj, edge);
                 edgesLoaded++;
             } else {
-                tk.addEdge(edge.getDist());
+                addEdge(tk, edge.getDist());
             }
 
             //System.out.println("Read in edge " + edge.getSeqi() + "\t" + edge.getSeqj() + "\t" + edge.getDist() + " in " + timeToRead + "ns, processed in " + (System.nanoTime() - startTime) + "ns");
             //DistanceUtils.printEdge(edge, System.out);
         }
 
-        System.gc();
         if(edge != null) {
             unknownLambda = edge.getDist();
             System.out.println("UPGMA Edge reading done in " + (System.currentTimeMillis() - startTime) + ", last edge read dist=" + edge.getDist() + " started with " + currEdgesLoaded + " edges and loaded " + edgesLoaded + " edges, memory in use ratio=" + ClusterUtils.getMemRatio());
         }
 
         edgeCount = currEdgesLoaded + edgesLoaded;
+        lastEdgesRead = edgesRead;
+        lastEdgesLoaded = edgesLoaded;
 
         timeSpendReadingDists += (System.currentTimeMillis() - startTime);
         
@@ -189,6 +393,13 @@ public class UPGMAEdgeReader {
         return edgeCount;
     }
 
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        edgeFile.close();
+    }
+
     /*private boolean lookAhead() throws IOException {
         boolean ret = false;
 
@@ -5,69 +5,398 @@
 package edu.msu.cme.pyro.cluster.utils;
 
 import edu.msu.cme.pyro.cluster.dist.ThickEdge;
+import java.util.AbstractCollection;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
+ * Thick edges between clusters.  Edges are kept in an open addressing table
+ * keyed on the pair of cluster ids packed in to a long, each cluster's
+ * neighbours are an int array of (neighbour id, stamp) pairs in the order the
+ * edges were added.  Removing an edge only touches the table, neighbour
+ * entries are dropped lazily (an entry is live while the table still holds
+ * the edge with the same stamp) and lists are compacted when they fill up
+ * with dead entries.
  *
  * @author farrisry
  */
 public class ClusterEdges {
 
-    protected Map<Cluster, Map<Cluster, ThickEdge>> edges = new LinkedHashMap<Cluster, Map<Cluster, ThickEdge>>();
+    private static final long EMPTY = -1L;
+    private static final float LOAD_FACTOR = .6f;
+    private long[] keys;
+    private ThickEdge[] values;
+    private int[] stamps;
+    private int mask;
+    private int size = 0;
+    private int nextStamp = 0;
+    //Indexed by cluster id
+    private Cluster[] clusters = new Cluster[16];
+    private int[][] neighbours = new int[16][];
+    private int[] neighbourLen = new int[16];
+    private int[] liveNeighbours = new int[16];
 
-    public Set<Cluster> get(Cluster ci) {
-        if (edges.get(ci) != null) {
-            return new LinkedHashSet<Cluster>(edges.get(ci).keySet());
+    public ClusterEdges() {
+        this(16);
+    }
+
+    public ClusterEdges(int expectedEdges) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedEdges) {
+            capacity <<= 1;
         }
-        return new LinkedHashSet<Cluster>();
+        allocate(capacity);
     }
 
-    public int size() {
-        Set<ThickEdge> edgesSet = new LinkedHashSet();
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new ThickEdge[capacity];
+        stamps = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static long key(int ci, int cj) {
+        if (ci > cj) {
+            int tmp = ci;
+            ci = cj;
+            cj = tmp;
+        }
+        return ((long) ci << 32) | (cj & 0xffffffffL);
+    }
+
+    private int home(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
 
-        for(Map<Cluster, ThickEdge> map : edges.values()) {
-            edgesSet.addAll(map.values());
+    private int findSlot(long key) {
+        int slot = home(key);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
         }
+        return -1;
+    }
+
+    private void insert(long key, ThickEdge value, int stamp) {
+        int slot = home(key);
+        while (keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        stamps[slot] = stamp;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        ThickEdge[] oldValues = values;
+        int[] oldStamps = stamps;
+        allocate(keys.length * 2);
 
-        return edgesSet.size();
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != EMPTY) {
+                insert(oldKeys[slot], oldValues[slot], oldStamps[slot]);
+            }
+        }
+    }
+
+    /**
+     * Linear probing delete, shifts back any entries that would no longer be
+     * reachable from their home slot
+     */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int curr = slot;
+        while (true) {
+            curr = (curr + 1) & mask;
+            if (keys[curr] == EMPTY) {
+                break;
+            }
+            int h = home(keys[curr]);
+            boolean reachable = (hole <= curr) ? (hole < h && h <= curr) : (hole < h || h <= curr);
+            if (!reachable) {
+                keys[hole] = keys[curr];
+                values[hole] = values[curr];
+                stamps[hole] = stamps[curr];
+                hole = curr;
+            }
+        }
+        keys[hole] = EMPTY;
+        values[hole] = null;
+    }
+
+    private void ensureClusterCapacity(int id) {
+        if (id < clusters.length) {
+            return;
+        }
+        int newLength = Math.max(id + 1, clusters.length * 2);
+        clusters = Arrays.copyOf(clusters, newLength);
+        neighbours = Arrays.copyOf(neighbours, newLength);
+        neighbourLen = Arrays.copyOf(neighbourLen, newLength);
+        liveNeighbours = Arrays.copyOf(liveNeighbours, newLength);
+    }
+
+    private boolean isLive(int c, int n, int stamp) {
+        int slot = findSlot(key(c, n));
+        return slot != -1 && stamps[slot] == stamp;
+    }
+
+    private void addNeighbour(Cluster c, int n, int stamp) {
+        int id = c.getId();
+        ensureClusterCapacity(id);
+        clusters[id] = c;
+
+        int[] list = neighbours[id];
+        if (list == null) {
+            list = neighbours[id] = new int[8];
+        } else if (neighbourLen[id] == list.length) {
+            if (liveNeighbours[id] * 4 <= list.length) {
+                compact(id);
+            } else {
+                list = neighbours[id] = Arrays.copyOf(list, list.length * 2);
+            }
+        }
+
+        list[neighbourLen[id]++] = n;
+        list[neighbourLen[id]++] = stamp;
+        liveNeighbours[id]++;
+    }
+
+    private void compact(int id) {
+        int[] list = neighbours[id];
+        int len = 0;
+        for (int index = 0; index < neighbourLen[id]; index += 2) {
+            if (isLive(id, list[index], list[index + 1])) {
+                list[len++] = list[index];
+                list[len++] = list[index + 1];
+            }
+        }
+        neighbourLen[id] = len;
+    }
+
+    /**
+     * Copy of the clusters ci has edges to, see getNeighbours for a view
+     */
+    public Set<Cluster> get(Cluster ci) {
+        Set<Cluster> ret = new LinkedHashSet<Cluster>();
+        for (Cluster cn : getNeighbours(ci)) {
+            ret.add(cn);
+        }
+        return ret;
+    }
+
+    public int size() {
+        return size;
     }
 
     public void put(Cluster ci, Cluster cj, ThickEdge edge) {
-        if (edges.get(ci) == null) {
-            edges.put(ci, new LinkedHashMap<Cluster, ThickEdge>());
+        long key = key(ci.getId(), cj.getId());
+        int slot = findSlot(key);
+        if (slot != -1) {
+            values[slot] = edge;
+            return;
         }
-        edges.get(ci).put(cj, edge);
-        if (edges.get(cj) == null) {
-            edges.put(cj, new LinkedHashMap<Cluster, ThickEdge>());
+
+        if (size + 1 > keys.length * LOAD_FACTOR) {
+            resize();
         }
-        edges.get(cj).put(ci, edge);
+
+        int stamp = nextStamp++;
+        insert(key, edge, stamp);
+        size++;
+
+        addNeighbour(ci, cj.getId(), stamp);
+        addNeighbour(cj, ci.getId(), stamp);
     }
 
     public ThickEdge remove(Cluster ci, Cluster cj) {
-        if (edges.get(ci) != null) {
-            edges.get(ci).remove(cj);
-        }
-        if (edges.get(cj) != null) {
-            return edges.get(cj).remove(ci);
+        int slot = findSlot(key(ci.getId(), cj.getId()));
+        if (slot == -1) {
+            return null;
         }
-        return null;
+
+        ThickEdge ret = values[slot];
+        deleteSlot(slot);
+        size--;
+        liveNeighbours[ci.getId()]--;
+        liveNeighbours[cj.getId()]--;
+
+        return ret;
     }
 
     public ThickEdge get(Cluster ci, Cluster cj) {
-        if(ci == null || cj == null || edges.get(ci) == null)
+        if (ci == null || cj == null) {
             return null;
+        }
 
-        return edges.get(ci).get(cj);
+        int slot = findSlot(key(ci.getId(), cj.getId()));
+        return slot == -1 ? null : values[slot];
     }
 
-    public Collection<ThickEdge> getEdges(Cluster c) {
-        if(edges.get(c) == null)
-            return null;
-        
-        return edges.get(c).values();
+    /**
+     * Drops the neighbour list of a cluster that's been merged away, all of
+     * its edges should have been removed already
+     */
+    public void removeCluster(Cluster c) {
+        int id = c.getId();
+        if (id < clusters.length) {
+            clusters[id] = null;
+            neighbours[id] = null;
+            neighbourLen[id] = 0;
+            liveNeighbours[id] = 0;
+        }
+    }
+
+    /**
+     * Iterates over the entries in c's neighbour list that are still live,
+     * edges other than c's may be added or removed while iterating
+     */
+    private abstract class NeighbourIterator<T> implements Iterator<T> {
+
+        private final int id;
+        private final int[] list;
+        private final int len;
+        private int pos = 0;
+        private boolean ready = false;
+
+        NeighbourIterator(Cluster c) {
+            id = c.getId();
+            if (id < clusters.length && neighbours[id] != null) {
+                list = neighbours[id];
+                len = neighbourLen[id];
+            } else {
+                list = null;
+                len = 0;
+            }
+        }
+
+        public boolean hasNext() {
+            while (!ready && pos < len) {
+                if (isLive(id, list[pos], list[pos + 1])) {
+                    ready = true;
+                } else {
+                    pos += 2;
+                }
+            }
+            return ready;
+        }
+
+        /**
+         * Returns the table slot of the next live entry and moves past it
+         */
+        int nextSlot() {
+            while (hasNext()) {
+                int slot = findSlot(key(id, list[pos]));
+                int stamp = list[pos + 1];
+                pos += 2;
+                ready = false;
+                //Recheck in case the table changed since hasNext
+                if (slot != -1 && stamps[slot] == stamp) {
+                    return slot;
+                }
+            }
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * View of the clusters c has edges to in the order the edges were added
+     */
+    public Iterable<Cluster> getNeighbours(final Cluster c) {
+        return new Iterable<Cluster>() {
+
+            public Iterator<Cluster> iterator() {
+                return new NeighbourIterator<Cluster>(c) {
+
+                    public Cluster next() {
+                        long key = keys[nextSlot()];
+                        int lo = (int) (key >>> 32), hi = (int) key;
+                        return clusters[lo == c.getId() ? hi : lo];
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * View of the edges to c in the order they were added
+     */
+    public Collection<ThickEdge> getEdges(final Cluster c) {
+        return new AbstractCollection<ThickEdge>() {
+
+            @Override
+            public Iterator<ThickEdge> iterator() {
+                return new NeighbourIterator<ThickEdge>(c) {
+
+                    public ThickEdge next() {
+                        return values[nextSlot()];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int id = c.getId();
+                return id < liveNeighbours.length ? liveNeighbours[id] : 0;
+            }
+        };
+    }
+
+    /**
+     * View of every edge, the edges can't be changed while iterating
+     */
+    public Collection<ThickEdge> values() {
+        return new AbstractCollection<ThickEdge>() {
+
+            @Override
+            public Iterator<ThickEdge> iterator() {
+                return new Iterator<ThickEdge>() {
+
+                    private int slot = -1;
+
+                    public boolean hasNext() {
+                        for (int s = slot + 1; s < keys.length; s++) {
+                            if (keys[s] != EMPTY) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+
+                    public ThickEdge next() {
+                        do {
+                            slot++;
+                            if (slot >= keys.length) {
+                                throw new NoSuchElementException();
+                            }
+                        } while (keys[slot] == EMPTY);
+                        return values[slot];
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 }
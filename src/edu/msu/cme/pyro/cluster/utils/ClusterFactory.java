@@ -25,23 +25,24 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 
 /**
+ * Cluster factory for linkages that need thick edges between clusters.
+ * Membership is a ClusterMembership so merging doesn't copy either cluster's
+ * sequences
  *
  * @author fishjord
  */
 public class ClusterFactory implements AbstractClusterFactory {
     private DataOutputStream mergesStream = null;
     private int clustCount = 0;
-    private Map<Integer, Cluster> seqToClusterMap = new LinkedHashMap();
+    private ClusterMembership members = new ClusterMembership();
     protected ClusterEdges edges = new ClusterEdges();
-    private Map<Cluster, Set<Integer>> clustersToSeqs = new LinkedHashMap();
+    private List<ClusterListener> listeners = new ArrayList();
 
     public ClusterFactory() {
         mergesStream = new DataOutputStream(new NullOutputStream());
@@ -51,12 +52,26 @@ public class ClusterFactory implements AbstractClusterFactory {
         mergesStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergesFile)));
     }
 
+    public void addClusterListener(ClusterListener listener) {
+        listeners.add(listener);
+    }
+
     public Cluster getCluster(int seq) {
-        return seqToClusterMap.get(seq);
+        return members.getCluster(seq);
+    }
+
+    /**
+     * Same as getCluster but never writes to the membership (no path
+     * compression), so threads can look up clusters concurrently while
+     * nothing is being merged
+     */
+    public Cluster lookupCluster(int seq) {
+        return members.lookupCluster(seq);
     }
 
     public Cluster createSingleton(int seq) {
         Cluster c = new Cluster(clustCount++, 1);
+        members.addSingleton(c, seq);
 
         try {
             mergesStream.writeBoolean(true);
@@ -64,17 +79,18 @@ public class ClusterFactory implements AbstractClusterFactory {
             mergesStream.writeInt(seq);
         } catch(IOException ignore) {}
 
-        clustersToSeqs.put(c, new LinkedHashSet(Arrays.asList(seq)));
-        seqToClusterMap.put(seq, c);
+        for (ClusterListener listener : listeners) {
+            listener.singletonCreated(c, seq);
+        }
         return c;
     }
 
     public Set<Integer> getSeqsInCluster(Cluster c) {
-        return clustersToSeqs.get(c);
+        return members.getSeqs(c);
     }
 
     public int getClustCount() {
-        return new LinkedHashSet(seqToClusterMap.values()).size();
+        return members.getClusterCount();
     }
 
     public int getEdgeCount() {
@@ -96,11 +112,12 @@ public class ClusterFactory implements AbstractClusterFactory {
     }
 
     public Collection<Cluster> getClusters() {
-        return new LinkedHashSet(seqToClusterMap.values());
+        return members.getClusters();
     }
 
     public Cluster mergeCluster(Cluster ci, Cluster cj, int mergeDist) {
         Cluster ck = new Cluster(clustCount++, ci.getNumberOfSeqs() + cj.getNumberOfSeqs());
+        members.merge(ci, cj, ck);
 
         try {
             mergesStream.writeBoolean(false);
@@ -112,51 +129,36 @@ public class ClusterFactory implements AbstractClusterFactory {
 
         }
 
-        Set<Integer> ciSeqs = clustersToSeqs.remove(ci);
-        Set<Integer> cjSeqs = clustersToSeqs.remove(cj);
-
-        Set<Integer> ckSeqs = new LinkedHashSet();
-        ckSeqs.addAll(ciSeqs);
-        ckSeqs.addAll(cjSeqs);
-        clustersToSeqs.put(ck, ckSeqs);
-
-        // update the seq id mappings
-        for (Integer sid : ciSeqs) {
-            seqToClusterMap.put(sid, ck);
-        }
-
-        for (Integer sid : cjSeqs) {
-            seqToClusterMap.put(sid, ck);
-        }
-
         edges.remove(ci, cj);
-        Set<Cluster> existingEdgesI = edges.get(ci);
-        Set<Cluster> existingEdgesJ = edges.get(cj);
         //System.out.println("Merging ci=" + ci.getSeqs() + " cj=" + cj.getSeqs() + " ck=" + ck.getSeqs());
 
-        for (Cluster cn : existingEdgesI) {
+        for (Cluster cn : edges.getNeighbours(ci)) {
             ThickEdge edge = edges.remove(ci, cn);
             long dist = edge.getSeenDistances();
             long seenEdges = edge.getSeenEdges();
 
-            if (existingEdgesJ.contains(cn)) {
+            if (edges.get(cj, cn) != null) {
                 // if Cn has edges with both Ci and Cj, then merge the edges.
                 ThickEdge edgeJ = edges.remove(cj, cn);
                 dist += edgeJ.getSeenDistances();
                 seenEdges += edgeJ.getSeenEdges();
-
-                existingEdgesJ.remove(cn);
-                //System.out.println("Merging shared edges between ck and cn=" + cn.getSeqs() + " old dist=" + edge.getSeenDistances() + "+" + edgeJ.getSeenDistances() + " " + );
             }
 
             edges.put(ck, cn, new ThickEdge(ck, cn, dist, seenEdges));
         }
 
-        for (Cluster cn : existingEdgesJ) {
+        for (Cluster cn : edges.getNeighbours(cj)) {
             ThickEdge edge = edges.remove(cj, cn);
             edges.put(ck, cn, new ThickEdge(ck, cn, edge.getSeenDistances(), edge.getSeenEdges()));
         }
 
+        edges.removeCluster(ci);
+        edges.removeCluster(cj);
+
+        for (ClusterListener listener : listeners) {
+            listener.clustersMerged(ci, cj, ck);
+        }
+
         return ck;
     }
 
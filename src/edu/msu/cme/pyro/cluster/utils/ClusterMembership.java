@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Which sequences are in which cluster.  Sequence to cluster lookups go
+ * through a union-find over sequence ids (path compression, union by size)
+ * and each cluster's sequences are a linked list threaded through a next
+ * array, so merging two clusters is constant time however big they are.
+ * Members are kept in ci then cj order on every merge
+ *
+ * @author fishjord
+ */
+class ClusterMembership {
+
+    private int liveClusters = 0;
+    //Indexed by sequence id, parent is -1 for sequences not seen yet
+    private int[] parent = new int[0];
+    private int[] next = new int[0];
+    //Indexed by the root sequence of a cluster
+    private int[] size = new int[0];
+    private int[] head = new int[0];
+    private int[] tail = new int[0];
+    private Cluster[] clusters = new Cluster[0];
+    //Indexed by cluster id, root sequence of the cluster
+    private int[] rootOf = new int[0];
+    //Sequences in the order they were added
+    private int[] seqOrder = new int[16];
+    private int numSeqs = 0;
+
+    private void ensureSeqCapacity(int seq) {
+        if (seq < parent.length) {
+            return;
+        }
+
+        int oldLength = parent.length;
+        int newLength = Math.max(seq + 1, oldLength + (oldLength >> 1));
+        parent = Arrays.copyOf(parent, newLength);
+        Arrays.fill(parent, oldLength, newLength, -1);
+        next = Arrays.copyOf(next, newLength);
+        size = Arrays.copyOf(size, newLength);
+        head = Arrays.copyOf(head, newLength);
+        tail = Arrays.copyOf(tail, newLength);
+        clusters = Arrays.copyOf(clusters, newLength);
+    }
+
+    private void setRoot(Cluster c, int root) {
+        if (c.getId() >= rootOf.length) {
+            rootOf = Arrays.copyOf(rootOf, Math.max(c.getId() + 1, Math.max(16, rootOf.length * 2)));
+        }
+        rootOf[c.getId()] = root;
+        clusters[root] = c;
+    }
+
+    private int find(int seq) {
+        int root = seq;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+
+        while (parent[seq] != root) {
+            int up = parent[seq];
+            parent[seq] = root;
+            seq = up;
+        }
+
+        return root;
+    }
+
+    /**
+     * Root of seq's set without compressing the path.  It only reads parent,
+     * so any number of threads can call it as long as nothing is merged at the
+     * same time.  Union by size keeps the path to log2(sequences) steps
+     */
+    int root(int seq) {
+        while (parent[seq] != seq) {
+            seq = parent[seq];
+        }
+        return seq;
+    }
+
+    /**
+     * Root sequence of a live cluster, -1 if the cluster has been merged away
+     */
+    private int rootOf(Cluster c) {
+        if (c == null || c.getId() >= rootOf.length) {
+            return -1;
+        }
+        int root = rootOf[c.getId()];
+        return root < clusters.length && clusters[root] == c ? root : -1;
+    }
+
+    public boolean contains(int seq) {
+        return seq >= 0 && seq < parent.length && parent[seq] != -1;
+    }
+
+    public Cluster getCluster(int seq) {
+        if (!contains(seq)) {
+            return null;
+        }
+        return clusters[find(seq)];
+    }
+
+    /**
+     * Same as getCluster but doesn't compress the path (see root)
+     */
+    public Cluster lookupCluster(int seq) {
+        if (!contains(seq)) {
+            return null;
+        }
+        return clusters[root(seq)];
+    }
+
+    public void addSingleton(Cluster c, int seq) {
+        ensureSeqCapacity(seq);
+        if (parent[seq] != -1) {
+            throw new IllegalArgumentException("Sequence " + seq + " is already clustered");
+        }
+
+        parent[seq] = seq;
+        next[seq] = -1;
+        size[seq] = 1;
+        head[seq] = tail[seq] = seq;
+        setRoot(c, seq);
+        liveClusters++;
+
+        if (numSeqs == seqOrder.length) {
+            seqOrder = Arrays.copyOf(seqOrder, numSeqs * 2);
+        }
+        seqOrder[numSeqs++] = seq;
+    }
+
+    /**
+     * Moves the members of ci and cj in to ck, which takes the place of both
+     */
+    public void merge(Cluster ci, Cluster cj, Cluster ck) {
+        int ri = rootOf(ci);
+        int rj = rootOf(cj);
+        if (ri == -1 || rj == -1 || ri == rj) {
+            throw new IllegalArgumentException("Can only merge two distinct live clusters");
+        }
+
+        //Members stay in ci then cj order whichever root wins
+        int first = head[ri], last = tail[rj];
+        next[tail[ri]] = head[rj];
+
+        int root = ri, child = rj;
+        if (size[ri] < size[rj]) {
+            root = rj;
+            child = ri;
+        }
+        parent[child] = root;
+        size[root] = size[ri] + size[rj];
+        head[root] = first;
+        tail[root] = last;
+        clusters[child] = null;
+
+        setRoot(ck, root);
+        liveClusters--;
+    }
+
+    public int getClusterCount() {
+        return liveClusters;
+    }
+
+    /**
+     * View of the sequences in a live cluster in the order they were merged
+     * in, null if the cluster has been merged away
+     */
+    public Set<Integer> getSeqs(Cluster c) {
+        final int root = rootOf(c);
+        if (root == -1) {
+            return null;
+        }
+
+        return new AbstractSet<Integer>() {
+
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+
+                    private int seq = head[root];
+
+                    public boolean hasNext() {
+                        return seq != -1;
+                    }
+
+                    public Integer next() {
+                        if (seq == -1) {
+                            throw new NoSuchElementException();
+                        }
+                        int ret = seq;
+                        seq = next[seq];
+                        return ret;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Integer)) {
+                    return false;
+                }
+                int seq = (Integer) o;
+                return ClusterMembership.this.contains(seq) && find(seq) == root;
+            }
+
+            @Override
+            public int size() {
+                return size[root];
+            }
+        };
+    }
+
+    /**
+     * The live clusters, ordered by the first sequence added to each
+     */
+    public List<Cluster> getClusters() {
+        Cluster[] ret = new Cluster[liveClusters];
+        BitSet seen = new BitSet();
+        int found = 0;
+        for (int index = 0; index < numSeqs && found < ret.length; index++) {
+            int root = find(seqOrder[index]);
+            if (!seen.get(root)) {
+                seen.set(root);
+                ret[found++] = clusters[root];
+            }
+        }
+
+        return Arrays.asList(ret);
+    }
+}
@@ -59,6 +59,49 @@ public class ClusterUtils {
         return new ClusterParams((byte)maxClusterDist, s);
     }
 
+    /**
+     * Parses a memory size such as 512m or 8g (k, m, g and t suffixes are
+     * powers of 1024, no suffix means bytes)
+     */
+    public static long parseMemSize(String size) {
+        String s = size.trim().toLowerCase();
+        long multiplier = 1;
+
+        if (s.length() > 1) {
+            switch (s.charAt(s.length() - 1)) {
+                case 'k':
+                    multiplier = 1L << 10;
+                    break;
+                case 'm':
+                    multiplier = 1L << 20;
+                    break;
+                case 'g':
+                    multiplier = 1L << 30;
+                    break;
+                case 't':
+                    multiplier = 1L << 40;
+                    break;
+            }
+        }
+
+        if (multiplier != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+
+        long ret;
+        try {
+            ret = Long.parseLong(s) * multiplier;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid memory size " + size);
+        }
+
+        if (ret <= 0) {
+            throw new IllegalArgumentException("Memory size must be > 0");
+        }
+
+        return ret;
+    }
+
     public static double getMemRatio() {
         return (double)(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / Runtime.getRuntime().maxMemory();
     }
@@ -18,7 +18,7 @@ package edu.msu.cme.pyro.cluster.utils;
 
 import edu.msu.cme.pyro.cluster.io.RDPClustParser;
 import edu.msu.cme.pyro.cluster.io.RDPClustParser.ClusterSample;
-import edu.msu.cme.pyro.cluster.io.RDPClustParser.Cutoff;
+import edu.msu.cme.pyro.cluster.io.ClusterStream;
 import edu.msu.cme.pyro.derep.IdMapping;
 import edu.msu.cme.rdp.alignment.pairwise.rna.DistanceModel;
 import edu.msu.cme.rdp.alignment.pairwise.rna.IdentityDistanceModel;
@@ -66,7 +66,7 @@ public class RepresenativeSeqs {
             ret.put(sample.getName(), new ArrayList());
         }
 
-        Cutoff cutoff = parser.getCutoff(cutoffStr);
+        ClusterStream cutoff = openCutoff(parser, cutoffStr);
 
         int preferedSeqs = 0;
         int nonPreferedSeqs = 0;
@@ -87,43 +87,50 @@ public class RepresenativeSeqs {
             }
         }
 
-        for (String sample : cutoff.getClusters().keySet()) {
-            for (Cluster clust : cutoff.getClusters().get(sample)) {
-                Set<String> seqsInClust = new LinkedHashSet();
-                List<String> realSeqids = new ArrayList();
-
-                for (String seqid : cutoff.getClustersToSeqs().get(clust)) {
-                    realSeqids.add(seqid);
-                    String exid = idToExemplar.get(seqid);
-                    if (exid == null) {
-                        exid = seqid;
-                    }
+        //Each line of the cutoff is one sample's sequences in one cluster
+        while (cutoff.next()) {
+            Set<String> seqsInClust = new LinkedHashSet();
+            List<String> realSeqids = new ArrayList();
 
-                    seqsInClust.add(exid);
+            for (String seqid : cutoff.getSeqIds()) {
+                realSeqids.add(seqid);
+                String exid = idToExemplar.get(seqid);
+                if (exid == null) {
+                    exid = seqid;
                 }
 
-                if (seqsInClust.isEmpty()) {
-                    continue;
-                }
+                seqsInClust.add(exid);
+            }
 
-                List<Sequence> seqs = seqReader.readSeqs(seqsInClust);
+            if (seqsInClust.isEmpty()) {
+                continue;
+            }
 
-                Sequence repSeq = getRep(seqs, clust.getId(), maskSeq, realSeqids, prefSeqids, invert, m, overlapMin, useClusterID );
-                ret.get(sample).add(repSeq);
-                if (!prefSeqids.contains(repSeq.getSeqName())) {
-                    nonPreferedSeqs++;
-                } else {
-                    preferedSeqs++;
-                }
+            List<Sequence> seqs = seqReader.readSeqs(seqsInClust);
 
+            Sequence repSeq = getRep(seqs, cutoff.getClusterId(), maskSeq, realSeqids, prefSeqids, invert, m, overlapMin, useClusterID );
+            ret.get(cutoff.getSample()).add(repSeq);
+            if (!prefSeqids.contains(repSeq.getSeqName())) {
+                nonPreferedSeqs++;
+            } else {
+                preferedSeqs++;
             }
         }
+        cutoff.close();
 
         return ret;
     }
 
+    private static ClusterStream openCutoff(RDPClustParser parser, String cutoffStr) throws IOException {
+        ClusterStream ret = parser.streamCutoff(cutoffStr);
+        if (ret == null) {
+            throw new IOException("No cutoff " + cutoffStr + " in cluster file");
+        }
+        return ret;
+    }
+
     public static void printOneRepresenativeSeqPerOTU(RDPClustParser parser, String cutoffStr, IndexedSeqReader seqReader, String maskId, IdMapping<Integer> idMapping, Set<String> prefSeqids, boolean invert, DistanceModel m, int overlapMin, FastaWriter out, boolean useClusterID) throws OverlapCheckFailedException, IOException {
-        Cutoff cutoff = parser.getCutoff(cutoffStr);
+        ClusterStream cutoff = openCutoff(parser, cutoffStr);
 
         int preferedSeqs = 0;
         int nonPreferedSeqs = 0;
@@ -144,31 +151,33 @@ public class RepresenativeSeqs {
             }
         }
 
-        // find the clusters from all the samples in the same otu
-        HashMap<Integer, HashSet<Cluster>> clusterMap = new HashMap<Integer, HashSet<Cluster>>(); // clusterID, cluster
-        for (String sample : cutoff.getClusters().keySet()) {
-
-            for (Cluster clust: cutoff.getClusters().get(sample)){
-                int clusterID = clust.getId();
-                HashSet<Cluster> clusterSet = clusterMap.get(clusterID);
+        // the lines of a cluster (one per sample) are together, so each otu is read then written
+        int clusterID = -1;
+        Set<String> seqsInClust = new LinkedHashSet();
+        boolean more;
+        do {
+            more = cutoff.next();
+            if (!more || cutoff.getClusterId() != clusterID) {
+                if (!seqsInClust.isEmpty()) {
+                    List<Sequence> seqs = seqReader.readSeqs(seqsInClust);
+
+                    Sequence repSeq = getRep(seqs, clusterID, maskSeq, new ArrayList(seqsInClust), prefSeqids, invert, m, overlapMin, useClusterID );
+                    out.writeSeq(repSeq);
+                    if (!prefSeqids.contains(repSeq.getSeqName())) {
+                        nonPreferedSeqs++;
+                    } else {
+                        preferedSeqs++;
+                    }
+                }
 
-                if ( clusterSet == null){
-                    clusterSet = new HashSet<Cluster>();
-                    clusterMap.put(clusterID, clusterSet);
+                if (more) {
+                    clusterID = cutoff.getClusterId();
+                    seqsInClust = new LinkedHashSet();
                 }
-                clusterSet.add(clust);
             }
-        }
-
 
-        for (Integer clusterID : clusterMap.keySet() ) {
-            Set<String> seqsInClust = new LinkedHashSet();
-
-            int totalNumberOfSeqs = 0;
-
-            for (Cluster clust : clusterMap.get(clusterID)) {
-                totalNumberOfSeqs += clust.getNumberOfSeqs();
-                for (String seqid : cutoff.getClustersToSeqs().get(clust)) {
+            if (more) {
+                for (String seqid : cutoff.getSeqIds()) {
                     String exid = idToExemplar.get(seqid);
                     if (exid == null) {
                         exid = seqid;
@@ -177,22 +186,8 @@ public class RepresenativeSeqs {
                     seqsInClust.add(exid);
                 }
             }
-
-            if (seqsInClust.isEmpty()) {
-                continue;
-            }
-
-            List<Sequence> seqs = seqReader.readSeqs(seqsInClust);
-
-            Sequence repSeq = getRep(seqs, clusterID, maskSeq, new ArrayList(seqsInClust), prefSeqids, invert, m, overlapMin, useClusterID );
-	    out.writeSeq(repSeq);
-            if (!prefSeqids.contains(repSeq.getSeqName())) {
-                nonPreferedSeqs++;
-            } else {
-                preferedSeqs++;
-            }
-        }
-
+        } while (more);
+        cutoff.close();
     }
 
     private static Sequence getRep(List<Sequence> seqs, int clusterID, char[] maskSeq, List<String> realSeqids, Set<String> prefSeqids, boolean invert, DistanceModel m, int overlapMin, boolean useClusterID) throws OverlapCheckFailedException, IOException{
@@ -375,7 +370,7 @@ public class RepresenativeSeqs {
 
         String cutoffStr = args[1];
 
-        RDPClustParser clustParser = new RDPClustParser(clustFile, true);
+        RDPClustParser clustParser = new RDPClustParser(clustFile);
         IndexedSeqReader seqReader = new IndexedSeqReader(seqFile);
 
         Map<String, List<Sequence>> repSeqMap = null;
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Cluster factory for single linkage, which never needs thick edges so only
+ * keeps the ClusterMembership.  Cluster ids, member order and the merges
+ * stream are the same as ClusterFactory's
+ *
+ * @author fishjord
+ */
+public class UnionFindClusterFactory implements AbstractClusterFactory {
+
+    private DataOutputStream mergesStream = null;
+    private int clustCount = 0;
+    private ClusterMembership members = new ClusterMembership();
+    private List<ClusterListener> listeners = new ArrayList();
+
+    public UnionFindClusterFactory() {
+        mergesStream = new DataOutputStream(new NullOutputStream());
+    }
+
+    public UnionFindClusterFactory(File mergesFile) throws IOException {
+        mergesStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergesFile)));
+    }
+
+    public void addClusterListener(ClusterListener listener) {
+        listeners.add(listener);
+    }
+
+    public Cluster getCluster(int seq) {
+        return members.getCluster(seq);
+    }
+
+    public Cluster createSingleton(int seq) {
+        Cluster c = new Cluster(clustCount++, 1);
+        members.addSingleton(c, seq);
+
+        try {
+            mergesStream.writeBoolean(true);
+            mergesStream.writeInt(c.getId());
+            mergesStream.writeInt(seq);
+        } catch (IOException ignore) {
+        }
+
+        for (ClusterListener listener : listeners) {
+            listener.singletonCreated(c, seq);
+        }
+
+        return c;
+    }
+
+    public Cluster mergeCluster(Cluster ci, Cluster cj, int mergeDist) {
+        Cluster ck = new Cluster(clustCount++, ci.getNumberOfSeqs() + cj.getNumberOfSeqs());
+        members.merge(ci, cj, ck);
+
+        try {
+            mergesStream.writeBoolean(false);
+            mergesStream.writeInt(ci.getId());
+            mergesStream.writeInt(cj.getId());
+            mergesStream.writeInt(ck.getId());
+            mergesStream.writeInt(mergeDist);
+        } catch (IOException ignore) {
+        }
+
+        for (ClusterListener listener : listeners) {
+            listener.clustersMerged(ci, cj, ck);
+        }
+
+        return ck;
+    }
+
+    public Set<Integer> getSeqsInCluster(Cluster c) {
+        return members.getSeqs(c);
+    }
+
+    public int getClustCount() {
+        return members.getClusterCount();
+    }
+
+    public void finish() throws IOException {
+        mergesStream.close();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+/**
+ * Columns that are a gap ('-' or '.') in every sequence added, kept as a
+ * bit mask that's ANDed with each sequence.  Words that are already clear
+ * are skipped, so once few common gaps are left adding a sequence only looks
+ * at the columns that could still be common gaps.  Columns past the end of
+ * the first sequence are never common gaps
+ *
+ * @author fishjord
+ */
+public class CommonGaps {
+
+    private long[] gaps = null;
+    private int length = 0;
+    private int[] keepColumns = null;
+
+    public void add(String seq) {
+        if (gaps == null) {
+            length = seq.length();
+            gaps = new long[(length + 63) >>> 6];
+            for (int index = 0; index < length; index++) {
+                char c = seq.charAt(index);
+                if (c == '-' || c == '.') {
+                    gaps[index >>> 6] |= 1L << index;
+                }
+            }
+            keepColumns = null;
+            return;
+        }
+
+        int seqLength = seq.length();
+        for (int word = 0; word < gaps.length; word++) {
+            long bits = gaps[word];
+            if (bits == 0) {
+                continue;
+            }
+
+            //Only the columns still set in this word need checking
+            long remaining = bits;
+            while (remaining != 0) {
+                int col = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                char c = col < seqLength ? seq.charAt(col) : 0;
+                if (c != '-' && c != '.') {
+                    bits &= ~(1L << col);
+                }
+            }
+
+            if (bits != gaps[word]) {
+                gaps[word] = bits;
+                keepColumns = null;
+            }
+        }
+    }
+
+    public boolean isCommonGap(int col) {
+        return gaps != null && col < length && (gaps[col >>> 6] & (1L << col)) != 0;
+    }
+
+    /**
+     * Columns of the first sequence's length that aren't common gaps
+     */
+    public int[] getKeepColumns() {
+        if (keepColumns == null) {
+            int count = length;
+            for (long bits : gaps == null ? new long[0] : gaps) {
+                count -= Long.bitCount(bits);
+            }
+
+            keepColumns = new int[count];
+            int index = 0;
+            for (int col = 0; col < length; col++) {
+                if (!isCommonGap(col)) {
+                    keepColumns[index++] = col;
+                }
+            }
+        }
+
+        return keepColumns;
+    }
+
+    /**
+     * Removes the common gap columns from seq
+     */
+    public String trim(String seq) {
+        int[] keep = getKeepColumns();
+        char[] bases = seq.toCharArray();
+        char[] ret = new char[keep.length + Math.max(0, bases.length - length)];
+        int len = 0;
+
+        for (int col : keep) {
+            if (col >= bases.length) {
+                break;
+            }
+            ret[len++] = bases[col];
+        }
+        for (int col = length; col < bases.length; col++) {
+            ret[len++] = bases[col];
+        }
+
+        return new String(ret, 0, len);
+    }
+}
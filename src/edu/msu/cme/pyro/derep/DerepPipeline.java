@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import edu.msu.cme.pyro.derep.Dereplicator.DerepMode;
+import edu.msu.cme.rdp.readseq.readers.IndexedSeqReader;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import edu.msu.cme.rdp.readseq.readers.SequenceReader;
+import edu.msu.cme.rdp.readseq.utils.SeqUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads and fingerprints the input files for Dereplicator in the background.
+ * Each file is read by its own task, which hands batches of sequences to a
+ * pool of workers that convert them for the derep mode and fingerprint them.
+ * The futures for a file's batches go in a bounded queue in the order the
+ * sequences were read, so the consumer sees every file's sequences in input
+ * order.  Only the files the consumer is on and the next few are read ahead
+ *
+ * @author fishjord
+ */
+public class DerepPipeline {
+
+    private static final int BATCH_SIZE = 1024;
+    //Batches per file that can be read ahead of the consumer
+    private static final int QUEUE_BATCHES = 16;
+    private final List<File> files;
+    private final DerepMode mode;
+    private final String maskId;
+    private final int readAhead;
+    private final ExecutorService readers;
+    private final ExecutorService workers;
+    private final List<BlockingQueue<Future<Batch>>> queues = new ArrayList();
+    private int started = 0;
+
+    /**
+     * Sequences as they were read along with the converted sequence and its
+     * fingerprint, echo sequences (names starting with #) are passed through
+     * with no converted sequence
+     */
+    public static class Batch {
+
+        private final List<Sequence> seqs = new ArrayList();
+        private Sequence[] derepSeqs;
+        private long[] fpHi;
+        private long[] fpLo;
+
+        public int size() {
+            return seqs.size();
+        }
+
+        public Sequence getSeq(int index) {
+            return seqs.get(index);
+        }
+
+        /**
+         * The sequence to dereplicate, null for echo sequences
+         */
+        public Sequence getDerepSeq(int index) {
+            return derepSeqs[index];
+        }
+
+        public long getFingerprintHi(int index) {
+            return fpHi[index];
+        }
+
+        public long getFingerprintLo(int index) {
+            return fpLo[index];
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    public DerepPipeline(List<File> files, DerepMode mode, String maskId, int threads) {
+        this.files = files;
+        this.mode = mode;
+        this.maskId = maskId;
+        this.readAhead = Math.max(1, Math.min(threads, files.size()));
+
+        readers = Executors.newFixedThreadPool(readAhead, daemonThreads("derep-reader"));
+        workers = Executors.newFixedThreadPool(threads, daemonThreads("derep-hash"));
+
+        for (int index = 0; index < files.size(); index++) {
+            queues.add(new ArrayBlockingQueue<Future<Batch>>(QUEUE_BATCHES));
+        }
+        while (started < readAhead) {
+            startReader();
+        }
+    }
+
+    private void startReader() {
+        final int fileIndex = started++;
+        readers.submit(new Runnable() {
+
+            public void run() {
+                BlockingQueue<Future<Batch>> queue = queues.get(fileIndex);
+                try {
+                    try {
+                        readFile(files.get(fileIndex), queue);
+                        queue.put(done(null, null));
+                    } catch (Exception e) {
+                        queue.put(done(null, e));
+                    }
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+    }
+
+    private static Future<Batch> done(final Batch batch, final Exception e) {
+        FutureTask<Batch> ret = new FutureTask<Batch>(new Callable<Batch>() {
+
+            public Batch call() throws Exception {
+                if (e != null) {
+                    throw e;
+                }
+                return batch;
+            }
+        });
+        ret.run();
+        return ret;
+    }
+
+    private void readFile(File f, BlockingQueue<Future<Batch>> queue) throws Exception {
+        Batch batch = new Batch();
+        if (mode == DerepMode.model_only) {
+            IndexedSeqReader reader = new IndexedSeqReader(f, maskId);
+            for (String seqid : reader.getSeqIdSet()) {
+                batch.seqs.add(reader.readSeq(seqid));
+                if (batch.size() == BATCH_SIZE) {
+                    queue.put(workers.submit(convert(batch)));
+                    batch = new Batch();
+                }
+            }
+            reader.close();
+        } else {
+            SequenceReader reader = new SequenceReader(f);
+            Sequence seq;
+            while ((seq = reader.readNextSequence()) != null) {
+                batch.seqs.add(seq);
+                if (batch.size() == BATCH_SIZE) {
+                    queue.put(workers.submit(convert(batch)));
+                    batch = new Batch();
+                }
+            }
+            reader.close();
+        }
+
+        if (batch.size() > 0) {
+            queue.put(workers.submit(convert(batch)));
+        }
+    }
+
+    private Callable<Batch> convert(final Batch batch) {
+        return new Callable<Batch>() {
+
+            public Batch call() {
+                int size = batch.size();
+                batch.derepSeqs = new Sequence[size];
+                batch.fpHi = new long[size];
+                batch.fpLo = new long[size];
+
+                for (int index = 0; index < size; index++) {
+                    Sequence seq = batch.seqs.get(index);
+                    if (seq.getSeqName().startsWith("#")) {
+                        continue;
+                    }
+
+                    if (mode == DerepMode.unaligned) {
+                        seq = SeqUtils.getUnalignedSeq(seq);
+                    } else if (mode == DerepMode.formatted_model) {
+                        seq = SeqUtils.getMaskedBySeqString(seq);
+                    }
+
+                    long[] fp = UniqueSeqTable.fingerprint(seq.getSeqString());
+                    batch.derepSeqs[index] = seq;
+                    batch.fpHi[index] = fp[0];
+                    batch.fpLo[index] = fp[1];
+                }
+
+                return batch;
+            }
+        };
+    }
+
+    /**
+     * Next batch of sequences from the file, null once the file is done.
+     * Files have to be consumed in order
+     */
+    public Batch nextBatch(int fileIndex) throws IOException {
+        //Keep readAhead files past the one being consumed in flight
+        while (started < files.size() && started <= fileIndex + readAhead) {
+            startReader();
+        }
+
+        try {
+            return queues.get(fileIndex).take().get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted reading " + files.get(fileIndex));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to read " + files.get(fileIndex) + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    public void close() {
+        readers.shutdownNow();
+        workers.shutdownNow();
+    }
+}
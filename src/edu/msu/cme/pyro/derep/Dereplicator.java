@@ -4,144 +4,508 @@ package edu.msu.cme.pyro.derep;
  * Ribosomal Database Project II
  * Copyright 2009 Michigan State University Board of Trustees
  */
+import edu.msu.cme.pyro.cluster.utils.ClusterUtils;
 import edu.msu.cme.rdp.readseq.writers.FastaWriter;
 import edu.msu.cme.rdp.readseq.MaskSequenceNotFoundException;
 import edu.msu.cme.rdp.readseq.QSequence;
 import edu.msu.cme.rdp.readseq.readers.Sequence;
 import edu.msu.cme.rdp.readseq.SequenceParsingException;
-import edu.msu.cme.rdp.readseq.readers.IndexedSeqReader;
-import edu.msu.cme.rdp.readseq.readers.SequenceReader;
-import edu.msu.cme.rdp.readseq.utils.SeqUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.PriorityQueue;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
-import org.apache.commons.codec.digest.DigestUtils;
 
 /**
+ * Dereplicates sequences in a fixed amount of memory.  Unique sequences are
+ * collected in a UniqueSeqTable until it outgrows the memory budget, then the
+ * table is spilled as a run split over PARTITIONS files by fingerprint so
+ * every copy of a sequence ends up in the same partition.  Once all the
+ * sequences are read each partition is grouped on its own and sorted in to
+ * output order, and the sorted partitions are merged.  A partition whose
+ * unique sequences don't fit in the budget is split again on the next byte
+ * of the fingerprint, and its sorted pieces merged back in to one file.
+ *
+ * Unique sequences come out in the order they first appear in the input, or
+ * by decreasing size (then first appearance) when sorted
  *
  * @author farrisry
  */
 public class Dereplicator {
 
-    Map<String, List<DerepSeq>> hashToSeq = new HashMap<String, List<DerepSeq>>();
-    List<DerepSeq> seqs = new ArrayList<DerepSeq>();
+    public static final int PARTITIONS = 256;
+    //Bytes in a fingerprint, partitions can be split this many times
+    private static final int FINGERPRINT_BYTES = 16;
+    private final File workDir;
+    private final long memBudget;
+    private final UniqueSeqTable run = new UniqueSeqTable();
+    private final File[] partitionFiles = new File[PARTITIONS];
+    private final DataOutputStream[] partitions = new DataOutputStream[PARTITIONS];
+    private final File[] sortedFiles = new File[PARTITIONS];
+    private long ordinal = 0;
+    private int runs = 0;
+    private int splits = 0;
+    private final CommonGaps commonGaps = new CommonGaps();
+    private PriorityQueue<PartitionCursor> merge = null;
+
+    public static class DerepSeq {
+
+        long ordinal;
+        int size;
+        String ids;
+        Sequence seq;
 
-    static class DerepSeq {
+        public Sequence getSeq() {
+            return seq;
+        }
 
-        List<String> ids = new ArrayList<String>();
-        Sequence seq;
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Comma separated ids of every copy of the sequence, in input order
+         */
+        public String getIds() {
+            return ids;
+        }
+    }
+
+    /**
+     * Next unique sequence from one sorted partition
+     */
+    private static class PartitionCursor {
+
+        final DataInputStream in;
+        DerepSeq curr;
 
-        public DerepSeq(Sequence seq) {
-            this.seq = seq;
+        PartitionCursor(DataInputStream in) {
+            this.in = in;
         }
     }
 
-    public void addSeq(Sequence seq) {
-        String bases = seq.getSeqString().toUpperCase();
+    private static class OutputOrder implements Comparator<DerepSeq> {
 
-        String shaHash = DigestUtils.shaHex(bases);
+        private final boolean sorted;
 
-        List<DerepSeq> hashSeqs = hashToSeq.get(shaHash);
-        if (hashSeqs == null) {
-            hashSeqs = new ArrayList<DerepSeq>();
-            hashToSeq.put(shaHash, hashSeqs);
+        OutputOrder(boolean sorted) {
+            this.sorted = sorted;
         }
 
-        DerepSeq exemplar = null;
-        for (DerepSeq s : hashSeqs) {
-            if (s.seq.getSeqString().equals(seq.getSeqString())) {
-                exemplar = s;
-                break;
+        public int compare(DerepSeq a, DerepSeq b) {
+            if (sorted && a.size != b.size) {
+                return a.size > b.size ? -1 : 1;
             }
+            return a.ordinal < b.ordinal ? -1 : (a.ordinal == b.ordinal ? 0 : 1);
         }
+    }
+
+    public Dereplicator(File workDir, long memBudget) {
+        this.workDir = workDir;
+        this.memBudget = memBudget;
+    }
+
+    public void addSeq(Sequence seq) throws IOException {
+        long[] fp = UniqueSeqTable.fingerprint(seq.getSeqString());
+        addSeq(seq, fp[0], fp[1]);
+    }
 
-        if (exemplar == null) {
-            exemplar = new DerepSeq(seq);
-            hashSeqs.add(exemplar);
-            seqs.add(exemplar);
+    /**
+     * Adds a sequence that's already been fingerprinted
+     */
+    public void addSeq(Sequence seq, long fingerprintHi, long fingerprintLo) throws IOException {
+        int uniqueSeqs = run.size();
+        run.add(fingerprintHi, fingerprintLo, ordinal++, 1, seq, seq.getSeqName());
+        if (run.size() != uniqueSeqs) {
+            //Copies can't change the common gaps, only check the first in each run
+            commonGaps.add(seq.getSeqString());
         }
+        if (run.getAllocatedBytes() > memBudget) {
+            spill();
+        }
+    }
 
-        exemplar.ids.add(seq.getSeqName());
+    /**
+     * Byte level of the fingerprint, level 0 is the top byte of the high half
+     */
+    private static int partition(long fingerprintHi, long fingerprintLo, int level) {
+        long half = level < 8 ? fingerprintHi : fingerprintLo;
+        return (int) ((half >>> (56 - 8 * (level % 8))) & 0xff);
     }
 
-    public Set<DerepSeq> getUniqueSeqs() {
-        Set<DerepSeq> seqToIds = new HashSet<DerepSeq>();
-        for (DerepSeq seq : seqs) {
-            seqToIds.add(seq);
+    private DataOutputStream partitionStream(File[] files, DataOutputStream[] streams, int p, String prefix) throws IOException {
+        if (streams[p] == null) {
+            files[p] = File.createTempFile(prefix + p + "_", ".tmp", workDir);
+            streams[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[p])));
         }
-        return seqToIds;
+        return streams[p];
     }
 
-    public Set<DerepSeq> getSortedUniqueSeqs() {
-        Set<DerepSeq> seqToIds = new TreeSet<DerepSeq>(new SeqComparator());
-        for (DerepSeq seq : seqs) {
-            seqToIds.add(seq);
+    /**
+     * Writes every entry of the table to the partition for its fingerprint
+     * byte at level
+     */
+    private void writePartitioned(UniqueSeqTable table, int level, File[] files, DataOutputStream[] streams, String prefix) throws IOException {
+        for (int entry = 0; entry < table.size(); entry++) {
+            long hi = table.getFingerprintHi(entry);
+            long lo = table.getFingerprintLo(entry);
+            DataOutputStream out = partitionStream(files, streams, partition(hi, lo, level), prefix);
+
+            writeRecord(out, hi, lo, table.getFirstOrdinal(entry), table.getCount(entry), table.getExemplar(entry), table.getIds(entry));
         }
-        return seqToIds;
     }
-    
-    public static class SeqComparator implements Comparator {
-        public int compare(Object a, Object b){
-            if ( ((DerepSeq)a).ids.size() < ((DerepSeq)b).ids.size()){
-                return 1;
-            } else {
-                return -1;
+
+    private void spill() throws IOException {
+        if (run.size() == 0) {
+            return;
+        }
+
+        writePartitioned(run, 0, partitionFiles, partitions, "derep_partition");
+        runs++;
+        run.clear();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len == -1) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    private static void writeRecord(DataOutputStream out, long hi, long lo, long ordinal, int count, Sequence seq, String ids) throws IOException {
+        out.writeLong(hi);
+        out.writeLong(lo);
+        out.writeLong(ordinal);
+        out.writeInt(count);
+        writeString(out, seq.getSeqName());
+        writeString(out, seq.getDesc());
+        writeString(out, seq.getSeqString());
+        writeString(out, ids);
+
+        byte[] qual = (seq instanceof QSequence) ? ((QSequence) seq).getQuality() : null;
+        if (qual == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(qual.length);
+            out.write(qual);
+        }
+    }
+
+    /**
+     * Reads a record, its fingerprint goes in fingerprint.  Returns null at
+     * the end of the stream
+     */
+    private static DerepSeq readRecord(DataInputStream in, long[] fingerprint) throws IOException {
+        try {
+            fingerprint[0] = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        fingerprint[1] = in.readLong();
+        return readSeq(in);
+    }
+
+    /**
+     * Reads a record in to table, returns false at the end of the stream
+     */
+    private static boolean readRecord(DataInputStream in, UniqueSeqTable table) throws IOException {
+        long[] fp = new long[2];
+        DerepSeq seq = readRecord(in, fp);
+        if (seq == null) {
+            return false;
+        }
+        table.add(fp[0], fp[1], seq.ordinal, seq.size, seq.seq, seq.ids);
+
+        return true;
+    }
+
+    private static DerepSeq readSeq(DataInputStream in) throws IOException {
+        DerepSeq ret = new DerepSeq();
+        ret.ordinal = in.readLong();
+        ret.size = in.readInt();
+        String name = readString(in);
+        String desc = readString(in);
+        String bases = readString(in);
+        ret.ids = readString(in);
+
+        int qualLen = in.readInt();
+        if (qualLen == -1) {
+            ret.seq = new Sequence(name, desc, bases);
+        } else {
+            byte[] qual = new byte[qualLen];
+            in.readFully(qual);
+            ret.seq = new QSequence(name, desc, bases, qual);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Spills what's left of the last run, then groups each partition and
+     * sorts it in to output order.  Returns the number of unique sequences
+     */
+    public long finish(final boolean sorted) throws IOException {
+        spill();
+        System.err.println("Spilled " + runs + " run(s) of unique sequences");
+
+        long uniqueSeqs = 0;
+        OutputOrder order = new OutputOrder(sorted);
+
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (partitions[p] == null) {
+                continue;
+            }
+            partitions[p].close();
+            partitions[p] = null;
+
+            long[] partitionSeqs = new long[1];
+            sortedFiles[p] = groupPartition(partitionFiles[p], 0, order, partitionSeqs);
+            partitionFiles[p] = null;
+            uniqueSeqs += partitionSeqs[0];
+        }
+        if (splits > 0) {
+            System.err.println("Split " + splits + " partition(s) that didn't fit in the memory budget");
+        }
+
+        merge = new PriorityQueue<PartitionCursor>(PARTITIONS, cursorOrder(order));
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (sortedFiles[p] != null) {
+                PartitionCursor cursor = new PartitionCursor(new DataInputStream(new BufferedInputStream(new FileInputStream(sortedFiles[p]))));
+                advance(cursor, merge);
             }
         }
+
+        return uniqueSeqs;
+    }
+
+    private static Comparator<PartitionCursor> cursorOrder(final OutputOrder order) {
+        return new Comparator<PartitionCursor>() {
+
+            public int compare(PartitionCursor a, PartitionCursor b) {
+                return order.compare(a.curr, b.curr);
+            }
+        };
     }
-    
-    private static Set<Integer> idGapCols(Dereplicator derep) {
-        Set<Integer> ret = null;
-
-        for (DerepSeq seq : derep.getUniqueSeqs()) {
-            Set<Integer> gaps = new HashSet();
-            char[] bases = seq.seq.getSeqString().toCharArray();
-
-            for (int index = 0; index < bases.length; index++) {
-                char c = bases[index];
-                if (c == '-' || c == '.') {
-                    gaps.add(index);
+
+    /**
+     * Groups the records in a partition file (split on the fingerprint byte at
+     * level) and writes them in output order to a new file, which is returned.
+     * If the partition's unique sequences (more than one, a single sequence
+     * can't be split) outgrow the memory budget while it's loaded it's split
+     * on the next fingerprint byte instead, each piece is
+     * grouped the same way and the sorted pieces are merged.  The partition
+     * file is deleted, uniqueSeqs[0] is set to the number of unique sequences
+     */
+    private File groupPartition(File partitionFile, int level, OutputOrder order, long[] uniqueSeqs) throws IOException {
+        UniqueSeqTable table = new UniqueSeqTable();
+        File[] pieceFiles = null;
+        DataOutputStream[] pieces = null;
+        String piecePrefix = "derep_split" + (level + 1) + "_";
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(partitionFile)));
+        try {
+            while (readRecord(in, table)) {
+                if (table.getAllocatedBytes() > memBudget && table.size() > 1 && level + 1 < FINGERPRINT_BYTES) {
+                    splits++;
+                    pieceFiles = new File[PARTITIONS];
+                    pieces = new DataOutputStream[PARTITIONS];
+                    writePartitioned(table, level + 1, pieceFiles, pieces, piecePrefix);
+                    table.clear();
+
+                    long[] fp = new long[2];
+                    DerepSeq seq;
+                    while ((seq = readRecord(in, fp)) != null) {
+                        DataOutputStream out = partitionStream(pieceFiles, pieces, partition(fp[0], fp[1], level + 1), piecePrefix);
+                        writeRecord(out, fp[0], fp[1], seq.ordinal, seq.size, seq.seq, seq.ids);
+                    }
+                    break;
                 }
             }
+        } finally {
+            in.close();
+            partitionFile.delete();
+        }
 
-            if (ret == null) {
-                ret = gaps;
-            } else {
-                ret.retainAll(gaps);
+        if (pieces == null) {
+            uniqueSeqs[0] = table.size();
+            return writeSorted(table, order);
+        }
+
+        List<File> sortedPieces = new ArrayList();
+        try {
+            for (int p = 0; p < PARTITIONS; p++) {
+                if (pieces[p] == null) {
+                    continue;
+                }
+                pieces[p].close();
+                pieces[p] = null;
+
+                long[] pieceSeqs = new long[1];
+                sortedPieces.add(groupPartition(pieceFiles[p], level + 1, order, pieceSeqs));
+                pieceFiles[p] = null;
+                uniqueSeqs[0] += pieceSeqs[0];
+            }
+
+            return mergeSorted(sortedPieces, order);
+        } finally {
+            for (int p = 0; p < PARTITIONS; p++) {
+                if (pieces[p] != null) {
+                    pieces[p].close();
+                }
+                if (pieceFiles[p] != null) {
+                    pieceFiles[p].delete();
+                }
+            }
+            for (File f : sortedPieces) {
+                f.delete();
             }
         }
+    }
+
+    /**
+     * Writes a grouped partition in output order to a new file
+     */
+    private File writeSorted(UniqueSeqTable table, OutputOrder order) throws IOException {
+        DerepSeq[] seqs = new DerepSeq[table.size()];
+        for (int entry = 0; entry < table.size(); entry++) {
+            DerepSeq seq = new DerepSeq();
+            seq.ordinal = table.getFirstOrdinal(entry);
+            seq.size = table.getCount(entry);
+            seq.ids = table.getIds(entry);
+            seq.seq = table.getExemplar(entry);
+            seqs[entry] = seq;
+        }
+        table.clear();
+        Arrays.sort(seqs, order);
+
+        File ret = File.createTempFile("derep_sorted", ".tmp", workDir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ret)));
+        for (DerepSeq seq : seqs) {
+            writeRecord(out, 0, 0, seq.ordinal, seq.size, seq.seq, seq.ids);
+        }
+        out.close();
 
         return ret;
     }
 
-    private static String removeCommonGaps(Set<Integer> gaps, String seq) {
-        StringBuilder ret = new StringBuilder();
+    /**
+     * Merges sorted files in to one, the pieces of a split partition have no
+     * sequences in common so this is only a merge
+     */
+    private File mergeSorted(List<File> sortedPieces, OutputOrder order) throws IOException {
+        PriorityQueue<PartitionCursor> pieces = new PriorityQueue<PartitionCursor>(Math.max(1, sortedPieces.size()), cursorOrder(order));
+        File ret = File.createTempFile("derep_sorted", ".tmp", workDir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ret)));
+        try {
+            for (File f : sortedPieces) {
+                advance(new PartitionCursor(new DataInputStream(new BufferedInputStream(new FileInputStream(f)))), pieces);
+            }
 
-        char[] bases = seq.toCharArray();
-        for (int index = 0; index < bases.length; index++) {
-            if (!gaps.contains(index)) {
-                ret.append(bases[index]);
+            PartitionCursor cursor;
+            while ((cursor = pieces.poll()) != null) {
+                DerepSeq seq = cursor.curr;
+                writeRecord(out, 0, 0, seq.ordinal, seq.size, seq.seq, seq.ids);
+                advance(cursor, pieces);
+            }
+        } finally {
+            out.close();
+            for (PartitionCursor cursor : pieces) {
+                cursor.in.close();
             }
         }
 
-        return ret.toString();
+        return ret;
+    }
+
+    private static void advance(PartitionCursor cursor, PriorityQueue<PartitionCursor> queue) throws IOException {
+        try {
+            cursor.in.readLong();
+        } catch (EOFException e) {
+            cursor.in.close();
+            return;
+        }
+        cursor.in.readLong();
+        cursor.curr = readSeq(cursor.in);
+        queue.add(cursor);
+    }
+
+    /**
+     * Unique sequences in output order, null after the last one
+     */
+    public DerepSeq nextUniqueSeq() throws IOException {
+        PartitionCursor cursor = merge.poll();
+        if (cursor == null) {
+            return null;
+        }
+
+        DerepSeq ret = cursor.curr;
+        advance(cursor, merge);
+        return ret;
     }
 
-    private static enum DerepMode { unaligned, aligned, model_only, formatted_model };
+    /**
+     * Columns that are a gap in every sequence added
+     */
+    public CommonGaps getCommonGaps() {
+        return commonGaps;
+    }
+
+    /**
+     * Removes the temp files
+     */
+    public void close() {
+        for (int p = 0; p < PARTITIONS; p++) {
+            try {
+                if (partitions[p] != null) {
+                    partitions[p].close();
+                }
+            } catch (IOException ignore) {
+            }
+            if (partitionFiles[p] != null) {
+                partitionFiles[p].delete();
+            }
+            if (sortedFiles[p] != null) {
+                sortedFiles[p].delete();
+            }
+        }
+        if (merge != null) {
+            for (PartitionCursor cursor : merge) {
+                try {
+                    cursor.in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    static enum DerepMode { unaligned, aligned, model_only, formatted_model };
 
     public static void main(String... args) throws IOException, SequenceParsingException, MaskSequenceNotFoundException {
         Options options = new Options();
@@ -155,6 +519,10 @@ public class Dereplicator {
         options.addOption("o", "out", true, "Write sequences to this file");
         
         options.addOption("s", "sorted", false, "Sort sequence by number of members represented");
+        options.addOption("t", "threads", true, "Number of threads to read and fingerprint sequences with (default = 1)");
+        options.addOption("w", "workdir", true, "Working directory where temp files are stored (default = .)");
+        options.addOption("M", "mem-budget", true, "Memory to hold unique sequences in before spilling them to the working directory, ie 512m or 8g (default = half the free heap)");
+        options.addOption("b", "binary-mappings", false, "Write the id and sample mappings in the memory mapped binary format");
 
         FastaWriter qualOut = null;
         FastaWriter seqWriter = new FastaWriter(System.out);
@@ -162,9 +530,14 @@ public class Dereplicator {
         String maskId = null;
         boolean keepCommonGaps;
         boolean sorted = false;
+        File workDir = new File(".");
+        long memBudget = -1;
+        int threads = 1;
+        boolean binaryMappings = false;
 
-        Dereplicator derep = new Dereplicator();
-        SampleMapping<String> sampleMapping = new SampleMapping<String>();
+        Dereplicator derep = null;
+        PrintStream sampleOut = null;
+        MappedSampleMapping.Writer sampleWriter = null;
 
         try {
             CommandLine line = new PosixParser().parse(options, args);
@@ -207,6 +580,25 @@ public class Dereplicator {
 
             keepCommonGaps = line.hasOption("keep-common-gaps");
             sorted = line.hasOption("sorted");
+            binaryMappings = line.hasOption("binary-mappings");
+
+            if (line.hasOption("workdir")) {
+                workDir = new File(line.getOptionValue("workdir"));
+                if (!workDir.isDirectory()) {
+                    throw new Exception("Working directory " + workDir + " doesn't exist");
+                }
+            }
+
+            if (line.hasOption("threads")) {
+                threads = Integer.parseInt(line.getOptionValue("threads"));
+                if (threads < 1) {
+                    throw new Exception("Threads must be > 0");
+                }
+            }
+
+            if (line.hasOption("mem-budget")) {
+                memBudget = ClusterUtils.parseMemSize(line.getOptionValue("mem-budget"));
+            }
 
             if (line.getArgs().length < 3) {
                 throw new Exception("Too few arguments");
@@ -214,127 +606,133 @@ public class Dereplicator {
                 throw new Exception("Cannot dereplicate multiple aligned files, try using a mask sequence instead");
             }
 
+            if (memBudget == -1) {
+                Runtime rt = Runtime.getRuntime();
+                memBudget = Math.max(rt.maxMemory() / 2 - (rt.totalMemory() - rt.freeMemory()), 1L << 20);
+            }
+            derep = new Dereplicator(workDir, memBudget);
+
+            File idMappingFile = new File(line.getArgs()[0]);
+            File sampleMappingFile = new File(line.getArgs()[1]);
+            if (binaryMappings) {
+                sampleWriter = new MappedSampleMapping.Writer(sampleMappingFile);
+            } else {
+                sampleOut = new PrintStream(new BufferedOutputStream(new FileOutputStream(sampleMappingFile)));
+            }
+
             List<Sequence> echoSeqs = new ArrayList();
             long startTime = System.currentTimeMillis();
             long totalSeqs = 0;
             long expectedSeqLength = -1;
 
+            List<File> inputFiles = new ArrayList();
             for (int index = 2; index < line.getArgs().length; index++) {
-                String arg = line.getArgs()[index];
-                String sampleName = new File(arg).getName();
-                if (sampleName.contains(".")) {
-                    sampleName = sampleName.substring(0, sampleName.lastIndexOf("."));
-                }
-
-                System.err.println("Processing " + arg);
-                if (mode == DerepMode.model_only) {
-                    IndexedSeqReader reader = new IndexedSeqReader(new File(arg), maskId);
-
-                    for (String seqid : reader.getSeqIdSet()) {
-                        Sequence seq = reader.readSeq(seqid);
-
-                        if (seq.getSeqName().startsWith("#")) {
-                            echoSeqs.add(seq);
-                            continue;
-                        }
-                        totalSeqs++;
-
-                        if(expectedSeqLength == -1) {
-                            expectedSeqLength = seq.getSeqString().length();
-                        } else if(expectedSeqLength != seq.getSeqString().length()) {
-                            throw new IOException("Sequence " + seq.getSeqName() + "'s length (" + seq.getSeqString().length() + ") doesn't match expected length " + expectedSeqLength);
-                        }
+                inputFiles.add(new File(line.getArgs()[index]));
+            }
 
-                        derep.addSeq(seq);
-                        sampleMapping.addSeq(sampleName, seq.getSeqName());
+            DerepPipeline pipeline = new DerepPipeline(inputFiles, mode, maskId, threads);
+            try {
+                for (int fileIndex = 0; fileIndex < inputFiles.size(); fileIndex++) {
+                    File inputFile = inputFiles.get(fileIndex);
+                    String sampleName = inputFile.getName();
+                    if (sampleName.contains(".")) {
+                        sampleName = sampleName.substring(0, sampleName.lastIndexOf("."));
                     }
-                    reader.close();
-                } else {
-                    SequenceReader reader = new SequenceReader(new File(arg));
-                    Sequence seq;
-                    while ((seq = reader.readNextSequence()) != null) {
-
-                        if (seq.getSeqName().startsWith("#")) {
-                            echoSeqs.add(seq);
-                            continue;
-                        }
 
-                        totalSeqs++;
-
-                        if (mode == DerepMode.unaligned) {
-                            seq = SeqUtils.getUnalignedSeq(seq);
-                        } else if(mode == DerepMode.formatted_model) {
-                            seq = SeqUtils.getMaskedBySeqString(seq);
+                    System.err.println("Processing " + inputFile);
+                    DerepPipeline.Batch batch;
+                    while ((batch = pipeline.nextBatch(fileIndex)) != null) {
+                        for (int index = 0; index < batch.size(); index++) {
+                            Sequence seq = batch.getDerepSeq(index);
+                            if (seq == null) {
+                                echoSeqs.add(batch.getSeq(index));
+                                continue;
+                            }
+                            totalSeqs++;
+
+                            if (mode == DerepMode.model_only) {
+                                if (expectedSeqLength == -1) {
+                                    expectedSeqLength = seq.getSeqString().length();
+                                } else if (expectedSeqLength != seq.getSeqString().length()) {
+                                    throw new IOException("Sequence " + seq.getSeqName() + "'s length (" + seq.getSeqString().length() + ") doesn't match expected length " + expectedSeqLength);
+                                }
+                            }
+
+                            derep.addSeq(seq, batch.getFingerprintHi(index), batch.getFingerprintLo(index));
+                            if (binaryMappings) {
+                                sampleWriter.addSeq(sampleName, seq.getSeqName());
+                            } else {
+                                sampleOut.println(seq.getSeqName() + "\t" + sampleName);
+                            }
                         }
-
-                        derep.addSeq(seq);
-
-                        sampleMapping.addSeq(sampleName, seq.getSeqName());
                     }
-                    reader.close();
                 }
+            } finally {
+                pipeline.close();
             }
 
-            File idMappingFile = new File(line.getArgs()[0]);
-            File sampleMappingFile = new File(line.getArgs()[1]);
+            if (binaryMappings) {
+                sampleWriter.close();
+                sampleWriter = null;
+            } else {
+                sampleOut.close();
+            }
 
-            sampleMapping.toStream(new PrintStream(new FileOutputStream(sampleMappingFile)));
-            
-            Set<DerepSeq> uniqueSeqs = null;
-            if(!sorted){
-                uniqueSeqs = derep.getUniqueSeqs();
+            boolean removeGaps = mode != DerepMode.unaligned && !keepCommonGaps;
+            long uniqueSeqs = derep.finish(sorted);
+            CommonGaps commonGaps = derep.getCommonGaps();
+            PrintStream idOut = null;
+            MappedIdMapping.Writer idWriter = null;
+            if (binaryMappings) {
+                idWriter = new MappedIdMapping.Writer(idMappingFile);
             } else {
-                uniqueSeqs = derep.getSortedUniqueSeqs();
+                idOut = new PrintStream(new BufferedOutputStream(new FileOutputStream(idMappingFile)));
             }
             int count = 0;
-            IdMapping<Integer> idMapping = new IdMapping<Integer>();
-
-            if (mode == DerepMode.unaligned) {
-                for (DerepSeq seq : uniqueSeqs) {
-                    List<String> ids = seq.ids;
-                    idMapping.addIds(count++, ids);
-                    seqWriter.writeSeq(seq.seq.getSeqName(), seq.seq.getDesc() + ";size=" + ids.size() + ";", seq.seq.getSeqString());
-
-                    if (qualOut != null && seq.seq instanceof QSequence) {
-                        String qseqStr = "";
-                        QSequence qseq = (QSequence) seq.seq;
-                        for (int index = 0; index < qseq.getQuality().length; index++) {
-                            qseqStr += qseq.getQuality()[index] + "  ";
-                        }
+            DerepSeq seq;
 
-                        qualOut.writeSeq(seq.seq.getSeqName(), qseqStr);
-                    }
+            while ((seq = derep.nextUniqueSeq()) != null) {
+                if (binaryMappings) {
+                    idWriter.addIds(count++, seq.ids.split(","));
+                } else {
+                    idOut.println(count++ + " " + seq.ids);
                 }
-            } else {
-                Set<Integer> allGapCols = idGapCols(derep);
-
-                for (DerepSeq seq : uniqueSeqs) {
-                    List<String> ids = seq.ids;
-                    idMapping.addIds(count++, ids);
 
-                    String seqString = seq.seq.getSeqString();
+                String seqString = seq.seq.getSeqString();
+                if (removeGaps) {
+                    seqString = commonGaps.trim(seqString);
+                }
+                seqWriter.writeSeq(seq.seq.getSeqName(), seq.seq.getDesc() + ";size=" + seq.size + ";", seqString);
 
-                    if (!keepCommonGaps) {
-                        seqString = removeCommonGaps(allGapCols, seqString);
+                if (mode == DerepMode.unaligned && qualOut != null && seq.seq instanceof QSequence) {
+                    StringBuilder qseqStr = new StringBuilder();
+                    QSequence qseq = (QSequence) seq.seq;
+                    for (int index = 0; index < qseq.getQuality().length; index++) {
+                        qseqStr.append(qseq.getQuality()[index]).append("  ");
                     }
-                    seqWriter.writeSeq(seq.seq.getSeqName(), seq.seq.getDesc() + ";size=" + ids.size() + ";", seqString);
+
+                    qualOut.writeSeq(seq.seq.getSeqName(), qseqStr.toString());
                 }
+            }
 
-                if (mode == DerepMode.aligned) {
-                    for (Sequence seq : echoSeqs) {
-                        String seqString = seq.getSeqString();
+            if (mode == DerepMode.aligned) {
+                for (Sequence echoSeq : echoSeqs) {
+                    String seqString = echoSeq.getSeqString();
 
-                        if (!keepCommonGaps) {
-                            seqString = removeCommonGaps(allGapCols, seqString);
-                        }
-                        seqWriter.writeSeq(seq.getSeqName(), seqString);
+                    if (removeGaps) {
+                        seqString = commonGaps.trim(seqString);
                     }
+                    seqWriter.writeSeq(echoSeq.getSeqName(), seqString);
                 }
             }
 
-            idMapping.toStream(new PrintStream(new FileOutputStream(idMappingFile)));
+            if (binaryMappings) {
+                idWriter.close();
+            } else {
+                idOut.close();
+            }
             System.err.println("Total sequences: " + totalSeqs);
-            System.err.println("Unique sequences: " + uniqueSeqs.size());
+            System.err.println("Unique sequences: " + uniqueSeqs);
             System.err.println("Dereplication complete: " + (System.currentTimeMillis() - startTime));
 
         } catch (Exception e) {
@@ -343,6 +741,9 @@ public class Dereplicator {
             System.err.println("Error: " + e.getMessage());
             System.exit(1);
         } finally {
+            if (derep != null) {
+                derep.close();
+            }
             try {
                 qualOut.close();
             } catch (Exception ignore) {
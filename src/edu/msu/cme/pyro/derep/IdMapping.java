@@ -15,6 +15,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -64,25 +65,43 @@ public class IdMapping<E> {
         ids.add(id);
     }
 
+    /**
+     * Adds the ids to the exemplar, throws IllegalArgumentException without
+     * changing the mapping if any of them are already mapped or one is
+     * repeated in idsToAdd
+     */
     public void addIds(E exemplarId, List<String> idsToAdd) {
+        Set<String> toAdd = new HashSet<String>();
+        Set<String> duplicates = new LinkedHashSet<String>();
+        for(String id : idsToAdd) {
+            if(seenSids.contains(id) || !toAdd.add(id)) {
+                duplicates.add(id);
+            }
+        }
+        if(!duplicates.isEmpty()) {
+            throw new IllegalArgumentException("Attempting to add duplicate ids " + duplicates);
+        }
+
         List<String> ids = idToIds.get(exemplarId);
         if (ids == null) {
             ids = new ArrayList<String>();
             idToIds.put(exemplarId, ids);
         }
 
-        if(!Collections.disjoint(seenSids, idsToAdd)) {
-            seenSids.retainAll(idsToAdd);
-            throw new IllegalArgumentException("Attempting to add duplicate ids " + seenSids);
-        }
-
-        seenSids.addAll(idsToAdd);
+        seenSids.addAll(toAdd);
         ids.addAll(idsToAdd);
     }
 
+    /**
+     * Loads a text id mapping, or opens a binary one (see MappedIdMapping)
+     */
     public static IdMapping<Integer> fromFile(File mapFile) {
         BufferedReader reader = null;
         try {
+            if (MappedIdMapping.isBinary(mapFile)) {
+                return MappedIdMapping.load(mapFile);
+            }
+
             IdMapping<Integer> map = new IdMapping<Integer>();
             reader = new BufferedReader(new FileReader(mapFile));
             String line;
@@ -114,7 +133,9 @@ public class IdMapping<E> {
             throw new RuntimeException(ex);
         } finally {
             try {
-                reader.close();
+                if (reader != null) {
+                    reader.close();
+                }
             } catch (IOException ex) {
             }
         }
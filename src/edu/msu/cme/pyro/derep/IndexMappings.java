@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.StringTokenizer;
+
+/**
+ * Converts text id and sample mappings to the binary formats read by
+ * MappedIdMapping and MappedSampleMapping, a line at a time so the text
+ * mappings are never loaded in to memory
+ *
+ * @author fishjord
+ */
+public class IndexMappings {
+
+    public static void indexIdMapping(File in, File out) throws IOException {
+        MappedIdMapping.Writer writer = new MappedIdMapping.Writer(out);
+        BufferedReader reader = new BufferedReader(new FileReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().length() != 0) {
+                StringTokenizer st = new StringTokenizer(line);
+                int id = Integer.parseInt(st.nextToken());
+                writer.addIds(id, st.nextToken().split(","));
+            }
+        }
+        reader.close();
+        writer.close();
+    }
+
+    public static void indexSampleMapping(File in, File out) throws IOException {
+        MappedSampleMapping.Writer writer = new MappedSampleMapping.Writer(out);
+        BufferedReader reader = new BufferedReader(new FileReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().length() > 0) {
+                String[] tokens = line.split("\\s");
+                writer.addSeq(tokens[1], tokens[0]);
+            }
+        }
+        reader.close();
+        writer.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("USAGE: <id_mapping> <sample_mapping> <out_id_mapping> <out_sample_mapping>");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        indexIdMapping(new File(args[0]), new File(args[2]));
+        indexSampleMapping(new File(args[1]), new File(args[3]));
+        System.err.println("Binary mappings written in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only memory map of a whole file, mapped in 1GB chunks so files over
+ * 2GB can be mapped.  Values are big endian, like DataOutputStream writes them
+ *
+ * @author fishjord
+ */
+class MappedFile {
+
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+    private final MappedByteBuffer[] chunks;
+    private final long length;
+
+    public MappedFile(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            length = channel.size();
+            chunks = new MappedByteBuffer[(int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT)];
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                long start = (long) chunk << CHUNK_SHIFT;
+                chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, 1L << CHUNK_SHIFT));
+            }
+        } finally {
+            //The mappings stay valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the first int of a file, or 0 if it's too short
+     */
+    public static int readMagic(File f) throws IOException {
+        if (f.length() < 4) {
+            return 0;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public byte get(long pos) {
+        return chunks[(int) (pos >>> CHUNK_SHIFT)].get((int) (pos & CHUNK_MASK));
+    }
+
+    public int getInt(long pos) {
+        int offset = (int) (pos & CHUNK_MASK);
+        if (offset <= CHUNK_MASK - 3) {
+            return chunks[(int) (pos >>> CHUNK_SHIFT)].getInt(offset);
+        }
+
+        int ret = 0;
+        for (int index = 0; index < 4; index++) {
+            ret = (ret << 8) | (get(pos + index) & 0xff);
+        }
+        return ret;
+    }
+
+    public long getLong(long pos) {
+        return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+    }
+
+    public void get(long pos, byte[] dst, int off, int len) {
+        while (len > 0) {
+            int offset = (int) (pos & CHUNK_MASK);
+            int n = (int) Math.min(len, (1L << CHUNK_SHIFT) - offset);
+            ByteBuffer chunk = chunks[(int) (pos >>> CHUNK_SHIFT)].duplicate();
+            chunk.position(offset);
+            chunk.get(dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read only id mapping backed by a memory mapped binary mapping file.  The
+ * file holds the exemplar ids, where each exemplar's sequence ids start and
+ * a StringTable of the sequence ids grouped by exemplar, so lookups in
+ * either direction are binary searches and only the exemplar ids are held in
+ * memory.  IdMapping.fromFile opens these automatically
+ *
+ * @author fishjord
+ */
+public class MappedIdMapping extends IdMapping<Integer> {
+
+    public static final int MAGIC = 0x8949444d;
+    private static final int VERSION = 1;
+    private final int[] exemplarIds;
+    private final int[] exemplarStart;
+    //exemplarIds sorted, and the index of each in exemplarIds
+    private final int[] sortedIds;
+    private final int[] sortedIndex;
+    private final StringTable seqIds;
+
+    private MappedIdMapping(MappedFile file) throws IOException {
+        if (file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+            throw new IOException("Not a binary id mapping");
+        }
+
+        int numExemplars = file.getInt(8);
+        long pos = 12;
+        exemplarIds = new int[numExemplars];
+        for (int index = 0; index < numExemplars; index++, pos += 4) {
+            exemplarIds[index] = file.getInt(pos);
+        }
+        exemplarStart = new int[numExemplars + 1];
+        for (int index = 0; index <= numExemplars; index++, pos += 4) {
+            exemplarStart[index] = file.getInt(pos);
+        }
+        seqIds = new StringTable(file, pos);
+
+        long[] packed = new long[numExemplars];
+        for (int index = 0; index < numExemplars; index++) {
+            packed[index] = ((long) exemplarIds[index] << 32) | index;
+        }
+        Arrays.sort(packed);
+        sortedIds = new int[numExemplars];
+        sortedIndex = new int[numExemplars];
+        for (int index = 0; index < numExemplars; index++) {
+            sortedIds[index] = (int) (packed[index] >> 32);
+            sortedIndex[index] = (int) packed[index];
+        }
+    }
+
+    public static MappedIdMapping load(File f) throws IOException {
+        return new MappedIdMapping(new MappedFile(f));
+    }
+
+    public static boolean isBinary(File f) throws IOException {
+        return MappedFile.readMagic(f) == MAGIC;
+    }
+
+    private int exemplarIndex(Object id) {
+        if (!(id instanceof Integer)) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(sortedIds, (Integer) id);
+        return index < 0 ? -1 : sortedIndex[index];
+    }
+
+    /**
+     * Index of the exemplar a position in the sequence id table belongs to
+     */
+    private int exemplarOf(int seqIndex) {
+        int lo = 0, hi = exemplarIds.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (exemplarStart[mid] <= seqIndex) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * The exemplar id of a sequence, null if the sequence isn't mapped
+     */
+    public Integer getExemplar(String seqid) {
+        int seqIndex = seqIds.indexOf(seqid);
+        return seqIndex == -1 ? null : exemplarIds[exemplarOf(seqIndex)];
+    }
+
+    /**
+     * Position of the exemplar's first sequence id in the id table, the ids
+     * getIds returns are getIdAt(start) onwards.  -1 if the exemplar isn't
+     * mapped
+     */
+    public int getIdsStart(Integer id) {
+        int index = exemplarIndex(id);
+        return index == -1 ? -1 : exemplarStart[index];
+    }
+
+    /**
+     * Sequence id at a position in the id table
+     */
+    public String getIdAt(int index) {
+        return seqIds.get(index);
+    }
+
+    @Override
+    public List<String> getIds(Integer id) {
+        int index = exemplarIndex(id);
+        if (index == -1) {
+            return null;
+        }
+
+        final int start = exemplarStart[index];
+        final int size = exemplarStart[index + 1] - start;
+        return new AbstractList<String>() {
+
+            @Override
+            public String get(int i) {
+                if (i < 0 || i >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+                }
+                return seqIds.get(start + i);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Set<Integer> getAll() {
+        return new AbstractSet<Integer>() {
+
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+
+                    private int index = 0;
+
+                    public boolean hasNext() {
+                        return index < exemplarIds.length;
+                    }
+
+                    public Integer next() {
+                        if (index >= exemplarIds.length) {
+                            throw new NoSuchElementException();
+                        }
+                        return exemplarIds[index++];
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return exemplarIndex(o) != -1;
+            }
+
+            @Override
+            public int size() {
+                return exemplarIds.length;
+            }
+        };
+    }
+
+    /**
+     * View of the mapping from sequence id to exemplar id, lookups are binary
+     * searches of the mapped file
+     */
+    @Override
+    public Map<String, Integer> getReverseMapping() {
+        return new AbstractMap<String, Integer>() {
+
+            @Override
+            public Integer get(Object key) {
+                return (key instanceof String) ? getExemplar((String) key) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return seqIds.size();
+            }
+
+            @Override
+            public Set<Map.Entry<String, Integer>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Integer>>() {
+
+                    @Override
+                    public Iterator<Map.Entry<String, Integer>> iterator() {
+                        return new Iterator<Map.Entry<String, Integer>>() {
+
+                            private int seqIndex = 0;
+                            private int exemplar = 0;
+
+                            public boolean hasNext() {
+                                return seqIndex < seqIds.size();
+                            }
+
+                            public Map.Entry<String, Integer> next() {
+                                if (seqIndex >= seqIds.size()) {
+                                    throw new NoSuchElementException();
+                                }
+                                while (exemplarStart[exemplar + 1] <= seqIndex) {
+                                    exemplar++;
+                                }
+                                return new AbstractMap.SimpleImmutableEntry<String, Integer>(seqIds.get(seqIndex++), exemplarIds[exemplar]);
+                            }
+
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return seqIds.size();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public void addId(Integer exemplarId, String id) {
+        throw new UnsupportedOperationException("Binary id mappings are read only");
+    }
+
+    @Override
+    public void addIds(Integer exemplarId, List<String> idsToAdd) {
+        throw new UnsupportedOperationException("Binary id mappings are read only");
+    }
+
+    @Override
+    public int size() {
+        return exemplarIds.length;
+    }
+
+    /**
+     * Writes the mapping in the text format
+     */
+    @Override
+    public void toStream(PrintStream out) {
+        for (int index = 0; index < exemplarIds.length; index++) {
+            StringBuilder buf = new StringBuilder();
+            buf.append(exemplarIds[index]).append(' ');
+            for (int seqIndex = exemplarStart[index]; seqIndex < exemplarStart[index + 1]; seqIndex++) {
+                if (seqIndex != exemplarStart[index]) {
+                    buf.append(',');
+                }
+                buf.append(seqIds.get(seqIndex));
+            }
+            out.println(buf.toString());
+        }
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Writes a binary id mapping one exemplar at a time
+     */
+    public static class Writer {
+
+        private final File out;
+        private final StringTable.Writer seqIds;
+        private int[] exemplarIds = new int[1024];
+        private int[] exemplarStart = new int[1025];
+        private int numExemplars = 0;
+
+        public Writer(File out) throws IOException {
+            this.out = out;
+            seqIds = new StringTable.Writer(out.getAbsoluteFile().getParentFile());
+        }
+
+        public void addIds(int exemplarId, String[] ids) throws IOException {
+            if (numExemplars == exemplarIds.length) {
+                exemplarIds = Arrays.copyOf(exemplarIds, numExemplars * 2);
+                exemplarStart = Arrays.copyOf(exemplarStart, numExemplars * 2 + 1);
+            }
+            exemplarIds[numExemplars] = exemplarId;
+            for (String id : ids) {
+                seqIds.add(id);
+            }
+            exemplarStart[++numExemplars] = seqIds.size();
+        }
+
+        /**
+         * Writes the mapping, fails the same way loading a text mapping does
+         * if an exemplar or sequence id is in it more than once
+         */
+        public void close() throws IOException {
+            int[] sortedExemplars = Arrays.copyOf(exemplarIds, numExemplars);
+            Arrays.sort(sortedExemplars);
+            for (int index = 1; index < sortedExemplars.length; index++) {
+                if (sortedExemplars[index] == sortedExemplars[index - 1]) {
+                    seqIds.close();
+                    throw new IOException("ID " + sortedExemplars[index] + " appears multiple times in the id mapping");
+                }
+            }
+            sortedExemplars = null;
+
+            int[] sorted;
+            try {
+                sorted = seqIds.sort();
+                for (int index = 1; index < sorted.length; index++) {
+                    if (seqIds.same(sorted[index - 1], sorted[index])) {
+                        throw new IOException("SID " + seqIds.get(sorted[index]) + " appears multiple times in the id mapping");
+                    }
+                }
+            } catch (IOException e) {
+                seqIds.close();
+                throw e;
+            }
+
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(numExemplars);
+                for (int index = 0; index < numExemplars; index++) {
+                    dos.writeInt(exemplarIds[index]);
+                }
+                for (int index = 0; index <= numExemplars; index++) {
+                    dos.writeInt(exemplarStart[index]);
+                }
+                seqIds.write(dos, null, sorted);
+            } finally {
+                dos.close();
+                seqIds.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read only sample mapping backed by a memory mapped binary mapping file.
+ * Sample names are stored once and each sample's sequence ids are a range
+ * of a StringTable, so a sequence's sample is found from its position in
+ * the table instead of storing the sample for every sequence.
+ * SampleMapping.fromFile opens these automatically
+ *
+ * Duplicates behave as they do in a text mapping, an id is in each sample
+ * at most once but can be in more than one sample, in which case
+ * getSampleById is the last of them in sample order
+ *
+ * @author fishjord
+ */
+public class MappedSampleMapping extends SampleMapping<String> {
+
+    public static final int MAGIC = 0x89534d50;
+    private static final int VERSION = 1;
+    private final String[] samples;
+    private final int[] sampleStart;
+    private final StringTable seqIds;
+
+    private MappedSampleMapping(MappedFile file) throws IOException {
+        if (file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+            throw new IOException("Not a binary sample mapping");
+        }
+
+        samples = new String[file.getInt(8)];
+        long pos = 12;
+        for (int index = 0; index < samples.length; index++) {
+            byte[] b = new byte[file.getInt(pos)];
+            file.get(pos + 4, b, 0, b.length);
+            samples[index] = new String(b, "UTF-8");
+            pos += 4 + b.length;
+        }
+        sampleStart = new int[samples.length + 1];
+        for (int index = 0; index <= samples.length; index++, pos += 4) {
+            sampleStart[index] = file.getInt(pos);
+        }
+        seqIds = new StringTable(file, pos);
+    }
+
+    public static MappedSampleMapping load(File f) throws IOException {
+        return new MappedSampleMapping(new MappedFile(f));
+    }
+
+    public static boolean isBinary(File f) throws IOException {
+        return MappedFile.readMagic(f) == MAGIC;
+    }
+
+    private int sampleIndex(String sample) {
+        for (int index = 0; index < samples.length; index++) {
+            if (samples[index].equals(sample)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private int sampleOf(int seqIndex) {
+        int lo = 0, hi = samples.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (sampleStart[mid] <= seqIndex) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public void addSeq(String sample, String id) {
+        throw new UnsupportedOperationException("Binary sample mappings are read only");
+    }
+
+    @Override
+    public List<String> getSampleList() {
+        return new ArrayList<String>(Arrays.asList(samples));
+    }
+
+    @Override
+    public Set<String> getIdsBySample(String sample) {
+        final int index = sampleIndex(sample);
+        if (index == -1) {
+            return null;
+        }
+
+        return new AbstractSet<String>() {
+
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+
+                    private int seqIndex = sampleStart[index];
+
+                    public boolean hasNext() {
+                        return seqIndex < sampleStart[index + 1];
+                    }
+
+                    public String next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return seqIds.get(seqIndex++);
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof String)) {
+                    return false;
+                }
+                for (int seqIndex : seqIds.indexesOf((String) o)) {
+                    if (seqIndex >= sampleStart[index] && seqIndex < sampleStart[index + 1]) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public int size() {
+                return sampleStart[index + 1] - sampleStart[index];
+            }
+        };
+    }
+
+    /**
+     * Indexes in the sample list of every sample the id is in, in sample list
+     * order, empty if the id isn't mapped
+     */
+    public int[] getSampleIndexes(String id) {
+        int[] ret = seqIds.indexesOf(id);
+        for (int index = 0; index < ret.length; index++) {
+            ret[index] = sampleOf(ret[index]);
+        }
+        return ret;
+    }
+
+    @Override
+    public String getSampleById(String id) {
+        int seqIndex = seqIds.lastIndexOf(id);
+        return seqIndex == -1 ? null : samples[sampleOf(seqIndex)];
+    }
+
+    /**
+     * View of the mapping from sequence id to sample, lookups are binary
+     * searches of the mapped file.  An id in more than one sample is only
+     * listed with the sample getSampleById gives
+     */
+    @Override
+    public Map<String, String> getIdToSampleMap() {
+        return new AbstractMap<String, String>() {
+
+            @Override
+            public String get(Object key) {
+                return (key instanceof String) ? getSampleById((String) key) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return seqIds.distinctSize();
+            }
+
+            @Override
+            public Set<Map.Entry<String, String>> entrySet() {
+                return new AbstractSet<Map.Entry<String, String>>() {
+
+                    @Override
+                    public Iterator<Map.Entry<String, String>> iterator() {
+                        return new Iterator<Map.Entry<String, String>>() {
+
+                            private int seqIndex = 0;
+                            private int sample = 0;
+                            private String id = null;
+
+                            public boolean hasNext() {
+                                //Skip ids that are in a later sample too
+                                while (id == null && seqIndex < seqIds.size()) {
+                                    String next = seqIds.get(seqIndex);
+                                    if (seqIds.lastIndexOf(next) == seqIndex) {
+                                        id = next;
+                                    } else {
+                                        seqIndex++;
+                                    }
+                                }
+                                return id != null;
+                            }
+
+                            public Map.Entry<String, String> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                while (sampleStart[sample + 1] <= seqIndex) {
+                                    sample++;
+                                }
+                                Map.Entry<String, String> ret = new AbstractMap.SimpleImmutableEntry<String, String>(id, samples[sample]);
+                                id = null;
+                                seqIndex++;
+                                return ret;
+                            }
+
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return seqIds.distinctSize();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Writes the mapping in the text format
+     */
+    @Override
+    public void toStream(PrintStream out) {
+        for (int sample = 0; sample < samples.length; sample++) {
+            for (int seqIndex = sampleStart[sample]; seqIndex < sampleStart[sample + 1]; seqIndex++) {
+                out.println(seqIds.get(seqIndex) + "\t" + samples[sample]);
+            }
+        }
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Writes a binary sample mapping, sequences can be added in any order
+     * and are grouped by sample (in the order the samples were first seen)
+     * when the writer is closed.  An id added to a sample again is dropped,
+     * an id can be added to more than one sample.  Closing takes about 20
+     * bytes per id added (see StringTable.Writer)
+     */
+    public static class Writer {
+
+        private final File out;
+        private final StringTable.Writer seqIds;
+        private final Map<String, Integer> sampleIndex = new LinkedHashMap<String, Integer>();
+        private int[] seqSamples = new int[1024];
+
+        public Writer(File out) throws IOException {
+            this.out = out;
+            seqIds = new StringTable.Writer(out.getAbsoluteFile().getParentFile());
+        }
+
+        public void addSeq(String sample, String id) throws IOException {
+            Integer index = sampleIndex.get(sample);
+            if (index == null) {
+                index = sampleIndex.size();
+                sampleIndex.put(sample, index);
+            }
+
+            int seq = seqIds.add(id);
+            if (seq == seqSamples.length) {
+                seqSamples = Arrays.copyOf(seqSamples, seq * 2);
+            }
+            seqSamples[seq] = index;
+        }
+
+        /**
+         * End of the run of copies of the string at sorted[from]
+         */
+        private int runEnd(int[] sorted, int from, int end) throws IOException {
+            int to = from + 1;
+            while (to < end && seqIds.same(sorted[from], sorted[to])) {
+                to++;
+            }
+            return to;
+        }
+
+        public void close() throws IOException {
+            try {
+                write();
+            } finally {
+                seqIds.close();
+            }
+        }
+
+        private void write() throws IOException {
+            int numSamples = sampleIndex.size();
+            int numAdded = seqIds.size();
+
+            //Copies of an id are next to each other once sorted, drop the ones in a sample the id's already in
+            int[] sorted = seqIds.sort();
+            BitSet dropped = new BitSet(numAdded);
+            int[] lastRun = new int[numSamples];
+            Arrays.fill(lastRun, -1);
+            for (int from = 0, to; from < numAdded; from = to) {
+                to = runEnd(sorted, from, numAdded);
+                for (int pos = from; pos < to && to - from > 1; pos++) {
+                    int sample = seqSamples[sorted[pos]];
+                    if (lastRun[sample] == from) {
+                        dropped.set(sorted[pos]);
+                    }
+                    lastRun[sample] = from;
+                }
+            }
+            int numSeqs = numAdded - dropped.cardinality();
+
+            //Counting sort the sequences by sample, keeping their order in each sample
+            int[] sampleStart = new int[numSamples + 1];
+            for (int seq = 0; seq < numAdded; seq++) {
+                if (!dropped.get(seq)) {
+                    sampleStart[seqSamples[seq] + 1]++;
+                }
+            }
+            for (int sample = 0; sample < numSamples; sample++) {
+                sampleStart[sample + 1] += sampleStart[sample];
+            }
+            int[] next = Arrays.copyOf(sampleStart, numSamples);
+            int[] order = new int[numSeqs];
+            for (int seq = 0; seq < numAdded; seq++) {
+                if (!dropped.get(seq)) {
+                    order[next[seqSamples[seq]]++] = seq;
+                }
+            }
+            seqSamples = null;
+
+            //Sorted add indexes to sorted table positions, copies in position order
+            int[] position = new int[numAdded];
+            for (int pos = 0; pos < numSeqs; pos++) {
+                position[order[pos]] = pos;
+            }
+            int kept = 0;
+            for (int from = 0, to; from < numAdded; from = to) {
+                to = runEnd(sorted, from, numAdded);
+                int runStart = kept;
+                for (int pos = from; pos < to; pos++) {
+                    if (!dropped.get(sorted[pos])) {
+                        sorted[kept++] = position[sorted[pos]];
+                    }
+                }
+                Arrays.sort(sorted, runStart, kept);
+            }
+            position = null;
+            sorted = Arrays.copyOf(sorted, numSeqs);
+
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(numSamples);
+                for (String sample : sampleIndex.keySet()) {
+                    byte[] b = sample.getBytes("UTF-8");
+                    dos.writeInt(b.length);
+                    dos.write(b);
+                }
+                for (int sample = 0; sample <= numSamples; sample++) {
+                    dos.writeInt(sampleStart[sample]);
+                }
+                seqIds.write(dos, order, sorted);
+            } finally {
+                dos.close();
+            }
+        }
+    }
+}
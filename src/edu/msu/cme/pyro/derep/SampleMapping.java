@@ -74,7 +74,15 @@ public class SampleMapping<E> {
         out.close();
     }
 
+    /**
+     * Loads a text sample mapping, or opens a binary one (see
+     * MappedSampleMapping)
+     */
     public static SampleMapping<String> fromFile(File file) throws IOException {
+        if (MappedSampleMapping.isBinary(file)) {
+            return MappedSampleMapping.load(file);
+        }
+
         BufferedReader reader = new BufferedReader(new FileReader(file));
         String line;
         SampleMapping<String> map = new SampleMapping<String>();
@@ -90,6 +98,16 @@ public class SampleMapping<E> {
     }
 
     public static void fromFile(File file, SampleMapping<String> incremental) throws IOException {
+        if (MappedSampleMapping.isBinary(file)) {
+            SampleMapping<String> mapped = MappedSampleMapping.load(file);
+            for (String sample : mapped.getSampleList()) {
+                for (String id : mapped.getIdsBySample(sample)) {
+                    incremental.addSeq(sample, id);
+                }
+            }
+            return;
+        }
+
         BufferedReader reader = new BufferedReader(new FileReader(file));
         String line;
         while ((line = reader.readLine()) != null) {
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A memory mapped list of strings.  The table is the number of strings, the
+ * pool offset and length of each string, the string indexes sorted by their
+ * UTF-8 bytes (for binary search lookups) and then the pool itself.  Nothing
+ * but the mapping is held in memory.  A string can be in the table more than
+ * once, copies are next to each other in the sorted indexes in index order
+ *
+ * @author fishjord
+ */
+public class StringTable {
+
+    private final MappedFile file;
+    private final int count;
+    private final long startsPos;
+    private final long lengthsPos;
+    private final long sortedPos;
+    private final long poolPos;
+    private final long end;
+    private int distinct = -1;
+
+    StringTable(MappedFile file, long base) {
+        this.file = file;
+        count = file.getInt(base);
+        startsPos = base + 4;
+        lengthsPos = startsPos + 8L * count;
+        sortedPos = lengthsPos + 4L * count;
+        long poolLength = file.getLong(sortedPos + 4L * count);
+        poolPos = sortedPos + 4L * count + 8;
+        end = poolPos + poolLength;
+    }
+
+    /**
+     * Maps a file holding just a table, as Writer.write writes it
+     */
+    public static StringTable load(File f) throws IOException {
+        return new StringTable(new MappedFile(f), 0);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Number of different strings in the table, counted the first time it's
+     * asked for
+     */
+    public int distinctSize() {
+        if (distinct == -1) {
+            int ret = 0;
+            for (int pos = 0; pos < count; pos++) {
+                if (pos == 0 || !sameString(sortedIndex(pos - 1), sortedIndex(pos))) {
+                    ret++;
+                }
+            }
+            distinct = ret;
+        }
+        return distinct;
+    }
+
+    /**
+     * Position just past the table in the file
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public String get(int index) {
+        byte[] b = new byte[file.getInt(lengthsPos + 4L * index)];
+        file.get(poolPos + file.getLong(startsPos + 8L * index), b, 0, b.length);
+        try {
+            return new String(b, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int sortedIndex(int pos) {
+        return file.getInt(sortedPos + 4L * pos);
+    }
+
+    private boolean sameString(int a, int b) {
+        int len = file.getInt(lengthsPos + 4L * a);
+        if (len != file.getInt(lengthsPos + 4L * b)) {
+            return false;
+        }
+        long startA = poolPos + file.getLong(startsPos + 8L * a);
+        long startB = poolPos + file.getLong(startsPos + 8L * b);
+        for (int i = 0; i < len; i++) {
+            if (file.get(startA + i) != file.get(startB + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int compare(byte[] key, int index) {
+        long start = poolPos + file.getLong(startsPos + 8L * index);
+        int len = file.getInt(lengthsPos + 4L * index);
+        int n = Math.min(key.length, len);
+        for (int i = 0; i < n; i++) {
+            int diff = (key[i] & 0xff) - (file.get(start + i) & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return key.length - len;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * First position in the sorted indexes whose string isn't less than the
+     * key (or after key if after is set)
+     */
+    private int bound(byte[] key, boolean after) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(key, sortedIndex(mid));
+            if (cmp > 0 || (after && cmp == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Lowest index of the string, -1 if it isn't in the table
+     */
+    public int indexOf(String s) {
+        byte[] key = utf8(s);
+        int pos = bound(key, false);
+        return pos < count && compare(key, sortedIndex(pos)) == 0 ? sortedIndex(pos) : -1;
+    }
+
+    /**
+     * Highest index of the string, -1 if it isn't in the table
+     */
+    public int lastIndexOf(String s) {
+        byte[] key = utf8(s);
+        int pos = bound(key, true) - 1;
+        return pos >= 0 && compare(key, sortedIndex(pos)) == 0 ? sortedIndex(pos) : -1;
+    }
+
+    /**
+     * Every index of the string in increasing order, empty if it isn't in the
+     * table
+     */
+    public int[] indexesOf(String s) {
+        byte[] key = utf8(s);
+        int from = bound(key, false);
+        int to = from;
+        while (to < count && compare(key, sortedIndex(to)) == 0) {
+            to++;
+        }
+
+        int[] ret = new int[to - from];
+        for (int pos = from; pos < to; pos++) {
+            ret[pos - from] = sortedIndex(pos);
+        }
+        return ret;
+    }
+
+    /**
+     * Collects strings in a temp pool file and writes them out as a table.
+     * Only the pool offset of each string (8 bytes) is kept while adding.
+     * Writing sorts an int per string with an int per string of scratch, so
+     * the peak is about 16 bytes per string plus any order the caller holds
+     * (and briefly 16 bytes per string while the offsets array grows)
+     */
+    public static class Writer {
+
+        private final File poolFile;
+        private final DataOutputStream pool;
+        private MappedFile mapped = null;
+        //starts[i + 1] - starts[i] is the length of string i
+        private long[] starts = new long[1025];
+        private int count = 0;
+
+        public Writer(File workDir) throws IOException {
+            poolFile = File.createTempFile("string_pool", ".tmp", workDir);
+            pool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(poolFile)));
+        }
+
+        /**
+         * Returns the index the string was added at
+         */
+        public int add(String s) throws IOException {
+            if (mapped != null) {
+                throw new IllegalStateException("Can't add strings once they've been sorted");
+            }
+            byte[] b = s.getBytes("UTF-8");
+            if (count + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2 + 1);
+            }
+            pool.write(b);
+            starts[count + 1] = starts[count] + b.length;
+            return count++;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        private int length(int added) {
+            return (int) (starts[added + 1] - starts[added]);
+        }
+
+        private MappedFile pool() throws IOException {
+            if (mapped == null) {
+                pool.close();
+                mapped = new MappedFile(poolFile);
+            }
+            return mapped;
+        }
+
+        /**
+         * The string added at index added
+         */
+        public String get(int added) throws IOException {
+            byte[] b = new byte[length(added)];
+            pool().get(starts[added], b, 0, b.length);
+            return new String(b, "UTF-8");
+        }
+
+        /**
+         * True if the strings added at a and b are the same
+         */
+        public boolean same(int a, int b) throws IOException {
+            return compare(pool(), a, b) == 0;
+        }
+
+        /**
+         * Add indexes sorted by their strings, copies of a string are in the
+         * order they were added.  No more strings can be added after this
+         */
+        public int[] sort() throws IOException {
+            int[] ret = new int[count];
+            for (int index = 0; index < count; index++) {
+                ret[index] = index;
+            }
+            sort(ret, pool());
+            return ret;
+        }
+
+        /**
+         * Writes the table with the strings in the given order (order[i] is
+         * the add index of the i-th string), or in the order they were added
+         * if order is null.  sorted is the table positions sorted by their
+         * strings, copies in increasing position (from sort() when order is
+         * null)
+         */
+        public void write(DataOutputStream out, int[] order, int[] sorted) throws IOException {
+            pool();
+            int n = (order == null) ? count : order.length;
+            if (sorted.length != n) {
+                throw new IllegalArgumentException("Expected " + n + " sorted positions but got " + sorted.length);
+            }
+
+            out.writeInt(n);
+            for (int index = 0; index < n; index++) {
+                out.writeLong(starts[(order == null) ? index : order[index]]);
+            }
+            for (int index = 0; index < n; index++) {
+                out.writeInt(length((order == null) ? index : order[index]));
+            }
+            for (int index : sorted) {
+                out.writeInt(index);
+            }
+
+            out.writeLong(starts[count]);
+            InputStream in = new BufferedInputStream(new FileInputStream(poolFile));
+            byte[] buf = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            in.close();
+        }
+
+        public void close() {
+            try {
+                pool.close();
+            } catch (IOException ignore) {
+            }
+            poolFile.delete();
+        }
+
+        private int compare(MappedFile pool, int a, int b) {
+            int lenA = length(a), lenB = length(b);
+            int n = Math.min(lenA, lenB);
+            for (int i = 0; i < n; i++) {
+                int diff = (pool.get(starts[a] + i) & 0xff) - (pool.get(starts[b] + i) & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return lenA - lenB;
+        }
+
+        /**
+         * Stable bottom up merge sort of add indexes by their bytes
+         */
+        private void sort(int[] a, MappedFile pool) {
+            int[] src = a;
+            int[] dst = new int[a.length];
+
+            for (int width = 1; width < a.length; width <<= 1) {
+                for (int lo = 0; lo < a.length; lo += width << 1) {
+                    int mid = Math.min(lo + width, a.length);
+                    int hi = Math.min(lo + (width << 1), a.length);
+                    int i = lo, j = mid, k = lo;
+                    while (i < mid && j < hi) {
+                        dst[k++] = compare(pool, src[i], src[j]) <= 0 ? src[i++] : src[j++];
+                    }
+                    while (i < mid) {
+                        dst[k++] = src[i++];
+                    }
+                    while (j < hi) {
+                        dst[k++] = src[j++];
+                    }
+                }
+                int[] tmp = src;
+                src = dst;
+                dst = tmp;
+            }
+
+            if (src != a) {
+                System.arraycopy(src, 0, a, 0, a.length);
+            }
+        }
+    }
+}
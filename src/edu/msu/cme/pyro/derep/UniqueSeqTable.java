@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.util.Arrays;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Unique sequences keyed on the 128 bit MD5 fingerprint of their bases, in
+ * an open addressing table.  For each unique sequence only the exemplar (the
+ * first sequence added), the ordinal of the exemplar in the input, the number
+ * of copies and the comma separated ids of the copies are kept.  Entries are
+ * numbered in the order they were first added
+ *
+ * A matching fingerprint is checked against the exemplar's bases, so two
+ * different sequences that collide are kept as separate entries (with the
+ * same fingerprint) rather than merged
+ *
+ * @author fishjord
+ */
+public class UniqueSeqTable {
+
+    private static final float LOAD_FACTOR = .6f;
+    //Rough per entry and per char overheads for getAllocatedBytes
+    private static final int ENTRY_BYTES = 160;
+    private static final int CHAR_BYTES = 2;
+    private long[] keyHi;
+    private long[] keyLo;
+    //Entry number + 1 for each slot, 0 is an empty slot
+    private int[] slotEntry;
+    private int mask;
+    private int size = 0;
+    private long[] fpHi = new long[16];
+    private long[] fpLo = new long[16];
+    private long[] firstOrdinal = new long[16];
+    private int[] count = new int[16];
+    private Sequence[] exemplar = new Sequence[16];
+    private StringBuilder[] ids = new StringBuilder[16];
+    private long allocatedBytes = 0;
+
+    public UniqueSeqTable() {
+        allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        keyHi = new long[capacity];
+        keyLo = new long[capacity];
+        slotEntry = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Returns the fingerprint of the bases as {high, low} 64 bit halves
+     */
+    public static long[] fingerprint(String bases) {
+        byte[] digest = DigestUtils.md5(bases);
+        long hi = 0, lo = 0;
+        for (int index = 0; index < 8; index++) {
+            hi = (hi << 8) | (digest[index] & 0xff);
+            lo = (lo << 8) | (digest[index + 8] & 0xff);
+        }
+        return new long[]{hi, lo};
+    }
+
+    private int home(long hi, long lo) {
+        long h = hi ^ (lo * 0x9e3779b97f4a7c15L);
+        h ^= h >>> 32;
+        return (int) h & mask;
+    }
+
+    /**
+     * Slot of the entry with the fingerprint and bases, or the empty slot to
+     * put it in
+     */
+    private int findSlot(long hi, long lo, String bases) {
+        int slot = home(hi, lo);
+        while (slotEntry[slot] != 0) {
+            if (keyHi[slot] == hi && keyLo[slot] == lo && exemplar[slotEntry[slot] - 1].getSeqString().equals(bases)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int findEmptySlot(long hi, long lo) {
+        int slot = home(hi, lo);
+        while (slotEntry[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        allocate(keyHi.length * 2);
+        for (int entry = 0; entry < size; entry++) {
+            int slot = findEmptySlot(fpHi[entry], fpLo[entry]);
+            keyHi[slot] = fpHi[entry];
+            keyLo[slot] = fpLo[entry];
+            slotEntry[slot] = entry + 1;
+        }
+    }
+
+    private void ensureEntryCapacity() {
+        if (size < fpHi.length) {
+            return;
+        }
+        int newLength = fpHi.length * 2;
+        fpHi = Arrays.copyOf(fpHi, newLength);
+        fpLo = Arrays.copyOf(fpLo, newLength);
+        firstOrdinal = Arrays.copyOf(firstOrdinal, newLength);
+        count = Arrays.copyOf(count, newLength);
+        exemplar = Arrays.copyOf(exemplar, newLength);
+        ids = Arrays.copyOf(ids, newLength);
+    }
+
+    private static long seqBytes(Sequence seq) {
+        long chars = seq.getSeqName().length() + seq.getSeqString().length();
+        if (seq.getDesc() != null) {
+            chars += seq.getDesc().length();
+        }
+        return chars * CHAR_BYTES;
+    }
+
+    /**
+     * Adds copies of a sequence, seqIds is the comma separated ids of the
+     * copies.  The exemplar with the lower ordinal is kept.  Returns the
+     * entry number
+     */
+    public int add(long hi, long lo, long ordinal, int copies, Sequence seq, String seqIds) {
+        int slot = findSlot(hi, lo, seq.getSeqString());
+        int entry = slotEntry[slot] - 1;
+
+        if (entry == -1) {
+            if (size + 1 > keyHi.length * LOAD_FACTOR) {
+                resize();
+                slot = findEmptySlot(hi, lo);
+            }
+            ensureEntryCapacity();
+            entry = size++;
+            keyHi[slot] = fpHi[entry] = hi;
+            keyLo[slot] = fpLo[entry] = lo;
+            slotEntry[slot] = entry + 1;
+            firstOrdinal[entry] = ordinal;
+            count[entry] = copies;
+            exemplar[entry] = seq;
+            ids[entry] = new StringBuilder(seqIds);
+            allocatedBytes += ENTRY_BYTES + seqBytes(seq);
+        } else {
+            if (ordinal < firstOrdinal[entry]) {
+                allocatedBytes += seqBytes(seq) - seqBytes(exemplar[entry]);
+                firstOrdinal[entry] = ordinal;
+                exemplar[entry] = seq;
+                ids[entry].insert(0, seqIds + ",");
+            } else {
+                ids[entry].append(',').append(seqIds);
+            }
+            count[entry] += copies;
+        }
+        allocatedBytes += (seqIds.length() + 1) * CHAR_BYTES;
+
+        return entry;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes + keyHi.length * 20L;
+    }
+
+    public long getFingerprintHi(int entry) {
+        return fpHi[entry];
+    }
+
+    public long getFingerprintLo(int entry) {
+        return fpLo[entry];
+    }
+
+    public long getFirstOrdinal(int entry) {
+        return firstOrdinal[entry];
+    }
+
+    public int getCount(int entry) {
+        return count[entry];
+    }
+
+    public Sequence getExemplar(int entry) {
+        return exemplar[entry];
+    }
+
+    public String getIds(int entry) {
+        return ids[entry].toString();
+    }
+
+    public void clear() {
+        allocate(16);
+        size = 0;
+        fpHi = new long[16];
+        fpLo = new long[16];
+        firstOrdinal = new long[16];
+        count = new int[16];
+        exemplar = new Sequence[16];
+        ids = new StringBuilder[16];
+        allocatedBytes = 0;
+    }
+}
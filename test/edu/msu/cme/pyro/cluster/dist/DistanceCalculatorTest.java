@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.dist;
+
+import edu.msu.cme.pyro.cluster.io.EdgeWriter;
+import edu.msu.cme.rdp.alignment.pairwise.rna.DistanceModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the matrix computed over tiles on a thread pool against computing
+ * every pair in one loop, which is how dmatrix computed it before
+ *
+ * @author fishjord
+ */
+public class DistanceCalculatorTest {
+
+    //More than two tiles on a side
+    private static final int NUM_SEQS = 600;
+    private static final int SEQ_LENGTH = 40;
+    private static final double CUTOFF = .3;
+    private File dir;
+    private Map<String, byte[]> seqs;
+    private Map<String, Integer> reverseMapping;
+
+    /**
+     * Fraction of positions that differ
+     */
+    private static class MismatchModel extends DistanceModel {
+
+        public double getDistance(byte[] seq1, byte[] seq2, int overlapLimit) {
+            int mismatches = 0;
+            for (int index = 0; index < seq1.length; index++) {
+                if (seq1[index] != seq2[index]) {
+                    mismatches++;
+                }
+            }
+            return mismatches / (double) seq1.length;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("dist_calc_test", "");
+        dir.delete();
+        dir.mkdir();
+
+        //Sequences mutated from a few ancestors, so some are close
+        Random rand = new Random(1);
+        byte[][] ancestors = new byte[5][SEQ_LENGTH];
+        for (byte[] ancestor : ancestors) {
+            for (int index = 0; index < SEQ_LENGTH; index++) {
+                ancestor[index] = (byte) "ACGT".charAt(rand.nextInt(4));
+            }
+        }
+
+        seqs = new HashMap();
+        reverseMapping = new HashMap();
+        for (int seq = 0; seq < NUM_SEQS; seq++) {
+            byte[] bytes = ancestors[rand.nextInt(ancestors.length)].clone();
+            for (int mutation = rand.nextInt(8); mutation > 0; mutation--) {
+                bytes[rand.nextInt(SEQ_LENGTH)] = (byte) "ACGT".charAt(rand.nextInt(4));
+            }
+            seqs.put("seq" + seq, bytes);
+            //Ids that aren't in the sequences' order
+            reverseMapping.put("seq" + seq, (seq * 7) % NUM_SEQS);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * Every pair in one loop, sorted in to one matrix
+     */
+    private byte[] expectedMatrix() throws IOException {
+        DistanceModel model = new MismatchModel();
+        List<String> seqids = new ArrayList(seqs.keySet());
+        List<ThinEdge> edges = new ArrayList();
+        for (int seq1 = 0; seq1 < seqids.size(); seq1++) {
+            for (int seq2 = seq1 + 1; seq2 < seqids.size(); seq2++) {
+                double dist = model.getDistance(seqs.get(seqids.get(seq1)), seqs.get(seqids.get(seq2)), 0);
+                if (dist < CUTOFF) {
+                    edges.add(new ThinEdge(reverseMapping.get(seqids.get(seq1)), reverseMapping.get(seqids.get(seq2)), (int) ((dist * DistanceCalculator.MULTIPLIER) + .5)));
+                }
+            }
+        }
+        Collections.sort(edges);
+
+        File matrix = new File(dir, "expected");
+        EdgeWriter writer = new EdgeWriter(matrix);
+        for (ThinEdge edge : edges) {
+            writer.writeEdge(edge);
+        }
+        writer.close();
+
+        byte[] ret = FileUtils.readFileToByteArray(matrix);
+        matrix.delete();
+        return ret;
+    }
+
+    @Test
+    public void testSameMatrixForAnyThreadsAndBudget() throws Exception {
+        byte[] expected = expectedMatrix();
+        assertTrue(expected.length > 12 * 1000);
+
+        //Enough memory for one partial matrix per thread, and little enough
+        //for dozens of them
+        for (long memBudget : new long[]{1L << 30, 16L << 10}) {
+            for (int threads : new int[]{1, 2, 5}) {
+                String name = "threads " + threads + ", budget " + memBudget;
+                File workDir = new File(dir, "work");
+                workDir.mkdir();
+
+                DistanceCalculator.PartialMatrixResult result = DistanceCalculator.computePartialMatrices(seqs, reverseMapping, new File(workDir, "nonoverlapping.bin"), workDir, new MismatchModel(), 0, CUTOFF, threads, memBudget);
+                if (memBudget < expected.length) {
+                    assertTrue(name, result.splitFiles.size() > threads);
+                }
+
+                File matrix = new File(dir, "matrix");
+                MergeDistsJob job = new MergeDistsJob(result.splitFiles, matrix, workDir);
+                job.setThreads(threads);
+                job.run();
+                assertArrayEquals(name, expected, FileUtils.readFileToByteArray(matrix));
+
+                FileUtils.deleteDirectory(workDir);
+                matrix.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.dist;
+
+import edu.msu.cme.pyro.cluster.io.EdgeWriter;
+import edu.msu.cme.pyro.cluster.io.MatrixIndex;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the k-way merge against sorting all the edges at once, which is the
+ * matrix the pairwise merges it replaced wrote
+ *
+ * @author fishjord
+ */
+public class MergeDistsJobTest {
+
+    private static final int NUM_PARTIALS = 37;
+    private File dir;
+    private List<List<ThinEdge>> partials;
+    private byte[] expected;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("merge_dists_test", "");
+        dir.delete();
+        dir.mkdir();
+
+        Random rand = new Random(1);
+        List<ThinEdge> all = new ArrayList();
+        partials = new ArrayList();
+        for (int partial = 0; partial < NUM_PARTIALS; partial++) {
+            List<ThinEdge> edges = new ArrayList();
+            //Some partial matrices are empty
+            for (int index = rand.nextInt(4) == 0 ? 0 : rand.nextInt(200); index > 0; index--) {
+                int seqi = rand.nextInt(100);
+                edges.add(new ThinEdge(seqi, seqi + 1 + rand.nextInt(100), rand.nextInt(50)));
+            }
+            Collections.sort(edges);
+            partials.add(edges);
+            all.addAll(edges);
+        }
+
+        Collections.sort(all);
+        File sorted = new File(dir, "sorted");
+        writeEdges(sorted, all);
+        expected = FileUtils.readFileToByteArray(sorted);
+        sorted.delete();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static void writeEdges(File f, List<ThinEdge> edges) throws IOException {
+        EdgeWriter writer = new EdgeWriter(f);
+        for (ThinEdge edge : edges) {
+            writer.writeEdge(edge);
+        }
+        writer.close();
+    }
+
+    private List<File> writePartials() throws IOException {
+        List<File> ret = new ArrayList();
+        for (int partial = 0; partial < partials.size(); partial++) {
+            File f = new File(dir, "partial" + partial);
+            writeEdges(f, partials.get(partial));
+            ret.add(f);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testSameMatrixForAnyFanInAndThreads() throws Exception {
+        //Fan in 2 with one thread merges pairs like the original job did
+        int[][] configs = {{2, 1}, {2, 4}, {3, 2}, {5, 8}, {8, 3}, {64, 1}, {64, 4}};
+        for (int[] config : configs) {
+            String name = "fan in " + config[0] + ", threads " + config[1];
+            File outFile = new File(dir, "matrix");
+            MergeDistsJob job = new MergeDistsJob(writePartials(), outFile, dir);
+            job.setFanIn(config[0]);
+            job.setThreads(config[1]);
+            job.run();
+
+            assertArrayEquals(name, expected, FileUtils.readFileToByteArray(outFile));
+            assertEquals(name, expected.length / 12, MatrixIndex.load(outFile).getEdgeCount());
+            //Only the matrix and its index are left
+            assertEquals(name, 2, dir.list().length);
+            outFile.delete();
+            MatrixIndex.getIndexFile(outFile).delete();
+        }
+    }
+
+    @Test
+    public void testFailedMergeRemovesTempFiles() throws Exception {
+        List<File> inFiles = writePartials();
+        inFiles.get(20).delete();
+        File outFile = new File(dir, "matrix");
+        MergeDistsJob job = new MergeDistsJob(inFiles, outFile, dir);
+        job.setFanIn(4);
+        job.setThreads(2);
+
+        try {
+            job.run();
+            fail("Expected the missing partial matrix to fail the merge");
+        } catch (IOException e) {
+        }
+
+        for (String name : dir.list()) {
+            assertFalse(name, name.startsWith("merge_dist"));
+        }
+    }
+}
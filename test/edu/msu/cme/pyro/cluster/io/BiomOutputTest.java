@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.utils.UnionFindClusterFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the sparse biom tables written during clustering against the dense
+ * tables ClusterToBiom writes from the cluster file
+ *
+ * @author fishjord
+ */
+public class BiomOutputTest {
+
+    private static final Pattern ID = Pattern.compile("\"id\" : \"([^\"]*)\"");
+    private static final Pattern ROW = Pattern.compile("\\[([0-9,]*)\\]");
+    //Sample names that don't sort in the order they're seen
+    private static final String[] SAMPLES = {"s7_b", "s3_a", "s5_b", "s1_a", "s7_a", "s2_b", "s6_a", "s4_b"};
+    private File dir;
+    private ClusterFixtures fixtures;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = ClusterFixtures.createTempDir("biom_output_test");
+        fixtures = new ClusterFixtures(1, 150, 3, SAMPLES, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * The row ids, column ids, shape and non-zero cells of a dense or sparse
+     * table
+     */
+    private static List<String> parse(String biom) {
+        List<String> ret = new ArrayList();
+        String rows = biom.substring(biom.indexOf("\"rows\""), biom.indexOf("\"columns\""));
+        String columns = biom.substring(biom.indexOf("\"columns\""), biom.indexOf("\"matrix_type\""));
+        for (String section : new String[]{rows, columns}) {
+            Matcher m = ID.matcher(section);
+            StringBuilder ids = new StringBuilder();
+            while (m.find()) {
+                ids.append(m.group(1)).append(' ');
+            }
+            ret.add(ids.toString());
+        }
+
+        Matcher shape = Pattern.compile("\"shape\": \\[(\\d+), (\\d+)\\]").matcher(biom);
+        assertTrue(shape.find());
+        ret.add(shape.group(1) + "x" + shape.group(2));
+
+        boolean sparse = biom.contains("\"matrix_type\": \"sparse\"");
+        Matcher m = ROW.matcher(biom.substring(biom.indexOf("\"data\"")));
+        int row = 0;
+        while (m.find()) {
+            String[] values = m.group(1).split(",");
+            if (sparse) {
+                assertEquals(3, values.length);
+                ret.add(values[0] + "," + values[1] + "=" + values[2]);
+            } else {
+                for (int col = 0; col < values.length; col++) {
+                    if (!values[col].equals("0")) {
+                        ret.add(row + "," + col + "=" + values[col]);
+                    }
+                }
+                row++;
+            }
+        }
+        //Sparse cells aren't in column order
+        Collections.sort(ret.subList(3, ret.size()));
+        return ret;
+    }
+
+    private String denseTable(File clustFile, double cutoff) throws IOException {
+        RDPClustParser parser = new RDPClustParser(clustFile, false);
+        ClusterStream stream = parser.streamCutoff(cutoff);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ClusterToBiom.writeCutoff(stream, ClusterToBiom.getSampleNames(parser), new PrintStream(bytes));
+        stream.close();
+        parser.close();
+        return bytes.toString();
+    }
+
+    @Test
+    public void testMatchesClusterFile() throws IOException {
+        File clustFile = new File(dir, "test.clust");
+        String prefix = new File(dir, "test").getPath();
+        //Exact, between and past the printed cutoffs, in no particular order.
+        //RDPClustParser rounds cutoffs to 0.001, so they're all multiples of it
+        double[] cutoffs = BiomOutput.parseCutoffs("0.003, 0.005,0.0,0.001,0.05,0.002");
+
+        UnionFindClusterFactory factory = new UnionFindClusterFactory();
+        ClusterFileOutput fileOut = fixtures.clusterFileOutput(clustFile, factory);
+        MultiClusterOutput out = new MultiClusterOutput();
+        out.addOutput(fileOut);
+        out.addOutput(new BiomOutput(fileOut.getSampleCounts(), prefix, cutoffs));
+
+        //The last few sequences are never clustered, and nothing is printed
+        //at 0.003
+        ClusterFixtures.mergeRandomly(fixtures.rand, factory, ClusterFixtures.singletons(factory, 145), new int[]{0, 10, 20, 40, 50}, out);
+        out.close();
+
+        for (String name : new String[]{"0.0", "0.001", "0.002", "0.003", "0.005", "0.05"}) {
+            File biomFile = new File(prefix + "_" + name + ".biom");
+            assertTrue(biomFile.getName(), biomFile.exists());
+            assertEquals(name, parse(denseTable(clustFile, Double.parseDouble(name))), parse(FileUtils.readFileToString(biomFile)));
+        }
+        //The cluster file, its index and the biom tables
+        assertTrue(ClusterFileIndex.getIndexFile(clustFile).exists());
+        assertEquals(8, dir.list().length);
+    }
+
+    @Test
+    public void testCutoffBelowFirstPrinted() throws IOException {
+        SampleCountMatrix counts = new SampleCountMatrix(fixtures.idMapping, fixtures.sampleMapping);
+        String prefix = new File(dir, "test").getPath();
+        BiomOutput out = new BiomOutput(counts, prefix, new double[]{0.0005, 0.002});
+
+        UnionFindClusterFactory factory = new UnionFindClusterFactory();
+        factory.addClusterListener(counts);
+        for (int seq = 0; seq < 150; seq++) {
+            factory.createSingleton(seq);
+        }
+        out.printClusters(factory, 10);
+        out.printClusters(factory, 20);
+        out.close();
+
+        //Nothing was clustered at or below 0.0005
+        assertFalse(new File(prefix + "_0.0005.biom").exists());
+        String biom = FileUtils.readFileToString(new File(prefix + "_0.002.biom"));
+        assertEquals("150x" + fixtures.sampleMapping.getSampleList().size(), parse(biom).get(2));
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void testParseCutoffs() {
+        assertArrayEquals(new double[]{0.03, 0.05}, BiomOutput.parseCutoffs("0.03, 0.05"), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeCutoff() {
+        BiomOutput.parseCutoffs("0.03,-0.01");
+    }
+}
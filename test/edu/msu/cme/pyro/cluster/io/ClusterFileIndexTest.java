@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.utils.Cluster;
+import edu.msu.cme.pyro.cluster.utils.UnionFindClusterFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the cluster file index against scanning the file's lines, and
+ * streamed cutoffs against the ones RDPClustParser reads in to memory
+ *
+ * @author fishjord
+ */
+public class ClusterFileIndexTest {
+
+    private File dir;
+    private File clustFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = ClusterFixtures.createTempDir("clust_index_test");
+        clustFile = new File(dir, "test.clust");
+
+        ClusterFixtures fixtures = new ClusterFixtures(1, 200, 3, ClusterFixtures.sampleNames("sample", 5), 0);
+        UnionFindClusterFactory factory = new UnionFindClusterFactory();
+        ClusterFileOutput out = fixtures.clusterFileOutput(clustFile, factory);
+        //The last few sequences are never clustered
+        ClusterFixtures.mergeRandomly(fixtures.rand, factory, ClusterFixtures.singletons(factory, 195), ClusterFixtures.STEPS, out);
+        out.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private void checkIndex(ClusterFileIndex index) throws IOException {
+        String text = FileUtils.readFileToString(clustFile);
+        List<String> cutoffs = new ArrayList();
+        List<Long> offsets = new ArrayList();
+        List<Integer> numClusters = new ArrayList();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            String line = text.substring(start, end);
+            if (line.startsWith("distance cutoff:")) {
+                cutoffs.add(line.split("\t")[1]);
+                offsets.add((long) start);
+            } else if (line.startsWith("Total Clusters:")) {
+                numClusters.add(Integer.valueOf(line.split("\t")[1]));
+            }
+            start = end + 1;
+        }
+
+        assertEquals(16, cutoffs.size());
+        assertEquals(cutoffs.size(), index.size());
+        for (int cutoff = 0; cutoff < index.size(); cutoff++) {
+            assertEquals(cutoffs.get(cutoff), index.getCutoff(cutoff));
+            assertEquals((long) offsets.get(cutoff), index.getOffset(cutoff));
+            assertEquals((int) numClusters.get(cutoff), index.getNumClusters(cutoff));
+        }
+    }
+
+    @Test
+    public void testBuild() throws IOException {
+        checkIndex(ClusterFileIndex.build(clustFile));
+        assertFalse(ClusterFileIndex.getIndexFile(clustFile).exists());
+    }
+
+    @Test
+    public void testOpenWritesAndLoads() throws IOException {
+        File idxFile = ClusterFileIndex.getIndexFile(clustFile);
+        assertNull(ClusterFileIndex.load(clustFile));
+
+        checkIndex(ClusterFileIndex.open(clustFile));
+        assertTrue(idxFile.exists());
+        checkIndex(ClusterFileIndex.load(clustFile));
+
+        //Opened again it's loaded rather than rebuilt
+        long written = idxFile.lastModified();
+        byte[] idx = FileUtils.readFileToByteArray(idxFile);
+        checkIndex(ClusterFileIndex.open(clustFile));
+        assertEquals(written, idxFile.lastModified());
+        assertArrayEquals(idx, FileUtils.readFileToByteArray(idxFile));
+    }
+
+    @Test
+    public void testStaleIndex() throws IOException {
+        File idxFile = ClusterFileIndex.getIndexFile(clustFile);
+        ClusterFileIndex.open(clustFile);
+
+        //Same length, different time
+        assertTrue(clustFile.setLastModified(clustFile.lastModified() - 60000));
+        assertNull(ClusterFileIndex.load(clustFile));
+        checkIndex(ClusterFileIndex.open(clustFile));
+        assertNotNull(ClusterFileIndex.load(clustFile));
+
+        //A cluster file that was rewritten with a cutoff less
+        String text = FileUtils.readFileToString(clustFile);
+        FileUtils.writeStringToFile(clustFile, text.substring(0, text.lastIndexOf("distance cutoff:")));
+        assertTrue(clustFile.setLastModified(clustFile.lastModified() - 120000));
+        assertNull(ClusterFileIndex.load(clustFile));
+        assertEquals(15, ClusterFileIndex.open(clustFile).size());
+
+        //Not an index at all
+        FileUtils.writeStringToFile(idxFile, "not an index file");
+        assertNull(ClusterFileIndex.load(clustFile));
+        assertEquals(15, ClusterFileIndex.open(clustFile).size());
+        assertNotNull(ClusterFileIndex.load(clustFile));
+    }
+
+    @Test
+    public void testTruncatedIndex() throws IOException {
+        File idxFile = ClusterFileIndex.getIndexFile(clustFile);
+        ClusterFileIndex.open(clustFile);
+        byte[] idx = FileUtils.readFileToByteArray(idxFile);
+
+        //A crash or another process part way through writing it
+        for (int length : new int[]{0, 6, 30, idx.length - 1}) {
+            FileUtils.writeByteArrayToFile(idxFile, Arrays.copyOf(idx, length));
+            assertNull(ClusterFileIndex.load(clustFile));
+            RDPClustParser parser = new RDPClustParser(clustFile, false);
+            assertEquals(16, parser.getCutoffs().size());
+            parser.close();
+            assertArrayEquals(idx, FileUtils.readFileToByteArray(idxFile));
+        }
+        //No temp files left from writing the index
+        assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void testStreamMatchesParsedCutoffs() throws IOException {
+        RDPClustParser parser = new RDPClustParser(clustFile, true);
+        List<String> samples = ClusterToBiom.getSampleNames(parser);
+        int numCutoffs = 0;
+
+        for (int step : ClusterFixtures.STEPS) {
+            double cutoff = step / 10000.0;
+            RDPClustParser.Cutoff parsed = parser.getCutoff(cutoff);
+            ClusterStream stream = parser.streamCutoff(cutoff);
+            assertEquals(parsed.getCutoff(), stream.getCutoff());
+            assertEquals(parsed.getNumClusters(), stream.getNumClusters());
+
+            //Every non-empty (cluster, sample) in the parsed cutoff, in file order
+            int lines = 0;
+            for (int clusterId = 1; clusterId <= parsed.getNumClusters(); clusterId++) {
+                for (int sample = 0; sample < samples.size(); sample++) {
+                    Cluster c = parsed.getClusters().get(samples.get(sample)).get(clusterId - 1);
+                    assertEquals(clusterId, c.getId());
+                    if (c.getNumberOfSeqs() == 0) {
+                        continue;
+                    }
+
+                    assertTrue(stream.next());
+                    lines++;
+                    assertEquals(clusterId, stream.getClusterId());
+                    assertEquals(samples.get(sample), stream.getSample());
+                    assertEquals(sample, stream.getSampleIndex());
+                    assertEquals(c.getNumberOfSeqs(), stream.getCount());
+                    List<String> seqIds = stream.getSeqIds();
+                    assertEquals(c.getNumberOfSeqs(), seqIds.size());
+                    assertEquals(parsed.getClustersToSeqs().get(c), new HashSet(seqIds));
+                }
+            }
+            assertFalse(stream.next());
+            assertFalse(stream.next());
+            assertTrue(lines >= parsed.getNumClusters());
+            stream.close();
+            numCutoffs++;
+        }
+        assertEquals(16, numCutoffs);
+
+        //Cutoffs between the written ones get the one below, same as getCutoff
+        assertEquals(parser.getCutoff(0.0054).getCutoff(), parser.streamCutoff(0.0054).getCutoff());
+        assertEquals("0.005", parser.streamCutoff(0.0054).getCutoff());
+        assertNull(parser.streamCutoff("not a cutoff"));
+        parser.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testStreamBadCount() throws IOException {
+        FileUtils.writeStringToFile(clustFile, "File(s):\ta b \n"
+                + "Sequences:\t2 1 \n"
+                + "\n"
+                + "distance cutoff:\t0.0\n"
+                + "Total Clusters:\t2\n"
+                + "1\ta\t2\ts1 \n"
+                + "2\tb\t1\ts2 \n"
+                + "\n");
+        RDPClustParser parser = new RDPClustParser(clustFile, false);
+        ClusterStream stream = parser.streamCutoff(0.0);
+        assertTrue(stream.next());
+        stream.getSeqIds();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.utils.Cluster;
+import edu.msu.cme.pyro.cluster.utils.UnionFindClusterFactory;
+import edu.msu.cme.pyro.derep.IdMapping;
+import edu.msu.cme.pyro.derep.SampleMapping;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random id and sample mappings, and random merges of their sequences, for
+ * the cluster output tests
+ *
+ * @author fishjord
+ */
+class ClusterFixtures {
+
+    /**
+     * Every 0.001 from 0 to 0.015
+     */
+    static final int[] STEPS = steps(150, 10);
+    final Random rand;
+    final IdMapping<Integer> idMapping = new IdMapping<Integer>();
+    final SampleMapping<String> sampleMapping = new SampleMapping<String>();
+
+    /**
+     * Sequences 0 to numSeqs - 1, added out of order, with one to maxCopies
+     * ids each. Each id is in one random sample, except 1 in otherSampleOdds
+     * (never if 0) are in none or in two
+     */
+    ClusterFixtures(long seed, int numSeqs, int maxCopies, String[] samples, int otherSampleOdds) {
+        rand = new Random(seed);
+        int nextId = 0;
+        for (int index = 0; index < numSeqs; index++) {
+            //A permutation as long as numSeqs isn't a multiple of 7
+            int seq = (int) ((index * 7L) % numSeqs);
+            List<String> ids = new ArrayList();
+            for (int copy = rand.nextInt(maxCopies); copy >= 0; copy--) {
+                String id = "id" + nextId++;
+                ids.add(id);
+
+                int sample = rand.nextInt(samples.length);
+                if (otherSampleOdds == 0 || rand.nextInt(otherSampleOdds) != 0) {
+                    sampleMapping.addSeq(samples[sample], id);
+                } else if (rand.nextBoolean()) {
+                    sampleMapping.addSeq(samples[sample], id);
+                    sampleMapping.addSeq(samples[(sample + 1 + rand.nextInt(samples.length - 1)) % samples.length], id);
+                }
+            }
+            idMapping.addIds(seq, ids);
+        }
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    /**
+     * prefix0 to prefix(n - 1)
+     */
+    static String[] sampleNames(String prefix, int n) {
+        String[] ret = new String[n];
+        for (int index = 0; index < n; index++) {
+            ret[index] = prefix + index;
+        }
+        return ret;
+    }
+
+    /**
+     * 0 to last, by the given amount
+     */
+    static int[] steps(int last, int by) {
+        int[] ret = new int[last / by + 1];
+        for (int index = 0; index < ret.length; index++) {
+            ret[index] = index * by;
+        }
+        return ret;
+    }
+
+    /**
+     * Singletons for sequences 0 to numSeqs - 1
+     */
+    static List<Cluster> singletons(UnionFindClusterFactory factory, int numSeqs) {
+        List<Cluster> ret = new ArrayList();
+        for (int seq = 0; seq < numSeqs; seq++) {
+            ret.add(factory.createSingleton(seq));
+        }
+        return ret;
+    }
+
+    /**
+     * Before printing each step merges random pairs of the live clusters,
+     * three a step on average, until there's one left
+     */
+    static void mergeRandomly(Random rand, UnionFindClusterFactory factory, List<Cluster> live, int[] steps, ClusterOutput out) {
+        for (int step : steps) {
+            while (live.size() > 1 && rand.nextInt(4) != 0) {
+                Cluster ci = live.remove(rand.nextInt(live.size()));
+                Cluster cj = live.remove(rand.nextInt(live.size()));
+                live.add(factory.mergeCluster(ci, cj, step));
+            }
+            out.printClusters(factory, step);
+        }
+    }
+
+    /**
+     * A cluster file output whose counts listen to the factory
+     */
+    ClusterFileOutput clusterFileOutput(File clustFile, UnionFindClusterFactory factory) throws IOException {
+        ClusterFileOutput ret = new ClusterFileOutput(idMapping, sampleMapping, new PrintStream(clustFile));
+        factory.addClusterListener(ret.getSampleCounts());
+        return ret;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.utils.UnionFindClusterFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks cluster result files, written during clustering or converted from a
+ * cluster file, against the cluster file they replace
+ *
+ * @author fishjord
+ */
+public class ClusterResultTest {
+
+    private File dir;
+    private File clustFile;
+    private File resultFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = ClusterFixtures.createTempDir("cluster_result_test");
+        clustFile = new File(dir, "test.clust");
+        resultFile = new File(dir, "test.res");
+
+        //Some ids are in no sample or in two
+        ClusterFixtures fixtures = new ClusterFixtures(1, 200, 3, ClusterFixtures.sampleNames("sample", 6), 10);
+        UnionFindClusterFactory factory = new UnionFindClusterFactory();
+        ClusterFileOutput fileOut = fixtures.clusterFileOutput(clustFile, factory);
+        MultiClusterOutput out = new MultiClusterOutput();
+        out.addOutput(fileOut);
+        out.addOutput(new ClusterResultOutput(fileOut.getSampleCounts(), resultFile));
+        //The last few sequences are never clustered
+        ClusterFixtures.mergeRandomly(fixtures.rand, factory, ClusterFixtures.singletons(factory, 195), ClusterFixtures.STEPS, out);
+        out.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * The cluster file's lines with the ids on each line sorted, the result
+     * file keeps the ids of a cluster and sample in entry order
+     */
+    private static List<String> normalize(String clust) {
+        List<String> ret = new ArrayList();
+        for (String line : clust.split("\n")) {
+            String[] lexemes = line.split("\t");
+            if (lexemes.length == 4 && !line.startsWith("distance") && !line.startsWith("Total")) {
+                String[] ids = lexemes[3].trim().split(" ");
+                Arrays.sort(ids);
+                line = lexemes[0] + "\t" + lexemes[1] + "\t" + lexemes[2] + "\t" + Arrays.asList(ids);
+            }
+            ret.add(line);
+        }
+        return ret;
+    }
+
+    private static String clusterFile(File resultFile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        new ClusterResultReader(resultFile).writeClusterFile(out);
+        out.close();
+        return bytes.toString();
+    }
+
+    private void checkResult(File resultFile) throws IOException {
+        assertTrue(ClusterResultReader.isResultFile(resultFile));
+        assertEquals(normalize(FileUtils.readFileToString(clustFile)), normalize(clusterFile(resultFile)));
+
+        RDPClustParser parser = new RDPClustParser(clustFile, false);
+        ClusterResultReader reader = new ClusterResultReader(resultFile);
+        List<String> samples = ClusterToBiom.getSampleNames(parser);
+        assertEquals(samples, reader.getSamples());
+        for (int sample = 0; sample < samples.size(); sample++) {
+            assertEquals(parser.getClusterSamples().get(sample).getSeqs(), reader.getSampleSeqs(sample));
+        }
+        assertEquals(16, reader.size());
+
+        int[] entrySamples = reader.readEntrySamples();
+        for (int cutoff = 0; cutoff < reader.size(); cutoff++) {
+            RDPClustParser.Cutoff parsed = parser.getCutoff(reader.getCutoff(cutoff));
+            assertEquals(parsed.getCutoff(), reader.getCutoff(cutoff));
+            assertEquals(parsed.getNumClusters(), reader.getNumClusters(cutoff));
+
+            List<int[]> counts = reader.getOTUCounts(cutoff, entrySamples);
+            assertEquals(parsed.getNumClusters(), counts.size());
+            for (int clusterId = 1; clusterId <= parsed.getNumClusters(); clusterId++) {
+                int[] expected = new int[samples.size()];
+                for (int sample = 0; sample < samples.size(); sample++) {
+                    expected[sample] = parsed.getClusters().get(samples.get(sample)).get(clusterId - 1).getNumberOfSeqs();
+                }
+                int[] pairs = counts.get(clusterId - 1);
+                int[] actual = new int[samples.size()];
+                for (int index = 0; index < pairs.length; index += 2) {
+                    if (index > 0) {
+                        assertTrue(pairs[index - 2] < pairs[index]);
+                    }
+                    actual[pairs[index]] = pairs[index + 1];
+                }
+                assertArrayEquals(expected, actual);
+            }
+        }
+
+        //The same cutoff RDPClustParser picks, between cutoffs and past the ends
+        for (double cutoff : new double[]{0.0, 0.001, 0.0054, 0.0099, 0.015, 0.5}) {
+            assertEquals(parser.getCutoff(cutoff).getCutoff(), reader.getCutoff(reader.findCutoff(cutoff)));
+        }
+        parser.close();
+    }
+
+    @Test
+    public void testWrittenDuringClustering() throws IOException {
+        assertFalse(ClusterResultReader.isResultFile(clustFile));
+        checkResult(resultFile);
+    }
+
+    @Test
+    public void testFromClusterFile() throws IOException {
+        File converted = new File(dir, "converted.res");
+        ClusterResultWriter.fromClusterFile(clustFile, converted);
+        checkResult(converted);
+        assertEquals(new ClusterResultReader(resultFile).getNumEntries(), new ClusterResultReader(converted).getNumEntries());
+
+        //And back again
+        File roundTrip = new File(dir, "round_trip.res");
+        FileUtils.writeStringToFile(clustFile, clusterFile(converted));
+        ClusterResultWriter.fromClusterFile(clustFile, roundTrip);
+        assertArrayEquals(FileUtils.readFileToByteArray(converted), FileUtils.readFileToByteArray(roundTrip));
+
+        //The cluster file, its index and the three result files, no temp files
+        assertEquals(5, dir.list().length);
+    }
+
+    @Test
+    public void testIdInSeveralSamples() throws IOException {
+        FileUtils.writeStringToFile(clustFile, "File(s):\tS1 S2 \n"
+                + "Sequences:\t2 2 \n"
+                + "\n"
+                + "distance cutoff:\t0.0\n"
+                + "Total Clusters:\t3\n"
+                + "1\tS1\t1\tx \n"
+                + "1\tS2\t1\tx \n"
+                + "2\tS1\t1\ty \n"
+                + "3\tS2\t1\ty \n"
+                + "\n"
+                + "distance cutoff:\t0.01\n"
+                + "Total Clusters:\t2\n"
+                + "1\tS1\t2\tx y \n"
+                + "2\tS2\t2\ty x \n"
+                + "\n");
+        ClusterResultWriter.fromClusterFile(clustFile, resultFile);
+        assertEquals(normalize(FileUtils.readFileToString(clustFile)), normalize(clusterFile(resultFile)));
+
+        ClusterResultReader reader = new ClusterResultReader(resultFile);
+        assertEquals(4, reader.getNumEntries());
+        assertArrayEquals(new String[]{"x", "x", "y", "y"}, reader.readEntryIds());
+        assertArrayEquals(new int[]{0, 1, 0, 1}, reader.readEntrySamples());
+        assertArrayEquals(new int[]{1, 1, 2, 3}, reader.readCutoff(0));
+        assertArrayEquals(new int[]{1, 2, 1, 2}, reader.readCutoff(1));
+    }
+
+    private void checkError(String clust, String message) throws IOException {
+        FileUtils.writeStringToFile(clustFile, clust);
+        resultFile.delete();
+        try {
+            ClusterResultWriter.fromClusterFile(clustFile, resultFile);
+            fail("Expected " + message);
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+        }
+
+        //No partial result file or temp files are left
+        assertFalse(resultFile.exists());
+        for (String name : dir.list()) {
+            assertTrue(name, name.startsWith("test."));
+        }
+    }
+
+    @Test
+    public void testConversionErrors() throws IOException {
+        String header = "File(s):\tS1 S2 \n"
+                + "Sequences:\t2 2 \n"
+                + "\n"
+                + "distance cutoff:\t0.0\n"
+                + "Total Clusters:\t3\n";
+
+        checkError(header
+                + "1\tS1\t1\tx \n"
+                + "1\tS2\t1\tx \n"
+                + "2\tS1\t1\ty \n"
+                + "3\tS1\t1\ty \n"
+                + "\n", "Sequence y is in sample S1 more than once in cutoff 0.0");
+
+        String first = header
+                + "1\tS1\t1\tx \n"
+                + "1\tS2\t1\tx \n"
+                + "2\tS1\t1\ty \n"
+                + "3\tS2\t1\ty \n"
+                + "\n"
+                + "distance cutoff:\t0.01\n"
+                + "Total Clusters:\t1\n";
+        checkError(first
+                + "1\tS1\t2\tx x \n"
+                + "1\tS2\t2\ty x \n"
+                + "\n", "Sequence x is in sample S1 more than once in cutoff 0.01");
+        checkError(first
+                + "1\tS1\t2\tx y \n"
+                + "1\tS2\t2\ty z \n"
+                + "\n", "Sequence z in sample S2 at cutoff 0.01 isn't in the first cutoff");
+        checkError(first
+                + "1\tS1\t2\tx y \n"
+                + "1\tS2\t1\tx \n"
+                + "\n", "Sequence y in sample S2 is missing from cutoff 0.01");
+        checkError(first
+                + "1\tS1\t2\tx y \n"
+                + "2\tS2\t2\tx y \n"
+                + "\n", "Cluster 2 in cutoff 0.01 but there are only 1 clusters");
+    }
+}
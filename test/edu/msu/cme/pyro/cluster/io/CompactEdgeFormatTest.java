@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.ThinEdge;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Round trips edges through the block compressed matrix and checks it reads
+ * the same as the raw matrix
+ *
+ * @author fishjord
+ */
+public class CompactEdgeFormatTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("compact_test", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * Random edges sorted by distance, with long runs of the same distance
+     * and sequence ids that jump around
+     */
+    private static List<ThinEdge> randomEdges(int n, long seed) {
+        Random rand = new Random(seed);
+        List<ThinEdge> ret = new ArrayList();
+        for (int index = 0; index < n; index++) {
+            int seqi = rand.nextInt(100000);
+            int seqj = seqi + 1 + rand.nextInt(Integer.MAX_VALUE - seqi - 1);
+            ret.add(new ThinEdge(seqi, seqj, rand.nextInt(20) * 1000));
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static void write(EdgeWriter writer, List<ThinEdge> edges) throws IOException {
+        for (ThinEdge edge : edges) {
+            writer.writeEdge(edge);
+        }
+        writer.close();
+    }
+
+    private static List<ThinEdge> read(EdgeReader reader) throws IOException {
+        List<ThinEdge> ret = new ArrayList();
+        ThinEdge edge;
+        while ((edge = reader.nextThinEdge()) != null) {
+            ret.add(edge);
+        }
+        reader.close();
+        return ret;
+    }
+
+    @Test
+    public void testZigzag() {
+        int[] values = {0, 1, -1, 2, -2, 12345, -12345, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int value : values) {
+            assertEquals(value, CompactEdgeFormat.unzigzag(CompactEdgeFormat.zigzag(value)));
+        }
+        assertEquals(0, CompactEdgeFormat.zigzag(0));
+        assertEquals(1, CompactEdgeFormat.zigzag(-1));
+        assertEquals(2, CompactEdgeFormat.zigzag(1));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<ThinEdge> edges = randomEdges(5000, 1);
+        File compact = new File(dir, "matrix.compact");
+        //Small blocks so runs of a distance cross block boundaries
+        write(new CompactEdgeWriter(compact, 37), edges);
+
+        assertTrue(EdgeFiles.isCompact(compact));
+        CompactEdgeReader reader = new CompactEdgeReader(compact);
+        assertEquals(edges.size(), reader.getEdgeCount());
+        assertEquals((edges.size() + 36) / 37, reader.getBlockCount());
+        assertEquals(edges.get(37).getDist(), reader.getBlockFirstDist(1));
+        assertEquals(edges, read(reader));
+    }
+
+    @Test
+    public void testEmptyMatrix() throws IOException {
+        File compact = new File(dir, "empty.compact");
+        write(new CompactEdgeWriter(compact), new ArrayList<ThinEdge>());
+
+        assertTrue(EdgeFiles.isCompact(compact));
+        CompactEdgeReader reader = new CompactEdgeReader(compact);
+        assertEquals(0, reader.getEdgeCount());
+        assertNull(reader.nextThinEdge());
+        reader.close();
+    }
+
+    @Test
+    public void testSeekMatchesRaw() throws IOException {
+        List<ThinEdge> edges = randomEdges(2000, 2);
+        File raw = new File(dir, "matrix.raw");
+        File compact = new File(dir, "matrix.compact");
+        write(new EdgeWriter(raw), edges);
+        write(new CompactEdgeWriter(compact, 64), edges);
+        assertFalse(EdgeFiles.isCompact(raw));
+
+        SeekableEdgeReader rawReader = EdgeFiles.openReader(raw);
+        SeekableEdgeReader compactReader = EdgeFiles.openReader(compact);
+        assertTrue(compactReader instanceof CompactEdgeReader);
+        assertEquals(rawReader.getEdgeCount(), compactReader.getEdgeCount());
+
+        long[] ordinals = {0, 1, 63, 64, 65, 1999, 700, 128, 3, 1000};
+        for (long ordinal : ordinals) {
+            rawReader.seek(ordinal);
+            compactReader.seek(ordinal);
+            assertEquals(ordinal, compactReader.position());
+            for (int index = 0; index < 70 && ordinal + index < edges.size(); index++) {
+                ThinEdge expected = edges.get((int) (ordinal + index));
+                assertEquals(expected, rawReader.nextThinEdge());
+                assertEquals(expected, compactReader.nextThinEdge());
+            }
+        }
+
+        compactReader.seek(edges.size());
+        assertNull(compactReader.nextThinEdge());
+
+        rawReader.close();
+        compactReader.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSeekPastEnd() throws IOException {
+        File compact = new File(dir, "matrix.compact");
+        write(new CompactEdgeWriter(compact, 16), randomEdges(10, 3));
+        CompactEdgeReader reader = new CompactEdgeReader(compact);
+        try {
+            reader.seek(11);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testConvert() throws IOException {
+        List<ThinEdge> edges = randomEdges(3000, 4);
+        File raw = new File(dir, "matrix.raw");
+        File compact = new File(dir, "matrix.compact");
+        File back = new File(dir, "matrix.back");
+        write(new EdgeWriter(raw), edges);
+
+        EdgeFiles.convert(raw, compact, true);
+        EdgeFiles.convert(compact, back, false);
+        assertTrue(compact.length() < raw.length());
+        assertArrayEquals(FileUtils.readFileToByteArray(raw), FileUtils.readFileToByteArray(back));
+        assertEquals(edges, read(new LocalEdgeReader(back)));
+    }
+}
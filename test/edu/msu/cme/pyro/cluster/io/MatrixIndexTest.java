@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.dist.ThinEdge;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the distance index against a scan of the matrix, for both formats
+ *
+ * @author fishjord
+ */
+public class MatrixIndexTest {
+
+    private File dir;
+    private List<ThinEdge> edges;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("index_test", "");
+        dir.delete();
+        dir.mkdir();
+
+        Random rand = new Random(1);
+        edges = new ArrayList();
+        for (int index = 0; index < 1000; index++) {
+            int seqi = rand.nextInt(50);
+            edges.add(new ThinEdge(seqi, seqi + 1 + rand.nextInt(50), rand.nextInt(40) * 7));
+        }
+        Collections.sort(edges);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private File writeMatrix(String name, boolean compact, List<ThinEdge> toWrite) throws IOException {
+        File ret = new File(dir, name);
+        EdgeWriter writer = EdgeFiles.openWriter(ret, compact);
+        for (ThinEdge edge : toWrite) {
+            writer.writeEdge(edge);
+        }
+        writer.close();
+        return ret;
+    }
+
+    private long scanOrdinal(int dist) {
+        for (int index = 0; index < edges.size(); index++) {
+            if (edges.get(index).getDist() >= dist) {
+                return index;
+            }
+        }
+        return edges.size();
+    }
+
+    private void checkIndex(MatrixIndex index) {
+        assertTrue(index.isSorted());
+        assertEquals(edges.size(), index.getEdgeCount());
+        assertEquals(edges.get(edges.size() - 1).getDist(), index.getMaxDist());
+
+        boolean[] seen = new boolean[101];
+        int seqs = 0;
+        for (ThinEdge edge : edges) {
+            for (int seq : new int[]{edge.getSeqi(), edge.getSeqj()}) {
+                if (!seen[seq]) {
+                    seen[seq] = true;
+                    seqs++;
+                }
+            }
+        }
+        assertEquals(seqs, index.getSeqCount());
+
+        for (int dist = -1; dist <= index.getMaxDist() + 1; dist++) {
+            assertEquals("dist " + dist, scanOrdinal(dist), index.getOrdinal(dist));
+        }
+    }
+
+    @Test
+    public void testWrittenIndexMatchesScan() throws IOException {
+        for (boolean compact : new boolean[]{false, true}) {
+            File matrix = writeMatrix("matrix" + compact, compact, edges);
+            assertTrue(MatrixIndex.getIndexFile(matrix).exists());
+
+            MatrixIndex index = MatrixIndex.load(matrix);
+            assertNotNull(index);
+            checkIndex(index);
+            checkIndex(MatrixIndex.build(matrix));
+        }
+    }
+
+    @Test
+    public void testSeekToOrdinal() throws IOException {
+        File matrix = writeMatrix("matrix", true, edges);
+        MatrixIndex index = EdgeFiles.getIndex(matrix);
+        SeekableEdgeReader reader = EdgeFiles.openReader(matrix);
+
+        for (int dist = 0; dist <= index.getMaxDist(); dist += 7) {
+            long ordinal = index.getOrdinal(dist);
+            if (ordinal == edges.size()) {
+                continue;
+            }
+            reader.seek(ordinal);
+            ThinEdge edge = reader.nextThinEdge();
+            assertTrue(edge.getDist() >= dist);
+            assertEquals(edges.get((int) ordinal), edge);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testStaleIndexIsRebuilt() throws IOException {
+        File matrix = writeMatrix("matrix", false, edges);
+        //Rewrite the matrix without its index being updated
+        EdgeWriter writer = new EdgeWriter(matrix);
+        for (ThinEdge edge : edges.subList(0, 10)) {
+            writer.writeEdge(edge);
+        }
+        writer.close();
+
+        assertNull(MatrixIndex.load(matrix));
+        MatrixIndex index = EdgeFiles.getIndex(matrix);
+        assertEquals(10, index.getEdgeCount());
+        assertNotNull(MatrixIndex.load(matrix));
+    }
+
+    @Test
+    public void testSameLengthRewriteIsRebuilt() throws IOException {
+        List<ThinEdge> before = new ArrayList();
+        List<ThinEdge> after = new ArrayList();
+        for (int index = 0; index < 10; index++) {
+            before.add(new ThinEdge(index, index + 1, 100 + index));
+            after.add(new ThinEdge(index, index + 1, 5000 + index));
+        }
+        File matrix = writeMatrix("matrix", false, before);
+        assertEquals(109, EdgeFiles.getIndex(matrix).getMaxDist());
+
+        //Same number of edges, the index isn't updated
+        EdgeWriter writer = new EdgeWriter(matrix);
+        for (ThinEdge edge : after) {
+            writer.writeEdge(edge);
+        }
+        writer.close();
+        long modified = matrix.lastModified();
+        assertNull(MatrixIndex.load(matrix));
+        assertEquals(5009, EdgeFiles.getIndex(matrix).getMaxDist());
+
+        //Even if the modification time is the same
+        writer = new EdgeWriter(matrix);
+        for (ThinEdge edge : before) {
+            writer.writeEdge(edge);
+        }
+        writer.close();
+        assertTrue(matrix.setLastModified(modified));
+        assertNull(MatrixIndex.load(matrix));
+        assertEquals(109, EdgeFiles.getIndex(matrix).getMaxDist());
+    }
+
+    @Test
+    public void testTruncatedIndexIsRebuilt() throws IOException {
+        File matrix = writeMatrix("matrix", true, edges);
+        File idxFile = MatrixIndex.getIndexFile(matrix);
+        byte[] idx = FileUtils.readFileToByteArray(idxFile);
+
+        for (int length : new int[]{0, 6, 30, idx.length - 1}) {
+            FileUtils.writeByteArrayToFile(idxFile, Arrays.copyOf(idx, length));
+            assertNull(MatrixIndex.load(matrix));
+            checkIndex(EdgeFiles.getIndex(matrix));
+            assertArrayEquals(idx, FileUtils.readFileToByteArray(idxFile));
+        }
+        //No temp files left from writing the index
+        assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void testSplitRanges() throws IOException {
+        MatrixIndex index = MatrixIndex.build(writeMatrix("matrix", true, edges));
+
+        for (int parts = 1; parts <= 12; parts++) {
+            long[] ranges = index.splitRanges(parts);
+            assertEquals(0, ranges[0]);
+            assertEquals(edges.size(), ranges[ranges.length - 1]);
+            assertTrue(ranges.length - 1 <= parts);
+            for (int range = 1; range < ranges.length; range++) {
+                assertTrue(ranges[range] > ranges[range - 1]);
+            }
+            //Edges with the same distance stay in the same range
+            for (int range = 1; range < ranges.length - 1; range++) {
+                int boundary = (int) ranges[range];
+                assertTrue(edges.get(boundary - 1).getDist() < edges.get(boundary).getDist());
+            }
+        }
+    }
+
+    @Test
+    public void testUnsortedMatrix() throws IOException {
+        List<ThinEdge> unsorted = new ArrayList(edges);
+        Collections.reverse(unsorted);
+        MatrixIndex index = MatrixIndex.build(writeMatrix("matrix", false, unsorted));
+
+        assertFalse(index.isSorted());
+        assertEquals(edges.size(), index.getEdgeCount());
+        try {
+            index.getOrdinal(0);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the streaming R table writer against createTabulatedFormat on the
+ * parsed cutoffs
+ *
+ * @author fishjord
+ */
+public class RFormatterTest {
+
+    //Enough samples that HashMap order isn't the header order, "empty" has no sequences
+    private static final String CLUST_FILE = "File(s):\tzeta alpha_trimmed aligned_B7 mm empty Q12 k9 sample_10 sample_9 \n"
+            + "Sequences:\t3 2 2 1 0 1 1 1 1 \n"
+            + "\n"
+            + "distance cutoff:\t0.0\n"
+            + "Total Clusters:\t11\n"
+            + "1\tzeta\t1\tz1 \n"
+            + "2\tzeta\t1\tz2 \n"
+            + "3\tzeta\t1\tz3 \n"
+            + "4\talpha_trimmed\t2\ta1 a2 \n"
+            + "5\taligned_B7\t1\tb1 \n"
+            + "6\taligned_B7\t1\tb2 \n"
+            + "7\tmm\t1\tm1 \n"
+            + "8\tQ12\t1\tq1 \n"
+            + "9\tk9\t1\tk1 \n"
+            + "10\tsample_10\t1\ts10 \n"
+            + "11\tsample_9\t1\ts9 \n"
+            + "\n"
+            + "distance cutoff:\t0.02\n"
+            + "Total Clusters:\t4\n"
+            + "1\tzeta\t3\tz1 z2 z3 \n"
+            + "1\tmm\t1\tm1 \n"
+            + "2\talpha_trimmed\t2\ta1 a2 \n"
+            + "2\taligned_B7\t2\tb1 b2 \n"
+            + "3\tQ12\t1\tq1 \n"
+            + "3\tk9\t1\tk1 \n"
+            + "4\tsample_10\t1\ts10 \n"
+            + "4\tsample_9\t1\ts9 \n"
+            + "\n";
+    private File dir;
+    private File clustFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("rformat_test", "");
+        dir.delete();
+        dir.mkdir();
+        clustFile = new File(dir, "test.clust");
+        FileUtils.writeStringToFile(clustFile, CLUST_FILE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private String parsedTable(String cutoff, HashMap<String, Double> idcountmap) throws IOException {
+        RDPClustParser parser = new RDPClustParser(clustFile, idcountmap != null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (idcountmap == null) {
+            RFormatter.createTabulatedFormat(parser.getCutoff(cutoff), new PrintStream(bytes));
+        } else {
+            RFormatter.createTabulatedFormat(parser.getCutoff(cutoff), new PrintStream(bytes), idcountmap);
+        }
+        parser.close();
+        return bytes.toString();
+    }
+
+    @Test
+    public void testRangeMatchesParsedTables() throws IOException {
+        assertTrue(RFormatter.createTabulatedFormatForRange(clustFile, 0.0, 0.03, dir, null));
+
+        assertEquals(parsedTable("0.0", null), FileUtils.readFileToString(new File(dir, "rformat_dist_0.0.txt")));
+        assertEquals(parsedTable("0.02", null), FileUtils.readFileToString(new File(dir, "rformat_dist_0.02.txt")));
+        //0.01 and 0.03 aren't in the file, so they get the cutoff below them
+        assertEquals(parsedTable("0.01", null), FileUtils.readFileToString(new File(dir, "rformat_dist_0.01.txt")));
+        assertEquals(parsedTable("0.03", null), FileUtils.readFileToString(new File(dir, "rformat_dist_0.03.txt")));
+    }
+
+    @Test
+    public void testRangeMatchesParsedTablesWithCounts() throws IOException {
+        HashMap<String, Double> idcountmap = new HashMap<String, Double>();
+        StringBuilder countFile = new StringBuilder("#id count\n");
+        String[] ids = {"z1", "z2", "z3", "a1", "a2", "b1", "b2", "m1", "q1", "k1", "s10", "s9"};
+        for (int index = 0; index < ids.length; index++) {
+            idcountmap.put(ids[index], index + 1.5);
+            countFile.append(ids[index]).append("\t").append(index + 1.5).append("\n");
+        }
+        File countMapFile = new File(dir, "idcount.txt");
+        FileUtils.writeStringToFile(countMapFile, countFile.toString());
+
+        assertTrue(RFormatter.createTabulatedFormatForRange(clustFile, 0.02, 0.02, dir, countMapFile));
+        assertEquals(parsedTable("0.02", idcountmap), FileUtils.readFileToString(new File(dir, "rformat_dist_0.02.txt")));
+    }
+
+    @Test
+    public void testEmptySampleGetsARow() throws IOException {
+        assertTrue(RFormatter.createTabulatedFormatForRange(clustFile, 0.02, 0.02, dir, null));
+        String table = FileUtils.readFileToString(new File(dir, "rformat_dist_0.02.txt"));
+        assertTrue(table.contains("\nempty\t0\t0\t0\t0\n"));
+        assertTrue(table.contains("\nalpha\t0\t2\t0\t0\n"));
+        assertTrue(table.contains("\nB7\t0\t2\t0\t0\n"));
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.io;
+
+import edu.msu.cme.pyro.cluster.utils.AbstractClusterFactory;
+import edu.msu.cme.pyro.cluster.utils.Cluster;
+import edu.msu.cme.pyro.cluster.utils.UnionFindClusterFactory;
+import edu.msu.cme.pyro.derep.IdMapping;
+import edu.msu.cme.pyro.derep.MappedIdMapping;
+import edu.msu.cme.pyro.derep.MappedSampleMapping;
+import edu.msu.cme.pyro.derep.SampleMapping;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the counts the matrix keeps through merges against counting every
+ * cluster's sequence ids in the sample mapping, the way cluster files were
+ * counted before
+ *
+ * @author fishjord
+ */
+public class SampleCountMatrixTest {
+
+    private static final int NUM_SEQS = 300;
+    private static final int NUM_SAMPLES = 9;
+    private File dir;
+    private IdMapping<Integer> idMapping;
+    private SampleMapping<String> sampleMapping;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = ClusterFixtures.createTempDir("sample_count_test");
+
+        //Most ids in one sample, some in two and some in none
+        ClusterFixtures fixtures = new ClusterFixtures(1, NUM_SEQS, 4, ClusterFixtures.sampleNames("sample", NUM_SAMPLES), 10);
+        idMapping = fixtures.idMapping;
+        sampleMapping = fixtures.sampleMapping;
+
+        MappedIdMapping.Writer idWriter = new MappedIdMapping.Writer(new File(dir, "ids.bin"));
+        for (int seq : idMapping.getAll()) {
+            List<String> ids = idMapping.getIds(seq);
+            idWriter.addIds(seq, ids.toArray(new String[ids.size()]));
+        }
+        idWriter.close();
+
+        MappedSampleMapping.Writer sampleWriter = new MappedSampleMapping.Writer(new File(dir, "samples.bin"));
+        for (String sample : sampleMapping.getSampleList()) {
+            for (String id : sampleMapping.getIdsBySample(sample)) {
+                sampleWriter.addSeq(sample, id);
+            }
+        }
+        sampleWriter.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private int[] expectedCounts(Iterable<Integer> seqs, List<String> samples) {
+        int[] counts = new int[samples.size()];
+        for (int seq : seqs) {
+            if (!idMapping.getAll().contains(seq)) {
+                continue;
+            }
+            for (String id : idMapping.getIds(seq)) {
+                for (int sample = 0; sample < samples.size(); sample++) {
+                    if (sampleMapping.getIdsBySample(samples.get(sample)).contains(id)) {
+                        counts[sample]++;
+                    }
+                }
+            }
+        }
+
+        List<Integer> pairs = new ArrayList();
+        for (int sample = 0; sample < counts.length; sample++) {
+            if (counts[sample] != 0) {
+                pairs.add(sample);
+                pairs.add(counts[sample]);
+            }
+        }
+        int[] ret = new int[pairs.size()];
+        for (int index = 0; index < ret.length; index++) {
+            ret[index] = pairs.get(index);
+        }
+        return ret;
+    }
+
+    /**
+     * Clusters in the order of their first sequence in the id mapping (its
+     * own order, binary and text mappings differ), then the sequences that
+     * were never clustered
+     */
+    private List<int[]> expectedOTUCounts(IdMapping<Integer> ids, UnionFindClusterFactory factory, List<String> samples) {
+        List<int[]> ret = new ArrayList();
+        Set<Cluster> seen = new HashSet();
+        List<Integer> unseen = new ArrayList();
+        for (int seq : ids.getAll()) {
+            Cluster c = factory.getCluster(seq);
+            if (c == null) {
+                unseen.add(seq);
+            } else if (seen.add(c)) {
+                ret.add(expectedCounts(factory.getSeqsInCluster(c), samples));
+            }
+        }
+        for (int seq : unseen) {
+            List<Integer> seqs = new ArrayList();
+            seqs.add(seq);
+            ret.add(expectedCounts(seqs, samples));
+        }
+        return ret;
+    }
+
+    private static void check(List<int[]> expected, List<int[]> counts) {
+        assertEquals(expected.size(), counts.size());
+        for (int index = 0; index < expected.size(); index++) {
+            assertArrayEquals(expected.get(index), counts.get(index));
+        }
+    }
+
+    private void checkMerges(final IdMapping<Integer> ids, SampleMapping<String> samples) {
+        final SampleCountMatrix listening = new SampleCountMatrix(ids, samples);
+        final SampleCountMatrix counting = new SampleCountMatrix(ids, samples);
+        assertEquals(sampleMapping.getSampleList(), listening.getSamples());
+
+        final UnionFindClusterFactory factory = new UnionFindClusterFactory();
+        factory.addClusterListener(listening);
+        //A few sequences are never clustered, and a sequence that isn't in
+        //the id mapping has no entries
+        List<Cluster> live = ClusterFixtures.singletons(factory, NUM_SEQS - 5);
+        live.add(factory.createSingleton(NUM_SEQS + 10));
+
+        //Enough steps to merge everything in to one cluster
+        ClusterFixtures.mergeRandomly(new Random(2), factory, live, ClusterFixtures.steps(200, 1), new ClusterOutput() {
+
+            public void printClusters(AbstractClusterFactory f, int step) {
+                List<int[]> expected = expectedOTUCounts(ids, factory, listening.getSamples());
+                check(expected, listening.getOTUCounts(factory));
+                //Not listening, so every cluster is counted from its sequences
+                check(expected, counting.getOTUCounts(factory));
+            }
+
+            public void close() {
+            }
+        });
+        assertEquals(1, live.size());
+    }
+
+    @Test
+    public void testTextMappings() {
+        checkMerges(idMapping, sampleMapping);
+    }
+
+    @Test
+    public void testBinaryMappings() throws IOException {
+        checkMerges(MappedIdMapping.load(new File(dir, "ids.bin")), MappedSampleMapping.load(new File(dir, "samples.bin")));
+        checkMerges(idMapping, MappedSampleMapping.load(new File(dir, "samples.bin")));
+    }
+
+    @Test
+    public void testEntryIds() throws IOException {
+        SampleCountMatrix text = new SampleCountMatrix(idMapping, sampleMapping, true);
+        SampleCountMatrix binary = new SampleCountMatrix(MappedIdMapping.load(new File(dir, "ids.bin")), MappedSampleMapping.load(new File(dir, "samples.bin")), true);
+        assertFalse(new SampleCountMatrix(idMapping, sampleMapping).hasEntryIds());
+        assertTrue(text.hasEntryIds());
+        assertTrue(binary.hasEntryIds());
+
+        //One entry for each sample an id is in, grouped by sequence
+        List<String> samples = sampleMapping.getSampleList();
+        for (int seq : idMapping.getAll()) {
+            List<String> expected = new ArrayList();
+            List<Integer> expectedSamples = new ArrayList();
+            for (String id : idMapping.getIds(seq)) {
+                for (int sample = 0; sample < samples.size(); sample++) {
+                    if (sampleMapping.getIdsBySample(samples.get(sample)).contains(id)) {
+                        expected.add(id);
+                        expectedSamples.add(sample);
+                    }
+                }
+            }
+
+            for (SampleCountMatrix matrix : new SampleCountMatrix[]{text, binary}) {
+                assertTrue(matrix.hasEntries(seq));
+                assertEquals(expected, matrix.getEntryIds().subList(matrix.entryStart[seq], matrix.entryStart[seq + 1]));
+                for (int entry = matrix.entryStart[seq]; entry < matrix.entryStart[seq + 1]; entry++) {
+                    assertEquals((int) expectedSamples.get(entry - matrix.entryStart[seq]), matrix.entrySamples[entry]);
+                }
+            }
+        }
+        assertFalse(text.hasEntries(NUM_SEQS + 10));
+        assertFalse(text.hasEntries(-1));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.upgma;
+
+import edu.msu.cme.pyro.cluster.dist.ThickEdge;
+import edu.msu.cme.pyro.cluster.utils.Cluster;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the heap against a linear scan for the smallest bound, including
+ * after psi/lambda is raised and the cached bounds go stale
+ *
+ * @author fishjord
+ */
+public class IndexedEdgeHeapTest {
+
+    private static ThickEdge edge(int slot, int size1, int size2, long seenDist, long seenEdges) {
+        ThickEdge ret = new ThickEdge(new Cluster(slot * 2, size1), new Cluster(slot * 2 + 1, size2), seenDist, seenEdges);
+        ret.setSlot(slot);
+        return ret;
+    }
+
+    /**
+     * The edge with the smallest bound (then slot) other than skip
+     */
+    private static ThickEdge scanMin(List<ThickEdge> edges, int bound, ThickEdge skip) {
+        ThickEdge ret = null;
+        for (ThickEdge e : edges) {
+            if (e == skip) {
+                continue;
+            }
+            if (ret == null || e.getBound(bound) < ret.getBound(bound)
+                    || (e.getBound(bound) == ret.getBound(bound) && e.getSlot() < ret.getSlot())) {
+                ret = e;
+            }
+        }
+        return ret;
+    }
+
+    private static void check(IndexedEdgeHeap heap, List<ThickEdge> inHeap) {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertTrue(err.toString(), heap.validate(new PrintStream(err)));
+        assertEquals(inHeap.size(), heap.size());
+
+        ThickEdge top = scanMin(inHeap, heap.getBound(), null);
+        assertSame(top, heap.top());
+        assertSame(scanMin(inHeap, heap.getBound(), top), heap.secondTop());
+    }
+
+    @Test
+    public void testEmpty() {
+        IndexedEdgeHeap heap = new IndexedEdgeHeap(100);
+        assertNull(heap.top());
+        assertNull(heap.secondTop());
+        assertEquals(0, heap.size());
+        assertFalse(heap.delete(edge(0, 1, 1, 0, 0)));
+    }
+
+    @Test
+    public void testTiesOrderedBySlot() {
+        IndexedEdgeHeap heap = new IndexedEdgeHeap(100);
+        List<ThickEdge> edges = new ArrayList();
+        for (int slot = 9; slot >= 0; slot--) {
+            ThickEdge e = edge(slot, 1, 1, 50, 1);
+            edges.add(e);
+            heap.insert(e);
+        }
+        check(heap, edges);
+        assertEquals(0, heap.top().getSlot());
+        assertEquals(1, heap.secondTop().getSlot());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInsertTwice() {
+        IndexedEdgeHeap heap = new IndexedEdgeHeap(100);
+        heap.insert(edge(3, 1, 1, 0, 0));
+        heap.insert(edge(3, 1, 1, 0, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInsertWithoutSlot() {
+        new IndexedEdgeHeap(100).insert(new ThickEdge(new Cluster(0, 1), new Cluster(1, 1), 0, 0));
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random rand = new Random(1);
+        int bound = 500;
+        IndexedEdgeHeap heap = new IndexedEdgeHeap(bound);
+        List<ThickEdge> inHeap = new ArrayList();
+        int nextSlot = 0;
+
+        for (int op = 0; op < 5000; op++) {
+            int choice = rand.nextInt(10);
+            if (choice < 4 || inHeap.isEmpty()) {
+                int size1 = 1 + rand.nextInt(20), size2 = 1 + rand.nextInt(20);
+                long seen = rand.nextInt(size1 * size2 + 1);
+                ThickEdge e = edge(nextSlot++, size1, size2, seen * rand.nextInt(bound), seen);
+                heap.insert(e);
+                inHeap.add(e);
+            } else if (choice < 6) {
+                ThickEdge e = inHeap.remove(rand.nextInt(inHeap.size()));
+                assertTrue(heap.delete(e));
+                assertFalse(heap.contains(e));
+            } else if (choice < 8) {
+                ThickEdge e = inHeap.get(rand.nextInt(inHeap.size()));
+                long pairs = (long) e.getCi().getNumberOfSeqs() * e.getCj().getNumberOfSeqs();
+                if (e.getSeenEdges() < pairs) {
+                    e.addEdge(rand.nextInt(bound + 1));
+                }
+                assertTrue(heap.changed(e));
+            } else if (choice < 9) {
+                //Raising the bound only marks the cached bounds stale
+                bound += rand.nextInt(50);
+                heap.setBound(bound);
+            } else {
+                bound -= rand.nextInt(20);
+                heap.setBound(bound);
+            }
+
+            check(heap, inHeap);
+            if (!inHeap.isEmpty()) {
+                ThickEdge e = inHeap.get(rand.nextInt(inHeap.size()));
+                assertEquals(e.getBound(bound), heap.getKey(e));
+            }
+        }
+    }
+
+    @Test
+    public void testGetKeyOutsideHeap() {
+        IndexedEdgeHeap heap = new IndexedEdgeHeap(300);
+        ThickEdge e = edge(2, 3, 4, 1200, 6);
+        assertEquals(e.getBound(300), heap.getKey(e));
+        heap.insert(e);
+        heap.delete(e);
+        assertEquals(e.getBound(300), heap.getKey(e));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.upgma;
+
+import edu.msu.cme.pyro.cluster.Clustering;
+import edu.msu.cme.pyro.cluster.dist.ThinEdge;
+import edu.msu.cme.pyro.cluster.io.ClusterFileOutput;
+import edu.msu.cme.pyro.cluster.io.EdgeFiles;
+import edu.msu.cme.pyro.cluster.io.EdgeWriter;
+import edu.msu.cme.pyro.derep.IdMapping;
+import edu.msu.cme.pyro.derep.SampleMapping;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks upgma writes the same cluster file whether its lookaheads scan the
+ * matrix on one thread or split it between several
+ *
+ * @author fishjord
+ */
+public class UPGMALookaheadTest {
+
+    private static final int NUM_SEQS = 400;
+    private File dir;
+    private File matrix;
+    private IdMapping<Integer> idMapping;
+    private SampleMapping<String> sampleMapping;
+    private boolean hadTimingFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("upgma_lookahead_test", "");
+        dir.delete();
+        dir.mkdir();
+        //doUPGMA appends its timings to timing.txt in the working directory
+        hadTimingFile = new File("timing.txt").exists();
+
+        //Sequences at random points on a line, only close ones have an edge
+        Random rand = new Random(1);
+        int[] points = new int[NUM_SEQS];
+        idMapping = new IdMapping<Integer>();
+        sampleMapping = new SampleMapping<String>();
+        for (int seq = 0; seq < NUM_SEQS; seq++) {
+            points[seq] = rand.nextInt(4000);
+            idMapping.addIds(seq, Arrays.asList("seq" + seq));
+            sampleMapping.addSeq("sample" + rand.nextInt(3), "seq" + seq);
+        }
+
+        List<ThinEdge> edges = new ArrayList();
+        for (int seqi = 0; seqi < NUM_SEQS; seqi++) {
+            for (int seqj = seqi + 1; seqj < NUM_SEQS; seqj++) {
+                int dist = Math.abs(points[seqi] - points[seqj]) * 3 + rand.nextInt(5);
+                if (dist < 400) {
+                    edges.add(new ThinEdge(seqi, seqj, dist));
+                }
+            }
+        }
+        Collections.sort(edges);
+
+        matrix = new File(dir, "matrix");
+        EdgeWriter writer = EdgeFiles.openWriter(matrix, false);
+        for (ThinEdge edge : edges) {
+            writer.writeEdge(edge);
+        }
+        writer.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+        if (!hadTimingFile) {
+            new File("timing.txt").delete();
+        }
+    }
+
+    /**
+     * Clusters the matrix, returns the number of lookaheads
+     */
+    private int cluster(int threads, File clustFile) throws IOException {
+        int psi = UPGMAEdgeReader.getPsiFromFile(matrix);
+        UPGMAClusterFactory factory = new UPGMAClusterFactory(psi);
+        ClusterFileOutput out = new ClusterFileOutput(idMapping, sampleMapping, new PrintStream(clustFile));
+        factory.addClusterListener(out.getSampleCounts());
+
+        UPGMAEdgeReader reader = new UPGMAEdgeReader(psi, matrix, factory, NUM_SEQS, dir);
+        reader.setThreads(threads);
+        //Few enough edges loaded at once that it has to look ahead, and
+        //lookaheads are split even though the matrix is small
+        reader.setMaxLoadedEdges(50);
+        reader.setMinEdgesPerThread(1);
+
+        Clustering.doUPGMA(factory, reader, psi, .001, out);
+        reader.close();
+        factory.finish();
+        out.close();
+
+        return reader.getLookaheads();
+    }
+
+    @Test
+    public void testSameClustersForAnyThreads() throws IOException {
+        File expected = new File(dir, "threads1.clust");
+        int lookaheads = cluster(1, expected);
+        assertTrue(lookaheads > 0);
+
+        for (int threads : new int[]{2, 3, 8}) {
+            File clustFile = new File(dir, "threads" + threads + ".clust");
+            assertEquals(lookaheads, cluster(threads, clustFile));
+            assertArrayEquals("threads " + threads, FileUtils.readFileToByteArray(expected), FileUtils.readFileToByteArray(clustFile));
+        }
+    }
+}
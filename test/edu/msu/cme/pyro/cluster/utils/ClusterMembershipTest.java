@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.cluster.utils;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the union-find membership against a list of members per cluster
+ *
+ * @author fishjord
+ */
+public class ClusterMembershipTest {
+
+    private static void check(ClusterMembership members, Map<Cluster, List<Integer>> expected, int maxSeq) {
+        assertEquals(expected.size(), members.getClusterCount());
+        assertEquals(new ArrayList(expected.keySet()), members.getClusters());
+
+        for (Map.Entry<Cluster, List<Integer>> entry : expected.entrySet()) {
+            Set<Integer> seqs = members.getSeqs(entry.getKey());
+            assertEquals(entry.getValue(), new ArrayList(seqs));
+            assertEquals(entry.getValue().size(), seqs.size());
+            for (int seq : entry.getValue()) {
+                assertTrue(seqs.contains(seq));
+                assertSame(entry.getKey(), members.lookupCluster(seq));
+                assertSame(entry.getKey(), members.getCluster(seq));
+            }
+        }
+
+        for (int seq = 0; seq <= maxSeq; seq++) {
+            if (!members.contains(seq)) {
+                assertNull(members.getCluster(seq));
+                assertNull(members.lookupCluster(seq));
+            }
+        }
+    }
+
+    @Test
+    public void testRandomMerges() {
+        Random rand = new Random(1);
+        ClusterMembership members = new ClusterMembership();
+        //Ordered by each cluster's first sequence, like getClusters
+        Map<Cluster, List<Integer>> expected = new LinkedHashMap();
+        int nextId = 0;
+        int maxSeq = 0;
+
+        for (int seq = 0; seq < 500; seq++) {
+            //Sparse sequence ids so the arrays have to grow
+            int id = seq * 3 + rand.nextInt(3);
+            maxSeq = id;
+            Cluster c = new Cluster(nextId++, 1);
+            members.addSingleton(c, id);
+            List<Integer> seqs = new ArrayList();
+            seqs.add(id);
+            expected.put(c, seqs);
+        }
+        check(members, expected, maxSeq);
+
+        while (expected.size() > 1) {
+            List<Cluster> live = new ArrayList(expected.keySet());
+            Cluster ci = live.get(rand.nextInt(live.size()));
+            Cluster cj;
+            do {
+                cj = live.get(rand.nextInt(live.size()));
+            } while (cj == ci);
+
+            Cluster ck = new Cluster(nextId++, ci.getNumberOfSeqs() + cj.getNumberOfSeqs());
+            members.merge(ci, cj, ck);
+
+            List<Integer> merged = new ArrayList(expected.get(ci));
+            merged.addAll(expected.get(cj));
+            //ck takes the place of whichever of ci and cj comes first
+            Map<Cluster, List<Integer>> next = new LinkedHashMap();
+            for (Map.Entry<Cluster, List<Integer>> entry : expected.entrySet()) {
+                if (entry.getKey() == ci || entry.getKey() == cj) {
+                    if (!next.containsKey(ck)) {
+                        next.put(ck, merged);
+                    }
+                } else {
+                    next.put(entry.getKey(), entry.getValue());
+                }
+            }
+            expected = next;
+
+            assertNull(members.getSeqs(ci));
+            assertNull(members.getSeqs(cj));
+            if (expected.size() % 50 == 0) {
+                check(members, expected, maxSeq);
+            }
+        }
+        check(members, expected, maxSeq);
+    }
+
+    private static int[] parents(ClusterMembership members) throws Exception {
+        Field parent = ClusterMembership.class.getDeclaredField("parent");
+        parent.setAccessible(true);
+        return ((int[]) parent.get(members)).clone();
+    }
+
+    @Test
+    public void testLookupDoesNotCompress() throws Exception {
+        ClusterMembership members = new ClusterMembership();
+        Cluster[] clusters = new Cluster[8];
+        for (int seq = 0; seq < clusters.length; seq++) {
+            clusters[seq] = new Cluster(seq, 1);
+            members.addSingleton(clusters[seq], seq);
+        }
+        //Sequence 3 ends up two steps from the root
+        Cluster c01 = new Cluster(8, 2), c23 = new Cluster(9, 2);
+        members.merge(clusters[0], clusters[1], c01);
+        members.merge(clusters[2], clusters[3], c23);
+        Cluster c0123 = new Cluster(10, 4);
+        members.merge(c01, c23, c0123);
+
+        int[] before = parents(members);
+        int root = members.root(3);
+        for (int seq = 0; seq < clusters.length; seq++) {
+            members.lookupCluster(seq);
+        }
+        assertArrayEquals(before, parents(members));
+        assertTrue(before[3] != root);
+
+        assertSame(c0123, members.getCluster(3));
+        assertEquals(root, parents(members)[3]);
+        assertEquals(root, members.root(3));
+        assertSame(clusters[5], members.lookupCluster(5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddTwice() {
+        ClusterMembership members = new ClusterMembership();
+        members.addSingleton(new Cluster(0, 1), 4);
+        members.addSingleton(new Cluster(1, 1), 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDeadCluster() {
+        ClusterMembership members = new ClusterMembership();
+        Cluster c0 = new Cluster(0, 1), c1 = new Cluster(1, 1), c2 = new Cluster(2, 1);
+        members.addSingleton(c0, 0);
+        members.addSingleton(c1, 1);
+        members.addSingleton(c2, 2);
+        members.merge(c0, c1, new Cluster(3, 2));
+        members.merge(c0, c2, new Cluster(4, 2));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the gap mask against intersecting each sequence's set of gap
+ * columns, the way common gaps were found before
+ *
+ * @author fishjord
+ */
+public class CommonGapsTest {
+
+    private static Set<Integer> gapCols(List<String> seqs) {
+        Set<Integer> ret = null;
+        for (String seq : seqs) {
+            Set<Integer> gaps = new HashSet();
+            for (int index = 0; index < seq.length(); index++) {
+                char c = seq.charAt(index);
+                if (c == '-' || c == '.') {
+                    gaps.add(index);
+                }
+            }
+
+            if (ret == null) {
+                ret = gaps;
+            } else {
+                ret.retainAll(gaps);
+            }
+        }
+        return ret == null ? new HashSet<Integer>() : ret;
+    }
+
+    private static String removeGaps(Set<Integer> gaps, String seq) {
+        StringBuilder ret = new StringBuilder();
+        for (int index = 0; index < seq.length(); index++) {
+            if (!gaps.contains(index)) {
+                ret.append(seq.charAt(index));
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Aligned sequences with a few columns that are mostly gaps, so some are
+     * gaps in every sequence
+     */
+    private static List<String> randomSeqs(Random rand, int n, int length, int lengthSlop) {
+        boolean[] gappy = new boolean[length + lengthSlop];
+        for (int col = 0; col < gappy.length; col++) {
+            gappy[col] = rand.nextInt(3) == 0;
+        }
+
+        List<String> ret = new ArrayList();
+        for (int index = 0; index < n; index++) {
+            int seqLength = length + (lengthSlop == 0 ? 0 : rand.nextInt(lengthSlop * 2 + 1) - lengthSlop);
+            StringBuilder seq = new StringBuilder();
+            for (int col = 0; col < seqLength; col++) {
+                if (gappy[col] && rand.nextInt(50) != 0) {
+                    seq.append(rand.nextBoolean() ? '-' : '.');
+                } else {
+                    seq.append("ACGTacgt".charAt(rand.nextInt(8)));
+                }
+            }
+            ret.add(seq.toString());
+        }
+        return ret;
+    }
+
+    private static void check(List<String> seqs) {
+        CommonGaps gaps = new CommonGaps();
+        for (String seq : seqs) {
+            gaps.add(seq);
+        }
+
+        Set<Integer> expected = gapCols(seqs);
+        int maxLength = 0;
+        for (String seq : seqs) {
+            maxLength = Math.max(maxLength, seq.length());
+        }
+        for (int col = 0; col < maxLength + 64; col++) {
+            assertEquals("col " + col, expected.contains(col), gaps.isCommonGap(col));
+        }
+
+        for (String seq : seqs) {
+            assertEquals(removeGaps(expected, seq), gaps.trim(seq));
+        }
+    }
+
+    @Test
+    public void testSameLength() {
+        Random rand = new Random(1);
+        for (int length : new int[]{1, 63, 64, 65, 300}) {
+            List<String> seqs = randomSeqs(rand, 200, length, 0);
+            check(seqs);
+            //The mask doesn't depend on the order sequences are added in
+            Collections.shuffle(seqs, rand);
+            check(seqs);
+        }
+    }
+
+    @Test
+    public void testDifferentLengths() {
+        Random rand = new Random(2);
+        for (int trial = 0; trial < 20; trial++) {
+            check(randomSeqs(rand, 50, 130, 10));
+        }
+    }
+
+    @Test
+    public void testAllGaps() {
+        List<String> seqs = new ArrayList();
+        seqs.add("--..--");
+        seqs.add("..--..");
+        check(seqs);
+
+        CommonGaps gaps = new CommonGaps();
+        for (String seq : seqs) {
+            gaps.add(seq);
+        }
+        assertEquals(0, gaps.getKeepColumns().length);
+        assertEquals("", gaps.trim("------"));
+        assertEquals("AC", gaps.trim("------AC"));
+    }
+
+    @Test
+    public void testNoSeqs() {
+        CommonGaps gaps = new CommonGaps();
+        assertFalse(gaps.isCommonGap(0));
+        assertEquals(0, gaps.getKeepColumns().length);
+        assertEquals("A-C", gaps.trim("A-C"));
+    }
+
+    @Test
+    public void testKeepColumns() {
+        CommonGaps gaps = new CommonGaps();
+        gaps.add("A-C.-G");
+        gaps.add("AT-.-G");
+        assertArrayEquals(new int[]{0, 1, 2, 5}, gaps.getKeepColumns());
+        gaps.add("A-C.TG");
+        assertArrayEquals(new int[]{0, 1, 2, 4, 5}, gaps.getKeepColumns());
+        assertEquals("ATCGG", gaps.trim("ATC-GG"));
+    }
+}
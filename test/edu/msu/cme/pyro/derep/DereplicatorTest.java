@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the spilling dereplicator against grouping the sequences in a map,
+ * with budgets that keep everything in memory, spill runs and split
+ * partitions
+ *
+ * @author fishjord
+ */
+public class DereplicatorTest {
+
+    private File dir;
+    private List<Sequence> seqs;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("derep_test", "");
+        dir.delete();
+        dir.mkdir();
+
+        Random rand = new Random(1);
+        List<String> bases = new ArrayList();
+        for (int index = 0; index < 300; index++) {
+            StringBuilder b = new StringBuilder();
+            for (int col = 0; col < 40; col++) {
+                b.append("ACGT".charAt(rand.nextInt(4)));
+            }
+            bases.add(b.toString());
+        }
+
+        //Skewed copy counts, a few sequences have most of the copies
+        seqs = new ArrayList();
+        for (int index = 0; index < 3000; index++) {
+            int which = (int) (bases.size() * Math.pow(rand.nextDouble(), 3));
+            seqs.add(new Sequence("seq" + index, "", bases.get(which)));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static class Expected {
+
+        final long ordinal;
+        final Sequence exemplar;
+        final List<String> ids = new ArrayList();
+
+        Expected(long ordinal, Sequence exemplar) {
+            this.ordinal = ordinal;
+            this.exemplar = exemplar;
+        }
+    }
+
+    private List<Expected> expected(boolean sorted) {
+        Map<String, Expected> groups = new LinkedHashMap();
+        for (int index = 0; index < seqs.size(); index++) {
+            Sequence seq = seqs.get(index);
+            Expected e = groups.get(seq.getSeqString());
+            if (e == null) {
+                e = new Expected(index, seq);
+                groups.put(seq.getSeqString(), e);
+            }
+            e.ids.add(seq.getSeqName());
+        }
+
+        List<Expected> ret = new ArrayList(groups.values());
+        if (sorted) {
+            //Stable, so equal sizes stay in input order
+            Collections.sort(ret, new Comparator<Expected>() {
+
+                public int compare(Expected a, Expected b) {
+                    return b.ids.size() - a.ids.size();
+                }
+            });
+        }
+        return ret;
+    }
+
+    private void check(long memBudget, boolean sorted) throws IOException {
+        Dereplicator derep = new Dereplicator(dir, memBudget);
+        for (Sequence seq : seqs) {
+            derep.addSeq(seq);
+        }
+
+        List<Expected> expected = expected(sorted);
+        assertEquals(expected.size(), derep.finish(sorted));
+        for (Expected e : expected) {
+            Dereplicator.DerepSeq seq = derep.nextUniqueSeq();
+            assertNotNull(seq);
+            assertEquals(e.exemplar.getSeqString(), seq.getSeq().getSeqString());
+            assertEquals(e.exemplar.getSeqName(), seq.getSeq().getSeqName());
+            assertEquals(e.ids.size(), seq.getSize());
+            assertEquals(join(e.ids), seq.getIds());
+        }
+        assertNull(derep.nextUniqueSeq());
+        derep.close();
+
+        assertEquals(0, dir.list().length);
+    }
+
+    private static String join(List<String> ids) {
+        StringBuilder ret = new StringBuilder();
+        for (String id : ids) {
+            if (ret.length() > 0) {
+                ret.append(',');
+            }
+            ret.append(id);
+        }
+        return ret.toString();
+    }
+
+    @Test
+    public void testInMemory() throws IOException {
+        check(Long.MAX_VALUE, false);
+        check(Long.MAX_VALUE, true);
+    }
+
+    @Test
+    public void testSpilledRuns() throws IOException {
+        check(16 * 1024, false);
+        check(16 * 1024, true);
+    }
+
+    @Test
+    public void testSplitPartitions() throws IOException {
+        //Every run and partition is over budget, so partitions are split
+        check(1, false);
+        check(1, true);
+    }
+
+    @Test
+    public void testFingerprintCollisions() throws IOException {
+        //Different bases with the same fingerprint stay separate, even when
+        //the partition can't be split any further
+        for (long memBudget : new long[]{Long.MAX_VALUE, 1}) {
+            Dereplicator derep = new Dereplicator(dir, memBudget);
+            derep.addSeq(new Sequence("a1", "", "AAAA"), 7, 7);
+            derep.addSeq(new Sequence("c1", "", "CCCC"), 7, 7);
+            derep.addSeq(new Sequence("a2", "", "AAAA"), 7, 7);
+
+            assertEquals(2, derep.finish(true));
+            Dereplicator.DerepSeq seq = derep.nextUniqueSeq();
+            assertEquals("AAAA", seq.getSeq().getSeqString());
+            assertEquals("a1,a2", seq.getIds());
+            seq = derep.nextUniqueSeq();
+            assertEquals("CCCC", seq.getSeq().getSeqString());
+            assertEquals("c1", seq.getIds());
+            assertNull(derep.nextUniqueSeq());
+            derep.close();
+        }
+        assertEquals(0, dir.list().length);
+    }
+}
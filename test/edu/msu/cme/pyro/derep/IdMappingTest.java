@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks a rejected addIds leaves the mapping as it was
+ *
+ * @author fishjord
+ */
+public class IdMappingTest {
+
+    private static void checkRejected(IdMapping<Integer> mapping, int exemplar, String message, String... ids) {
+        try {
+            mapping.addIds(exemplar, Arrays.asList(ids));
+            fail("Expected " + message);
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDuplicatesLeaveMappingUnchanged() {
+        IdMapping<Integer> mapping = new IdMapping<Integer>();
+        mapping.addIds(1, Arrays.asList("a", "b"));
+
+        checkRejected(mapping, 2, "Attempting to add duplicate ids [b]", "c", "b", "d");
+        checkRejected(mapping, 2, "Attempting to add duplicate ids [c]", "c", "d", "c");
+        checkRejected(mapping, 1, "Attempting to add duplicate ids [a, c]", "a", "c", "c", "e");
+
+        assertEquals(1, mapping.size());
+        assertEquals(Arrays.asList("a", "b"), mapping.getIds(1));
+        assertEquals(2, mapping.getReverseMapping().size());
+
+        //None of the rejected ids were marked as seen
+        mapping.addIds(2, Arrays.asList("c", "d"));
+        mapping.addIds(1, Arrays.asList("e"));
+        assertEquals(Arrays.asList("c", "d"), mapping.getIds(2));
+        assertEquals(Arrays.asList("a", "b", "e"), mapping.getIds(1));
+
+        //A single id still can't be mapped twice
+        try {
+            mapping.addId(3, "d");
+            fail("Expected d to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
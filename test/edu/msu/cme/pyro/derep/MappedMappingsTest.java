@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks binary id and sample mappings made by IndexMappings against
+ * loading the text mappings they were made from
+ *
+ * @author fishjord
+ */
+public class MappedMappingsTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("mapped_mappings_test", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static List<String> lines(IdMapping mapping) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        mapping.toStream(new PrintStream(bytes));
+        return sortedLines(bytes.toString());
+    }
+
+    private static List<String> lines(SampleMapping mapping) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        mapping.toStream(new PrintStream(bytes));
+        return sortedLines(bytes.toString());
+    }
+
+    private static List<String> sortedLines(String s) {
+        List<String> ret = new ArrayList();
+        for (String line : s.split("\n")) {
+            if (line.trim().length() > 0) {
+                ret.add(line.trim());
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private File writeIdMapping(Random rand, int exemplars) throws IOException {
+        List<String> seqIds = new ArrayList();
+        for (int index = 0; index < exemplars * 4; index++) {
+            seqIds.add("seq" + index);
+        }
+        Collections.shuffle(seqIds, rand);
+
+        StringBuilder text = new StringBuilder();
+        int next = 0;
+        for (int exemplar = 0; exemplar < exemplars; exemplar++) {
+            int size = 1 + rand.nextInt(7);
+            //Exemplar ids don't have to be in order or dense
+            text.append(exemplars * 3 - exemplar * 3).append(' ');
+            for (int index = 0; index < size && next < seqIds.size(); index++) {
+                if (index != 0) {
+                    text.append(',');
+                }
+                text.append(seqIds.get(next++));
+            }
+            text.append('\n');
+            if (next == seqIds.size()) {
+                break;
+            }
+        }
+
+        File f = new File(dir, "ids.txt");
+        FileUtils.writeStringToFile(f, text.toString());
+        return f;
+    }
+
+    @Test
+    public void testIdMapping() throws IOException {
+        File textFile = writeIdMapping(new Random(1), 500);
+        File binFile = new File(dir, "ids.bin");
+        IndexMappings.indexIdMapping(textFile, binFile);
+
+        assertFalse(MappedIdMapping.isBinary(textFile));
+        assertTrue(MappedIdMapping.isBinary(binFile));
+
+        IdMapping<Integer> text = IdMapping.fromFile(textFile);
+        IdMapping<Integer> mapped = IdMapping.fromFile(binFile);
+        assertTrue(mapped instanceof MappedIdMapping);
+
+        assertEquals(text.size(), mapped.size());
+        assertEquals(text.getAll(), new HashSet(mapped.getAll()));
+        for (Integer id : text.getAll()) {
+            assertTrue(mapped.getAll().contains(id));
+            assertEquals(text.getIds(id), new ArrayList(mapped.getIds(id)));
+        }
+        assertFalse(mapped.getAll().contains(-1));
+
+        assertEquals(text.getReverseMapping(), new HashMap(mapped.getReverseMapping()));
+        for (String seqId : text.getReverseMapping().keySet()) {
+            assertEquals(text.getReverseMapping().get(seqId), ((MappedIdMapping) mapped).getExemplar(seqId));
+        }
+        assertNull(((MappedIdMapping) mapped).getExemplar("not_a_seq"));
+
+        //Written back out in the order it was read
+        assertEquals(lines(text), lines(mapped));
+        assertEquals(sortedLines(FileUtils.readFileToString(textFile)), lines(mapped));
+
+        //Only the text and binary files, the string pool is gone
+        assertEquals(2, dir.list().length);
+    }
+
+    private void checkIdMappingError(String text) throws IOException {
+        File textFile = new File(dir, "ids.txt");
+        FileUtils.writeStringToFile(textFile, text);
+
+        String expected = null;
+        try {
+            IdMapping.fromFile(textFile);
+            fail();
+        } catch (RuntimeException e) {
+            expected = e.getCause().getMessage();
+        }
+
+        File binFile = new File(dir, "ids.bin");
+        try {
+            IndexMappings.indexIdMapping(textFile, binFile);
+            fail();
+        } catch (IOException e) {
+            assertEquals(expected, e.getMessage());
+        }
+        assertFalse(binFile.exists());
+        assertEquals(1, dir.list().length);
+        textFile.delete();
+    }
+
+    @Test
+    public void testIdMappingErrors() throws IOException {
+        checkIdMappingError("1 a,b\n2 c,a\n");
+        checkIdMappingError("1 a,b\n2 c\n1 d\n");
+        checkIdMappingError("1 a,b,a\n");
+    }
+
+    @Test
+    public void testSampleMapping() throws IOException {
+        Random rand = new Random(2);
+        StringBuilder buf = new StringBuilder();
+        for (int index = 0; index < 3000; index++) {
+            //Ids repeated in the same sample and spread over several samples
+            buf.append("seq").append(rand.nextInt(1500)).append('\t').append("sample").append(rand.nextInt(12)).append('\n');
+            if (index % 100 == 0) {
+                buf.append('\n');
+            }
+        }
+        File textFile = new File(dir, "samples.txt");
+        FileUtils.writeStringToFile(textFile, buf.toString());
+        File binFile = new File(dir, "samples.bin");
+        IndexMappings.indexSampleMapping(textFile, binFile);
+
+        assertFalse(MappedSampleMapping.isBinary(textFile));
+        assertTrue(MappedSampleMapping.isBinary(binFile));
+
+        SampleMapping<String> text = SampleMapping.fromFile(textFile);
+        SampleMapping<String> mapped = SampleMapping.fromFile(binFile);
+        assertTrue(mapped instanceof MappedSampleMapping);
+
+        assertEquals(text.getSampleList(), mapped.getSampleList());
+        for (String sample : text.getSampleList()) {
+            Set<String> ids = text.getIdsBySample(sample);
+            assertEquals(ids, new HashSet(mapped.getIdsBySample(sample)));
+            assertEquals(ids.size(), mapped.getIdsBySample(sample).size());
+            for (String id : ids) {
+                assertTrue(mapped.getIdsBySample(sample).contains(id));
+            }
+            assertFalse(mapped.getIdsBySample(sample).contains("not_a_seq"));
+        }
+
+        //An id in more than one sample maps to the last of its samples
+        assertEquals(text.getIdToSampleMap(), new HashMap(mapped.getIdToSampleMap()));
+        for (int index = 0; index < 1500; index++) {
+            String id = "seq" + index;
+            assertEquals(text.getSampleById(id), mapped.getSampleById(id));
+
+            List<String> samples = new ArrayList();
+            for (String sample : text.getSampleList()) {
+                if (text.getIdsBySample(sample).contains(id)) {
+                    samples.add(sample);
+                }
+            }
+            int[] indexes = ((MappedSampleMapping) mapped).getSampleIndexes(id);
+            assertEquals(samples.size(), indexes.length);
+            for (int sample = 0; sample < indexes.length; sample++) {
+                assertEquals(samples.get(sample), text.getSampleList().get(indexes[sample]));
+            }
+        }
+
+        assertEquals(lines(text), lines(mapped));
+        assertEquals(2, dir.list().length);
+
+        //Adding a binary mapping to a text one
+        SampleMapping<String> incremental = new SampleMapping<String>();
+        SampleMapping.fromFile(binFile, incremental);
+        assertEquals(lines(text), lines(incremental));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testMappedReadOnly() throws IOException {
+        File textFile = new File(dir, "samples.txt");
+        FileUtils.writeStringToFile(textFile, "a\ts1\nb\ts2\n");
+        File binFile = new File(dir, "samples.bin");
+        IndexMappings.indexSampleMapping(textFile, binFile);
+        assertEquals(Arrays.asList("s1", "s2"), MappedSampleMapping.load(binFile).getSampleList());
+        MappedSampleMapping.load(binFile).addSeq("s1", "c");
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class StringTableTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("string_table_test", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private StringTable write(List<String> strings, int[] order) throws IOException {
+        StringTable.Writer writer = new StringTable.Writer(dir);
+        for (int index = 0; index < strings.size(); index++) {
+            assertEquals(index, writer.add(strings.get(index)));
+        }
+        assertEquals(strings.size(), writer.size());
+
+        int[] sorted = writer.sort();
+        for (int index = 1; index < sorted.length; index++) {
+            int cmp = compareUtf8(strings.get(sorted[index - 1]), strings.get(sorted[index]));
+            //Copies stay in the order they were added
+            assertTrue(cmp < 0 || (cmp == 0 && sorted[index - 1] < sorted[index]));
+            assertEquals(cmp == 0, writer.same(sorted[index - 1], sorted[index]));
+        }
+        for (int index = 0; index < strings.size(); index++) {
+            assertEquals(strings.get(index), writer.get(index));
+        }
+
+        if (order != null) {
+            //Table positions sorted by string, copies in position order
+            int[] position = new int[strings.size()];
+            for (int pos = 0; pos < order.length; pos++) {
+                position[order[pos]] = pos;
+            }
+            int from = 0;
+            for (int index = 0; index <= sorted.length; index++) {
+                if (index == sorted.length || !writer.same(sorted[from], sorted[index])) {
+                    int[] run = new int[index - from];
+                    for (int pos = from; pos < index; pos++) {
+                        run[pos - from] = position[sorted[pos]];
+                    }
+                    Arrays.sort(run);
+                    System.arraycopy(run, 0, sorted, from, run.length);
+                    from = index;
+                }
+            }
+        }
+
+        File f = new File(dir, "table");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        writer.write(out, order, sorted);
+        out.close();
+        writer.close();
+
+        StringTable ret = StringTable.load(f);
+        assertEquals(f.length(), ret.getEnd());
+        return ret;
+    }
+
+    private static int compareUtf8(String a, String b) throws IOException {
+        byte[] x = a.getBytes("UTF-8"), y = b.getBytes("UTF-8");
+        for (int i = 0; i < Math.min(x.length, y.length); i++) {
+            int diff = (x[i] & 0xff) - (y[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return x.length - y.length;
+    }
+
+    private static void check(StringTable table, List<String> strings) {
+        assertEquals(strings.size(), table.size());
+        assertEquals(new HashSet(strings).size(), table.distinctSize());
+
+        for (int index = 0; index < strings.size(); index++) {
+            String s = strings.get(index);
+            assertEquals(s, table.get(index));
+
+            List<Integer> expected = new ArrayList();
+            for (int copy = 0; copy < strings.size(); copy++) {
+                if (strings.get(copy).equals(s)) {
+                    expected.add(copy);
+                }
+            }
+            int[] found = table.indexesOf(s);
+            assertEquals(expected.size(), found.length);
+            for (int copy = 0; copy < found.length; copy++) {
+                assertEquals((int) expected.get(copy), found[copy]);
+            }
+            assertEquals((int) expected.get(0), table.indexOf(s));
+            assertEquals((int) expected.get(expected.size() - 1), table.lastIndexOf(s));
+        }
+
+        for (String missing : new String[]{"", "zzzz", "seq", "seq5x", "\u00e9"}) {
+            if (!strings.contains(missing)) {
+                assertEquals(-1, table.indexOf(missing));
+                assertEquals(-1, table.lastIndexOf(missing));
+                assertEquals(0, table.indexesOf(missing).length);
+            }
+        }
+    }
+
+    private static List<String> randomStrings(Random rand, int n) {
+        List<String> ret = new ArrayList();
+        for (int index = 0; index < n; index++) {
+            //Some copies, and ids that are prefixes of each other
+            ret.add("seq" + rand.nextInt(n / 2));
+        }
+        ret.add("\u00e9t\u00e9");
+        ret.add("caf\u00e9");
+        ret.add("caf\u00e9");
+        return ret;
+    }
+
+    @Test
+    public void testAddOrder() throws IOException {
+        List<String> strings = randomStrings(new Random(1), 2000);
+        check(write(strings, null), strings);
+    }
+
+    @Test
+    public void testGivenOrder() throws IOException {
+        Random rand = new Random(2);
+        List<String> added = randomStrings(rand, 500);
+        int[] order = new int[added.size()];
+        for (int index = 0; index < order.length; index++) {
+            order[index] = index;
+        }
+        for (int index = order.length - 1; index > 0; index--) {
+            int swap = rand.nextInt(index + 1);
+            int tmp = order[index];
+            order[index] = order[swap];
+            order[swap] = tmp;
+        }
+
+        List<String> strings = new ArrayList();
+        for (int index : order) {
+            strings.add(added.get(index));
+        }
+        check(write(added, order), strings);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        List<String> strings = new ArrayList();
+        StringTable table = write(strings, null);
+        check(table, strings);
+        assertEquals(0, table.distinctSize());
+    }
+
+    @Test
+    public void testPoolFileRemoved() throws IOException {
+        StringTable.Writer writer = new StringTable.Writer(dir);
+        writer.add("a");
+        assertEquals(1, dir.list().length);
+        writer.close();
+        assertEquals(0, dir.list().length);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 Michigan State University <rdpstaff at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.pyro.derep;
+
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class UniqueSeqTableTest {
+
+    @Test
+    public void testGrouping() {
+        UniqueSeqTable table = new UniqueSeqTable();
+        Map<String, Integer> entries = new HashMap();
+
+        //Enough sequences that the table resizes a few times
+        for (int index = 0; index < 1000; index++) {
+            String bases = Integer.toString(index % 300, 4).replace('0', 'A').replace('1', 'C').replace('2', 'G').replace('3', 'T');
+            long[] fp = UniqueSeqTable.fingerprint(bases);
+            int entry = table.add(fp[0], fp[1], index, 1, new Sequence("s" + index, "", bases), "s" + index);
+
+            Integer expected = entries.get(bases);
+            if (expected == null) {
+                entries.put(bases, entry);
+            } else {
+                assertEquals((int) expected, entry);
+            }
+        }
+
+        assertEquals(300, table.size());
+        for (int entry = 0; entry < table.size(); entry++) {
+            int first = (int) table.getFirstOrdinal(entry);
+            assertEquals("s" + first, table.getExemplar(entry).getSeqName());
+            assertEquals(first < 100 ? 4 : 3, table.getCount(entry));
+            assertTrue(table.getIds(entry).startsWith("s" + first + ",s" + (first + 300) + ","));
+
+            long[] fp = UniqueSeqTable.fingerprint(table.getExemplar(entry).getSeqString());
+            assertEquals(fp[0], table.getFingerprintHi(entry));
+            assertEquals(fp[1], table.getFingerprintLo(entry));
+        }
+    }
+
+    @Test
+    public void testLowerOrdinalIsExemplar() {
+        UniqueSeqTable table = new UniqueSeqTable();
+        long[] fp = UniqueSeqTable.fingerprint("ACGT");
+        table.add(fp[0], fp[1], 10, 2, new Sequence("late", "", "ACGT"), "late,later");
+        int entry = table.add(fp[0], fp[1], 3, 1, new Sequence("early", "", "ACGT"), "early");
+
+        assertEquals(1, table.size());
+        assertEquals(3, table.getFirstOrdinal(entry));
+        assertEquals("early", table.getExemplar(entry).getSeqName());
+        assertEquals("early,late,later", table.getIds(entry));
+        assertEquals(3, table.getCount(entry));
+    }
+
+    @Test
+    public void testFingerprintCollision() {
+        UniqueSeqTable table = new UniqueSeqTable();
+        //Same fingerprint, different bases, through a few resizes
+        for (int index = 0; index < 100; index++) {
+            table.add(1, 2, index, 1, new Sequence("s" + index, "", "A" + (index % 50)), "s" + index);
+        }
+
+        assertEquals(50, table.size());
+        for (int entry = 0; entry < table.size(); entry++) {
+            assertEquals(2, table.getCount(entry));
+            assertEquals("A" + entry, table.getExemplar(entry).getSeqString());
+        }
+    }
+
+    @Test
+    public void testClear() {
+        UniqueSeqTable table = new UniqueSeqTable();
+        table.add(1, 2, 0, 1, new Sequence("s", "", "ACGT"), "s");
+        assertTrue(table.getAllocatedBytes() > 0);
+        long empty = new UniqueSeqTable().getAllocatedBytes();
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(empty, table.getAllocatedBytes());
+        assertEquals(0, table.add(1, 2, 5, 1, new Sequence("t", "", "ACGT"), "t"));
+        assertEquals("t", table.getIds(0));
+    }
+}